@@ -1,7 +1,10 @@
 package com.github.krukow.clj_ds;
 
+import java.util.Collection;
 import java.util.Map;
 
+import com.github.krukow.clj_lang.IFn;
+
 /**
  * {@link PersistentMap}s
  * 
@@ -41,4 +44,55 @@ public interface PersistentMap<K, V> extends Map<K, V> {
 	 */
 	PersistentMap<K, V> minus(K key);
 
+	/**
+	 * @return A new {@link PersistentMap} consisting of the content of the
+	 *         current {@link PersistentMap} where each key of the map entries
+	 *         is associated to its value in entries. The whole batch is
+	 *         applied in one pass, so nodes touched by several associations
+	 *         are copied only once.
+	 */
+	PersistentMap<K, V> plusAll(Map<? extends K, ? extends V> entries);
+
+	/**
+	 * @return A new {@link PersistentMap} consisting of the content of the
+	 *         current {@link PersistentMap} without the associations to any of
+	 *         the given keys. The whole batch is applied in one pass.
+	 */
+	PersistentMap<K, V> minusAll(Collection<? extends K> keys);
+
+	/**
+	 * @return A new {@link PersistentMap} consisting of the content of the
+	 *         current {@link PersistentMap} where the given key is associated
+	 *         to the result of applying f to its current value (null if the
+	 *         key is absent). The key is located once; if f returns the
+	 *         identical value the current map is returned.
+	 */
+	PersistentMap<K, V> update(K key, IFn f);
+
+	/**
+	 * @return A new {@link PersistentMap} consisting of the content of the
+	 *         current {@link PersistentMap} where the given key is associated
+	 *         to the result of applying f to the key and its current value
+	 *         (null if the key is absent). A null result removes the
+	 *         association.
+	 */
+	PersistentMap<K, V> compute(K key, IFn f);
+
+	/**
+	 * @return The current {@link PersistentMap} if it contains the given key,
+	 *         otherwise a new {@link PersistentMap} where the key is
+	 *         associated to the result of applying f to the key, unless that
+	 *         result is null.
+	 */
+	PersistentMap<K, V> computeIfAbsent(K key, IFn f);
+
+	/**
+	 * @return A new {@link PersistentMap} consisting of the content of the
+	 *         current {@link PersistentMap} where the given key is associated
+	 *         to val if it is absent, and otherwise to the result of applying
+	 *         f to its current value and val. A null result removes the
+	 *         association.
+	 */
+	PersistentMap<K, V> merge(K key, V val, IFn f);
+
 }
@@ -1,5 +1,9 @@
 package com.github.krukow.clj_ds;
 
+import java.util.Collection;
+import java.util.Map;
+
+import com.github.krukow.clj_lang.IFn;
 import com.github.krukow.clj_lang.Sorted;
 
 public interface PersistentSortedMap<K, V> extends PersistentMap<K, V>, Sorted<K> /* , SortedMap<K, V> */{
@@ -12,4 +16,16 @@ public interface PersistentSortedMap<K, V> extends PersistentMap<K, V>, Sorted<K
 
 	PersistentSortedMap<K, V> minus(K key);
 
+	PersistentSortedMap<K, V> plusAll(Map<? extends K, ? extends V> entries);
+
+	PersistentSortedMap<K, V> minusAll(Collection<? extends K> keys);
+
+	PersistentSortedMap<K, V> update(K key, IFn f);
+
+	PersistentSortedMap<K, V> compute(K key, IFn f);
+
+	PersistentSortedMap<K, V> computeIfAbsent(K key, IFn f);
+
+	PersistentSortedMap<K, V> merge(K key, V val, IFn f);
+
 }
@@ -2,6 +2,8 @@ package com.github.krukow.clj_ds;
 
 import java.util.List;
 
+import com.github.krukow.clj_lang.IFn;
+
 /**
  * A {@link PersistentCollection} that has array-like runtime characteritics.
  * New elements are "added" at the end of the {@link PersistentVector}.
@@ -25,6 +27,17 @@ public interface PersistentVector<E> extends PersistentStack<E>, List<E>, Indexe
 	 */
 	PersistentVector<E> plusN(int i, E val);
 
+	/**
+	 * @return A new {@link PersistentVector} consisting of the elements of
+	 *         current {@link PersistentVector} where the element at index i has
+	 *         been replaced by the result of applying f to it. The current
+	 *         {@link PersistentVector} is returned if f returns the identical
+	 *         element.
+	 * @throw {@link IndexOutOfBoundsException} if the index i is greater that
+	 *        the current maximum index.
+	 */
+	PersistentVector<E> update(int i, IFn f);
+
 	/**
 	 * @return A new {@link PersistentVector} consisting of the elements of
 	 *         the current {@link PersistentVector} without its last element.
@@ -1,11 +1,24 @@
 package com.github.krukow.clj_ds;
 
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.github.krukow.clj_lang.AFn;
+import com.github.krukow.clj_lang.IEditableCollection;
+import com.github.krukow.clj_lang.IFn;
+import com.github.krukow.clj_lang.InlineArrayPersistentHATTrie;
+import com.github.krukow.clj_lang.Monoid;
+import com.github.krukow.clj_lang.PersistentARTMap;
+import com.github.krukow.clj_lang.PersistentAppendBTreeMap;
 import com.github.krukow.clj_lang.PersistentArrayMap;
+import com.github.krukow.clj_lang.PersistentAugmentedTreeMap;
+import com.github.krukow.clj_lang.PersistentBTreeMap;
 import com.github.krukow.clj_lang.PersistentHashMap;
 import com.github.krukow.clj_lang.PersistentHashSet;
+import com.github.krukow.clj_lang.PersistentLongBTreeMap;
 import com.github.krukow.clj_lang.PersistentTreeMap;
 import com.github.krukow.clj_lang.PersistentTreeSet;
 
@@ -147,6 +160,125 @@ public final class Persistents {
 		return PersistentTreeMap.create(init);
 	}
 
+	/**
+	 * @return An empty {@link PersistentSortedMap}; implemented as a B+-tree
+	 *         with wide nodes.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentSortedMap<K, V> bTreeMap() {
+		return PersistentBTreeMap.EMPTY;
+	}
+
+	/**
+	 * @return An empty {@link PersistentSortedMap} ordered by comp;
+	 *         implemented as a B+-tree with wide nodes.
+	 */
+	public static <K, V> PersistentSortedMap<K, V> bTreeMap(Comparator<K> comp) {
+		return new PersistentBTreeMap<K, V>(comp);
+	}
+
+	/**
+	 * @return A {@link PersistentSortedMap} consisting of the associations of
+	 *         the map init; implemented as a B+-tree with wide nodes.
+	 */
+	public static <K, V> PersistentSortedMap<K, V> bTreeMap(Map<? extends K, ? extends V> init) {
+		return PersistentBTreeMap.create(init);
+	}
+
+	/**
+	 * @return An empty {@link PersistentSortedMap} for keys that mostly
+	 *         arrive in ascending order; implemented as a B+-tree with an
+	 *         append buffer.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentSortedMap<K, V> appendBTreeMap() {
+		return PersistentAppendBTreeMap.EMPTY;
+	}
+
+	/**
+	 * @return An empty {@link PersistentSortedMap} ordered by comp for keys
+	 *         that mostly arrive in ascending order; implemented as a B+-tree
+	 *         with an append buffer.
+	 */
+	public static <K, V> PersistentSortedMap<K, V> appendBTreeMap(Comparator<K> comp) {
+		return new PersistentAppendBTreeMap<K, V>(comp);
+	}
+
+	/**
+	 * @return An empty sorted map caching the monoid's summary of every
+	 *         subtree, for range aggregates in O(log n); see
+	 *         {@link PersistentAugmentedTreeMap#aggregate(Object, Object)}.
+	 */
+	public static <K, V, S> PersistentAugmentedTreeMap<K, V, S> augmentedTreeMap(Monoid<? super K, ? super V, S> monoid) {
+		return PersistentAugmentedTreeMap.create(monoid);
+	}
+
+	/**
+	 * @return An empty sorted map ordered by comp caching the monoid's
+	 *         summary of every subtree.
+	 */
+	public static <K, V, S> PersistentAugmentedTreeMap<K, V, S> augmentedTreeMap(Comparator<K> comp, Monoid<? super K, ? super V, S> monoid) {
+		return new PersistentAugmentedTreeMap<K, V, S>(comp, monoid);
+	}
+
+	/**
+	 * @return An empty sorted map from long keys; implemented as a B+-tree
+	 *         with long[] keys, see the primitive methods of
+	 *         {@link PersistentLongBTreeMap}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentLongBTreeMap<V> longBTreeMap() {
+		return PersistentLongBTreeMap.EMPTY;
+	}
+
+	/**
+	 * @return A sorted map from long keys consisting of the associations of
+	 *         the map init; implemented as a B+-tree with long[] keys.
+	 */
+	public static <V> PersistentLongBTreeMap<V> longBTreeMap(Map<? extends Number, ? extends V> init) {
+		return PersistentLongBTreeMap.create(init);
+	}
+
+	/**
+	 * @return An empty map from String keys iterating in String order;
+	 *         implemented as a HAT trie, see
+	 *         {@link InlineArrayPersistentHATTrie}. Keys may only hold chars
+	 *         below 256, others are rejected with an
+	 *         IllegalArgumentException.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> InlineArrayPersistentHATTrie<V> trieMap() {
+		return InlineArrayPersistentHATTrie.EMPTY;
+	}
+
+	/**
+	 * @return A map from String keys consisting of the associations of the
+	 *         map init, iterating in String order; implemented as a HAT trie.
+	 *         Keys may only hold chars below 256, others are rejected with an
+	 *         IllegalArgumentException.
+	 */
+	public static <V> InlineArrayPersistentHATTrie<V> trieMap(Map<String, ? extends V> init) {
+		return InlineArrayPersistentHATTrie.create(init);
+	}
+
+	/**
+	 * @return An empty sorted map from byte[] keys in unsigned byte order;
+	 *         implemented as an adaptive radix tree, see
+	 *         {@link PersistentARTMap}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentARTMap<V> artMap() {
+		return PersistentARTMap.EMPTY;
+	}
+
+	/**
+	 * @return A sorted map from byte[] keys consisting of the associations
+	 *         of the map init; implemented as an adaptive radix tree.
+	 */
+	public static <V> PersistentARTMap<V> artMap(Map<byte[], ? extends V> init) {
+		return PersistentARTMap.create(init);
+	}
+
 	/**
 	 * @return An empty {@link PersistentSortedSet}; implemented as tree set.
 	 */
@@ -155,6 +287,22 @@ public final class Persistents {
 		return PersistentTreeSet.EMPTY;
 	}
 
+	/**
+	 * @return A {@link PersistentSortedSet} consisting of the elements of the
+	 *         {@link Iterable} vals; implemented as tree set.
+	 */
+	public static <E> PersistentSortedSet<E> treeSet(Iterable<? extends E> vals) {
+		return PersistentTreeSet.create(vals);
+	}
+
+	/**
+	 * @return A {@link PersistentSortedSet} consisting of the elements of the
+	 *         {@link Iterable} vals, ordered by comp; implemented as tree set.
+	 */
+	public static <E> PersistentSortedSet<E> treeSet(Comparator<E> comp, Iterable<? extends E> vals) {
+		return PersistentTreeSet.create(comp, vals);
+	}
+
 	/**
 	 * @return An empty {@link PersistentList}; implemented as linked list.
 	 */
@@ -276,44 +424,150 @@ public final class Persistents {
 	 * Applies successively the method {@link PersistentSortedSet#plus(E)}.
 	 */
 	public static <E> PersistentSortedSet<E> plusAll(PersistentSortedSet<E> set, Iterable<? extends E> others) {
-		PersistentSortedSet<E> result = set;
+		TransientSet<E> result = (TransientSet<E>) set.asTransient();
 		for (E other : others) {
 			result = result.plus(other);
 		}
-		return result;
+		return (PersistentSortedSet<E>) result.persist();
 	}
 
 	/**
 	 * Applies successively the method {@link PersistentSortedSet#plus(E)}.
 	 */
 	public static <E> PersistentSortedSet<E> plusAll(PersistentSortedSet<E> set, E... others) {
-		PersistentSortedSet<E> result = set;
+		TransientSet<E> result = (TransientSet<E>) set.asTransient();
 		for (E other : others) {
 			result = result.plus(other);
 		}
-		return result;
+		return (PersistentSortedSet<E>) result.persist();
 	}
 
 	/**
 	 * Applies successively the method {@link PersistentSortedSet#minus(E)}.
 	 */
 	public static <E> PersistentSortedSet<E> minusAll(PersistentSortedSet<E> set, Iterable<? extends E> others) {
-		PersistentSortedSet<E> result = set;
+		TransientSet<E> result = (TransientSet<E>) set.asTransient();
 		for (E other : others) {
 			result = result.minus(other);
 		}
-		return result;
+		return (PersistentSortedSet<E>) result.persist();
 	}
 
 	/**
 	 * Applies successively the method {@link PersistentSortedSet#minus(E)}.
 	 */
 	public static <E> PersistentSortedSet<E> minusAll(PersistentSortedSet<E> set, E... others) {
-		PersistentSortedSet<E> result = set;
+		TransientSet<E> result = (TransientSet<E>) set.asTransient();
 		for (E other : others) {
 			result = result.minus(other);
 		}
-		return result;
+		return (PersistentSortedSet<E>) result.persist();
+	}
+
+	/**
+	 * Applies a batch of nested updates to a structure of {@link PersistentMap}s
+	 * and {@link PersistentVector}s. Each key of updates is a path of map keys
+	 * and vector indices leading from root; its function is applied to the
+	 * value found at the end of that path (null if missing). Paths are grouped
+	 * by common prefix, so every touched map or vector is descended once and
+	 * rebuilt once, through a transient where it has one. Missing
+	 * intermediate levels are created as hash maps. A function on a path that
+	 * is a prefix of other paths sees the result of the deeper updates.
+	 * 
+	 * @return The new root.
+	 * @throws IllegalArgumentException
+	 *             If a path leads through a value that is neither a
+	 *             {@link PersistentMap} nor a {@link PersistentVector}, or
+	 *             indexes a vector with a non-integer.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T updateIn(T root, Map<? extends List<?>, ? extends IFn> updates) {
+		PathStep top = new PathStep();
+		for (Map.Entry<? extends List<?>, ? extends IFn> e : updates.entrySet()) {
+			PathStep step = top;
+			for (Object key : e.getKey()) {
+				step = step.child(key);
+			}
+			step.fn = e.getValue();
+		}
+		return (T) top.apply(root);
+	}
+
+	/**
+	 * Associates a batch of values at nested paths, see
+	 * {@link #updateIn(Object, Map)}.
+	 * 
+	 * @return The new root.
+	 */
+	public static <T> T assocIn(T root, Map<? extends List<?>, ?> values) {
+		Map<List<?>, IFn> updates = new LinkedHashMap<List<?>, IFn>();
+		for (final Map.Entry<? extends List<?>, ?> e : values.entrySet()) {
+			updates.put(e.getKey(), new AFn() {
+				@Override
+				public Object invoke(Object old) {
+					return e.getValue();
+				}
+			});
+		}
+		return updateIn(root, updates);
+	}
+
+	/*
+	 * One level of the prefix tree built from the paths of an updateIn batch.
+	 * As an IFn it rebuilds the value it is applied to: children first, then
+	 * the function registered on this exact path.
+	 */
+	private static final class PathStep extends AFn {
+		final Map<Object, PathStep> children = new LinkedHashMap<Object, PathStep>();
+		IFn fn;
+
+		PathStep child(Object key) {
+			PathStep step = children.get(key);
+			if (step == null) {
+				step = new PathStep();
+				children.put(key, step);
+			}
+			return step;
+		}
+
+		@Override
+		public Object invoke(Object node) {
+			return apply(node);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Object apply(Object node) {
+			if (!children.isEmpty()) {
+				if (node == null) {
+					node = hashMap();
+				}
+				if (node instanceof PersistentVector) {
+					TransientVector vec = ((PersistentVector) node).asTransient();
+					for (Map.Entry<Object, PathStep> e : children.entrySet()) {
+						if (!(e.getKey() instanceof Integer)) {
+							throw new IllegalArgumentException("Key must be integer");
+						}
+						vec = vec.update((Integer) e.getKey(), e.getValue());
+					}
+					node = vec.persist();
+				} else if (node instanceof IEditableCollection && node instanceof PersistentMap) {
+					TransientMap map = (TransientMap) ((IEditableCollection) node).asTransient();
+					for (Map.Entry<Object, PathStep> e : children.entrySet()) {
+						map = map.update(e.getKey(), e.getValue());
+					}
+					node = map.persist();
+				} else if (node instanceof PersistentMap) {
+					PersistentMap map = (PersistentMap) node;
+					for (Map.Entry<Object, PathStep> e : children.entrySet()) {
+						map = map.update(e.getKey(), e.getValue());
+					}
+					node = map;
+				} else {
+					throw new IllegalArgumentException("Cannot update a nested value of " + node.getClass().getName());
+				}
+			}
+			return fn != null ? fn.invoke(node) : node;
+		}
 	}
 
 	// Empty Constructor
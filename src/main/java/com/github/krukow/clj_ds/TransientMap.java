@@ -1,5 +1,7 @@
 package com.github.krukow.clj_ds;
 
+import com.github.krukow.clj_lang.IFn;
+
 public interface TransientMap<K, V> {
 
 	/**
@@ -17,6 +19,37 @@ public interface TransientMap<K, V> {
 	 */
 	TransientMap<K, V> minus(K key);
 
+	/**
+	 * @return A {@link TransientMap} where the given key is associated to the
+	 *         result of applying f to its current value, null if the key is
+	 *         absent (no guarantees are made on the current map). The key is
+	 *         located once.
+	 */
+	TransientMap<K, V> update(K key, IFn f);
+
+	/**
+	 * @return A {@link TransientMap} where the given key is associated to the
+	 *         result of applying f to the key and its current value, null if
+	 *         the key is absent (no guarantees are made on the current map). A
+	 *         null result removes the association.
+	 */
+	TransientMap<K, V> compute(K key, IFn f);
+
+	/**
+	 * @return A {@link TransientMap} where the given key, if absent, is
+	 *         associated to the result of applying f to the key unless that
+	 *         result is null (no guarantees are made on the current map).
+	 */
+	TransientMap<K, V> computeIfAbsent(K key, IFn f);
+
+	/**
+	 * @return A {@link TransientMap} where the given key is associated to val
+	 *         if it is absent, and otherwise to the result of applying f to its
+	 *         current value and val (no guarantees are made on the current
+	 *         map). A null result removes the association.
+	 */
+	TransientMap<K, V> merge(K key, V val, IFn f);
+
 	PersistentMap<K, V> persist();
 
 }
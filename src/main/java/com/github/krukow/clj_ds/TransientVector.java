@@ -1,5 +1,7 @@
 package com.github.krukow.clj_ds;
 
+import com.github.krukow.clj_lang.IFn;
+
 public interface TransientVector<E> extends TransientCollection<E>, Indexed<E> {
 
 	/**
@@ -19,6 +21,15 @@ public interface TransientVector<E> extends TransientCollection<E>, Indexed<E> {
 	 */
 	TransientVector<E> plusN(int i, E val);
 
+	/**
+	 * @return A {@link TransientVector} where the element at index i has been
+	 *         replaced by the result of applying f to it (no guarantees are
+	 *         made on the current collection).
+	 * @throw {@link IndexOutOfBoundsException} if the index i is greater that
+	 *        the current maximum index.
+	 */
+	TransientVector<E> update(int i, IFn f);
+
 	/**
 	 * @return A new {@link TransientVector} consisting of the elements of the
 	 *         current collection together with its last element (no guarantees
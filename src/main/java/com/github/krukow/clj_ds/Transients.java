@@ -1,8 +1,17 @@
 package com.github.krukow.clj_ds;
 
+import java.util.Comparator;
+
+import com.github.krukow.clj_lang.InlineArrayPersistentHATTrie;
+import com.github.krukow.clj_lang.PersistentARTMap;
 import com.github.krukow.clj_lang.PersistentArrayMap;
+import com.github.krukow.clj_lang.PersistentBTreeMap;
+import com.github.krukow.clj_lang.PersistentHATTrie;
 import com.github.krukow.clj_lang.PersistentHashMap;
 import com.github.krukow.clj_lang.PersistentHashSet;
+import com.github.krukow.clj_lang.PersistentLongBTreeMap;
+import com.github.krukow.clj_lang.PersistentTreeMap;
+import com.github.krukow.clj_lang.PersistentTreeSet;
 import com.github.krukow.clj_lang.PersistentVector;
 
 public final class Transients {
@@ -27,6 +36,46 @@ public final class Transients {
 		return PersistentArrayMap.EMPTY.asTransient();
 	}
 	
+	@SuppressWarnings("unchecked")
+	public static final <K, V> TransientMap<K, V> transientBTreeMap() {
+		return PersistentBTreeMap.EMPTY.asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <V> PersistentLongBTreeMap.TransientLongBTreeMap<V> transientLongBTreeMap() {
+		return PersistentLongBTreeMap.EMPTY.asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <V> PersistentHATTrie.TransientHATTrie<V> transientHATTrie() {
+		return PersistentHATTrie.EMPTY.asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <V> TransientMap<String, V> transientTrieMap() {
+		return InlineArrayPersistentHATTrie.EMPTY.asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <V> TransientMap<byte[], V> transientARTMap() {
+		return PersistentARTMap.EMPTY.asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <K, V> TransientMap<K, V> transientTreeMap() {
+		return PersistentTreeMap.EMPTY.asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <K, V> TransientMap<K, V> transientTreeMap(Comparator<K> comp) {
+		return new PersistentTreeMap<K, V>(null, comp).asTransient();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static final <E> TransientSet<E> transientTreeSet() {
+		return PersistentTreeSet.EMPTY.asTransient();
+	}
+	
 	// Utilities
 	
 	public static <E> TransientVector<E> plusAll(TransientVector<E> vec, Iterable<? extends E> others) {
@@ -163,6 +163,54 @@ static public class ValSeq extends ASeq{
 }
 
 
+
+/*
+ * The single-pass update operations of the maps are all expressed as one
+ * function from the current value to the new one. ABSENT stands for a
+ * missing key on the way in and for a removal on the way out; returning the
+ * identical value means no change.
+ */
+static final Object ABSENT = new Object();
+
+static IFn updateFn(final IFn f){
+	return new AFn(){
+		public Object invoke(Object v){
+			return f.invoke(v == ABSENT ? null : v);
+		}
+	};
+}
+
+static IFn computeFn(final Object key, final IFn f){
+	return new AFn(){
+		public Object invoke(Object v){
+			Object ret = f.invoke(key, v == ABSENT ? null : v);
+			return ret == null ? ABSENT : ret;
+		}
+	};
+}
+
+static IFn computeIfAbsentFn(final Object key, final IFn f){
+	return new AFn(){
+		public Object invoke(Object v){
+			if(v != ABSENT)
+				return v;
+			Object ret = f.invoke(key);
+			return ret == null ? ABSENT : ret;
+		}
+	};
+}
+
+static IFn mergeFn(final Object val, final IFn f){
+	return new AFn(){
+		public Object invoke(Object v){
+			if(v == ABSENT)
+				return val;
+			Object ret = f.invoke(v, val);
+			return ret == null ? ABSENT : ret;
+		}
+	};
+}
+
 public Object invoke(Object arg1) {
 	return valAt((K) arg1);
 }
@@ -12,11 +12,14 @@ package com.github.krukow.clj_lang;
 
 import java.util.Map;
 
+import com.github.krukow.clj_ds.TransientMap;
+
 
 abstract class ATransientMap<K,V> extends AFn implements ITransientMap<K,V> {
 	abstract void ensureEditable();
 	abstract ITransientMap<K,V> doAssoc(K key, V val);
 	abstract ITransientMap<K,V> doWithout(K key);
+	abstract ITransientMap<K,V> doUpdate(K key, IFn f);
 	abstract V doValAt(K key, V notFound);
 	abstract int doCount();
 	abstract IPersistentMap<K,V> doPersistent();
@@ -48,6 +51,26 @@ abstract class ATransientMap<K,V> extends AFn implements ITransientMap<K,V> {
 		return doWithout(key);
 	}
 
+	public final TransientMap<K,V> update(K key, IFn f) {
+		ensureEditable();
+		return (TransientMap<K,V>) doUpdate(key, APersistentMap.updateFn(f));
+	}
+
+	public final TransientMap<K,V> compute(K key, IFn f) {
+		ensureEditable();
+		return (TransientMap<K,V>) doUpdate(key, APersistentMap.computeFn(key, f));
+	}
+
+	public final TransientMap<K,V> computeIfAbsent(K key, IFn f) {
+		ensureEditable();
+		return (TransientMap<K,V>) doUpdate(key, APersistentMap.computeIfAbsentFn(key, f));
+	}
+
+	public final TransientMap<K,V> merge(K key, V val, IFn f) {
+		ensureEditable();
+		return (TransientMap<K,V>) doUpdate(key, APersistentMap.mergeFn(val, f));
+	}
+
 	public final IPersistentMap<K,V> persistentMap() {
 		ensureEditable();
 		return doPersistent();
@@ -11,7 +11,7 @@ package com.github.krukow.clj_lang;
  * You must not remove this notice, or any other, from this software.
  */
 public interface Associative<K, V> extends IPersistentCollection<IMapEntry<K,V>>, ILookup<K,V>{
-boolean containsKey(K key);
+boolean containsKey(Object key);
 
 IMapEntry<K,V> entryAt(K key);
 
@@ -0,0 +1,61 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.util.Comparator;
+
+/**
+ * A mutable, forward-only position in a sorted collection, for merge joins.
+ * A new cursor is on the first entry; {@link #seek(Object)} moves ahead from
+ * wherever it is, so skipping d entries costs O(log d) rather than a descent
+ * from the root. A cursor is not thread safe.
+ */
+public interface Cursor<K, V> {
+
+	/**
+	 * @return true once the cursor has moved past the last entry.
+	 */
+	boolean atEnd();
+
+	/**
+	 * @return The key of the current entry.
+	 * @throws java.util.NoSuchElementException if {@link #atEnd()}.
+	 */
+	K peekKey();
+
+	/**
+	 * @return The value of the current entry; sets return the key.
+	 * @throws java.util.NoSuchElementException if {@link #atEnd()}.
+	 */
+	V peekVal();
+
+	/**
+	 * Moves to the next entry.
+	 *
+	 * @return false if that moved the cursor past the last entry.
+	 */
+	boolean next();
+
+	/**
+	 * Moves to the first entry whose key is greater than or equal to key,
+	 * unless the cursor is already there or beyond.
+	 *
+	 * @return false if there is no such entry.
+	 */
+	boolean seek(K key);
+
+	/**
+	 * Moves back to the first entry.
+	 */
+	void reset();
+
+	Comparator<? super K> comparator();
+}
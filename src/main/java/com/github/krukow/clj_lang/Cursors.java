@@ -0,0 +1,188 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * K-way merges of {@link Cursor}s over collections sharing one ordering.
+ * The iterators drive the cursors they are given and leave every cursor
+ * holding the key last returned by next() on it until the following
+ * hasNext(), so the values can be read with {@link Cursor#peekVal()} in
+ * between.
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public final class Cursors {
+
+	private Cursors(){
+	}
+
+	/**
+	 * @return The keys present in all the cursors, in ascending order. Uses
+	 *         leapfrog intersection: the cursor with the smallest key seeks
+	 *         to the largest one, so each step skips ahead in O(log d).
+	 */
+	public static <K> Iterator<K> intersection(Cursor<K, ?>... cursors){
+		return new Intersection<K>(cursors);
+	}
+
+	/**
+	 * @return The keys present in any of the cursors, in ascending order and
+	 *         without duplicates. On return from next() the cursors holding
+	 *         the key are exactly those whose {@link Cursor#peekKey()}
+	 *         equals it.
+	 */
+	public static <K> Iterator<K> union(Cursor<K, ?>... cursors){
+		return new Union<K>(cursors);
+	}
+
+	static final class Intersection<K> implements Iterator<K> {
+		final Cursor[] cursors;
+		final Comparator comp;
+		int p;
+		boolean done;
+		boolean pending;
+
+		Intersection(Cursor[] cursors){
+			this.cursors = cursors.clone();
+			this.comp = cursors.length > 0 ? cursors[0].comparator() : null;
+			for(Cursor c : cursors)
+				done |= c.atEnd();
+			done |= cursors.length == 0;
+			if(done)
+				return;
+			// leapfrogging needs the cursors in key order to begin with
+			for(int i = 1; i < this.cursors.length; i++)
+				for(int j = i; j > 0 && comp.compare(this.cursors[j - 1].peekKey(), this.cursors[j].peekKey()) > 0; j--)
+					{
+					Cursor c = this.cursors[j];
+					this.cursors[j] = this.cursors[j - 1];
+					this.cursors[j - 1] = c;
+					}
+			search();
+		}
+
+		/*
+		 * The cursors are ordered cyclically from p; move the smallest up to
+		 * the largest key until they all agree.
+		 */
+		void search(){
+			int k = cursors.length;
+			Object max = cursors[(p + k - 1) % k].peekKey();
+			for(;;)
+				{
+				Cursor c = cursors[p];
+				if(comp.compare(c.peekKey(), max) == 0)
+					return;
+				if(!c.seek(max))
+					{
+					done = true;
+					return;
+					}
+				max = c.peekKey();
+				p = (p + 1) % k;
+				}
+		}
+
+		public boolean hasNext(){
+			if(pending)
+				{
+				pending = false;
+				if(cursors[p].next())
+					{
+					p = (p + 1) % cursors.length;
+					search();
+					}
+				else
+					done = true;
+				}
+			return !done;
+		}
+
+		public K next(){
+			if(!hasNext())
+				throw new NoSuchElementException();
+			pending = true;
+			return (K) cursors[p].peekKey();
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static final class Union<K> implements Iterator<K> {
+		final Cursor[] heap;
+		final Comparator comp;
+		int size;
+		Object last;
+		boolean pending;
+
+		Union(Cursor[] cursors){
+			this.heap = new Cursor[cursors.length];
+			this.comp = cursors.length > 0 ? cursors[0].comparator() : null;
+			for(Cursor c : cursors)
+				if(!c.atEnd())
+					heap[size++] = c;
+			for(int i = size / 2 - 1; i >= 0; i--)
+				siftDown(i);
+		}
+
+		void siftDown(int i){
+			Cursor c = heap[i];
+			for(;;)
+				{
+				int child = 2 * i + 1;
+				if(child >= size)
+					break;
+				if(child + 1 < size && comp.compare(heap[child + 1].peekKey(), heap[child].peekKey()) < 0)
+					child++;
+				if(comp.compare(heap[child].peekKey(), c.peekKey()) >= 0)
+					break;
+				heap[i] = heap[child];
+				i = child;
+				}
+			heap[i] = c;
+		}
+
+		public boolean hasNext(){
+			if(pending)
+				{
+				pending = false;
+				while(size > 0 && comp.compare(heap[0].peekKey(), last) == 0)
+					{
+					if(!heap[0].next())
+						{
+						heap[0] = heap[--size];
+						heap[size] = null;
+						}
+					if(size > 0)
+						siftDown(0);
+					}
+				}
+			return size > 0;
+		}
+
+		public K next(){
+			if(!hasNext())
+				throw new NoSuchElementException();
+			last = heap[0].peekKey();
+			pending = true;
+			return (K) last;
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+}
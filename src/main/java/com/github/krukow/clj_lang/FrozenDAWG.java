@@ -0,0 +1,621 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ A read-only set of Strings as a minimal acyclic automaton, a DAWG: where a
+ trie shares the prefixes of its keys, the DAWG shares their suffixes too,
+ which for natural vocabularies makes it many times smaller. It is built
+ in one pass over the keys in String order, minimizing as it goes (Daciuk,
+ Mihov, Watson & Watson, "Incremental Construction of Minimal Acyclic
+ Finite-State Automata", 2000), then frozen into flat arrays.
+
+ The nodes are numbered so that every arc leads to a higher number, and
+ each knows how many keys it accepts. Counting the keys skipped on the way
+ down gives a key's rank, its index in String order, so the automaton is a
+ minimal perfect hash of its keys, and outputs are kept as a long[] by
+ rank.
+*/
+public final class FrozenDAWG implements Counted, Iterable<String> {
+	private static final int MAGIC = 0x44415747;
+	private static final int VERSION = 1;
+
+	/* node k's arcs are arcStart[k] until arcStart[k+1], in label order */
+	private final int[] arcStart;
+	private final char[] labels;
+	private final int[] targets;
+	private final boolean[] fin;
+	/* the number of keys accepted from each node */
+	private final int[] words;
+	/* by rank, null without outputs */
+	private final long[] outputs;
+
+	private FrozenDAWG(int[] arcStart, char[] labels, int[] targets, boolean[] fin, long[] outputs) {
+		this.arcStart = arcStart;
+		this.labels = labels;
+		this.targets = targets;
+		this.fin = fin;
+		this.outputs = outputs;
+		int n = fin.length;
+		this.words = new int[n];
+		// arcs lead to higher numbers, so counting down sees the targets first
+		for (int k = n - 1; k >= 0; k--) {
+			int w = fin[k] ? 1 : 0;
+			for (int a = arcStart[k]; a < arcStart[k + 1]; a++) {
+				w += words[targets[a]];
+			}
+			words[k] = w;
+		}
+	}
+
+	/**
+	 * @return The DAWG of keys, which must come in strictly increasing String
+	 *         order.
+	 */
+	public static FrozenDAWG create(Iterable<String> sortedKeys) {
+		Builder b = new Builder();
+		for (String s : sortedKeys) {
+			b.add(s);
+		}
+		return b.build();
+	}
+
+	/**
+	 * @return The DAWG of the keys of entries, which must come in strictly
+	 *         increasing String order, with their values as outputs. The tries
+	 *         iterate in that order, so they can be passed as they are.
+	 */
+	public static FrozenDAWG fromEntries(Iterable<? extends Map.Entry<String, ? extends Number>> sortedEntries) {
+		Builder b = new Builder();
+		for (Map.Entry<String, ? extends Number> e : sortedEntries) {
+			b.add(e.getKey(), e.getValue().longValue());
+		}
+		return b.build();
+	}
+
+	public int count() {
+		return words[0];
+	}
+
+	/**
+	 * @return The number of nodes of the automaton.
+	 */
+	public int nodeCount() {
+		return fin.length;
+	}
+
+	public boolean hasOutputs() {
+		return outputs != null;
+	}
+
+	public boolean contains(String s) {
+		return rank(s) >= 0;
+	}
+
+	/**
+	 * @return The number of keys before s in String order if s is a key,
+	 *         otherwise -1.
+	 */
+	public int rank(String s) {
+		int node = 0;
+		int rank = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (fin[node]) {
+				rank++;
+			}
+			int a = arcStart[node];
+			int end = arcStart[node + 1];
+			while (a < end && labels[a] < c) {
+				rank += words[targets[a]];
+				a++;
+			}
+			if (a == end || labels[a] != c) {
+				return -1;
+			}
+			node = targets[a];
+		}
+		return fin[node] ? rank : -1;
+	}
+
+	/**
+	 * @return The output of the key with the given rank.
+	 */
+	public long output(int rank) {
+		if (outputs == null) {
+			throw new UnsupportedOperationException("Built without outputs");
+		}
+		return outputs[rank];
+	}
+
+	/**
+	 * @return The output of s, or notFound if s is not a key.
+	 */
+	public long output(String s, long notFound) {
+		int rank = rank(s);
+		return rank >= 0 ? output(rank) : notFound;
+	}
+
+	/* the node reached by prefix, -1 if none */
+	private int nodeFor(String prefix) {
+		int node = 0;
+		for (int i = 0; i < prefix.length() && node >= 0; i++) {
+			node = arcFor(node, prefix.charAt(i));
+		}
+		return node;
+	}
+
+	private int arcFor(int node, char c) {
+		int lo = arcStart[node];
+		int hi = arcStart[node + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (labels[mid] < c) {
+				lo = mid + 1;
+			} else if (labels[mid] > c) {
+				hi = mid - 1;
+			} else {
+				return targets[mid];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of keys starting with prefix.
+	 */
+	public int prefixCount(String prefix) {
+		int node = nodeFor(prefix);
+		return node >= 0 ? words[node] : 0;
+	}
+
+	/**
+	 * @return The keys in String order. The i-th has rank i.
+	 */
+	public Iterator<String> iterator() {
+		return new WordIterator("", 0);
+	}
+
+	/**
+	 * @return The keys starting with prefix in String order, their ranks
+	 *         follow on from the rank of the first.
+	 */
+	public Iterator<String> prefixIterator(String prefix) {
+		int node = nodeFor(prefix);
+		return node >= 0 ? new WordIterator(prefix, node) : new WordIterator("", -1);
+	}
+
+	private final class WordIterator implements Iterator<String> {
+		private int[] nodes = new int[16];
+		/* the next arc of each node on the path, -1 before its own key */
+		private int[] arcs = new int[16];
+		private char[] chars;
+		private final int base;
+		private int sp;
+		private String next;
+
+		WordIterator(String prefix, int node) {
+			this.base = prefix.length();
+			this.chars = new char[base + 16];
+			prefix.getChars(0, base, chars, 0);
+			if (node >= 0) {
+				push(node);
+				advance();
+			}
+		}
+
+		private void push(int node) {
+			if (sp == nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * sp);
+				arcs = Arrays.copyOf(arcs, 2 * sp);
+			}
+			if (base + sp >= chars.length) {
+				chars = Arrays.copyOf(chars, 2 * chars.length);
+			}
+			nodes[sp] = node;
+			arcs[sp++] = -1;
+		}
+
+		private void advance() {
+			next = null;
+			while (sp > 0) {
+				int node = nodes[sp - 1];
+				int a = arcs[sp - 1];
+				if (a < 0) {
+					arcs[sp - 1] = arcStart[node];
+					if (fin[node]) {
+						next = new String(chars, 0, base + sp - 1);
+						return;
+					}
+				} else if (a < arcStart[node + 1]) {
+					arcs[sp - 1] = a + 1;
+					chars[base + sp - 1] = labels[a];
+					push(targets[a]);
+				} else {
+					sp--;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public String next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			String s = next;
+			advance();
+			return s;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/* the tries' access nodes branch on 256 chars */
+	private void checkTrieKeys() {
+		for (char c : labels) {
+			if (c > 0xff) {
+				throw new IllegalStateException("The tries can only hold keys with chars below 256, this DAWG has " + c);
+			}
+		}
+	}
+
+	/**
+	 * @return A trie of the keys, each with its output, or its rank when
+	 *         built without outputs.
+	 * @throws IllegalStateException
+	 *             if a key holds a char above 255, which the trie cannot
+	 */
+	@SuppressWarnings("unchecked")
+	public PersistentHATTrie<Long> toHATTrie() {
+		checkTrieKeys();
+		PersistentHATTrie.TransientHATTrie<Long> t = PersistentHATTrie.EMPTY.asTransient();
+		int rank = 0;
+		for (String s : this) {
+			t.addMember(s, outputs != null ? outputs[rank] : rank);
+			rank++;
+		}
+		return t.persistent();
+	}
+
+	/**
+	 * @return A sorted map of the keys, each to its output, or to its rank
+	 *         when built without outputs.
+	 * @throws IllegalStateException
+	 *             if a key holds a char above 255, which the map cannot
+	 */
+	@SuppressWarnings("unchecked")
+	public InlineArrayPersistentHATTrie<Long> toTrieMap() {
+		checkTrieKeys();
+		InlineArrayPersistentHATTrie.TransientHATTrie<Long> t = InlineArrayPersistentHATTrie.EMPTY.asTransient();
+		int rank = 0;
+		for (String s : this) {
+			t.doAssoc(s, outputs != null ? outputs[rank] : (long) rank);
+			rank++;
+		}
+		return t.doPersistent();
+	}
+
+	/**
+	 * The format is a header followed by varints: per node its number of arcs
+	 * and whether it is final, per arc its label and how far ahead its target
+	 * is numbered, then the outputs zigzag encoded. The key counts are worked
+	 * out again on reading.
+	 *
+	 * @return The automaton as bytes, see {@link #read(ByteBuffer)}.
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(4 * labels.length + 16);
+		writeInt(out, MAGIC);
+		out.write(VERSION);
+		out.write(outputs != null ? 1 : 0);
+		writeVarint(out, fin.length);
+		writeVarint(out, labels.length);
+		for (int k = 0; k < fin.length; k++) {
+			writeVarint(out, ((arcStart[k + 1] - arcStart[k]) << 1) | (fin[k] ? 1 : 0));
+			for (int a = arcStart[k]; a < arcStart[k + 1]; a++) {
+				writeVarint(out, labels[a]);
+				writeVarint(out, targets[a] - k);
+			}
+		}
+		if (outputs != null) {
+			for (long v : outputs) {
+				writeVarlong(out, (v << 1) ^ (v >> 63));
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads an automaton written by {@link #toBytes()} from the buffer's
+	 * position on, leaving the position after it.
+	 */
+	public static FrozenDAWG read(ByteBuffer in) {
+		try {
+			if (in.getInt() != MAGIC || in.get() != VERSION) {
+				throw new IllegalArgumentException("Not a DAWG");
+			}
+			boolean hasOutputs = in.get() != 0;
+			int n = readVarint(in);
+			int arcCount = readVarint(in);
+			int[] arcStart = new int[n + 1];
+			char[] labels = new char[arcCount];
+			int[] targets = new int[arcCount];
+			boolean[] fin = new boolean[n];
+			int a = 0;
+			for (int k = 0; k < n; k++) {
+				int h = readVarint(in);
+				fin[k] = (h & 1) != 0;
+				arcStart[k] = a;
+				for (int end = a + (h >>> 1); a < end; a++) {
+					labels[a] = (char) readVarint(in);
+					targets[a] = k + readVarint(in);
+				}
+			}
+			arcStart[n] = a;
+			FrozenDAWG dawg = new FrozenDAWG(arcStart, labels, targets, fin, null);
+			if (!hasOutputs) {
+				return dawg;
+			}
+			long[] outputs = new long[dawg.count()];
+			for (int i = 0; i < outputs.length; i++) {
+				long v = readVarlong(in);
+				outputs[i] = (v >>> 1) ^ -(v & 1);
+			}
+			return new FrozenDAWG(arcStart, labels, targets, fin, outputs);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated DAWG", e);
+		}
+	}
+
+	public static FrozenDAWG fromBytes(byte[] bytes) {
+		return read(ByteBuffer.wrap(bytes));
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static void writeVarlong(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+	}
+
+	private static long readVarlong(ByteBuffer in) {
+		long v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = in.get();
+			v |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+	}
+
+	/*
+	 A node while building. The nodes on the path of the last key added may
+	 still change, all others are in the register, which finds a node equal
+	 to a new one so the new one can be dropped.
+	*/
+	private static final class State {
+		char[] labels = new char[2];
+		State[] targets = new State[2];
+		int n;
+		boolean fin;
+		int hash;
+		int id = -1;
+
+		void addArc(char c, State s) {
+			if (n == labels.length) {
+				labels = Arrays.copyOf(labels, 2 * n);
+				targets = Arrays.copyOf(targets, 2 * n);
+			}
+			labels[n] = c;
+			targets[n++] = s;
+		}
+
+		/* only called once the node no longer changes */
+		public int hashCode() {
+			if (hash == 0) {
+				int h = fin ? 1 : 0;
+				for (int i = 0; i < n; i++) {
+					h = 31 * (31 * h + labels[i]) + System.identityHashCode(targets[i]);
+				}
+				hash = h == 0 ? 1 : h;
+			}
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			State s = (State) o;
+			if (s.fin != fin || s.n != n || s.hashCode() != hashCode()) {
+				return false;
+			}
+			for (int i = 0; i < n; i++) {
+				// the targets are registered already, so equal ones are the same
+				if (s.labels[i] != labels[i] || s.targets[i] != targets[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Builds a {@link FrozenDAWG} from keys added in strictly increasing
+	 * String order, either all with outputs or all without.
+	 */
+	public static final class Builder {
+		private final HashMap<State, State> register = new HashMap<State, State>();
+		/* path.get(i) is the node after the first i chars of the last key */
+		private final List<State> path = new ArrayList<State>();
+		private String last;
+		private int count;
+		private long[] outputs;
+		private boolean built;
+
+		public Builder() {
+			path.add(new State());
+		}
+
+		public Builder add(String s) {
+			if (outputs != null) {
+				throw new IllegalStateException("Keys were added with outputs");
+			}
+			addKey(s);
+			return this;
+		}
+
+		public Builder add(String s, long output) {
+			if (outputs == null) {
+				if (count > 0) {
+					throw new IllegalStateException("Keys were added without outputs");
+				}
+				outputs = new long[16];
+			}
+			addKey(s);
+			if (count > outputs.length) {
+				outputs = Arrays.copyOf(outputs, 2 * outputs.length);
+			}
+			outputs[count - 1] = output;
+			return this;
+		}
+
+		private void addKey(String s) {
+			if (built) {
+				throw new IllegalStateException("Already built");
+			}
+			if (last != null && last.compareTo(s) >= 0) {
+				throw new IllegalArgumentException("Keys must be added in strictly increasing order: " + last + ", " + s);
+			}
+			int p = 0;
+			if (last != null) {
+				int lim = Math.min(last.length(), s.length());
+				while (p < lim && last.charAt(p) == s.charAt(p)) {
+					p++;
+				}
+			}
+			minimize(p);
+			for (int i = p; i < s.length(); i++) {
+				State next = new State();
+				path.get(i).addArc(s.charAt(i), next);
+				path.add(next);
+			}
+			path.get(s.length()).fin = true;
+			last = s;
+			count++;
+		}
+
+		/*
+		 * Registers the nodes of the path below depth p, no later key passes
+		 * them, replacing each with an equal one already registered.
+		 */
+		private void minimize(int p) {
+			for (int i = path.size() - 1; i > p; i--) {
+				State s = path.remove(i);
+				State parent = path.get(i - 1);
+				State existing = register.get(s);
+				if (existing != null) {
+					parent.targets[parent.n - 1] = existing;
+				} else {
+					register.put(s, s);
+				}
+			}
+		}
+
+		public FrozenDAWG build() {
+			if (built) {
+				throw new IllegalStateException("Already built");
+			}
+			built = true;
+			minimize(0);
+			State root = path.get(0);
+			// number the nodes in reverse postorder, so arcs lead to higher numbers
+			List<State> post = new ArrayList<State>(register.size() + 1);
+			number(root, post);
+			int n = post.size();
+			int arcCount = 0;
+			for (State s : post) {
+				s.id = n - 1 - s.id;
+				arcCount += s.n;
+			}
+			int[] arcStart = new int[n + 1];
+			char[] labels = new char[arcCount];
+			int[] targets = new int[arcCount];
+			boolean[] fin = new boolean[n];
+			int a = 0;
+			for (int k = 0; k < n; k++) {
+				State s = post.get(n - 1 - k);
+				arcStart[k] = a;
+				fin[k] = s.fin;
+				for (int i = 0; i < s.n; i++, a++) {
+					labels[a] = s.labels[i];
+					targets[a] = s.targets[i].id;
+				}
+			}
+			arcStart[n] = a;
+			register.clear();
+			path.clear();
+			return new FrozenDAWG(arcStart, labels, targets, fin, outputs == null ? null : Arrays.copyOf(outputs, count));
+		}
+
+		private static void number(State s, List<State> post) {
+			s.id = -2;
+			for (int i = 0; i < s.n; i++) {
+				if (s.targets[i].id == -1) {
+					number(s.targets[i], post);
+				}
+			}
+			s.id = post.size();
+			post.add(s);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ The members a trie finds within a Levenshtein distance of a query. The trie
+ is walked depth first and rows[d] holds the edit distances between the
+ query's prefixes and the key of length d on the current path, which is the
+ state of a Levenshtein automaton having read that key. Only the band of
+ cells within max of the diagonal is computed, the rest can never come back
+ under max, so a row costs 2*max+1 cells whatever the query's length. A
+ branch is pruned as soon as its row has no cell under max.
+*/
+@SuppressWarnings("unchecked")
+final class FuzzyMatches<T> {
+	private final String query;
+	private final int max;
+	private final int q;
+	private final List<Map.Entry<String, T>> found = new ArrayList<Map.Entry<String, T>>();
+	private int[][] rows;
+	private char[] key;
+
+	FuzzyMatches(String query, int max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("Negative maxEdits: " + max);
+		}
+		this.query = query;
+		this.max = max;
+		this.q = query.length();
+		int depth = q + max + 1;
+		this.rows = new int[depth][q + 1];
+		this.key = new char[depth];
+		int hi = Math.min(q, max);
+		for (int j = 0; j <= hi; j++) {
+			rows[0][j] = j;
+		}
+		if (hi < q) {
+			rows[0][hi + 1] = max + 1;
+		}
+	}
+
+	int max() {
+		return max;
+	}
+
+	/*
+	 * Extends the key of length d-1 by c and fills rows[d].
+	 *
+	 * @return the least distance of any key starting with the new one's
+	 */
+	int step(int d, char c) {
+		int lo = Math.max(0, d - max);
+		int hi = Math.min(q, d + max);
+		if (lo > hi) {
+			// longer than the query by more than max
+			return max + 1;
+		}
+		key[d - 1] = c;
+		int[] prev = rows[d - 1];
+		int[] row = rows[d];
+		int least = max + 1;
+		// the cells just outside the band are read by the next row
+		if (lo > 0) {
+			row[lo - 1] = max + 1;
+		}
+		for (int j = lo; j <= hi; j++) {
+			int v;
+			if (j == 0) {
+				v = d;
+			} else {
+				v = prev[j - 1] + (query.charAt(j - 1) == c ? 0 : 1);
+				v = Math.min(v, Math.min(prev[j], row[j - 1]) + 1);
+			}
+			row[j] = v;
+			least = Math.min(least, v);
+		}
+		if (hi < q) {
+			row[hi + 1] = max + 1;
+		}
+		return least;
+	}
+
+	/*
+	 * Takes the member keyed by the current key of length d if it is close
+	 * enough.
+	 */
+	void member(int d, Object v) {
+		if (Math.abs(q - d) <= max && rows[d][q] <= max) {
+			found.add(new MapEntry<String, T>(new String(key, 0, d), (T) v));
+		}
+	}
+
+	List<Map.Entry<String, T>> found() {
+		return found;
+	}
+}
@@ -1,5 +1,8 @@
 package com.github.krukow.clj_lang;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * Copyright (c) Karl Krukow. All rights reserved.
  * The use and distribution terms for this software are covered by the
@@ -14,4 +17,33 @@ package com.github.krukow.clj_lang;
 public interface IPersistentTrie<T> /*extends IPersistentSet<String>, Seqable<String>*/ {
 	public T getMember(String s);
 	public IPersistentTrie<T> addMember(String s, T t);
+	public IPersistentTrie<T> removeMember(String s);
+	/**
+	 * @return The member with the longest key that is a prefix of s, keyed
+	 *         by that prefix, or null.
+	 */
+	public Map.Entry<String, T> longestPrefixOf(String s);
+	/**
+	 * @return The members whose keys are prefixes of s, shortest first.
+	 */
+	public List<Map.Entry<String, T>> allPrefixesOf(String s);
+	/**
+	 * Suffix matching for a trie holding its keys reversed char by char: s
+	 * is read from its last char, so it need not be reversed itself.
+	 * 
+	 * @return The member with the longest key whose reversal is a suffix of
+	 *         s, keyed by that suffix of s, or null.
+	 */
+	public Map.Entry<String, T> longestSuffixOf(String s);
+	/**
+	 * @return The members whose reversed keys are suffixes of s, shortest
+	 *         first, keyed by those suffixes; see {@link #longestSuffixOf(String)}.
+	 */
+	public List<Map.Entry<String, T>> allSuffixesOf(String s);
+	/**
+	 * @return The members whose keys are within Levenshtein distance
+	 *         maxEdits of s, in key order.
+	 * @throws IllegalArgumentException if maxEdits is negative.
+	 */
+	public List<Map.Entry<String, T>> fuzzySearch(String s, int maxEdits);
 }
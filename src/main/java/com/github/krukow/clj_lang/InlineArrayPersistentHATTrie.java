@@ -12,27 +12,53 @@ package com.github.krukow.clj_lang;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.krukow.clj_ds.PersistentMap;
+import com.github.krukow.clj_ds.TransientMap;
 
 /*
  A persistent rendition of Nikolas Askitis' HAT Trie
  Uses path copying for persistence
  Any errors are my own
+
+ As a map from Strings, iterating in String order. Access nodes branch on
+ one of 256 chars, so keys are limited to chars below 256 (Latin-1);
+ assoc rejects any other key with an IllegalArgumentException up front
+ rather than when its container bursts. Nodes created by a
+ transient carry its edit and are changed in place while it owns them; the
+ persistent operations pass a null edit.
 */
 @SuppressWarnings({"rawtypes","unchecked"})
-public class InlineArrayPersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
+public class InlineArrayPersistentHATTrie<V> extends APersistentMap<String, V> implements IObj, IPersistentTrie<V>, IEditableCollection<MapEntry<String, V>>, PersistentMap<String, V> {
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = 6864541653381702688L;
 	final IPersistentMap meta;
-	final HATTrieNode<T> root;
+	final HATTrieNode<V> root;
 	final int count;
 	private static final int seed = new Random().nextInt();
-	private static final int slotPageSize = 64;
-	
+	/* the number of strings a container holds before it bursts into an access node */
+	static final int BURST = 64;
+	/* an access node with this few members below it collapses back into a container */
+	static final int COLLAPSE = BURST / 2;
+	/* stands for no value in the nodes, null is a value like any other */
+	private static final Object NONE = new Object();
+
+	/* keys must fit the 256 children of an access node */
+	static void checkKey(String key) {
+		for (int i = 0; i < key.length(); i++) {
+			if (key.charAt(i) > 0xff) {
+				throw new IllegalArgumentException("Keys can only hold chars below 256: " + key);
+			}
+		}
+	}
+
 	/**
 	 * getHashCode() differs from the standard Java hashcode algorithm. It's an
 	 * shift-add-xor class algorithm, as tested in <em>"Performance
@@ -47,9 +73,17 @@ public class InlineArrayPersistentHATTrie<T> extends APersistentTrie<T> implemen
 		}
 		return ((result & 0x7fffffff) & 0x1ff);
 	}
-	
+
 	public static final InlineArrayPersistentHATTrie EMPTY = new InlineArrayPersistentHATTrie(null, null, 0);
-	
+
+	public static <V> InlineArrayPersistentHATTrie<V> create(Map<String, ? extends V> other) {
+		TransientHATTrie<V> ret = ((InlineArrayPersistentHATTrie<V>) EMPTY).asTransient();
+		for (Map.Entry<String, ? extends V> e : other.entrySet()) {
+			ret.doAssoc(e.getKey(), e.getValue());
+		}
+		return ret.doPersistent();
+	}
+
 	public InlineArrayPersistentHATTrie(HATTrieNode root, IPersistentMap meta, int count) {
 		this.root = root;
 		this.meta = meta;
@@ -60,692 +94,940 @@ public class InlineArrayPersistentHATTrie<T> extends APersistentTrie<T> implemen
 		return meta;
 	}
 
-	private static interface HATTrieNode<T> {
-		T get(String s, int j);
-		Iterator<Map.Entry<String, T>> nodeIt(String prefix);
-		HATTrieNode add(RandomAccessChars s, int start, int end, T t);
-	}
-	private static interface ToStringWithPrefix {
-		String toStringWithPrefix(String prefix);
-	}
-	private static interface RandomAccessChars {
-		public char charAt(int index);
-		public int length();
+	private static interface HATTrieNode<V> {
+		/* the value for the chars of s from i, or NONE */
+		Object get(String s, int i);
+		Iterator<Map.Entry<String, V>> nodeIt(String prefix, boolean reverse);
+		/* the entries not before the chars of s from i */
+		Iterator<Map.Entry<String, V>> nodeItFrom(String prefix, String s, int i);
+		HATTrieNode<V> add(AtomicReference<Thread> edit, String s, int i, V v, Box addedLeaf);
+		/* null when the last member goes */
+		HATTrieNode<V> without(AtomicReference<Thread> edit, String s, int i, Box removedLeaf);
+		int count();
+		/* the members keyed by prefixes of the query from i on, shortest first */
+		void prefixesOf(int i, PrefixMatches<V> m);
+		/* the members within m's distance, for a path of length d down here */
+		void fuzzy(int d, FuzzyMatches<V> m);
 	}
-	
-	private static class StringRandomAccessChars implements RandomAccessChars {
-		private final String s;
 
-		public StringRandomAccessChars(String s) {
-			this.s = s;
-		}
+	private static final class AccessNode<V> implements HATTrieNode<V> {
+		private final AtomicReference<Thread> edit;
+		private final HATTrieNode<V> children[];
+		private Object emptyPtr;
+		private int count;
 
-		@Override
-		public char charAt(int index) {
-			return s.charAt(index);
-		}
-
-		@Override
-		public int length() {
-			return s.length();
-		}
-		
-		
-	}
-	private static class CharArrayRandomAccessChars implements RandomAccessChars {
-		private final char[] s;
-
-		public CharArrayRandomAccessChars(char[] s) {
-			this.s = s;
+		public AccessNode(AtomicReference<Thread> edit, HATTrieNode[] children, Object emptyPtr, int count) {
+			this.edit = edit;
+			this.children = children;
+			this.emptyPtr = emptyPtr;
+			this.count = count;
 		}
 
-		@Override
-		public char charAt(int index) {
-			return s[index];
+		private AccessNode<V> editable(AtomicReference<Thread> edit) {
+			if (edit != null && this.edit == edit) {
+				return this;
+			}
+			return new AccessNode<V>(edit, children.clone(), emptyPtr, count);
 		}
 
-		@Override
-		public int length() {
-			return s.length;
+		public int count() {
+			return count;
 		}
-		
-		
-	}
 
-	private static final class AccessNode<T> implements HATTrieNode<T>,ToStringWithPrefix {
-		private final HATTrieNode<T> children[];
-		private final T emptyPtr;
-		
-		public AccessNode(HATTrieNode[] children, T emptyPtr) {
-			this.children = children;
-			this.emptyPtr = emptyPtr;
-		}
-		
 		public String toString() {
-			return toStringWithPrefix("");
-		}
-
-		public String toStringWithPrefix(String prefix) {
-			StringBuilder sb = new StringBuilder();
-			String nestedPrefix = prefix+"  ";
-			sb.append(prefix);
-			sb.append("(access-node\n").append(nestedPrefix);
-			for (int i=0;i<children.length;i++) {
-				HATTrieNode node = children[i];
-				if (node != null) {
-					sb.append((char) i).append(" -> ").append(((ToStringWithPrefix) node)
-							.toStringWithPrefix(nestedPrefix)).append(";\n").append(nestedPrefix);
-				}
+			StringBuilder sb = new StringBuilder("(access-node");
+			if (emptyPtr != NONE) {
+				sb.append(" ** ").append(emptyPtr);
 			}
-			if (emptyPtr != null) {
-				sb.append("\n").append(prefix).append("**");
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] != null) {
+					sb.append(' ').append((char) i).append(" -> ").append(children[i]);
+				}
 			}
-			sb.append(prefix).append(")");
-			return sb.toString();
+			return sb.append(')').toString();
 		}
 
-		public HATTrieNode<T> add(RandomAccessChars s, int start, int end, T t) {
-			int length = s.length();
-			if (start < length) {
-				char ichar = s.charAt(start);
-				HATTrieNode hatTrieNode = children[ichar];
+		public HATTrieNode<V> add(AtomicReference<Thread> edit, String s, int i, V v, Box addedLeaf) {
+			if (i < s.length()) {
+				char ichar = s.charAt(i);
+				HATTrieNode<V> hatTrieNode = ichar < children.length ? children[ichar] : null;
+				HATTrieNode<V> newNode;
 				if (hatTrieNode != null) {
-					HATTrieNode newNode = hatTrieNode.add(s, start+1, end, t);
-					if (newNode == hatTrieNode) {
+					newNode = hatTrieNode.add(edit, s, i+1, v, addedLeaf);
+					if (newNode == hatTrieNode && addedLeaf.val == null) {
 						return this;
 					}
-					HATTrieNode[] newArr = new HATTrieNode[children.length];
-					System.arraycopy(children, 0, newArr, 0, children.length);
-					newArr[ichar] = newNode;
-					return new AccessNode(newArr, emptyPtr);
+				} else {
+					if (ichar >= children.length) {
+						throw new IllegalArgumentException("Keys can only hold chars below " + children.length);
+					}
+					newNode = ContainerNode.singleton(edit, s, i+1, v);
+					addedLeaf.val = addedLeaf;
 				}
-				ContainerNode c = singletonContainer(s,start+1, end, t);
-				HATTrieNode[] newArr = new HATTrieNode[children.length];
-				System.arraycopy(children, 0, newArr, 0, children.length);
-				newArr[ichar] = c;
-				return new AccessNode(newArr, emptyPtr);
+				AccessNode<V> node = editable(edit);
+				node.children[ichar] = newNode;
+				if (addedLeaf.val != null) {
+					node.count++;
+				}
+				return node;
 			}
-			if (start == length && emptyPtr == null) {
-				return new AccessNode(children, t); 
+			if (emptyPtr != NONE && Util.equiv(emptyPtr, v)) {
+				return this;
 			}
-			return this;
+			AccessNode<V> node = editable(edit);
+			if (emptyPtr == NONE) {
+				addedLeaf.val = addedLeaf;
+				node.count++;
+			}
+			node.emptyPtr = v;
+			return node;
 		}
-		
-		public T get(String s, int i) {
+
+		public HATTrieNode<V> without(AtomicReference<Thread> edit, String s, int i, Box removedLeaf) {
+			AccessNode<V> node;
+			if (i == s.length()) {
+				if (emptyPtr == NONE) {
+					return this;
+				}
+				removedLeaf.val = removedLeaf;
+				if (count == 1) {
+					return null;
+				}
+				node = editable(edit);
+				node.emptyPtr = NONE;
+			} else {
+				char ichar = s.charAt(i);
+				HATTrieNode<V> c = ichar < children.length ? children[ichar] : null;
+				if (c == null) {
+					return this;
+				}
+				HATTrieNode<V> newNode = c.without(edit, s, i+1, removedLeaf);
+				if (removedLeaf.val == null) {
+					return this;
+				}
+				if (count == 1) {
+					return null;
+				}
+				node = editable(edit);
+				node.children[ichar] = newNode;
+			}
+			node.count--;
+			if (node.count <= COLLAPSE) {
+				return ContainerNode.collapse(edit, node);
+			}
+			return node;
+		}
+
+		public Object get(String s, int i) {
 			if (i == s.length()) {
 				return emptyPtr;
 			}
-			HATTrieNode<T> c = children[s.charAt(i)];
+			char ichar = s.charAt(i);
+			HATTrieNode<V> c = ichar < children.length ? children[ichar] : null;
 			if (c == null) {
-				return null;
+				return NONE;
 			}
 			return c.get(s, i+1);
 		}
-		
-		private static final class AccessNodeIterator<T> implements Iterator<MapEntry<String, T>> {
-			private final HATTrieNode children[];
-			private final T emptyPtr;
-			private int index = -1;
-			private final String prefix;
-			Iterator<MapEntry<String, T>> current = null;
-			
-			AccessNodeIterator(AccessNode<T> node, String prefix) {
-				children = node.children;
-				emptyPtr = node.emptyPtr;
-				this.prefix = prefix;
-				moveCurIfNeeded();
-			}
-			
-			private void moveCurIfNeeded() {
-				if (index == -1){
-					if (emptyPtr == null) {
-						index = 0;
-					} else {
-						return;
-					}
-				}
-				
-				if (current != null && current.hasNext()) return;
-				while (index < children.length && children[index] == null) {index += 1;};
-				if (index == children.length) { current = null;}
-				else {
-					String prefix = new StringBuilder(this.prefix).append((char) index).toString();
-					current = children[index++].nodeIt(prefix);
-				}
-				
+
+		public void prefixesOf(int i, PrefixMatches<V> m) {
+			if (emptyPtr != NONE) {
+				m.found(i, emptyPtr);
 			}
-			
-			public boolean hasNext() {
-				if (index == -1 && emptyPtr != null)  {
-					return true;
-				}
-				while (current != null && !current.hasNext()) {
-					moveCurIfNeeded();
-				}
-				return current != null && current.hasNext(); 
-			}
-			
-			@Override
-			public MapEntry<String, T> next() {
-				if (index == -1 && emptyPtr != null)  {
-					index = 0;
-					moveCurIfNeeded();
-					return new MapEntry<String,T>(prefix, emptyPtr);
-				}
-				return current.next();
+			if (i == m.length()) {
+				return;
+			}
+			char ichar = m.charAt(i);
+			HATTrieNode<V> c = ichar < children.length ? children[ichar] : null;
+			if (c != null) {
+				c.prefixesOf(i+1, m);
 			}
+		}
 
-			@Override
-			public void remove() {
-				throw new UnsupportedOperationException();			
+		public void fuzzy(int d, FuzzyMatches<V> m) {
+			if (emptyPtr != NONE) {
+				m.member(d, emptyPtr);
+			}
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null && m.step(d+1, (char) c) <= m.max()) {
+					children[c].fuzzy(d+1, m);
+				}
 			}
-			
 		}
 
-		@Override
-		public Iterator<Map.Entry<String, T>> nodeIt(String prefix) {
-			return new AccessNodeIterator(this,prefix);
+		public Iterator<Map.Entry<String, V>> nodeIt(String prefix, boolean reverse) {
+			return childIt(prefix, reverse, emptyPtr != NONE, reverse ? children.length - 1 : 0, new EmptyIterator());
 		}
-		
-	}
-	
-	private static final <T> ContainerNode<T> singletonContainer(RandomAccessChars s, int start,int end, T t) {
-		char[] strings = new char[slotPageSize];
-		int slen = end-start;
-		int k = encodeNumber(0, slen, strings);
-		for (int j=start;j<end;j++) {
-			strings[k++] = s.charAt(j);
+
+		public Iterator<Map.Entry<String, V>> nodeItFrom(String prefix, String s, int i) {
+			if (i == s.length()) {
+				return nodeIt(prefix, false);
+			}
+			char ichar = s.charAt(i);
+			if (ichar >= children.length) {
+				return new EmptyIterator();
+			}
+			Iterator<Map.Entry<String, V>> first = new EmptyIterator();
+			if (children[ichar] != null) {
+				first = children[ichar].nodeItFrom(prefix + ichar, s, i+1);
+			}
+			return childIt(prefix, false, false, ichar + 1, first);
 		}
-		strings[k++] = 0;
-		k = encodeNumber(k,0,strings);
-		return new ContainerNode<T>(strings, new Object[]{t});
+
+		private Iterator<Map.Entry<String, V>> childIt(final String prefix, final boolean reverse, final boolean withEmpty, final int from, final Iterator<Map.Entry<String, V>> first) {
+			return new Iterator<Map.Entry<String, V>>() {
+				// the empty string comes before the children, or after them in reverse
+				boolean emptyReady = withEmpty;
+				int index = from;
+				Iterator<Map.Entry<String, V>> current = first;
+
+				public boolean hasNext() {
+					if (emptyReady && !reverse) {
+						return true;
+					}
+					while (!current.hasNext()) {
+						while (index >= 0 && index < children.length && children[index] == null) {
+							index += reverse ? -1 : 1;
+						}
+						if (index < 0 || index == children.length) {
+							return emptyReady;
+						}
+						String childPrefix = new StringBuilder(prefix).append((char) index).toString();
+						current = children[index].nodeIt(childPrefix, reverse);
+						index += reverse ? -1 : 1;
+					}
+					return true;
+				}
+
+				public Map.Entry<String, V> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					if (emptyReady && (!reverse || !current.hasNext())) {
+						emptyReady = false;
+						return new MapEntry<String, V>(prefix, (V) emptyPtr);
+					}
+					return current.next();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
 	}
-	
+
 	private static final int encodeNumber(int j, int inputlength, char[] tmp) {
-		// Add String to end of contents array.
-		   // First encode the length of the string (this allows us to
-		   // skip forward rapidly in the array when string matching if we
-		   // get an early negative)
-		   tmp[j++] = (char)(inputlength & 0xffff);
-		   tmp[j++] = (char)((inputlength >> 16) & 0xffff);
+		// Encode the length of the string ahead of it (this allows us to
+		// skip forward rapidly in the array when string matching if we
+		// get an early negative)
+		tmp[j++] = (char)(inputlength & 0xffff);
+		tmp[j++] = (char)((inputlength >> 16) & 0xffff);
 		return j;
 	}
 
-	private static final class ContainerNode<T> implements HATTrieNode<T>,ToStringWithPrefix {
-		
-		private final char[] contents;
-		private final Object[] values;
-		
-		
-		public ContainerNode(char[] strings, Object[] values) {
-			this.contents = strings;
+	private static final int decodeNumber(char[] tmp, int j) {
+		return tmp[j] | (tmp[j+1] << 16);
+	}
+
+	/*
+	 The container is an array hash bucket without the hashing: its strings are
+	 packed back to back into one char[], each preceded by its length in two
+	 chars, and values[k] belongs to the k-th string. The strings are kept in
+	 order, so iteration needs no sorting, and lookups scan the slot, skipping
+	 every string whose length does not match. Containers owned by a transient
+	 get spare room in their arrays and are filled in place.
+	*/
+	private static final class ContainerNode<V> implements HATTrieNode<V> {
+		private final AtomicReference<Thread> edit;
+		private char[] contents;
+		private int used;
+		private Object[] values;
+		private int n;
+
+		public ContainerNode(AtomicReference<Thread> edit, char[] contents, int used, Object[] values, int n) {
+			this.edit = edit;
+			this.contents = contents;
+			this.used = used;
 			this.values = values;
+			this.n = n;
 		}
-		
-		public String toString() {
-			return "NOTIMPLE";
+
+		static <V> ContainerNode<V> singleton(AtomicReference<Thread> edit, String s, int i, V v) {
+			int length = s.length() - i;
+			char[] contents = new char[charCapacity(edit, length + 2)];
+			int j = encodeNumber(0, length, contents);
+			s.getChars(i, s.length(), contents, j);
+			Object[] values = new Object[capacity(edit, 1)];
+			values[0] = v;
+			return new ContainerNode<V>(edit, contents, length + 2, values, 1);
 		}
 
-		@Override
-		public HATTrieNode add(RandomAccessChars s, int start, int end, T t) {
-			int id = getIndex(s,start,end);
-			if (Util.equals(values[id], t)) {
-				return this;
+		/*
+		 * Packs the members below node back into a single container.
+		 */
+		static <V> ContainerNode<V> collapse(AtomicReference<Thread> edit, AccessNode<V> node) {
+			int n = node.count();
+			StringBuilder sb = new StringBuilder();
+			Object[] values = new Object[capacity(edit, n)];
+			Iterator<Map.Entry<String, V>> it = node.nodeIt("", false);
+			for (int k = 0; k < n; k++) {
+				Map.Entry<String, V> e = it.next();
+				int length = e.getKey().length();
+				sb.append((char) (length & 0xffff)).append((char) ((length >> 16) & 0xffff)).append(e.getKey());
+				values[k] = e.getValue();
 			}
-		    if (shouldBurst()) {
-			   return burst(contents,start,end,t);
-		    }
-			return addString(contents,start,end,t);
+			char[] contents = new char[charCapacity(edit, sb.length())];
+			sb.getChars(0, sb.length(), contents, 0);
+			return new ContainerNode<V>(edit, contents, sb.length(), values, n);
 		}
-		
-		
-		public T get(String s, int i) {
-			int idx = getIndex(new StringRandomAccessChars(s),i, s.length());
-			if (idx != -1) {
-				return (T) values[idx];
-			}
-			return null;
+
+		private static int capacity(AtomicReference<Thread> edit, int n) {
+			return edit == null ? n : Math.max(n, BURST);
 		}
-		
-		private HATTrieNode burst(RandomAccessChars s, int start, int end, T t) {
-			HATTrieNode[] children = new HATTrieNode[256];
-			int length = end-start;
-			T empty = s.length() == start ? t : null;
-			int j = 0;
-		    length = 0;
-		    int index = -1;
-		    int slotlength = this.contents.length;
-	
-			while (j < slotlength) {
-				  // if there's nothing left in the slot, jump out
-				  if (this.contents[j] == 0) { break; }
-				  
-				  // first decode the length of the string
-				  length = (int) (this.contents[j++] | (this.contents[j++] << 16));
-				  if (empty == null && length == 0) {//can only happen once
-					  j += 1;//skip 0
-					  index = (int) (this.contents[j++] | (this.contents[j++] << 16));
-					  empty = (T) this.values[index];
-				  }  else {
-					char f = this.contents[j++];
-					children[f] = addToNode(children[f],this.contents,j,length,this.values);
-				  }
-		    	  j += length + 3;
-			}
-			if (empty != t) {//i < s.length()
-				char f = s.charAt(start);
-				children[f] = addToNode(children[f],s,start+1,end,t);
-			}
-			return new AccessNode(children, empty);			
-		}
-		private HATTrieNode burst(char[] s, int start, int end, T t) {
-			HATTrieNode[] children = new HATTrieNode[256];
-			T empty = (end == start) ? t : null;
+
+		private static int charCapacity(AtomicReference<Thread> edit, int length) {
+			return edit == null ? length : Math.max(2 * length, 32);
+		}
+
+		private boolean owned(AtomicReference<Thread> edit) {
+			return edit != null && this.edit == edit;
+		}
+
+		public int count() {
+			return n;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder("{");
 			int j = 0;
-		    int length = 0;
-		    int index = -1;
-		    int slotlength = this.contents.length;
-	
-			while (j < slotlength) {
-				  // if there's nothing left in the slot, jump out
-				  if (this.contents[j] == 0) { break; }
-				  
-				  // first decode the length of the string
-				  length = (int) (this.contents[j++] | (this.contents[j++] << 16));
-				  if (empty == null && length == 0) {//can only happen once
-					  j += 1;//skip 0
-					  index = (int) (this.contents[j++] | (this.contents[j++] << 16));
-					  empty = (T) this.values[index];
-				  }  else {
-					char f = this.contents[j++];
-					children[f] = addToNode(children[f],this.contents,j,length,this.values);
-				  }
-		    	  j += length + 3;
-			}
-			if (empty != t) {//i < s.length()
-				char f = s[start];
-				children[f] = addToNode(children[f],s,start+1,(end-start-1), values);
-			}
-			return new AccessNode(children, empty);			
-		}
-
-		private static final <T> HATTrieNode addToNode(HATTrieNode hatTrieNode, char[] contents, int j, int length, Object[] values) {
-			int idIndex = j + length + 1;
-			int id = (int) (contents[idIndex++] | (contents[idIndex++] << 16));;
-			if (hatTrieNode == null) {
-				char[] newcontents = new char[InlineArrayPersistentHATTrie.slotPageSize];
-				int nextindex = encodeNumber(0, length, newcontents);
-				System.arraycopy(contents, j, newcontents, nextindex++, length);
-				newcontents[nextindex++] = 0;
-				return new ContainerNode<T>(newcontents, new Object[]{values[id]});
-			} else {
-				return hatTrieNode.add(new CharArrayRandomAccessChars(contents), j,j+length, (T) values[id]);
+			for (int k = 0; k < n; k++) {
+				int length = decodeNumber(contents, j);
+				j += 2;
+				if (k > 0) {
+					sb.append(", ");
+				}
+				sb.append(contents, j, length).append(' ').append(values[k]);
+				j += length;
 			}
-			
+			return sb.append('}').toString();
 		}
-		private static final <T> HATTrieNode addToNode(HATTrieNode hatTrieNode, RandomAccessChars s, int start, int end, T t) {
-			if (hatTrieNode == null) {
-				return singletonContainer(s, start,end, t);
-			} else {
-				return hatTrieNode.add(s, start,end,t);
+
+		/*
+		 * Compares the length chars at j with the chars of s from i.
+		 */
+		private int compare(int j, int length, String s, int i) {
+			int len = s.length() - i;
+			int lim = Math.min(length, len);
+			for (int k = 0; k < lim; k++) {
+				char a = contents[j + k];
+				char b = s.charAt(i + k);
+				if (a != b) {
+					return a - b;
+				}
 			}
-			
+			return length - len;
 		}
-		
-		private ContainerNode<T> addString(String inputString, int index, T t)
-		{
-		   int j = 0;
-		   int k = 0;
-		   int length = 0;
-		   int slotlength = this.contents.length;
-		   int inputlength = inputString.length()-index;
-		   boolean match = false;
-
-		   while (j < slotlength) {
-			      // if there's nothing left in the slot, jump out and return -1
-			      if (this.contents[j] == 0) { break; }
-			      match = true;
-
-			      // first decode the length of the string
-			      length = (int) (this.contents[j++] | (this.contents[j++] << 16));
-
-			      // if the length does not match, then don't bother checking the characters
-			      if (inputlength != length) {
-			         match = false;
-			      } else {
-			         // then start checking, character by character until we hit
-			         // the null terminator to see if we have a match.
-			    	 int strIdx = index;
-			         for (k = j; this.contents[k] != 0; k++) {
-			            if (this.contents[k] != inputString.charAt(strIdx++)) {
-			               // if we find we do not have a match, it'll happen
-			               // earlier than finding we do, so jump right out of
-			               // the loop.
-			               match = false;
-			               break;
-			            }
-			         }
-			         k++;
-			      }
-
-			      // If we found the string, we don't bother to add it, we
-			      // just return back.
-			      if (match) return this;
-
-			      // skip ahead to the next string in the array and do it again.
-			      j += length + 3;
-			   }
-		   // Do we need to grow this slot in the array? If so, do so
-		   // now...
-		   char tmp[] = this.contents;
-		   int newslotlength = slotlength;
-		   while ((newslotlength - inputlength) < (j+5)) {
-		      tmp = new char[newslotlength + InlineArrayPersistentHATTrie.slotPageSize];
-		      System.arraycopy(this.contents, 0, tmp, 0, newslotlength);
-		      newslotlength = tmp.length;
-		   }
-
-		   j = encodeNumber(j, inputlength, tmp);
 
-		   // Now copy over the inputString characters
-		   System.arraycopy(inputString, 0, tmp, j, inputlength);
-		   j += inputlength;
+		public HATTrieNode<V> add(AtomicReference<Thread> edit, String s, int i, V v, Box addedLeaf) {
+			int j = 0;
+			int k = 0;
+			// the strings are in order, so the first greater one is where s goes
+			while (k < n) {
+				int length = decodeNumber(contents, j);
+				int c = compare(j + 2, length, s, i);
+				if (c == 0) {
+					if (Util.equiv(values[k], v)) {
+						return this;
+					}
+					ContainerNode<V> node = owned(edit) ? this : copy(edit);
+					node.values[k] = v;
+					return node;
+				}
+				if (c > 0) {
+					break;
+				}
+				j += length + 2;
+				k++;
+			}
+			if (n == BURST) {
+				return burst(edit).add(edit, s, i, v, addedLeaf);
+			}
+			addedLeaf.val = addedLeaf;
+			int inputlength = s.length() - i;
+			boolean inPlace = owned(edit);
+			char[] tmp = contents;
+			if (!inPlace || used + inputlength + 2 > contents.length) {
+				tmp = new char[charCapacity(edit, used + inputlength + 2)];
+				System.arraycopy(contents, 0, tmp, 0, j);
+			}
+			System.arraycopy(contents, j, tmp, j + inputlength + 2, used - j);
+			s.getChars(i, s.length(), tmp, encodeNumber(j, inputlength, tmp));
+			Object[] newValues = inPlace ? values : new Object[capacity(edit, n + 1)];
+			if (!inPlace) {
+				System.arraycopy(values, 0, newValues, 0, k);
+			}
+			System.arraycopy(values, k, newValues, k + 1, n - k);
+			newValues[k] = v;
+			if (inPlace) {
+				contents = tmp;
+				used += inputlength + 2;
+				n++;
+				return this;
+			}
+			return new ContainerNode<V>(edit, tmp, used + inputlength + 2, newValues, n + 1);
+		}
 
-		   
-		   // null-terminate
-		   tmp[j++] = 0;
+		private ContainerNode<V> copy(AtomicReference<Thread> edit) {
+			if (edit == null) {
+				return new ContainerNode<V>(null, contents, used, values.clone(), n);
+			}
+			// a transient's copy must not share the arrays it will fill
+			char[] newContents = new char[charCapacity(edit, used)];
+			System.arraycopy(contents, 0, newContents, 0, used);
+			Object[] newValues = new Object[capacity(edit, n)];
+			System.arraycopy(values, 0, newValues, 0, n);
+			return new ContainerNode<V>(edit, newContents, used, newValues, n);
+		}
 
-		   // Now encode the id int after the null termination.
-		   encodeNumber(j, values.length, tmp);
-		   
-		   Object[] newValues = new Object[values.length+1];
-		   System.arraycopy(values, 0, newValues, 0, values.length);
-		   newValues[values.length] = t;
-		   return new ContainerNode<T>(tmp, values);
+		public HATTrieNode<V> without(AtomicReference<Thread> edit, String s, int i, Box removedLeaf) {
+			int j = 0;
+			int k = 0;
+			int inputlength = s.length() - i;
+			while (k < n) {
+				int length = decodeNumber(contents, j);
+				if (length == inputlength && compare(j + 2, length, s, i) == 0) {
+					break;
+				}
+				j += length + 2;
+				k++;
+			}
+			if (k == n) {
+				return this;
+			}
+			removedLeaf.val = removedLeaf;
+			if (n == 1) {
+				return null;
+			}
+			int entryLength = inputlength + 2;
+			boolean inPlace = owned(edit);
+			char[] tmp = inPlace ? contents : new char[charCapacity(edit, used - entryLength)];
+			Object[] newValues = inPlace ? values : new Object[capacity(edit, n - 1)];
+			if (!inPlace) {
+				System.arraycopy(contents, 0, tmp, 0, j);
+				System.arraycopy(values, 0, newValues, 0, k);
+			}
+			System.arraycopy(contents, j + entryLength, tmp, j, used - j - entryLength);
+			System.arraycopy(values, k + 1, newValues, k, n - k - 1);
+			if (inPlace) {
+				used -= entryLength;
+				values[--n] = null;
+				return this;
+			}
+			return new ContainerNode<V>(edit, tmp, used - entryLength, newValues, n - 1);
 		}
-		private ContainerNode<T> addString(char[] inputString, int start, int end, T t)
-		{
-		   int j = 0;
-		   int k = 0;
-		   int length = 0;
-		   int slotlength = this.contents.length;
-		   int inputlength = end-start;
-		   boolean match = false;
-
-		   while (j < slotlength) {
-			      // if there's nothing left in the slot, jump out and return -1
-			      if (this.contents[j] == 0) { break; }
-			      match = true;
-
-			      // first decode the length of the string
-			      length = (int) (this.contents[j++] | (this.contents[j++] << 16));
-
-			      // if the length does not match, then don't bother checking the characters
-			      if (inputlength != length) {
-			         match = false;
-			      } else {
-			         // then start checking, character by character until we hit
-			         // the null terminator to see if we have a match.
-			    	 int strIdx = start;
-			         for (k = j; this.contents[k] != 0; k++) {
-			            if (this.contents[k] != inputString[strIdx++]) {
-			               // if we find we do not have a match, it'll happen
-			               // earlier than finding we do, so jump right out of
-			               // the loop.
-			               match = false;
-			               break;
-			            }
-			         }
-			         k++;
-			      }
-
-			      // If we found the string, we don't bother to add it, we
-			      // just return back.
-			      if (match) return this;
-
-			      // skip ahead to the next string in the array and do it again.
-			      j += length + 3;
-			   }
-		   // Do we need to grow this slot in the array? If so, do so
-		   // now...
-		   char tmp[] = this.contents;
-		   int newslotlength = slotlength;
-		   while ((newslotlength - inputlength) < (j+5)) {
-		      tmp = new char[newslotlength + InlineArrayPersistentHATTrie.slotPageSize];
-		      System.arraycopy(this.contents, 0, tmp, 0, newslotlength);
-		      newslotlength = tmp.length;
-		   }
 
-		   j = encodeNumber(j, inputlength, tmp);
+		public Object get(String s, int i) {
+			int id = getIndex(s, i);
+			return id != -1 ? values[id] : NONE;
+		}
 
-		   // Now copy over the inputString characters
-		   System.arraycopy(inputString, 0, tmp, j, inputlength);
-		   j += inputlength;
+		public void prefixesOf(int i, PrefixMatches<V> m) {
+			int len = m.length() - i;
+			int j = 0;
+			// prefixes sort before what they prefix and shorter ones first, so
+			// the scan ends at the first string greater than the query's rest
+			scan: for (int k = 0; k < n; k++) {
+				int length = decodeNumber(contents, j);
+				j += 2;
+				int lim = Math.min(length, len);
+				for (int c = 0; c < lim; c++) {
+					char a = contents[j + c];
+					char b = m.charAt(i + c);
+					if (a != b) {
+						if (a > b) {
+							return;
+						}
+						j += length;
+						continue scan;
+					}
+				}
+				if (length > len) {
+					return;
+				}
+				m.found(i + length, values[k]);
+				j += length;
+			}
+		}
 
-		   
-		   // null-terminate
-		   tmp[j++] = 0;
+		public void fuzzy(int d, FuzzyMatches<V> m) {
+			// the rows for the first `valid` chars of the previous string stay
+			// good for as many chars as the next one shares with it, and no
+			// string starting with its first `dead` chars can be close enough
+			int valid = 0;
+			int dead = Integer.MAX_VALUE;
+			int prev = 0;
+			int j = 0;
+			for (int k = 0; k < n; k++) {
+				int length = decodeNumber(contents, j);
+				int from = j + 2;
+				int l = 0;
+				if (k > 0) {
+					int lim = Math.min(length, decodeNumber(contents, prev));
+					while (l < lim && contents[from + l] == contents[prev + 2 + l]) {
+						l++;
+					}
+				}
+				prev = j;
+				j = from + length;
+				if (l >= dead) {
+					continue;
+				}
+				dead = Integer.MAX_VALUE;
+				int e = Math.min(l, valid);
+				while (e < length && m.step(d + e + 1, contents[from + e]) <= m.max()) {
+					e++;
+				}
+				valid = e;
+				if (e == length) {
+					m.member(d + length, values[k]);
+				} else {
+					dead = e + 1;
+				}
+			}
+		}
 
-		   // Now encode the id int after the null termination.
-		   encodeNumber(j, values.length, tmp);
-		   
-		   Object[] newValues = new Object[values.length+1];
-		   System.arraycopy(values, 0, newValues, 0, values.length);
-		   newValues[values.length] = t;
-		   return new ContainerNode<T>(tmp, values);
+		/*
+		 * Strings sharing a first char are contiguous, so each child is a
+		 * run of this container with that char dropped.
+		 */
+		private AccessNode<V> burst(AtomicReference<Thread> edit) {
+			HATTrieNode[] children = new HATTrieNode[256];
+			Object empty = NONE;
+			int j = 0;
+			int k = 0;
+			if (decodeNumber(contents, 0) == 0) {//can only be the first
+				empty = values[0];
+				j = 2;
+				k = 1;
+			}
+			while (k < n) {
+				char f = contents[j + 2];
+				if (f >= children.length) {
+					throw new IllegalArgumentException("Keys can only hold chars below " + children.length);
+				}
+				int from = k;
+				StringBuilder sb = new StringBuilder();
+				while (k < n && decodeNumber(contents, j) > 0 && contents[j + 2] == f) {
+					int length = decodeNumber(contents, j) - 1;
+					sb.append((char) (length & 0xffff)).append((char) ((length >> 16) & 0xffff)).append(contents, j + 3, length);
+					j += length + 3;
+					k++;
+				}
+				char[] childContents = new char[charCapacity(edit, sb.length())];
+				sb.getChars(0, sb.length(), childContents, 0);
+				Object[] childValues = new Object[capacity(edit, k - from)];
+				System.arraycopy(values, from, childValues, 0, k - from);
+				children[f] = new ContainerNode<V>(edit, childContents, sb.length(), childValues, k - from);
+			}
+			return new AccessNode<V>(edit, children, empty, n);
 		}
-		
-		
-		public int getIndex(RandomAccessChars input, int start, int end)
+
+		/*
+		 * @return the index in values of the chars of s from i, or -1.
+		 */
+		public int getIndex(String s, int i)
 		{
 		   int j = 0;
-		   int k = 0;
-		   int length = 0;
-		   int inputlength = end-start;
-		   int slotlength = this.contents.length;
-		   boolean match = false;
-
-		   while (j < slotlength) {
-		      // if there's nothing left in the slot, jump out and return -1
-		      if (this.contents[j] == 0) { break; }
-		      match = true;
+		   int inputlength = s.length() - i;
 
+		   for (int id = 0; id < n; id++) {
 		      // first decode the length of the string
-		      length = (int) (this.contents[j++] | (this.contents[j++] << 16));
+		      int length = decodeNumber(this.contents, j);
+		      j += 2;
 
 		      // if the length does not match, then don't bother checking the characters
-		      if (inputlength != length) {
-		         match = false;
-		      } else {
-		    	  // then start checking, character by character until we hit
-		         // the null terminator to see if we have a match.
-		    	 int strIdx = start;
-		         for (k = j; this.contents[k] != 0; k++) {
-		            if (this.contents[k] != input.charAt(strIdx++)) {
-		               // if we find we do not have a match, it'll happen
-		               // earlier than finding we do, so jump right out of
-		               // the loop.
-		               match = false;
-		               break;
-		            }
+		      if (inputlength == length) {
+		    	 // then start checking, character by character
+		         int k = 0;
+		         while (k < length && this.contents[j+k] == s.charAt(i+k)) {
+		            k++;
+		         }
+		         if (k == length) {
+		        	 return id;
 		         }
-		         k++;
-		      }
-
-		      // If we did find a match, return the id int.
-		      if (match) {
-		         return (int) (this.contents[k++] | (this.contents[k] << 16));
 		      }
 
 		      // skip ahead to the next string in the array and do it again.
-		      j += length + 3;
+		      j += length;
 		   }
 
 		   return -1;
 		}
 
+		public Iterator<Map.Entry<String, V>> nodeIt(String prefix, boolean reverse) {
+			return entryIt(prefix, reverse, reverse ? n - 1 : 0);
+		}
 
-		private boolean shouldBurst() {
-			return values.length == 4;
+		public Iterator<Map.Entry<String, V>> nodeItFrom(String prefix, String s, int i) {
+			int j = 0;
+			int k = 0;
+			while (k < n) {
+				int length = decodeNumber(contents, j);
+				if (compare(j + 2, length, s, i) >= 0) {
+					break;
+				}
+				j += length + 2;
+				k++;
+			}
+			return entryIt(prefix, false, k);
 		}
 
-		@Override
-		public Iterator<Map.Entry<String, T>> nodeIt(final String prefix) {
-			return new Iterator<Map.Entry<String, T>>() {
-				int j = 0;
-				@Override
+		private Iterator<Map.Entry<String, V>> entryIt(final String prefix, final boolean reverse, final int from) {
+			// the lengths only lead forwards, so going backwards needs the offsets first
+			final int[] offsets = new int[n];
+			for (int k = 0, j = 0; k < n; k++) {
+				offsets[k] = j;
+				j += decodeNumber(contents, j) + 2;
+			}
+			return new Iterator<Map.Entry<String, V>>() {
+				int k = from;
+
 				public boolean hasNext() {
-					   return ContainerNode.this.contents[j] == 0;
+					return k >= 0 && k < n;
 				}
 
-				@Override
-				public Map.Entry<String, T> next() {
-						int length = (int) (ContainerNode.this.contents[j++] | (ContainerNode.this.contents[j++] << 16));
-						char[] str = new char[length];
-						int i = 0;
-						while (i<length) {
-							str[i++] = ContainerNode.this.contents[j++]; 
-						}
-						j++;//skip 0 terminating char
-						String key = new String(str);
-						
-						int idx = (int) (ContainerNode.this.contents[j++] | (ContainerNode.this.contents[j++] << 16));
-						return new MapEntry(key, ContainerNode.this.values[idx]);
+				public Map.Entry<String, V> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					int j = offsets[k];
+					int length = decodeNumber(contents, j);
+					String key = new StringBuilder(prefix.length() + length).append(prefix).append(contents, j + 2, length).toString();
+					Map.Entry<String, V> e = new MapEntry<String, V>(key, (V) values[k]);
+					k += reverse ? -1 : 1;
+					return e;
 				}
 
-				@Override
 				public void remove() {
 					throw new UnsupportedOperationException();
 				}
 			};
 		}
 
-		@Override
-		public String toStringWithPrefix(String prefix) {
-			return prefix+toString();
-			
+	}
+
+	private Object find(String key) {
+		return root == null ? NONE : root.get(key, 0);
+	}
+
+	public V getMember(String s) {
+		return s == null ? null : valAt(s);
+	}
+
+	public InlineArrayPersistentHATTrie<V> addMember(String s, V v) {
+		return assoc(s, v);
+	}
+
+	public InlineArrayPersistentHATTrie<V> removeMember(String s) {
+		return s == null ? this : without(s);
+	}
+
+	public Map.Entry<String, V> longestPrefixOf(String s) {
+		return prefixesOf(s, false, false).longest();
+	}
+
+	public List<Map.Entry<String, V>> allPrefixesOf(String s) {
+		return prefixesOf(s, false, true).all();
+	}
+
+	public Map.Entry<String, V> longestSuffixOf(String s) {
+		return prefixesOf(s, true, false).longest();
+	}
+
+	public List<Map.Entry<String, V>> allSuffixesOf(String s) {
+		return prefixesOf(s, true, true).all();
+	}
+
+	public List<Map.Entry<String, V>> fuzzySearch(String s, int maxEdits) {
+		FuzzyMatches<V> m = new FuzzyMatches<V>(s, maxEdits);
+		if (root != null) {
+			root.fuzzy(0, m);
 		}
+		return m.found();
+	}
 
-		
+	private PrefixMatches<V> prefixesOf(String s, boolean reverse, boolean all) {
+		PrefixMatches<V> m = new PrefixMatches<V>(s, reverse, all);
+		if (root != null) {
+			root.prefixesOf(0, m);
+		}
+		return m;
+	}
 
+	public boolean containsKey(Object key) {
+		return (key instanceof String) && find((String) key) != NONE;
+	}
 
+	public IMapEntry<String, V> entryAt(String key) {
+		Object v = find(key);
+		return v != NONE ? new MapEntry<String, V>(key, (V) v) : null;
 	}
 
-	@Override
-	public T getMember(String s) {
-		if (root == null || s == null) return null;
-		return root.get(s,0);
+	public V valAt(String key, V notFound) {
+		Object v = find(key);
+		return v != NONE ? (V) v : notFound;
 	}
 
-	@Override
-	public IPersistentTrie<T> addMember(String s, T t) {
+	public V valAt(String key) {
+		return valAt(key, null);
+	}
+
+	public InlineArrayPersistentHATTrie<V> assoc(String key, V val) {
+		checkKey(key);
 		if (root == null) {
-			return new InlineArrayPersistentHATTrie(singletonContainer(new StringRandomAccessChars(s), 0,s.length(), t),null,1);
+			return new InlineArrayPersistentHATTrie<V>(ContainerNode.singleton(null, key, 0, val), meta, 1);
 		}
-		HATTrieNode<T> newRoot = root.add(new StringRandomAccessChars(s), 0,s.length(),t);
+		Box addedLeaf = new Box(null);
+		HATTrieNode<V> newRoot = root.add(null, key, 0, val, addedLeaf);
 		if (root == newRoot) {
 			return this;
 		}
-		return new InlineArrayPersistentHATTrie(newRoot,meta,count+1);
+		return new InlineArrayPersistentHATTrie<V>(newRoot, meta, addedLeaf.val != null ? count+1 : count);
 	}
 
-	@Override
-	public IPersistentSet disjoin(Object key) {
-		throw new UnsupportedOperationException();
+	public InlineArrayPersistentHATTrie<V> assocEx(String key, V val) {
+		if (containsKey(key))
+			throw Util.runtimeException("Key already present");
+		return assoc(key, val);
 	}
 
-	@Override
-	public boolean contains(Object key) {
-		return (key instanceof String) && getMember((String) key) != null;
+	public InlineArrayPersistentHATTrie<V> without(String key) {
+		if (root == null) {
+			return this;
+		}
+		Box removedLeaf = new Box(null);
+		HATTrieNode<V> newRoot = root.without(null, key, 0, removedLeaf);
+		if (removedLeaf.val == null) {
+			return this;
+		}
+		return new InlineArrayPersistentHATTrie<V>(newRoot, meta, count-1);
 	}
 
-	@Override
-	public Boolean get(Object key) {
-		return contains(key);
+	InlineArrayPersistentHATTrie<V> doUpdate(String key, IFn f) {
+		Object old = find(key);
+		if (old == NONE) {
+			old = ABSENT;
+		}
+		Object val = f.invoke(old);
+		if (val == old) {
+			return this;
+		}
+		if (val == ABSENT) {
+			return without(key);
+		}
+		return assoc(key, (V) val);
 	}
 
-	@Override
 	public int count() {
 		return count;
 	}
 
-	@Override
-	public IPersistentCollection cons(Object o) {
-		if (!(o instanceof Map.Entry)) {
-			throw new IllegalArgumentException("Only adding strings is supported");
-		}
-		Map.Entry<String, T> e = (Entry<String, T>) o;
-		return (IPersistentCollection) this.addMember(e.getKey(),e.getValue());
+	public IPersistentCollection empty() {
+		return EMPTY.withMeta(meta);
 	}
 
-	@Override
-	public IPersistentCollection empty() {
-		return EMPTY;
+	public ISeq seq() {
+		return count == 0 ? null : IteratorSeq.create(iterator());
 	}
 
-	@Override
-	public Iterator<Map.Entry<String, T>> iterator() {
-		return root != null ? root.nodeIt("") : new EmptyIterator(); 
+	/**
+	 * @return The entries in String order of their keys.
+	 */
+	public Iterator<Map.Entry<String, V>> iterator() {
+		return root != null ? root.nodeIt("", false) : new EmptyIterator();
 	}
-	
-	@Override
-	public ISeq<String> seq() {
-		throw new UnsupportedOperationException();
+
+	public Iterator<Map.Entry<String, V>> iteratorFrom(String key) {
+		return root != null ? root.nodeItFrom("", key, 0) : new EmptyIterator();
 	}
-		
-		
-		
 
-	@Override
-	public boolean remove(Object o) {
-		throw new UnsupportedOperationException();
+	public Iterator<Map.Entry<String, V>> reverseIterator() {
+		return root != null ? root.nodeIt("", true) : new EmptyIterator();
 	}
 
-	@Override
-	public boolean containsAll(Collection<?> c) {
-		for (Object o : c) {
-			if (!contains(o)) {
-				return false;
+	public InlineArrayPersistentHATTrie<V> withMeta(IPersistentMap meta) {
+		return new InlineArrayPersistentHATTrie<V>(root, meta, count);
+	}
+
+	public TransientHATTrie asTransient() {
+		return new TransientHATTrie<V>(this);
+	}
+
+	static final class TransientHATTrie<V> extends ATransientMap<String, V> implements TransientMap<String, V> {
+		final AtomicReference<Thread> edit;
+		HATTrieNode<V> root;
+		int count;
+		final Box leafFlag = new Box(null);
+
+		TransientHATTrie(InlineArrayPersistentHATTrie<V> m) {
+			this.edit = new AtomicReference<Thread>(Thread.currentThread());
+			this.root = m.root;
+			this.count = m.count;
+		}
+
+		TransientHATTrie<V> doAssoc(String key, V val) {
+			checkKey(key);
+			if (root == null) {
+				root = ContainerNode.singleton(edit, key, 0, val);
+				count = 1;
+				return this;
+			}
+			leafFlag.val = null;
+			root = root.add(edit, key, 0, val, leafFlag);
+			if (leafFlag.val != null) {
+				count++;
+			}
+			return this;
+		}
+
+		TransientHATTrie<V> doWithout(String key) {
+			if (root == null) {
+				return this;
+			}
+			leafFlag.val = null;
+			HATTrieNode<V> n = root.without(edit, key, 0, leafFlag);
+			if (leafFlag.val != null) {
+				root = n;
+				count--;
 			}
+			return this;
 		}
-		return true;
+
+		TransientHATTrie<V> doUpdate(String key, IFn f) {
+			Object old = root == null ? NONE : root.get(key, 0);
+			if (old == NONE) {
+				old = ABSENT;
+			}
+			Object val = f.invoke(old);
+			if (val == old) {
+				return this;
+			}
+			if (val == ABSENT) {
+				return doWithout(key);
+			}
+			return doAssoc(key, (V) val);
+		}
+
+		V doValAt(String key, V notFound) {
+			Object v = root == null ? NONE : root.get(key, 0);
+			return v != NONE ? (V) v : notFound;
+		}
+
+		int doCount() {
+			return count;
+		}
+
+		InlineArrayPersistentHATTrie<V> doPersistent() {
+			edit.set(null);
+			return new InlineArrayPersistentHATTrie<V>(root, null, count);
+		}
+
+		void ensureEditable() {
+			Thread owner = edit.get();
+			if (owner == Thread.currentThread())
+				return;
+			if (owner != null)
+				throw new IllegalAccessError("Transient used by non-owner thread");
+			throw new IllegalAccessError("Transient used after persistent! call");
+		}
+
+		public IPersistentCollection persistent() {
+			return persistentMap();
+		}
+
+		@Override
+		public InlineArrayPersistentHATTrie<V> persist() {
+			return (InlineArrayPersistentHATTrie<V>) persistentMap();
+		}
+
+		@Override
+		public TransientMap<String, V> plus(String key, V val) {
+			return (TransientMap<String, V>) assoc(key, val);
+		}
+
+		@Override
+		public TransientMap<String, V> minus(String key) {
+			return (TransientMap<String, V>) without(key);
+		}
+	}
+
+	@Override
+	public PersistentMap<String, V> zero() {
+		return (PersistentMap<String, V>) empty();
+	}
+
+	@Override
+	public InlineArrayPersistentHATTrie<V> plus(String key, V val) {
+		return assoc(key, val);
 	}
 
 	@Override
-	public boolean removeAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+	public InlineArrayPersistentHATTrie<V> plusEx(String key, V val) {
+		return assocEx(key, val);
 	}
 
 	@Override
-	public boolean retainAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+	public InlineArrayPersistentHATTrie<V> minus(String key) {
+		return without(key);
 	}
 
 	@Override
-	public void clear() {
-		throw new UnsupportedOperationException();
+	public InlineArrayPersistentHATTrie<V> plusAll(Map<? extends String, ? extends V> entries) {
+		if (entries.isEmpty())
+			return this;
+		TransientHATTrie<V> ret = asTransient();
+		for (Map.Entry<? extends String, ? extends V> e : entries.entrySet())
+			ret.doAssoc(e.getKey(), e.getValue());
+		return persistent(ret);
 	}
 
 	@Override
-	public IObj withMeta(IPersistentMap meta) {
-		return new InlineArrayPersistentHATTrie(root,meta,count);
+	public InlineArrayPersistentHATTrie<V> minusAll(Collection<? extends String> keys) {
+		if (keys.isEmpty())
+			return this;
+		TransientHATTrie<V> ret = asTransient();
+		for (String key : keys)
+			ret.doWithout(key);
+		return persistent(ret);
 	}
-	
+
+	private InlineArrayPersistentHATTrie<V> persistent(TransientHATTrie<V> t) {
+		t.edit.set(null);
+		if (t.root == root && t.count == count)
+			return this;
+		return new InlineArrayPersistentHATTrie<V>(t.root, meta, t.count);
+	}
+
 	@Override
-	public String toString() {
-		if (root == null) {return "{}";}
-		return root.toString();
+	public InlineArrayPersistentHATTrie<V> update(String key, IFn f) {
+		return doUpdate(key, updateFn(f));
 	}
 
+	@Override
+	public InlineArrayPersistentHATTrie<V> compute(String key, IFn f) {
+		return doUpdate(key, computeFn(key, f));
+	}
 
 	@Override
-	public boolean add(Entry<String, T> e) {
-		throw new UnsupportedOperationException();
+	public InlineArrayPersistentHATTrie<V> computeIfAbsent(String key, IFn f) {
+		return doUpdate(key, computeIfAbsentFn(key, f));
 	}
 
 	@Override
-	public boolean addAll(Collection<? extends Entry<String, T>> c) {
-		throw new UnsupportedOperationException();
+	public InlineArrayPersistentHATTrie<V> merge(String key, V val, IFn f) {
+		return doUpdate(key, mergeFn(val, f));
 	}
 
-}
\ No newline at end of file
+}
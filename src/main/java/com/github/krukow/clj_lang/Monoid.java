@@ -0,0 +1,36 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+/**
+ * A summary of map entries, see {@link PersistentAugmentedTreeMap}. combine
+ * must be associative with zero as its identity; it need not be commutative,
+ * entries are always combined in key order. {@link Monoids} has the common
+ * ones.
+ */
+public interface Monoid<K, V, S> {
+
+	/**
+	 * @return The summary of no entries.
+	 */
+	S zero();
+
+	/**
+	 * @return The summary of the single entry key, val.
+	 */
+	S measure(K key, V val);
+
+	/**
+	 * @return The summary of the entries summarized by left followed by
+	 *         those summarized by right.
+	 */
+	S combine(S left, S right);
+}
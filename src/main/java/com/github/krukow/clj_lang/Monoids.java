@@ -0,0 +1,171 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.io.Serializable;
+
+/**
+ * Common {@link Monoid}s over the values of a map.
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public final class Monoids {
+
+	private Monoids(){
+	}
+
+	/**
+	 * Count, sum, minimum and maximum of numeric values, as doubles.
+	 */
+	public static final class Stats implements Serializable {
+		private static final long serialVersionUID = -2231447064925112315L;
+
+		public final long count;
+		public final double sum;
+		public final double min;
+		public final double max;
+
+		public Stats(long count, double sum, double min, double max){
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+		}
+
+		public double mean(){
+			return sum / count;
+		}
+
+		public String toString(){
+			return "{count " + count + ", sum " + sum + ", min " + min + ", max " + max + "}";
+		}
+	}
+
+	static final Stats NO_STATS = new Stats(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+	/* an enum, so maps holding one stay serializable */
+	enum Builtin implements Monoid {
+		COUNT {
+			public Object zero(){
+				return 0L;
+			}
+
+			public Object measure(Object key, Object val){
+				return 1L;
+			}
+
+			public Object combine(Object left, Object right){
+				return (Long) left + (Long) right;
+			}
+		},
+		SUM {
+			public Object zero(){
+				return 0.0;
+			}
+
+			public Object measure(Object key, Object val){
+				return ((Number) val).doubleValue();
+			}
+
+			public Object combine(Object left, Object right){
+				return (Double) left + (Double) right;
+			}
+		},
+		MIN {
+			public Object zero(){
+				return null;
+			}
+
+			public Object measure(Object key, Object val){
+				return val;
+			}
+
+			public Object combine(Object left, Object right){
+				if(left == null)
+					return right;
+				if(right == null)
+					return left;
+				return ((Comparable) left).compareTo(right) <= 0 ? left : right;
+			}
+		},
+		MAX {
+			public Object zero(){
+				return null;
+			}
+
+			public Object measure(Object key, Object val){
+				return val;
+			}
+
+			public Object combine(Object left, Object right){
+				if(left == null)
+					return right;
+				if(right == null)
+					return left;
+				return ((Comparable) left).compareTo(right) >= 0 ? left : right;
+			}
+		},
+		STATS {
+			public Object zero(){
+				return NO_STATS;
+			}
+
+			public Object measure(Object key, Object val){
+				double d = ((Number) val).doubleValue();
+				return new Stats(1, d, d, d);
+			}
+
+			public Object combine(Object left, Object right){
+				Stats l = (Stats) left;
+				Stats r = (Stats) right;
+				if(l.count == 0)
+					return r;
+				if(r.count == 0)
+					return l;
+				return new Stats(l.count + r.count, l.sum + r.sum, Math.min(l.min, r.min), Math.max(l.max, r.max));
+			}
+		}
+	}
+
+	/**
+	 * @return The number of entries.
+	 */
+	public static <K, V> Monoid<K, V, Long> count(){
+		return Builtin.COUNT;
+	}
+
+	/**
+	 * @return The sum of the values.
+	 */
+	public static <K, V extends Number> Monoid<K, V, Double> sum(){
+		return Builtin.SUM;
+	}
+
+	/**
+	 * @return The least value, null if there are none.
+	 */
+	public static <K, V extends Comparable<? super V>> Monoid<K, V, V> min(){
+		return Builtin.MIN;
+	}
+
+	/**
+	 * @return The greatest value, null if there are none.
+	 */
+	public static <K, V extends Comparable<? super V>> Monoid<K, V, V> max(){
+		return Builtin.MAX;
+	}
+
+	/**
+	 * @return The {@link Stats} of the values.
+	 */
+	public static <K, V extends Number> Monoid<K, V, Stats> stats(){
+		return Builtin.STATS;
+	}
+}
@@ -0,0 +1,1156 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.krukow.clj_ds.PersistentSortedMap;
+import com.github.krukow.clj_ds.TransientMap;
+
+/*
+ A persistent adaptive radix tree (Leis, Kemper & Neumann, "The Adaptive
+ Radix Tree: ARTful Indexing for Main-Memory Databases", 2013) from byte[]
+ keys, ordered by their unsigned bytes. Inner nodes branch on one byte and
+ take one of four layouts by their number of children: up to 4 and up to 16
+ in sorted byte[]/Node[] pairs, up to 48 through a 256 entry index into 48
+ slots, and 256 direct slots. They grow and shrink between the layouts as
+ children come and go. Each inner node keeps the bytes all keys below it
+ share after its parent's branch as its prefix (path compression), a key
+ ending there in its leaf slot and the number of keys below it. A leaf holds
+ its whole key, so a lone key hangs right below the byte setting it apart.
+ Lookups look at each byte of the key once and never call a Comparator.
+
+ Keys are compared and hashed by content and must not be changed once in
+ the map.
+*/
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PersistentARTMap<V> extends APersistentMap<byte[],V> implements IObj, IEditableCollection<MapEntry<byte[], V>>, Reversible<Map.Entry<byte[], V>>, Sorted<byte[]>, PersistentSortedMap<byte[], V> {
+	private static final long serialVersionUID = 2518430468734816507L;
+
+	final Node root;
+	final int count;
+	final IPersistentMap _meta;
+
+	final private static Object NOT_FOUND = new Object();
+
+	final static public PersistentARTMap EMPTY = new PersistentARTMap(null, null, 0);
+
+	/**
+	 * Orders byte arrays by their unsigned bytes, a proper prefix first.
+	 */
+	public static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>(){
+		public int compare(byte[] a, byte[] b){
+			return PersistentARTMap.compare(a, b);
+		}
+	};
+
+	static public <V> PersistentARTMap<V> create(Map<byte[],? extends V> other){
+		TransientARTMap<V> ret = EMPTY.asTransient();
+		for(Map.Entry<byte[],? extends V> e : other.entrySet())
+			ret.doAssoc(e.getKey(), e.getValue());
+		return ret.doPersistent();
+	}
+
+	PersistentARTMap(IPersistentMap meta, Node root, int count){
+		this._meta = meta;
+		this.root = root;
+		this.count = count;
+	}
+
+	public PersistentARTMap<V> withMeta(IPersistentMap meta){
+		return new PersistentARTMap<V>(meta, root, count);
+	}
+
+	public IPersistentMap meta(){
+		return _meta;
+	}
+
+	public int count(){
+		return count;
+	}
+
+	public IPersistentCollection empty(){
+		return new PersistentARTMap(_meta, null, 0);
+	}
+
+	public boolean containsKey(Object key){
+		return key instanceof byte[] && find(root, (byte[]) key) != NOT_FOUND;
+	}
+
+	public IMapEntry<byte[],V> entryAt(byte[] key){
+		Object v = find(root, key);
+		return v != NOT_FOUND ? new MapEntry<byte[],V>(key, (V) v) : null;
+	}
+
+	public V valAt(byte[] key, V notFound){
+		Object v = find(root, key);
+		return v != NOT_FOUND ? (V) v : notFound;
+	}
+
+	public V valAt(byte[] key){
+		return valAt(key, null);
+	}
+
+	public PersistentARTMap<V> assoc(byte[] key, V val){
+		Box added = new Box(null);
+		Node n = assoc(null, root, key, 0, val, added);
+		if(n == root)
+			return this;
+		return new PersistentARTMap<V>(_meta, n, added.val != null ? count + 1 : count);
+	}
+
+	public PersistentARTMap<V> assocEx(byte[] key, V val){
+		if(containsKey(key))
+			throw Util.runtimeException("Key already present");
+		return assoc(key, val);
+	}
+
+	public PersistentARTMap<V> without(byte[] key){
+		if(root == null)
+			return this;
+		Box removed = new Box(null);
+		Node n = without(null, root, key, 0, removed);
+		if(removed.val == null)
+			return this;
+		return new PersistentARTMap<V>(_meta, n, count - 1);
+	}
+
+	/**
+	 * @return A map without the keys starting with prefix, which are cut
+	 *         off the tree as whole subtrees.
+	 */
+	public PersistentARTMap<V> withoutPrefix(byte[] prefix){
+		if(root == null)
+			return this;
+		Box removed = new Box(null);
+		Node n = withoutPrefix(null, root, prefix, 0, removed);
+		if(removed.val == null)
+			return this;
+		return new PersistentARTMap<V>(_meta, n, count - (Integer) removed.val);
+	}
+
+	/**
+	 * @return The number of keys starting with prefix, read off the node
+	 *         holding them.
+	 */
+	public int prefixCount(byte[] prefix){
+		Node node = root;
+		int d = 0;
+		while(node instanceof Inner)
+			{
+			Inner in = (Inner) node;
+			int m = matching(in.prefix, prefix, d);
+			if(d + m == prefix.length)
+				return in.count;
+			if(m < in.prefix.length)
+				return 0;
+			d += m;
+			node = in.child(prefix[d++] & 0xff);
+			}
+		return node != null && startsWith(((Leaf) node).key, prefix) ? 1 : 0;
+	}
+
+	PersistentARTMap<V> doUpdate(byte[] key, IFn f){
+		Object old = find(root, key);
+		if(old == NOT_FOUND)
+			old = ABSENT;
+		Object val = f.invoke(old);
+		if(val == old)
+			return this;
+		if(val == ABSENT)
+			return without(key);
+		return assoc(key, (V) val);
+	}
+
+	public TransientARTMap asTransient(){
+		return new TransientARTMap<V>(this);
+	}
+
+	/**
+	 * @return An iterator over the entries with from <= key < to in
+	 *         ascending order, to may be null for no upper bound.
+	 */
+	public Iterator<Map.Entry<byte[], V>> range(byte[] from, byte[] to){
+		return new NodeIterator<V>(root, from, true, to);
+	}
+
+	/**
+	 * @return An iterator over the entries whose keys start with prefix, in
+	 *         ascending order.
+	 */
+	public Iterator<Map.Entry<byte[], V>> prefixIterator(byte[] prefix){
+		return range(prefix, prefixEnd(prefix));
+	}
+
+	public ISeq seq(){
+		return seq(true);
+	}
+
+	public ISeq rseq(){
+		return seq(false);
+	}
+
+	public Comparator<byte[]> comparator(){
+		return UNSIGNED;
+	}
+
+	public Object entryKey(Object entry){
+		return ((IMapEntry) entry).key();
+	}
+
+	public ISeq seq(boolean ascending){
+		return IteratorSeq.create(new NodeIterator<V>(root, ascending));
+	}
+
+	public ISeq seqFrom(byte[] key, boolean ascending){
+		return IteratorSeq.create(new NodeIterator<V>(root, key, ascending, null));
+	}
+
+	public Iterator<Map.Entry<byte[], V>> iterator(){
+		return new NodeIterator<V>(root, true);
+	}
+
+	public Iterator<Map.Entry<byte[], V>> reverseIterator(){
+		return new NodeIterator<V>(root, false);
+	}
+
+	public Iterator<Map.Entry<byte[], V>> iteratorFrom(byte[] key){
+		return new NodeIterator<V>(root, key, true, null);
+	}
+
+	/* the keys are hashed by content, so equal maps hash alike */
+	public int hashCode(){
+		if(_hash == -1)
+			{
+			int hash = 0;
+			for(Iterator<Map.Entry<byte[], V>> it = iterator(); it.hasNext();)
+				{
+				Map.Entry<byte[], V> e = it.next();
+				hash += Arrays.hashCode(e.getKey()) ^ (e.getValue() == null ? 0 : e.getValue().hashCode());
+				}
+			this._hash = hash;
+			}
+		return _hash;
+	}
+
+	public int hasheq(){
+		if(_hasheq == -1)
+			{
+			int hash = 0;
+			for(Iterator<Map.Entry<byte[], V>> it = iterator(); it.hasNext();)
+				{
+				Map.Entry<byte[], V> e = it.next();
+				hash += Arrays.hashCode(e.getKey()) ^ Util.hasheq(e.getValue());
+				}
+			this._hasheq = hash;
+			}
+		return _hasheq;
+	}
+
+	static int compare(byte[] a, byte[] b){
+		int n = Math.min(a.length, b.length);
+		for(int i = 0; i < n; i++)
+			{
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if(c != 0)
+				return c;
+			}
+		return a.length - b.length;
+	}
+
+	static boolean startsWith(byte[] key, byte[] prefix){
+		if(key.length < prefix.length)
+			return false;
+		for(int i = 0; i < prefix.length; i++)
+			if(key[i] != prefix[i])
+				return false;
+		return true;
+	}
+
+	/* the least key above all keys starting with prefix, null if none */
+	static byte[] prefixEnd(byte[] prefix){
+		int i = prefix.length;
+		while(i > 0 && prefix[i - 1] == (byte) 0xff)
+			i--;
+		if(i == 0)
+			return null;
+		byte[] end = slice(prefix, 0, i);
+		end[i - 1]++;
+		return end;
+	}
+
+	/* the number of bytes of prefix that key has from d on */
+	static int matching(byte[] prefix, byte[] key, int d){
+		int lim = Math.min(prefix.length, key.length - d);
+		int m = 0;
+		while(m < lim && prefix[m] == key[d + m])
+			m++;
+		return m;
+	}
+
+	static byte[] slice(byte[] bytes, int from, int to){
+		byte[] s = new byte[to - from];
+		System.arraycopy(bytes, from, s, 0, to - from);
+		return s;
+	}
+
+	static Object find(Node node, byte[] key){
+		int d = 0;
+		while(node instanceof Inner)
+			{
+			Inner in = (Inner) node;
+			byte[] prefix = in.prefix;
+			if(key.length - d < prefix.length)
+				return NOT_FOUND;
+			for(int i = 0; i < prefix.length; i++)
+				if(key[d + i] != prefix[i])
+					return NOT_FOUND;
+			d += prefix.length;
+			if(d == key.length)
+				return in.leaf != null ? in.leaf.val : NOT_FOUND;
+			node = in.child(key[d++] & 0xff);
+			}
+		if(node == null)
+			return NOT_FOUND;
+		Leaf leaf = (Leaf) node;
+		return Arrays.equals(leaf.key, key) ? leaf.val : NOT_FOUND;
+	}
+
+	/*
+	 * The keys below node all share their first d bytes with key.
+	 */
+	static Node assoc(AtomicReference<Thread> edit, Node node, byte[] key, int d, Object val, Box added){
+		if(node == null)
+			{
+			added.val = added;
+			return new Leaf(key, val);
+			}
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			if(Arrays.equals(leaf.key, key))
+				return leaf.val == val ? leaf : new Leaf(leaf.key, val);
+			added.val = added;
+			// a new node where the two keys part
+			int p = d;
+			int lim = Math.min(key.length, leaf.key.length);
+			while(p < lim && key[p] == leaf.key[p])
+				p++;
+			Inner in = new Node4(edit, slice(key, d, p), null, 2);
+			in.place(leaf, p);
+			in.place(new Leaf(key, val), p);
+			return in;
+			}
+		Inner in = (Inner) node;
+		int m = matching(in.prefix, key, d);
+		if(m < in.prefix.length)
+			{
+			// key leaves the prefix, split it where
+			added.val = added;
+			Inner split = new Node4(edit, slice(in.prefix, 0, m), null, in.count + 1);
+			int b = in.prefix[m] & 0xff;
+			Inner rest = in.editable(edit);
+			rest.prefix = slice(in.prefix, m + 1, in.prefix.length);
+			split.set(b, rest);
+			split.place(new Leaf(key, val), d + m);
+			return split;
+			}
+		d += m;
+		if(d == key.length)
+			{
+			if(in.leaf != null && in.leaf.val == val)
+				return in;
+			Inner r = in.editable(edit);
+			if(r.leaf == null)
+				{
+				added.val = added;
+				r.count++;
+				r.leaf = new Leaf(key, val);
+				}
+			else
+				r.leaf = new Leaf(r.leaf.key, val);
+			return r;
+			}
+		int b = key[d] & 0xff;
+		Node child = in.child(b);
+		Node n = assoc(edit, child, key, d + 1, val, added);
+		// a transient's child is changed in place, yet may hold a new key
+		if(n == child && added.val == null)
+			return in;
+		Inner r = in.withChild(edit, b, n);
+		if(added.val != null)
+			r.count++;
+		return r;
+	}
+
+	static Node without(AtomicReference<Thread> edit, Node node, byte[] key, int d, Box removed){
+		if(node instanceof Leaf)
+			{
+			if(!Arrays.equals(((Leaf) node).key, key))
+				return node;
+			removed.val = removed;
+			return null;
+			}
+		Inner in = (Inner) node;
+		int m = matching(in.prefix, key, d);
+		if(m < in.prefix.length)
+			return in;
+		d += m;
+		Inner r;
+		if(d == key.length)
+			{
+			if(in.leaf == null)
+				return in;
+			removed.val = removed;
+			r = in.editable(edit);
+			r.leaf = null;
+			}
+		else
+			{
+			int b = key[d] & 0xff;
+			Node child = in.child(b);
+			if(child == null)
+				return in;
+			Node n = without(edit, child, key, d + 1, removed);
+			if(removed.val == null)
+				return in;
+			r = n == null ? in.withoutChild(edit, b) : in.withChild(edit, b, n);
+			}
+		r.count--;
+		return r.compact(edit);
+	}
+
+	/*
+	 * Sets removed.val to the number of keys removed.
+	 */
+	static Node withoutPrefix(AtomicReference<Thread> edit, Node node, byte[] prefix, int d, Box removed){
+		if(node instanceof Leaf)
+			{
+			if(!startsWith(((Leaf) node).key, prefix))
+				return node;
+			removed.val = 1;
+			return null;
+			}
+		Inner in = (Inner) node;
+		int m = matching(in.prefix, prefix, d);
+		if(d + m == prefix.length)
+			{
+			// every key below starts with prefix
+			removed.val = in.count;
+			return null;
+			}
+		if(m < in.prefix.length)
+			return in;
+		d += m;
+		int b = prefix[d] & 0xff;
+		Node child = in.child(b);
+		if(child == null)
+			return in;
+		Node n = withoutPrefix(edit, child, prefix, d + 1, removed);
+		if(removed.val == null)
+			return in;
+		Inner r = n == null ? in.withoutChild(edit, b) : in.withChild(edit, b, n);
+		r.count -= (Integer) removed.val;
+		return r.compact(edit);
+	}
+
+	static abstract class Node implements Serializable {
+	}
+
+	final static class Leaf extends Node {
+		final byte[] key;
+		final Object val;
+
+		Leaf(byte[] key, Object val){
+			this.key = key;
+			this.val = val;
+		}
+	}
+
+	/*
+	 * Children are addressed by their byte as an int from 0 to 255. Nodes
+	 * created by a transient carry its edit and are changed in place while
+	 * it owns them.
+	 */
+	static abstract class Inner extends Node {
+		final AtomicReference<Thread> edit;
+		byte[] prefix;
+		Leaf leaf;
+		int count;
+		int n;
+
+		Inner(AtomicReference<Thread> edit, byte[] prefix, Leaf leaf, int count, int n){
+			this.edit = edit;
+			this.prefix = prefix;
+			this.leaf = leaf;
+			this.count = count;
+			this.n = n;
+		}
+
+		/* the empty node of the smallest layout holding n children */
+		static Inner layout(AtomicReference<Thread> edit, int n){
+			if(n <= 4)
+				return new Node4(edit, null, null, 0);
+			if(n <= 16)
+				return new Node16(edit, null, null, 0);
+			if(n <= 48)
+				return new Node48(edit, null, null, 0);
+			return new Node256(edit, null, null, 0);
+		}
+
+		abstract Node child(int b);
+
+		/* the least byte from b on with a child, 256 if none */
+		abstract int next(int b);
+
+		/* the greatest byte up to b with a child, -1 if none */
+		abstract int prev(int b);
+
+		abstract int capacity();
+
+		/* removing a child from this many moves to a smaller layout */
+		abstract int shrinkAt();
+
+		abstract Inner copy(AtomicReference<Thread> edit);
+
+		/* sets the child for b in place */
+		abstract void set(int b, Node c);
+
+		/* removes the child for b in place */
+		abstract void clear(int b);
+
+		boolean owned(AtomicReference<Thread> edit){
+			return edit != null && this.edit == edit;
+		}
+
+		Inner editable(AtomicReference<Thread> edit){
+			return owned(edit) ? this : copy(edit);
+		}
+
+		Inner resized(AtomicReference<Thread> edit, int size){
+			Inner r = layout(edit, size);
+			r.prefix = prefix;
+			r.leaf = leaf;
+			r.count = count;
+			for(int b = next(0); b < 256; b = next(b + 1))
+				r.set(b, child(b));
+			return r;
+		}
+
+		Inner withChild(AtomicReference<Thread> edit, int b, Node c){
+			Inner r;
+			if(n == capacity() && child(b) == null)
+				r = resized(edit, n + 1);
+			else
+				r = editable(edit);
+			r.set(b, c);
+			return r;
+		}
+
+		Inner withoutChild(AtomicReference<Thread> edit, int b){
+			Inner r = n == shrinkAt() ? resized(edit, n - 1) : editable(edit);
+			r.clear(b);
+			return r;
+		}
+
+		/* puts the fresh leaf below a node whose keys have p bytes here */
+		void place(Leaf l, int p){
+			if(l.key.length == p)
+				leaf = l;
+			else
+				set(l.key[p] & 0xff, l);
+		}
+
+		/*
+		 * Drops a node left without children, or with one child and no leaf
+		 * of its own, in favour of what is left.
+		 */
+		Node compact(AtomicReference<Thread> edit){
+			if(n == 0)
+				return leaf;
+			if(n > 1 || leaf != null)
+				return this;
+			int b = next(0);
+			Node c = child(b);
+			if(c instanceof Leaf)
+				return c;
+			Inner ci = (Inner) c;
+			byte[] p = new byte[prefix.length + 1 + ci.prefix.length];
+			System.arraycopy(prefix, 0, p, 0, prefix.length);
+			p[prefix.length] = (byte) b;
+			System.arraycopy(ci.prefix, 0, p, prefix.length + 1, ci.prefix.length);
+			Inner r = ci.editable(edit);
+			r.prefix = p;
+			return r;
+		}
+	}
+
+	/* up to 4 or 16 children under their bytes, both kept in byte order */
+	static abstract class SortedNode extends Inner {
+		final byte[] keys;
+		final Node[] children;
+
+		SortedNode(AtomicReference<Thread> edit, byte[] prefix, Leaf leaf, int count, int n, byte[] keys, Node[] children){
+			super(edit, prefix, leaf, count, n);
+			this.keys = keys;
+			this.children = children;
+		}
+
+		int capacity(){
+			return keys.length;
+		}
+
+		int indexOf(int b){
+			for(int i = 0; i < n; i++)
+				{
+				int k = keys[i] & 0xff;
+				if(k >= b)
+					return k == b ? i : -(i + 1);
+				}
+			return -(n + 1);
+		}
+
+		Node child(int b){
+			int i = indexOf(b);
+			return i >= 0 ? children[i] : null;
+		}
+
+		int next(int b){
+			for(int i = 0; i < n; i++)
+				if((keys[i] & 0xff) >= b)
+					return keys[i] & 0xff;
+			return 256;
+		}
+
+		int prev(int b){
+			for(int i = n - 1; i >= 0; i--)
+				if((keys[i] & 0xff) <= b)
+					return keys[i] & 0xff;
+			return -1;
+		}
+
+		void set(int b, Node c){
+			int i = indexOf(b);
+			if(i >= 0)
+				{
+				children[i] = c;
+				return;
+				}
+			i = -i - 1;
+			System.arraycopy(keys, i, keys, i + 1, n - i);
+			System.arraycopy(children, i, children, i + 1, n - i);
+			keys[i] = (byte) b;
+			children[i] = c;
+			n++;
+		}
+
+		void clear(int b){
+			int i = indexOf(b);
+			System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+			System.arraycopy(children, i + 1, children, i, n - i - 1);
+			children[--n] = null;
+		}
+	}
+
+	final static class Node4 extends SortedNode {
+		Node4(AtomicReference<Thread> edit, byte[] prefix, Leaf leaf, int count){
+			super(edit, prefix, leaf, count, 0, new byte[4], new Node[4]);
+		}
+
+		private Node4(Node4 node, AtomicReference<Thread> edit){
+			super(edit, node.prefix, node.leaf, node.count, node.n, node.keys.clone(), node.children.clone());
+		}
+
+		int shrinkAt(){
+			return -1;
+		}
+
+		Inner copy(AtomicReference<Thread> edit){
+			return new Node4(this, edit);
+		}
+	}
+
+	final static class Node16 extends SortedNode {
+		Node16(AtomicReference<Thread> edit, byte[] prefix, Leaf leaf, int count){
+			super(edit, prefix, leaf, count, 0, new byte[16], new Node[16]);
+		}
+
+		private Node16(Node16 node, AtomicReference<Thread> edit){
+			super(edit, node.prefix, node.leaf, node.count, node.n, node.keys.clone(), node.children.clone());
+		}
+
+		int shrinkAt(){
+			return 4;
+		}
+
+		Inner copy(AtomicReference<Thread> edit){
+			return new Node16(this, edit);
+		}
+	}
+
+	/* up to 48 children in slots, index[b] is the slot for b plus one, 0 if none */
+	final static class Node48 extends Inner {
+		final byte[] index;
+		final Node[] children;
+
+		Node48(AtomicReference<Thread> edit, byte[] prefix, Leaf leaf, int count){
+			super(edit, prefix, leaf, count, 0);
+			this.index = new byte[256];
+			this.children = new Node[48];
+		}
+
+		private Node48(Node48 node, AtomicReference<Thread> edit){
+			super(edit, node.prefix, node.leaf, node.count, node.n);
+			this.index = node.index.clone();
+			this.children = node.children.clone();
+		}
+
+		int capacity(){
+			return 48;
+		}
+
+		int shrinkAt(){
+			return 13;
+		}
+
+		Inner copy(AtomicReference<Thread> edit){
+			return new Node48(this, edit);
+		}
+
+		Node child(int b){
+			int i = index[b];
+			return i != 0 ? children[i - 1] : null;
+		}
+
+		int next(int b){
+			for(; b < 256; b++)
+				if(index[b] != 0)
+					return b;
+			return 256;
+		}
+
+		int prev(int b){
+			for(; b >= 0; b--)
+				if(index[b] != 0)
+					return b;
+			return -1;
+		}
+
+		void set(int b, Node c){
+			int i = index[b];
+			if(i != 0)
+				{
+				children[i - 1] = c;
+				return;
+				}
+			i = 0;
+			while(children[i] != null)
+				i++;
+			children[i] = c;
+			index[b] = (byte) (i + 1);
+			n++;
+		}
+
+		void clear(int b){
+			children[index[b] - 1] = null;
+			index[b] = 0;
+			n--;
+		}
+	}
+
+	final static class Node256 extends Inner {
+		final Node[] children;
+
+		Node256(AtomicReference<Thread> edit, byte[] prefix, Leaf leaf, int count){
+			super(edit, prefix, leaf, count, 0);
+			this.children = new Node[256];
+		}
+
+		private Node256(Node256 node, AtomicReference<Thread> edit){
+			super(edit, node.prefix, node.leaf, node.count, node.n);
+			this.children = node.children.clone();
+		}
+
+		int capacity(){
+			return 256;
+		}
+
+		int shrinkAt(){
+			return 41;
+		}
+
+		Inner copy(AtomicReference<Thread> edit){
+			return new Node256(this, edit);
+		}
+
+		Node child(int b){
+			return children[b];
+		}
+
+		int next(int b){
+			for(; b < 256; b++)
+				if(children[b] != null)
+					return b;
+			return 256;
+		}
+
+		int prev(int b){
+			for(; b >= 0; b--)
+				if(children[b] != null)
+					return b;
+			return -1;
+		}
+
+		void set(int b, Node c){
+			if(children[b] == null)
+				n++;
+			children[b] = c;
+		}
+
+		void clear(int b){
+			children[b] = null;
+			n--;
+		}
+	}
+
+	/*
+	 * Walks the tree with a stack of the inner nodes on the path and, for
+	 * each, the next byte to look at. Ascending, an inner node's leaf comes
+	 * before its children, descending after them. Stops short of limit when
+	 * it is given.
+	 */
+	static final class NodeIterator<V> implements Iterator<Map.Entry<byte[], V>> {
+		final boolean ascending;
+		final byte[] limit;
+		Inner[] stack = new Inner[8];
+		int[] pos = new int[8];
+		int sp;
+		Leaf next;
+
+		NodeIterator(Node root, boolean ascending){
+			this.ascending = ascending;
+			this.limit = null;
+			if(root instanceof Leaf)
+				next = (Leaf) root;
+			else if(root != null)
+				{
+				push((Inner) root);
+				advance();
+				}
+		}
+
+		/* from the first entry at or after from, or at or before it descending */
+		NodeIterator(Node root, byte[] from, boolean ascending, byte[] limit){
+			this.ascending = ascending;
+			this.limit = limit;
+			Leaf first = null;
+			Node node = root;
+			int d = 0;
+			while(node instanceof Inner)
+				{
+				Inner in = (Inner) node;
+				int m = matching(in.prefix, from, d);
+				node = null;
+				if(m < in.prefix.length)
+					{
+					// the keys below all sort on one side of from
+					boolean after = d + m == from.length || (in.prefix[m] & 0xff) > (from[d + m] & 0xff);
+					if(after == ascending)
+						push(in);
+					break;
+					}
+				d += m;
+				if(d == from.length)
+					{
+					if(ascending)
+						push(in);
+					else
+						first = in.leaf;
+					break;
+					}
+				int b = from[d++] & 0xff;
+				push(in);
+				pos[sp - 1] = ascending ? b + 1 : b - 1;
+				node = in.child(b);
+				}
+			if(node != null)
+				{
+				int c = compare(((Leaf) node).key, from);
+				if(ascending ? c >= 0 : c <= 0)
+					first = (Leaf) node;
+				}
+			if(first != null)
+				{
+				next = first;
+				checkLimit();
+				}
+			else
+				advance();
+		}
+
+		void push(Inner in){
+			if(sp == stack.length)
+				{
+				Inner[] s = new Inner[2 * sp];
+				int[] p = new int[2 * sp];
+				System.arraycopy(stack, 0, s, 0, sp);
+				System.arraycopy(pos, 0, p, 0, sp);
+				stack = s;
+				pos = p;
+				}
+			stack[sp] = in;
+			pos[sp++] = ascending ? -1 : 255;
+		}
+
+		void advance(){
+			next = null;
+			while(sp > 0)
+				{
+				Inner in = stack[sp - 1];
+				int p = pos[sp - 1];
+				int b;
+				if(ascending)
+					{
+					if(p < 0)
+						{
+						pos[sp - 1] = 0;
+						if(in.leaf != null)
+							{
+							next = in.leaf;
+							break;
+							}
+						continue;
+						}
+					b = in.next(p);
+					if(b > 255)
+						{
+						sp--;
+						continue;
+						}
+					pos[sp - 1] = b + 1;
+					}
+				else
+					{
+					b = p < 0 ? -1 : in.prev(p);
+					if(b < 0)
+						{
+						sp--;
+						if(in.leaf != null)
+							{
+							next = in.leaf;
+							break;
+							}
+						continue;
+						}
+					pos[sp - 1] = b - 1;
+					}
+				Node c = in.child(b);
+				if(c instanceof Leaf)
+					{
+					next = (Leaf) c;
+					break;
+					}
+				push((Inner) c);
+				}
+			checkLimit();
+		}
+
+		void checkLimit(){
+			if(next != null && limit != null)
+				{
+				int c = compare(next.key, limit);
+				if(ascending ? c >= 0 : c <= 0)
+					{
+					next = null;
+					sp = 0;
+					}
+				}
+		}
+
+		public boolean hasNext(){
+			return next != null;
+		}
+
+		public Map.Entry<byte[], V> next(){
+			if(next == null)
+				throw new NoSuchElementException();
+			Leaf l = next;
+			advance();
+			return new MapEntry<byte[], V>(l.key, (V) l.val);
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static final class TransientARTMap<V> extends ATransientMap<byte[],V> implements TransientMap<byte[], V> {
+		final AtomicReference<Thread> edit;
+		Node root;
+		int count;
+		final Box leafFlag = new Box(null);
+
+		TransientARTMap(PersistentARTMap<V> m){
+			this.edit = new AtomicReference<Thread>(Thread.currentThread());
+			this.root = m.root;
+			this.count = m.count;
+		}
+
+		TransientARTMap<V> doAssoc(byte[] key, V val){
+			leafFlag.val = null;
+			root = PersistentARTMap.assoc(edit, root, key, 0, val, leafFlag);
+			if(leafFlag.val != null)
+				count++;
+			return this;
+		}
+
+		TransientARTMap<V> doWithout(byte[] key){
+			if(root == null)
+				return this;
+			leafFlag.val = null;
+			Node n = PersistentARTMap.without(edit, root, key, 0, leafFlag);
+			if(leafFlag.val != null)
+				{
+				root = n;
+				count--;
+				}
+			return this;
+		}
+
+		TransientARTMap<V> doUpdate(byte[] key, IFn f){
+			Object old = find(root, key);
+			if(old == NOT_FOUND)
+				old = ABSENT;
+			Object val = f.invoke(old);
+			if(val == old)
+				return this;
+			if(val == ABSENT)
+				return doWithout(key);
+			return doAssoc(key, (V) val);
+		}
+
+		V doValAt(byte[] key, V notFound){
+			Object v = find(root, key);
+			return v != NOT_FOUND ? (V) v : notFound;
+		}
+
+		int doCount(){
+			return count;
+		}
+
+		PersistentARTMap<V> doPersistent(){
+			edit.set(null);
+			return new PersistentARTMap<V>(null, root, count);
+		}
+
+		void ensureEditable(){
+			Thread owner = edit.get();
+			if(owner == Thread.currentThread())
+				return;
+			if(owner != null)
+				throw new IllegalAccessError("Transient used by non-owner thread");
+			throw new IllegalAccessError("Transient used after persistent! call");
+		}
+
+		public IPersistentCollection persistent(){
+			return persistentMap();
+		}
+
+		@Override
+		public PersistentARTMap<V> persist(){
+			return (PersistentARTMap<V>) persistentMap();
+		}
+
+		@Override
+		public TransientMap<byte[], V> plus(byte[] key, V val){
+			return (TransientMap<byte[], V>) assoc(key, val);
+		}
+
+		@Override
+		public TransientMap<byte[], V> minus(byte[] key){
+			return (TransientMap<byte[], V>) without(key);
+		}
+	}
+
+	@Override
+	public PersistentSortedMap<byte[], V> zero(){
+		return (PersistentSortedMap<byte[], V>) empty();
+	}
+
+	@Override
+	public PersistentARTMap<V> plus(byte[] key, V val){
+		return assoc(key, val);
+	}
+
+	@Override
+	public PersistentARTMap<V> plusEx(byte[] key, V val){
+		return assocEx(key, val);
+	}
+
+	@Override
+	public PersistentARTMap<V> minus(byte[] key){
+		return without(key);
+	}
+
+	@Override
+	public PersistentARTMap<V> plusAll(Map<? extends byte[], ? extends V> entries){
+		if(entries.isEmpty())
+			return this;
+		TransientARTMap<V> ret = asTransient();
+		for(Map.Entry<? extends byte[], ? extends V> e : entries.entrySet())
+			ret.doAssoc(e.getKey(), e.getValue());
+		return persistent(ret);
+	}
+
+	@Override
+	public PersistentARTMap<V> minusAll(Collection<? extends byte[]> keys){
+		if(keys.isEmpty())
+			return this;
+		TransientARTMap<V> ret = asTransient();
+		for(byte[] key : keys)
+			ret.doWithout(key);
+		return persistent(ret);
+	}
+
+	private PersistentARTMap<V> persistent(TransientARTMap<V> t){
+		t.edit.set(null);
+		if(t.root == root)
+			return this;
+		return new PersistentARTMap<V>(_meta, t.root, t.count);
+	}
+
+	@Override
+	public PersistentARTMap<V> update(byte[] key, IFn f){
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentARTMap<V> compute(byte[] key, IFn f){
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentARTMap<V> computeIfAbsent(byte[] key, IFn f){
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentARTMap<V> merge(byte[] key, V val, IFn f){
+		return doUpdate(key, mergeFn(val, f));
+	}
+}
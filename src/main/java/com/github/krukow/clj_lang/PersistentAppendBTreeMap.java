@@ -0,0 +1,558 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.krukow.clj_ds.PersistentSortedMap;
+import com.github.krukow.clj_lang.PersistentBTreeMap.Leaf;
+import com.github.krukow.clj_lang.PersistentBTreeMap.Node;
+import com.github.krukow.clj_lang.PersistentBTreeMap.NodeIterator;
+
+/*
+ A persistent sorted map for keys that mostly arrive in ascending order,
+ such as timestamps and sequence numbers. Like PersistentVector it keeps
+ a tail: the greatest entries live in a sorted array of at most TAIL
+ entries next to a PersistentBTreeMap tree, every tail key following every
+ tree key. A key past the last one is appended to the tail by copying it;
+ a full tail is folded into the tree as its new rightmost leaf, a walk down
+ the right spine done once per TAIL appends. Keys at or before the tail's
+ first key go to the tree as in PersistentBTreeMap.
+*/
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PersistentAppendBTreeMap<K,V> extends APersistentMap<K,V> implements IObj, Reversible<Map.Entry<K, V>>, Sorted<K>, PersistentSortedMap<K, V> {
+	private static final long serialVersionUID = 6915380226785741382L;
+
+	/* a full tail makes a leaf of the minimum size */
+	static final int TAIL = PersistentBTreeMap.MIN;
+
+	final Comparator<K> comp;
+	final Node root;
+	final int count;
+	final Object[] tailKeys;
+	final Object[] tailVals;
+	final IPersistentMap _meta;
+
+	final private static Object NOT_FOUND = new Object();
+
+	final static public PersistentAppendBTreeMap EMPTY = new PersistentAppendBTreeMap(RT.DEFAULT_COMPARATOR);
+
+	static public <K,V> PersistentAppendBTreeMap<K,V> create(Map<? extends K,? extends V> other){
+		return create(RT.DEFAULT_COMPARATOR, other);
+	}
+
+	static public <K,V> PersistentAppendBTreeMap<K,V> create(Comparator<? super K> comp, Map<? extends K,? extends V> other){
+		return new PersistentAppendBTreeMap<K,V>((Comparator<K>) comp).plusAll(other);
+	}
+
+	public PersistentAppendBTreeMap(Comparator<K> comp){
+		this(null, comp, null, 0, RT.EMPTY_ARRAY, RT.EMPTY_ARRAY);
+	}
+
+	PersistentAppendBTreeMap(IPersistentMap meta, Comparator<K> comp, Node root, int count, Object[] tailKeys, Object[] tailVals){
+		this._meta = meta;
+		this.comp = comp;
+		this.root = root;
+		this.count = count;
+		this.tailKeys = tailKeys;
+		this.tailVals = tailVals;
+	}
+
+	public PersistentAppendBTreeMap<K,V> withMeta(IPersistentMap meta){
+		return new PersistentAppendBTreeMap<K,V>(meta, comp, root, count, tailKeys, tailVals);
+	}
+
+	public IPersistentMap meta(){
+		return _meta;
+	}
+
+	public int count(){
+		return count;
+	}
+
+	public IPersistentCollection empty(){
+		return new PersistentAppendBTreeMap(_meta, comp, null, 0, RT.EMPTY_ARRAY, RT.EMPTY_ARRAY);
+	}
+
+	public boolean containsKey(Object key){
+		return valAt((K) key, (V) NOT_FOUND) != NOT_FOUND;
+	}
+
+	public IMapEntry<K,V> entryAt(K key){
+		if(inTail(key, false))
+			{
+			int i = tailIndex(key);
+			return i >= 0 ? new MapEntry<K,V>((K) tailKeys[i], (V) tailVals[i]) : null;
+			}
+		if(root == null)
+			return null;
+		Leaf leaf = PersistentBTreeMap.leafFor(root, key, comp);
+		int i = leaf.indexOf(key, comp);
+		return i >= 0 ? new MapEntry<K,V>((K) leaf.keys[i], (V) leaf.vals[i]) : null;
+	}
+
+	public V valAt(K key, V notFound){
+		if(inTail(key, false))
+			{
+			int i = tailIndex(key);
+			return i >= 0 ? (V) tailVals[i] : notFound;
+			}
+		if(root == null)
+			return notFound;
+		Leaf leaf = PersistentBTreeMap.leafFor(root, key, comp);
+		int i = leaf.indexOf(key, comp);
+		return i >= 0 ? (V) leaf.vals[i] : notFound;
+	}
+
+	public V valAt(K key){
+		return valAt(key, null);
+	}
+
+	public PersistentAppendBTreeMap<K,V> assoc(K key, V val){
+		if(inTail(key, true))
+			{
+			int i = tailIndex(key);
+			if(i < 0)
+				return withTail(insert(tailKeys, -i - 1, key), insert(tailVals, -i - 1, val), count + 1);
+			if(tailVals[i] == val)
+				return this;
+			Object[] vals = tailVals.clone();
+			vals[i] = val;
+			return new PersistentAppendBTreeMap<K,V>(_meta, comp, root, count, tailKeys, vals);
+			}
+		Box found = new Box(null);
+		Node n = PersistentBTreeMap.assoc(null, root == null ? PersistentBTreeMap.EMPTY_LEAF : root, key, val, comp, found);
+		if(n == root)
+			return this;
+		return withRoot(PersistentBTreeMap.fixRoot(null, n), found.val == null ? count + 1 : count);
+	}
+
+	public PersistentAppendBTreeMap<K,V> assocEx(K key, V val){
+		if(containsKey(key))
+			throw Util.runtimeException("Key already present");
+		return assoc(key, val);
+	}
+
+	public PersistentAppendBTreeMap<K,V> without(K key){
+		if(inTail(key, false))
+			{
+			int i = tailIndex(key);
+			if(i < 0)
+				return this;
+			return new PersistentAppendBTreeMap<K,V>(_meta, comp, root, count - 1, remove(tailKeys, i), remove(tailVals, i));
+			}
+		if(root == null)
+			return this;
+		Box removed = new Box(null);
+		Node n = PersistentBTreeMap.without(null, root, key, comp, removed);
+		if(removed.val == null)
+			return this;
+		return withRoot(PersistentBTreeMap.fixRoot(null, n), count - 1);
+	}
+
+	PersistentAppendBTreeMap<K,V> doUpdate(K key, IFn f){
+		if(inTail(key, true))
+			{
+			int i = tailIndex(key);
+			if(i < 0)
+				{
+				Object val = f.invoke(ABSENT);
+				if(val == ABSENT)
+					return this;
+				return withTail(insert(tailKeys, -i - 1, key), insert(tailVals, -i - 1, val), count + 1);
+				}
+			Object old = tailVals[i];
+			Object val = f.invoke(old);
+			if(val == old)
+				return this;
+			if(val == ABSENT)
+				return new PersistentAppendBTreeMap<K,V>(_meta, comp, root, count - 1, remove(tailKeys, i), remove(tailVals, i));
+			Object[] vals = tailVals.clone();
+			vals[i] = val;
+			return new PersistentAppendBTreeMap<K,V>(_meta, comp, root, count, tailKeys, vals);
+			}
+		Box added = new Box(null);
+		Box removed = new Box(null);
+		Node n = PersistentBTreeMap.update(null, root == null ? PersistentBTreeMap.EMPTY_LEAF : root, key, f, comp, added, removed);
+		if(n == root || (root == null && n == PersistentBTreeMap.EMPTY_LEAF))
+			return this;
+		int newcount = added.val != null ? count + 1 : removed.val != null ? count - 1 : count;
+		return withRoot(PersistentBTreeMap.fixRoot(null, n), newcount);
+	}
+
+	private PersistentAppendBTreeMap<K,V> withRoot(Node root, int count){
+		return new PersistentAppendBTreeMap<K,V>(_meta, comp, root, count, tailKeys, tailVals);
+	}
+
+	/* folds the first TAIL entries into the tree once the tail overflows */
+	private PersistentAppendBTreeMap<K,V> withTail(Object[] keys, Object[] vals, int count){
+		if(keys.length <= TAIL)
+			return new PersistentAppendBTreeMap<K,V>(_meta, comp, root, count, keys, vals);
+		Object[] leafKeys = new Object[TAIL];
+		Object[] leafVals = new Object[TAIL];
+		System.arraycopy(keys, 0, leafKeys, 0, TAIL);
+		System.arraycopy(vals, 0, leafVals, 0, TAIL);
+		Node n = PersistentBTreeMap.appendLeaf(null, root, new Leaf(null, TAIL, leafKeys, leafVals));
+		Object[] restKeys = new Object[keys.length - TAIL];
+		Object[] restVals = new Object[restKeys.length];
+		System.arraycopy(keys, TAIL, restKeys, 0, restKeys.length);
+		System.arraycopy(vals, TAIL, restVals, 0, restVals.length);
+		return new PersistentAppendBTreeMap<K,V>(_meta, comp, PersistentBTreeMap.fixRoot(null, n), count, restKeys, restVals);
+	}
+
+	/*
+	 * Whether key belongs in the tail: at or after its first key, or, when
+	 * adding to an empty tail, after every key of the tree.
+	 */
+	private boolean inTail(Object key, boolean adding){
+		if(tailKeys.length > 0)
+			return comp.compare((K) key, (K) tailKeys[0]) >= 0;
+		return adding && (root == null || comp.compare((K) key, (K) lastKey(root)) > 0);
+	}
+
+	/* binary search of the tail, trying its end first */
+	private int tailIndex(Object key){
+		int hi = tailKeys.length - 1;
+		if(hi < 0)
+			return -1;
+		int c = comp.compare((K) key, (K) tailKeys[hi]);
+		if(c > 0)
+			return -(hi + 2);
+		if(c == 0)
+			return hi;
+		int lo = 0;
+		hi--;
+		while(lo <= hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			c = comp.compare((K) key, (K) tailKeys[mid]);
+			if(c == 0)
+				return mid;
+			if(c < 0)
+				hi = mid - 1;
+			else
+				lo = mid + 1;
+			}
+		return -(lo + 1);
+	}
+
+	static Object lastKey(Node node){
+		while(node instanceof PersistentBTreeMap.Branch)
+			{
+			PersistentBTreeMap.Branch b = (PersistentBTreeMap.Branch) node;
+			node = b.children[b.len - 1];
+			}
+		return node.keys[node.len - 1];
+	}
+
+	static Object[] insert(Object[] array, int i, Object x){
+		Object[] ret = new Object[array.length + 1];
+		System.arraycopy(array, 0, ret, 0, i);
+		ret[i] = x;
+		System.arraycopy(array, i, ret, i + 1, array.length - i);
+		return ret;
+	}
+
+	static Object[] remove(Object[] array, int i){
+		Object[] ret = new Object[array.length - 1];
+		System.arraycopy(array, 0, ret, 0, i);
+		System.arraycopy(array, i + 1, ret, i, ret.length - i);
+		return ret;
+	}
+
+	public ISeq seq(){
+		return seq(true);
+	}
+
+	public ISeq rseq(){
+		return seq(false);
+	}
+
+	public Comparator<K> comparator(){
+		return comp;
+	}
+
+	public Object entryKey(Object entry){
+		return ((IMapEntry) entry).key();
+	}
+
+	public ISeq seq(boolean ascending){
+		return IteratorSeq.create(ascending ? iterator() : reverseIterator());
+	}
+
+	public ISeq seqFrom(K key, boolean ascending){
+		return IteratorSeq.create(iteratorFrom(key, ascending));
+	}
+
+	public Iterator<Map.Entry<K, V>> iterator(){
+		return new ChainIterator(new NodeIterator(root, true), new TailIterator(tailKeys, tailVals, 0, 1));
+	}
+
+	public Iterator<Map.Entry<K, V>> reverseIterator(){
+		return new ChainIterator(new TailIterator(tailKeys, tailVals, tailKeys.length - 1, -1), new NodeIterator(root, false));
+	}
+
+	public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+		return iteratorFrom(key, true);
+	}
+
+	Iterator<Map.Entry<K, V>> iteratorFrom(K key, boolean ascending){
+		if(!inTail(key, false))
+			{
+			Iterator tree = new NodeIterator(root, key, ascending, comp);
+			if(!ascending)
+				return tree;
+			return new ChainIterator(tree, new TailIterator(tailKeys, tailVals, 0, 1));
+			}
+		int i = tailIndex(key);
+		if(i < 0)
+			i = ascending ? -i - 1 : -i - 2;
+		if(ascending)
+			return new TailIterator(tailKeys, tailVals, i, 1);
+		return new ChainIterator(new TailIterator(tailKeys, tailVals, i, -1), new NodeIterator(root, false));
+	}
+
+	public int depth(){
+		int d = 0;
+		for(Node n = root; n != null; n = n instanceof PersistentBTreeMap.Branch ? ((PersistentBTreeMap.Branch) n).children[0] : null)
+			d++;
+		return d;
+	}
+
+	static final class TailIterator implements Iterator {
+		final Object[] keys;
+		final Object[] vals;
+		final int step;
+		int i;
+
+		TailIterator(Object[] keys, Object[] vals, int i, int step){
+			this.keys = keys;
+			this.vals = vals;
+			this.i = i;
+			this.step = step;
+		}
+
+		public boolean hasNext(){
+			return i >= 0 && i < keys.length;
+		}
+
+		public Object next(){
+			if(!hasNext())
+				throw new NoSuchElementException();
+			MapEntry e = new MapEntry(keys[i], vals[i]);
+			i += step;
+			return e;
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static final class ChainIterator implements Iterator {
+		final Iterator first;
+		final Iterator second;
+
+		ChainIterator(Iterator first, Iterator second){
+			this.first = first;
+			this.second = second;
+		}
+
+		public boolean hasNext(){
+			return first.hasNext() || second.hasNext();
+		}
+
+		public Object next(){
+			return first.hasNext() ? first.next() : second.next();
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public PersistentSortedMap<K, V> zero(){
+		return (PersistentSortedMap<K, V>) empty();
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> plus(K key, V val){
+		return assoc(key, val);
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> plusEx(K key, V val){
+		return assocEx(key, val);
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> minus(K key){
+		return without(key);
+	}
+
+	/*
+	 * The batch is sorted first. Its keys before the tail go into the tree
+	 * through nodes owned by an edit, as in TransientBTreeMap; the rest are
+	 * merged with the tail in one pass and the full leaves of the result
+	 * folded in with appendLeaf, so an ascending batch past the last key
+	 * only walks the right spine, once per TAIL entries.
+	 */
+	@Override
+	public PersistentAppendBTreeMap<K, V> plusAll(Map<? extends K, ? extends V> entries){
+		int n = entries.size();
+		if(n == 0)
+			return this;
+		Object[] keys = new Object[n];
+		Object[] vals = new Object[n];
+		int i = 0;
+		for(Map.Entry<? extends K, ? extends V> e : entries.entrySet())
+			{
+			keys[i] = e.getKey();
+			vals[i++] = e.getValue();
+			}
+		int m = PersistentTreeMap.sortDistinct(comp, keys, vals, n);
+		int s = tailStart(keys, m);
+		AtomicReference<Thread> edit = new AtomicReference<Thread>(Thread.currentThread());
+		Box found = new Box(null);
+		Node r = root;
+		int c = count;
+		for(i = 0; i < s; i++)
+			{
+			found.val = null;
+			Node t = PersistentBTreeMap.assoc(edit, r == null ? PersistentBTreeMap.EMPTY_LEAF : r, keys[i], vals[i], comp, found);
+			r = PersistentBTreeMap.fixRoot(edit, t);
+			if(found.val == null)
+				c++;
+			}
+		int tn = tailKeys.length;
+		Object[] mk = new Object[tn + m - s];
+		Object[] mv = new Object[mk.length];
+		boolean changed = false;
+		int k = 0;
+		for(int a = 0, b = s; a < tn || b < m;)
+			{
+			int cmp = a == tn ? 1 : b == m ? -1 : comp.compare((K) tailKeys[a], (K) keys[b]);
+			if(cmp < 0)
+				{
+				mk[k] = tailKeys[a];
+				mv[k++] = tailVals[a++];
+				continue;
+				}
+			if(cmp == 0)
+				{
+				changed |= tailVals[a] != vals[b];
+				mk[k] = tailKeys[a++];
+				}
+			else
+				{
+				changed = true;
+				mk[k] = keys[b];
+				c++;
+				}
+			mv[k++] = vals[b++];
+			}
+		if(!changed)
+			{
+			edit.set(null);
+			return r == root ? this : withRoot(r, c);
+			}
+		int from = 0;
+		for(; k - from > TAIL; from += TAIL)
+			{
+			Leaf leaf = new Leaf(null, TAIL, Arrays.copyOfRange(mk, from, from + TAIL), Arrays.copyOfRange(mv, from, from + TAIL));
+			r = PersistentBTreeMap.fixRoot(edit, PersistentBTreeMap.appendLeaf(edit, r, leaf));
+			}
+		edit.set(null);
+		return new PersistentAppendBTreeMap<K,V>(_meta, comp, r, c, Arrays.copyOfRange(mk, from, k), Arrays.copyOfRange(mv, from, k));
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> minusAll(Collection<? extends K> keys){
+		if(keys.isEmpty() || count == 0)
+			return this;
+		Object[] ks = keys.toArray();
+		int m = PersistentTreeMap.sortDistinct(comp, ks, null, ks.length);
+		int s = tailKeys.length == 0 ? m : tailStart(ks, m);
+		AtomicReference<Thread> edit = new AtomicReference<Thread>(Thread.currentThread());
+		Box removed = new Box(null);
+		Node r = root;
+		int c = count;
+		for(int i = 0; i < s && r != null; i++)
+			{
+			removed.val = null;
+			Node t = PersistentBTreeMap.without(edit, r, ks[i], comp, removed);
+			if(removed.val != null)
+				{
+				r = PersistentBTreeMap.fixRoot(edit, t);
+				c--;
+				}
+			}
+		edit.set(null);
+		int tn = tailKeys.length;
+		Object[] rk = new Object[tn];
+		Object[] rv = new Object[tn];
+		int k = 0;
+		for(int a = 0, b = s; a < tn; a++)
+			{
+			while(b < m && comp.compare((K) ks[b], (K) tailKeys[a]) < 0)
+				b++;
+			if(b < m && comp.compare((K) ks[b], (K) tailKeys[a]) == 0)
+				continue;
+			rk[k] = tailKeys[a];
+			rv[k++] = tailVals[a];
+			}
+		if(k == tn)
+			return r == root ? this : withRoot(r, c);
+		return new PersistentAppendBTreeMap<K,V>(_meta, comp, r, c - (tn - k), Arrays.copyOf(rk, k), Arrays.copyOf(rv, k));
+	}
+
+	/* index of the first of the sorted keys[0..m) that belongs in the tail */
+	private int tailStart(Object[] keys, int m){
+		int lo = 0;
+		int hi = m;
+		while(lo < hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			if(inTail(keys[mid], true))
+				hi = mid;
+			else
+				lo = mid + 1;
+			}
+		return lo;
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> update(K key, IFn f){
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> compute(K key, IFn f){
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> computeIfAbsent(K key, IFn f){
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentAppendBTreeMap<K, V> merge(K key, V val, IFn f){
+		return doUpdate(key, mergeFn(val, f));
+	}
+}
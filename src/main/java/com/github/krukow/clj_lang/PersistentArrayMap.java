@@ -10,6 +10,7 @@
 
 package com.github.krukow.clj_lang;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -401,6 +402,45 @@ static class RevIter implements Iterator{
 }
 
 
+PersistentMap<K,V> doUpdate(K key, IFn f){
+	int i = indexOf(key);
+	Object[] newArray;
+	if(i >= 0) //have key, replace or remove in place
+		{
+		Object val = f.invoke(array[i + 1]);
+		if(val == array[i + 1]) //no change, no op
+			return this;
+		if(val == ABSENT)
+			{
+			int newlen = array.length - 2;
+			if(newlen == 0)
+				return empty();
+			newArray = new Object[newlen];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, newlen - i);
+			}
+		else
+			{
+			newArray = array.clone();
+			newArray[i + 1] = val;
+			}
+		}
+	else //didn't have key, grow
+		{
+		Object val = f.invoke(ABSENT);
+		if(val == ABSENT)
+			return this;
+		if(array.length > HASHTABLE_THRESHOLD)
+			return (PersistentMap<K,V>) createHT(array).assoc(key, (V) val);
+		newArray = new Object[array.length + 2];
+		if(array.length > 0)
+			System.arraycopy(array, 0, newArray, 2, array.length);
+		newArray[0] = key;
+		newArray[1] = val;
+		}
+	return create(newArray);
+}
+
 public TransientArrayMap asTransient(){
 	return new TransientArrayMap(array);
 }
@@ -457,6 +497,31 @@ static final class TransientArrayMap<K,V> extends ATransientMap<K,V> implements
 		return this;
 	}
 
+	ITransientMap<K,V> doUpdate(K key, IFn f){
+		int i = indexOf(key);
+		if(i >= 0) //have key, replace or remove
+			{
+			Object val = f.invoke(array[i + 1]);
+			if(val != ABSENT)
+				array[i + 1] = val;
+			else
+				{
+				array[i] = array[len - 2];
+				array[i + 1] = array[len - 1];
+				len -= 2;
+				}
+			return this;
+			}
+		Object val = f.invoke(ABSENT);
+		if(val == ABSENT)
+			return this;
+		if(len >= array.length)
+			return PersistentHashMap.create(array).asTransient().assoc(key, (V) val);
+		array[len++] = key;
+		array[len++] = val;
+		return this;
+	}
+
 	V doValAt(K key, V notFound) {
 		int i = indexOf(key);
 		if (i >= 0)
@@ -524,4 +589,44 @@ static final class TransientArrayMap<K,V> extends ATransientMap<K,V> implements
 	public PersistentMap<K, V> minus(K key) {
 		return without(key);
 	}
+
+	@Override
+	public PersistentMap<K, V> update(K key, IFn f) {
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentMap<K, V> compute(K key, IFn f) {
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentMap<K, V> computeIfAbsent(K key, IFn f) {
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentMap<K, V> merge(K key, V val, IFn f) {
+		return doUpdate(key, mergeFn(val, f));
+	}
+
+	@Override
+	public PersistentMap<K, V> plusAll(Map<? extends K, ? extends V> entries) {
+		if (entries.isEmpty())
+			return this;
+		ITransientMap<K, V> ret = asTransient();
+		for (Map.Entry<? extends K, ? extends V> e : entries.entrySet())
+			ret = ret.assoc(e.getKey(), e.getValue());
+		return (PersistentMap<K, V>) ret.persistentMap();
+	}
+	
+	@Override
+	public PersistentMap<K, V> minusAll(Collection<? extends K> keys) {
+		if (keys.isEmpty())
+			return this;
+		ITransientMap<K, V> ret = asTransient();
+		for (K key : keys)
+			ret = ret.without(key);
+		return (PersistentMap<K, V>) ret.persistentMap();
+	}
 }
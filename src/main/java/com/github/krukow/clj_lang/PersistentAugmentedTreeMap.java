@@ -0,0 +1,582 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.github.krukow.clj_ds.PersistentSortedMap;
+
+/*
+ A persistent AVL tree whose nodes cache the Monoid summary of their
+ subtree, combined in key order. Every node built on the way back from an
+ assoc or without recomputes its summary from its children's, so an update
+ costs O(log n) combines and versions share the summaries of the subtrees
+ they share. aggregate answers a key range by combining O(log n) cached
+ summaries along the two edges of the range.
+*/
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PersistentAugmentedTreeMap<K,V,S> extends APersistentMap<K,V> implements IObj, Reversible<Map.Entry<K, V>>, Sorted<K>, PersistentSortedMap<K, V> {
+	private static final long serialVersionUID = -5113532624089226614L;
+
+	final Comparator<K> comp;
+	final Monoid<? super K, ? super V, S> monoid;
+	final Node root;
+	final int count;
+	final IPersistentMap _meta;
+
+	final private static Object NOT_FOUND = new Object();
+
+	static public <K,V,S> PersistentAugmentedTreeMap<K,V,S> create(Monoid<? super K, ? super V, S> monoid){
+		return new PersistentAugmentedTreeMap<K,V,S>(RT.DEFAULT_COMPARATOR, monoid);
+	}
+
+	static public <K,V,S> PersistentAugmentedTreeMap<K,V,S> create(Monoid<? super K, ? super V, S> monoid, Map<? extends K,? extends V> other){
+		PersistentAugmentedTreeMap<K,V,S> ret = create(monoid);
+		return ret.plusAll(other);
+	}
+
+	public PersistentAugmentedTreeMap(Comparator<K> comp, Monoid<? super K, ? super V, S> monoid){
+		this(null, comp, monoid, null, 0);
+	}
+
+	PersistentAugmentedTreeMap(IPersistentMap meta, Comparator<K> comp, Monoid<? super K, ? super V, S> monoid, Node root, int count){
+		this._meta = meta;
+		this.comp = comp;
+		this.monoid = monoid;
+		this.root = root;
+		this.count = count;
+	}
+
+	public PersistentAugmentedTreeMap<K,V,S> withMeta(IPersistentMap meta){
+		return new PersistentAugmentedTreeMap<K,V,S>(meta, comp, monoid, root, count);
+	}
+
+	public IPersistentMap meta(){
+		return _meta;
+	}
+
+	public Monoid<? super K, ? super V, S> monoid(){
+		return monoid;
+	}
+
+	public int count(){
+		return count;
+	}
+
+	public IPersistentCollection empty(){
+		return new PersistentAugmentedTreeMap(_meta, comp, monoid, null, 0);
+	}
+
+	/**
+	 * @return The summary of all entries, in O(1).
+	 */
+	public S summary(){
+		return root == null ? monoid.zero() : (S) root.summary;
+	}
+
+	/**
+	 * @return The summary of the entries with from <= key < to.
+	 */
+	public S aggregate(K from, K to){
+		return aggregate(from, true, to, false);
+	}
+
+	/**
+	 * @return The summary of the entries between from and to, in O(log n)
+	 *         combines.
+	 */
+	public S aggregate(K from, boolean fromInclusive, K to, boolean toInclusive){
+		Monoid m = monoid;
+		Node t = root;
+		// the top-most node within the range splits it into two edges
+		while(t != null)
+			{
+			if(!above(t.key, from, fromInclusive))
+				t = t.right;
+			else if(!below(t.key, to, toInclusive))
+				t = t.left;
+			else
+				break;
+			}
+		if(t == null)
+			return (S) m.zero();
+		Object left = m.zero();
+		for(Node n = t.left; n != null;)
+			{
+			if(above(n.key, from, fromInclusive))
+				{
+				left = m.combine(with(m, m.measure(n.key, n.val), n.right, false), left);
+				n = n.left;
+				}
+			else
+				n = n.right;
+			}
+		Object right = m.zero();
+		for(Node n = t.right; n != null;)
+			{
+			if(below(n.key, to, toInclusive))
+				{
+				right = m.combine(right, with(m, m.measure(n.key, n.val), n.left, true));
+				n = n.right;
+				}
+			else
+				n = n.left;
+			}
+		return (S) m.combine(m.combine(left, m.measure(t.key, t.val)), right);
+	}
+
+	private boolean above(Object key, K from, boolean inclusive){
+		int c = comp.compare((K) key, from);
+		return c > 0 || (c == 0 && inclusive);
+	}
+
+	private boolean below(Object key, K to, boolean inclusive){
+		int c = comp.compare((K) key, to);
+		return c < 0 || (c == 0 && inclusive);
+	}
+
+	public boolean containsKey(Object key){
+		return valAt((K) key, (V) NOT_FOUND) != NOT_FOUND;
+	}
+
+	public IMapEntry<K,V> entryAt(K key){
+		Node t = find(key);
+		return t != null ? new MapEntry<K,V>((K) t.key, (V) t.val) : null;
+	}
+
+	public V valAt(K key, V notFound){
+		Node t = find(key);
+		return t != null ? (V) t.val : notFound;
+	}
+
+	public V valAt(K key){
+		return valAt(key, null);
+	}
+
+	Node find(K key){
+		Node t = root;
+		while(t != null)
+			{
+			int c = comp.compare(key, (K) t.key);
+			if(c == 0)
+				return t;
+			t = c < 0 ? t.left : t.right;
+			}
+		return null;
+	}
+
+	public PersistentAugmentedTreeMap<K,V,S> assoc(K key, V val){
+		Box found = new Box(null);
+		Node t = assoc(root, key, val, found);
+		if(t == root)
+			return this;
+		return new PersistentAugmentedTreeMap<K,V,S>(_meta, comp, monoid, t, found.val == null ? count + 1 : count);
+	}
+
+	public PersistentAugmentedTreeMap<K,V,S> assocEx(K key, V val){
+		if(containsKey(key))
+			throw Util.runtimeException("Key already present");
+		return assoc(key, val);
+	}
+
+	public PersistentAugmentedTreeMap<K,V,S> without(K key){
+		Node t = without(root, key);
+		if(t == root)
+			return this;
+		return new PersistentAugmentedTreeMap<K,V,S>(_meta, comp, monoid, t, count - 1);
+	}
+
+	PersistentAugmentedTreeMap<K,V,S> doUpdate(K key, IFn f){
+		Node t = find(key);
+		Object old = t != null ? t.val : ABSENT;
+		Object val = f.invoke(old);
+		if(val == old)
+			return this;
+		if(val == ABSENT)
+			return without(key);
+		return assoc(key, (V) val);
+	}
+
+	Node assoc(Node t, Object key, Object val, Box found){
+		if(t == null)
+			return node(key, val, null, null);
+		int c = comp.compare((K) key, (K) t.key);
+		if(c == 0)
+			{
+			found.val = found;
+			if(t.val == val)
+				return t;
+			return node(t.key, val, t.left, t.right);
+			}
+		if(c < 0)
+			{
+			Node l = assoc(t.left, key, val, found);
+			return l == t.left ? t : balance(t.key, t.val, l, t.right);
+			}
+		Node r = assoc(t.right, key, val, found);
+		return r == t.right ? t : balance(t.key, t.val, t.left, r);
+	}
+
+	Node without(Node t, Object key){
+		if(t == null)
+			return null;
+		int c = comp.compare((K) key, (K) t.key);
+		if(c == 0)
+			{
+			if(t.left == null)
+				return t.right;
+			if(t.right == null)
+				return t.left;
+			Node min = t.right;
+			while(min.left != null)
+				min = min.left;
+			return balance(min.key, min.val, t.left, withoutMin(t.right));
+			}
+		if(c < 0)
+			{
+			Node l = without(t.left, key);
+			return l == t.left ? t : balance(t.key, t.val, l, t.right);
+			}
+		Node r = without(t.right, key);
+		return r == t.right ? t : balance(t.key, t.val, t.left, r);
+	}
+
+	Node withoutMin(Node t){
+		if(t.left == null)
+			return t.right;
+		return balance(t.key, t.val, withoutMin(t.left), t.right);
+	}
+
+	/* a node over l and r, rotated if their heights differ by more than one */
+	Node balance(Object key, Object val, Node l, Node r){
+		int hl = height(l);
+		int hr = height(r);
+		if(hl > hr + 1)
+			{
+			if(height(l.left) >= height(l.right))
+				return node(l.key, l.val, l.left, node(key, val, l.right, r));
+			Node lr = l.right;
+			return node(lr.key, lr.val, node(l.key, l.val, l.left, lr.left), node(key, val, lr.right, r));
+			}
+		if(hr > hl + 1)
+			{
+			if(height(r.right) >= height(r.left))
+				return node(r.key, r.val, node(key, val, l, r.left), r.right);
+			Node rl = r.left;
+			return node(rl.key, rl.val, node(key, val, l, rl.left), node(r.key, r.val, rl.right, r.right));
+			}
+		return node(key, val, l, r);
+	}
+
+	/*
+	 * Inserts the sorted, duplicate-free batch keys[from..to) into t,
+	 * splitting the batch around each node key; untouched subtrees are
+	 * shared and every touched node is rebuilt, with its summary, once.
+	 */
+	Node insertAll(Node t, Object[] keys, Object[] vals, int from, int to, int[] added){
+		if(from == to)
+			return t;
+		if(t == null)
+			{
+			added[0] += to - from;
+			return build(keys, vals, from, to);
+			}
+		int lo = lowerBound(keys, from, to, t.key);
+		int hi = (lo < to && comp.compare((K) keys[lo], (K) t.key) == 0) ? lo + 1 : lo;
+		Node l = insertAll(t.left, keys, vals, from, lo, added);
+		Node r = insertAll(t.right, keys, vals, hi, to, added);
+		Object val = hi > lo ? vals[lo] : t.val;
+		if(l == t.left && r == t.right && val == t.val)
+			return t;
+		return join(t.key, val, l, r);
+	}
+
+	Node removeAll(Node t, Object[] keys, int from, int to, int[] removed){
+		if(from == to || t == null)
+			return t;
+		int lo = lowerBound(keys, from, to, t.key);
+		int hi = (lo < to && comp.compare((K) keys[lo], (K) t.key) == 0) ? lo + 1 : lo;
+		Node l = removeAll(t.left, keys, from, lo, removed);
+		Node r = removeAll(t.right, keys, hi, to, removed);
+		if(hi > lo)
+			{
+			removed[0]++;
+			return concat(l, r);
+			}
+		if(l == t.left && r == t.right)
+			return t;
+		return join(t.key, t.val, l, r);
+	}
+
+	/* index of the first of keys[from..to) (sorted) that is not less than key */
+	int lowerBound(Object[] keys, int from, int to, Object key){
+		while(from < to)
+			{
+			int mid = (from + to) >>> 1;
+			if(comp.compare((K) keys[mid], (K) key) < 0)
+				from = mid + 1;
+			else
+				to = mid;
+			}
+		return from;
+	}
+
+	/* a perfectly balanced tree of keys[from..to) and their vals */
+	Node build(Object[] keys, Object[] vals, int from, int to){
+		if(from == to)
+			return null;
+		int mid = (from + to) >>> 1;
+		return node(keys[mid], vals[mid], build(keys, vals, from, mid), build(keys, vals, mid + 1, to));
+	}
+
+	/*
+	 * l, the entry and r as one tree, the keys of l below key and those of
+	 * r above it. Descends the taller tree to a subtree as high as the
+	 * other, so it costs O(|height(l) - height(r)|).
+	 */
+	Node join(Object key, Object val, Node l, Node r){
+		int hl = height(l);
+		int hr = height(r);
+		if(hl > hr + 1)
+			return balance(l.key, l.val, l.left, join(key, val, l.right, r));
+		if(hr > hl + 1)
+			return balance(r.key, r.val, join(key, val, l, r.left), r.right);
+		return node(key, val, l, r);
+	}
+
+	/* l and r as one tree, the keys of l below those of r */
+	Node concat(Node l, Node r){
+		if(l == null)
+			return r;
+		if(r == null)
+			return l;
+		Node min = r;
+		while(min.left != null)
+			min = min.left;
+		return join(min.key, min.val, l, withoutMin(r));
+	}
+
+	Node node(Object key, Object val, Node l, Node r){
+		Monoid m = monoid;
+		Object s = m.measure(key, val);
+		if(l != null)
+			s = m.combine(l.summary, s);
+		if(r != null)
+			s = m.combine(s, r.summary);
+		return new Node(key, val, l, r, Math.max(height(l), height(r)) + 1, s);
+	}
+
+	/* s combined with the summary of t, t coming first if before */
+	static Object with(Monoid m, Object s, Node t, boolean before){
+		if(t == null)
+			return s;
+		return before ? m.combine(t.summary, s) : m.combine(s, t.summary);
+	}
+
+	static int height(Node t){
+		return t == null ? 0 : t.height;
+	}
+
+	static final class Node implements Serializable {
+		final Object key;
+		final Object val;
+		final Node left;
+		final Node right;
+		final int height;
+		final Object summary;
+
+		Node(Object key, Object val, Node left, Node right, int height, Object summary){
+			this.key = key;
+			this.val = val;
+			this.left = left;
+			this.right = right;
+			this.height = height;
+			this.summary = summary;
+		}
+	}
+
+	public ISeq seq(){
+		return seq(true);
+	}
+
+	public ISeq rseq(){
+		return seq(false);
+	}
+
+	public Comparator<K> comparator(){
+		return comp;
+	}
+
+	public Object entryKey(Object entry){
+		return ((IMapEntry) entry).key();
+	}
+
+	public ISeq seq(boolean ascending){
+		return IteratorSeq.create(new NodeIterator(root, ascending));
+	}
+
+	public ISeq seqFrom(K key, boolean ascending){
+		return IteratorSeq.create(new NodeIterator(root, key, ascending, comp));
+	}
+
+	public Iterator<Map.Entry<K, V>> iterator(){
+		return new NodeIterator(root, true);
+	}
+
+	public Iterator<Map.Entry<K, V>> reverseIterator(){
+		return new NodeIterator(root, false);
+	}
+
+	public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+		return new NodeIterator(root, key, true, comp);
+	}
+
+	public int depth(){
+		return height(root);
+	}
+
+	/* in-order walk keeping the pending ancestors in an array */
+	static final class NodeIterator implements Iterator {
+		final Node[] stack;
+		final boolean asc;
+		int top = -1;
+
+		NodeIterator(Node root, boolean asc){
+			this.stack = new Node[height(root)];
+			this.asc = asc;
+			push(root);
+		}
+
+		NodeIterator(Node root, Object key, boolean asc, Comparator comp){
+			this.stack = new Node[height(root)];
+			this.asc = asc;
+			for(Node t = root; t != null;)
+				{
+				int c = comp.compare(key, t.key);
+				if(c == 0)
+					{
+					stack[++top] = t;
+					break;
+					}
+				if(asc == c < 0)
+					{
+					stack[++top] = t;
+					t = asc ? t.left : t.right;
+					}
+				else
+					t = asc ? t.right : t.left;
+				}
+		}
+
+		void push(Node t){
+			while(t != null)
+				{
+				stack[++top] = t;
+				t = asc ? t.left : t.right;
+				}
+		}
+
+		public boolean hasNext(){
+			return top >= 0;
+		}
+
+		public Object next(){
+			if(top < 0)
+				throw new NoSuchElementException();
+			Node t = stack[top--];
+			push(asc ? t.right : t.left);
+			return new MapEntry(t.key, t.val);
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public PersistentSortedMap<K, V> zero(){
+		return (PersistentSortedMap<K, V>) empty();
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> plus(K key, V val){
+		return assoc(key, val);
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> plusEx(K key, V val){
+		return assocEx(key, val);
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> minus(K key){
+		return without(key);
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> plusAll(Map<? extends K, ? extends V> entries){
+		int n = entries.size();
+		if(n == 0)
+			return this;
+		Object[] keys = new Object[n];
+		Object[] vals = new Object[n];
+		int i = 0;
+		for(Map.Entry<? extends K, ? extends V> e : entries.entrySet())
+			{
+			keys[i] = e.getKey();
+			vals[i++] = e.getValue();
+			}
+		int m = PersistentTreeMap.sortDistinct(comp, keys, vals, n);
+		int[] added = new int[1];
+		Node t = insertAll(root, keys, vals, 0, m, added);
+		if(t == root)
+			return this;
+		return new PersistentAugmentedTreeMap<K,V,S>(_meta, comp, monoid, t, count + added[0]);
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> minusAll(Collection<? extends K> keys){
+		if(keys.isEmpty() || count == 0)
+			return this;
+		Object[] ks = keys.toArray();
+		int m = PersistentTreeMap.sortDistinct(comp, ks, null, ks.length);
+		int[] removed = new int[1];
+		Node t = removeAll(root, ks, 0, m, removed);
+		if(removed[0] == 0)
+			return this;
+		return new PersistentAugmentedTreeMap<K,V,S>(_meta, comp, monoid, t, count - removed[0]);
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> update(K key, IFn f){
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> compute(K key, IFn f){
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> computeIfAbsent(K key, IFn f){
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentAugmentedTreeMap<K, V, S> merge(K key, V val, IFn f){
+		return doUpdate(key, mergeFn(val, f));
+	}
+}
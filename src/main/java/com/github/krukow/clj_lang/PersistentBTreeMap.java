@@ -0,0 +1,935 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.krukow.clj_ds.PersistentSortedMap;
+import com.github.krukow.clj_ds.TransientMap;
+
+/*
+ A persistent B+-tree. Entries live in leaves of MIN..MAX keys, branches
+ hold MIN..MAX children (the root may hold fewer). A branch routes on
+ keys[1..len-1]: keys[i] is a lower bound of child i and greater than every
+ key of child i-1; keys[0] is not consulted.
+ Uses path copying for persistence; nodes owned by a transient's edit are
+ changed in place. Operations let a child overflow to MAX + 1 or underflow
+ to MIN - 1 entries and fix it up in the parent on the way back.
+*/
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PersistentBTreeMap<K,V> extends APersistentMap<K,V> implements IObj, IEditableCollection<MapEntry<K, V>>, Reversible<Map.Entry<K, V>>, Sorted<K>, PersistentSortedMap<K, V> {
+	private static final long serialVersionUID = 2785290536553049381L;
+
+	static final int MAX = 64;
+	static final int MIN = MAX / 2;
+
+	final Comparator<K> comp;
+	final Node root;
+	final int count;
+	final IPersistentMap _meta;
+
+	final private static Object NOT_FOUND = new Object();
+
+	final static public PersistentBTreeMap EMPTY = new PersistentBTreeMap(null, RT.DEFAULT_COMPARATOR, null, 0);
+
+	static final Leaf EMPTY_LEAF = new Leaf(null, 0, new Object[0], new Object[0]);
+
+	static public <K,V> PersistentBTreeMap<K,V> create(Map<? extends K,? extends V> other){
+		return create(RT.DEFAULT_COMPARATOR, other);
+	}
+
+	static public <K,V> PersistentBTreeMap<K,V> create(Comparator<? super K> comp, Map<? extends K,? extends V> other){
+		TransientBTreeMap<K,V> ret = new PersistentBTreeMap<K,V>((Comparator<K>) comp).asTransient();
+		for(Map.Entry<? extends K,? extends V> e : other.entrySet())
+			ret.assoc(e.getKey(), e.getValue());
+		return ret.doPersistent();
+	}
+
+	public PersistentBTreeMap(Comparator<K> comp){
+		this(null, comp, null, 0);
+	}
+
+	PersistentBTreeMap(IPersistentMap meta, Comparator<K> comp, Node root, int count){
+		this._meta = meta;
+		this.comp = comp;
+		this.root = root;
+		this.count = count;
+	}
+
+	public PersistentBTreeMap<K,V> withMeta(IPersistentMap meta){
+		return new PersistentBTreeMap<K,V>(meta, comp, root, count);
+	}
+
+	public IPersistentMap meta(){
+		return _meta;
+	}
+
+	public int count(){
+		return count;
+	}
+
+	public IPersistentCollection empty(){
+		return new PersistentBTreeMap(_meta, comp, null, 0);
+	}
+
+	public boolean containsKey(Object key){
+		return valAt((K) key, (V) NOT_FOUND) != NOT_FOUND;
+	}
+
+	public IMapEntry<K,V> entryAt(K key){
+		if(root == null)
+			return null;
+		Leaf leaf = leafFor(root, key, comp);
+		int i = leaf.indexOf(key, comp);
+		return i >= 0 ? new MapEntry<K,V>((K) leaf.keys[i], (V) leaf.vals[i]) : null;
+	}
+
+	public V valAt(K key, V notFound){
+		if(root == null)
+			return notFound;
+		Leaf leaf = leafFor(root, key, comp);
+		int i = leaf.indexOf(key, comp);
+		return i >= 0 ? (V) leaf.vals[i] : notFound;
+	}
+
+	public V valAt(K key){
+		return valAt(key, null);
+	}
+
+	public PersistentBTreeMap<K,V> assoc(K key, V val){
+		Box found = new Box(null);
+		Node n = assoc(null, root == null ? EMPTY_LEAF : root, key, val, comp, found);
+		if(n == root)
+			return this;
+		return new PersistentBTreeMap<K,V>(_meta, comp, fixRoot(null, n), found.val == null ? count + 1 : count);
+	}
+
+	public PersistentBTreeMap<K,V> assocEx(K key, V val){
+		if(containsKey(key))
+			throw Util.runtimeException("Key already present");
+		return assoc(key, val);
+	}
+
+	public PersistentBTreeMap<K,V> without(K key){
+		if(root == null)
+			return this;
+		Box removed = new Box(null);
+		Node n = without(null, root, key, comp, removed);
+		if(removed.val == null)
+			return this;
+		return new PersistentBTreeMap<K,V>(_meta, comp, fixRoot(null, n), count - 1);
+	}
+
+	PersistentBTreeMap<K,V> doUpdate(K key, IFn f){
+		Box added = new Box(null);
+		Box removed = new Box(null);
+		Node n = update(null, root == null ? EMPTY_LEAF : root, key, f, comp, added, removed);
+		if(n == root || (root == null && n == EMPTY_LEAF))
+			return this;
+		int newcount = added.val != null ? count + 1 : removed.val != null ? count - 1 : count;
+		return new PersistentBTreeMap<K,V>(_meta, comp, fixRoot(null, n), newcount);
+	}
+
+	public TransientBTreeMap asTransient(){
+		return new TransientBTreeMap<K,V>(this);
+	}
+
+	public ISeq seq(){
+		return seq(true);
+	}
+
+	public ISeq rseq(){
+		return seq(false);
+	}
+
+	public Comparator<K> comparator(){
+		return comp;
+	}
+
+	public Object entryKey(Object entry){
+		return ((IMapEntry) entry).key();
+	}
+
+	public ISeq seq(boolean ascending){
+		return IteratorSeq.create(new NodeIterator(root, ascending));
+	}
+
+	public ISeq seqFrom(K key, boolean ascending){
+		return IteratorSeq.create(new NodeIterator(root, key, ascending, comp));
+	}
+
+	public Iterator<Map.Entry<K, V>> iterator(){
+		return new NodeIterator(root, true);
+	}
+
+	public Iterator<Map.Entry<K, V>> reverseIterator(){
+		return new NodeIterator(root, false);
+	}
+
+	public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+		return new NodeIterator(root, key, true, comp);
+	}
+
+	/**
+	 * @return A cursor on the first entry, see {@link Cursor}.
+	 */
+	public Cursor<K,V> cursor(){
+		return new BTreeCursor<K,V>(root, comp);
+	}
+
+	public int depth(){
+		int d = 0;
+		for(Node n = root; n != null; n = n instanceof Branch ? ((Branch) n).children[0] : null)
+			d++;
+		return d;
+	}
+
+	static Leaf leafFor(Node node, Object key, Comparator comp){
+		while(node instanceof Branch)
+			{
+			Branch b = (Branch) node;
+			node = b.children[b.childIndex(key, comp)];
+			}
+		return (Leaf) node;
+	}
+
+	static Node assoc(AtomicReference<Thread> edit, Node node, Object key, Object val, Comparator comp, Box found){
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			int i = leaf.indexOf(key, comp);
+			if(i >= 0)
+				{
+				found.val = found;
+				if(leaf.vals[i] == val)
+					return leaf;
+				return leaf.set(edit, i, val);
+				}
+			return leaf.insert(edit, -i - 1, key, val);
+			}
+		Branch b = (Branch) node;
+		int i = b.childIndex(key, comp);
+		Node child = b.children[i];
+		return b.fixChild(edit, i, child, assoc(edit, child, key, val, comp, found));
+	}
+
+	static Node without(AtomicReference<Thread> edit, Node node, Object key, Comparator comp, Box removed){
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			int i = leaf.indexOf(key, comp);
+			if(i < 0)
+				return leaf;
+			removed.val = removed;
+			return leaf.remove(edit, i);
+			}
+		Branch b = (Branch) node;
+		int i = b.childIndex(key, comp);
+		Node child = b.children[i];
+		Node n = without(edit, child, key, comp, removed);
+		if(removed.val == null)
+			return b;
+		return b.fixChild(edit, i, child, n);
+	}
+
+	/*
+	 * Single-pass read-modify-write, f maps the current value (ABSENT if
+	 * missing) to the new one, see APersistentMap.
+	 */
+	static Node update(AtomicReference<Thread> edit, Node node, Object key, IFn f, Comparator comp, Box added, Box removed){
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			int i = leaf.indexOf(key, comp);
+			if(i >= 0)
+				{
+				Object old = leaf.vals[i];
+				Object val = f.invoke(old);
+				if(val == old)
+					return leaf;
+				if(val != ABSENT)
+					return leaf.set(edit, i, val);
+				removed.val = removed;
+				return leaf.remove(edit, i);
+				}
+			Object val = f.invoke(ABSENT);
+			if(val == ABSENT)
+				return leaf;
+			added.val = added;
+			return leaf.insert(edit, -i - 1, key, val);
+			}
+		Branch b = (Branch) node;
+		int i = b.childIndex(key, comp);
+		Node child = b.children[i];
+		return b.fixChild(edit, i, child, update(edit, child, key, f, comp, added, removed));
+	}
+
+	/*
+	 * The root is exempt from the MIN bound: an overflowing root is split
+	 * under a new branch, an emptied leaf becomes null and a branch left
+	 * with a single child is replaced by it.
+	 */
+	static Node fixRoot(AtomicReference<Thread> edit, Node root){
+		if(root.len > MAX)
+			{
+			int mid = root.len / 2;
+			Node left = root.slice(edit, 0, mid);
+			Node right = root.slice(edit, mid, root.len);
+			Object[] keys = new Object[capacity(edit, 2)];
+			Node[] children = new Node[keys.length];
+			keys[0] = left.keys[0];
+			keys[1] = root.keys[mid];
+			children[0] = left;
+			children[1] = right;
+			return new Branch(edit, 2, keys, children);
+			}
+		if(root.len == 0)
+			return null;
+		if(root instanceof Branch && root.len == 1)
+			return ((Branch) root).children[0];
+		return root;
+	}
+
+	/*
+	 * Adds leaf as the new rightmost leaf of the tree under node, walking
+	 * only the right spine. All of leaf's keys must follow the tree's and it
+	 * must hold MIN..MAX entries. The result may overflow, see fixRoot.
+	 */
+	static Node appendLeaf(AtomicReference<Thread> edit, Node node, Leaf leaf){
+		if(node == null)
+			return leaf;
+		if(node instanceof Leaf)
+			{
+			// a root leaf may be short of MIN, merge instead of splitting
+			if(node.len < MIN)
+				return node.concat(edit, leaf, null);
+			Object[] keys = new Object[capacity(edit, 2)];
+			Node[] children = new Node[keys.length];
+			keys[0] = node.keys[0];
+			keys[1] = leaf.keys[0];
+			children[0] = node;
+			children[1] = leaf;
+			return new Branch(edit, 2, keys, children);
+			}
+		Branch b = (Branch) node;
+		int i = b.len - 1;
+		Node last = b.children[i];
+		if(last instanceof Branch)
+			return b.fixChild(edit, i, last, appendLeaf(edit, last, leaf));
+		Branch nb = b.editable(edit, b.len + 1);
+		nb.keys[b.len] = leaf.keys[0];
+		nb.children[b.len] = leaf;
+		nb.len = b.len + 1;
+		return nb;
+	}
+
+	static int capacity(AtomicReference<Thread> edit, int len){
+		// nodes owned by a transient get room to overflow in place
+		return edit == null ? len : Math.max(len, MAX + 1);
+	}
+
+	static abstract class Node implements Serializable {
+		final AtomicReference<Thread> edit;
+		int len;
+		Object[] keys;
+
+		Node(AtomicReference<Thread> edit, int len, Object[] keys){
+			this.edit = edit;
+			this.len = len;
+			this.keys = keys;
+		}
+
+		boolean owned(AtomicReference<Thread> edit){
+			return edit != null && this.edit == edit;
+		}
+
+		/* a new node holding the entries from..to */
+		abstract Node slice(AtomicReference<Thread> edit, int from, int to);
+
+		/* a new node holding the entries of this node followed by right's */
+		abstract Node concat(AtomicReference<Thread> edit, Node right, Object separator);
+	}
+
+	final static class Leaf extends Node {
+		Object[] vals;
+
+		Leaf(AtomicReference<Thread> edit, int len, Object[] keys, Object[] vals){
+			super(edit, len, keys);
+			this.vals = vals;
+		}
+
+		int indexOf(Object key, Comparator comp){
+			int lo = 0;
+			int hi = len - 1;
+			while(lo <= hi)
+				{
+				int mid = (lo + hi) >>> 1;
+				int c = comp.compare(key, keys[mid]);
+				if(c == 0)
+					return mid;
+				if(c < 0)
+					hi = mid - 1;
+				else
+					lo = mid + 1;
+				}
+			return -(lo + 1);
+		}
+
+		Leaf set(AtomicReference<Thread> edit, int i, Object val){
+			if(owned(edit))
+				{
+				vals[i] = val;
+				return this;
+				}
+			int cap = capacity(edit, len);
+			Object[] newKeys = new Object[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(vals, 0, newVals, 0, len);
+			newVals[i] = val;
+			return new Leaf(edit, len, newKeys, newVals);
+		}
+
+		Leaf insert(AtomicReference<Thread> edit, int i, Object key, Object val){
+			if(owned(edit) && len < keys.length)
+				{
+				System.arraycopy(keys, i, keys, i + 1, len - i);
+				System.arraycopy(vals, i, vals, i + 1, len - i);
+				keys[i] = key;
+				vals[i] = val;
+				len++;
+				return this;
+				}
+			int cap = capacity(edit, len + 1);
+			Object[] newKeys = new Object[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(vals, 0, newVals, 0, i);
+			newKeys[i] = key;
+			newVals[i] = val;
+			System.arraycopy(keys, i, newKeys, i + 1, len - i);
+			System.arraycopy(vals, i, newVals, i + 1, len - i);
+			return new Leaf(edit, len + 1, newKeys, newVals);
+		}
+
+		Leaf remove(AtomicReference<Thread> edit, int i){
+			if(owned(edit))
+				{
+				System.arraycopy(keys, i + 1, keys, i, len - i - 1);
+				System.arraycopy(vals, i + 1, vals, i, len - i - 1);
+				len--;
+				keys[len] = null;
+				vals[len] = null;
+				return this;
+				}
+			int cap = capacity(edit, len - 1);
+			Object[] newKeys = new Object[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(vals, 0, newVals, 0, i);
+			System.arraycopy(keys, i + 1, newKeys, i, len - i - 1);
+			System.arraycopy(vals, i + 1, newVals, i, len - i - 1);
+			return new Leaf(edit, len - 1, newKeys, newVals);
+		}
+
+		Node slice(AtomicReference<Thread> edit, int from, int to){
+			int cap = capacity(edit, to - from);
+			Object[] newKeys = new Object[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, from, newKeys, 0, to - from);
+			System.arraycopy(vals, from, newVals, 0, to - from);
+			return new Leaf(edit, to - from, newKeys, newVals);
+		}
+
+		Node concat(AtomicReference<Thread> edit, Node right, Object separator){
+			Leaf r = (Leaf) right;
+			int cap = capacity(edit, len + r.len);
+			Object[] newKeys = new Object[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(vals, 0, newVals, 0, len);
+			System.arraycopy(r.keys, 0, newKeys, len, r.len);
+			System.arraycopy(r.vals, 0, newVals, len, r.len);
+			return new Leaf(edit, len + r.len, newKeys, newVals);
+		}
+	}
+
+	final static class Branch extends Node {
+		Node[] children;
+
+		Branch(AtomicReference<Thread> edit, int len, Object[] keys, Node[] children){
+			super(edit, len, keys);
+			this.children = children;
+		}
+
+		/* the last child whose lower bound is <= key */
+		int childIndex(Object key, Comparator comp){
+			int lo = 1;
+			int hi = len - 1;
+			while(lo <= hi)
+				{
+				int mid = (lo + hi) >>> 1;
+				if(comp.compare(key, keys[mid]) < 0)
+					hi = mid - 1;
+				else
+					lo = mid + 1;
+				}
+			return lo - 1;
+		}
+
+		Branch editable(AtomicReference<Thread> edit, int newLen){
+			if(owned(edit) && newLen <= keys.length)
+				return this;
+			int cap = capacity(edit, Math.max(len, newLen));
+			Object[] newKeys = new Object[cap];
+			Node[] newChildren = new Node[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(children, 0, newChildren, 0, len);
+			return new Branch(edit, len, newKeys, newChildren);
+		}
+
+		/*
+		 * Installs the new version n of child i, splitting it when it
+		 * overflows and evening it out with a sibling when it underflows.
+		 */
+		Branch fixChild(AtomicReference<Thread> edit, int i, Node child, Node n){
+			if(n.len > MAX)
+				{
+				int mid = n.len / 2;
+				Branch b = editable(edit, len + 1);
+				System.arraycopy(b.keys, i + 1, b.keys, i + 2, len - i - 1);
+				System.arraycopy(b.children, i + 1, b.children, i + 2, len - i - 1);
+				b.children[i] = n.slice(edit, 0, mid);
+				b.children[i + 1] = n.slice(edit, mid, n.len);
+				b.keys[i + 1] = n.keys[mid];
+				b.len = len + 1;
+				return b;
+				}
+			if(n.len < MIN)
+				{
+				int j = i > 0 ? i - 1 : i;
+				Node left = j == i ? n : children[j];
+				Node right = j == i ? children[i + 1] : n;
+				Node merged = left.concat(edit, right, keys[j + 1]);
+				if(merged.len <= MAX)
+					{
+					Branch b = owned(edit) ? this : (Branch) slice(edit, 0, len - 1);
+					System.arraycopy(keys, j + 2, b.keys, j + 1, len - j - 2);
+					System.arraycopy(children, j + 2, b.children, j + 1, len - j - 2);
+					b.children[j] = merged;
+					if(b == this)
+						{
+						keys[len - 1] = null;
+						children[len - 1] = null;
+						}
+					b.len = len - 1;
+					return b;
+					}
+				int mid = merged.len / 2;
+				Branch b = editable(edit, len);
+				b.children[j] = merged.slice(edit, 0, mid);
+				b.children[j + 1] = merged.slice(edit, mid, merged.len);
+				b.keys[j + 1] = merged.keys[mid];
+				return b;
+				}
+			if(n == child)
+				return this;
+			Branch b = editable(edit, len);
+			b.children[i] = n;
+			return b;
+			}
+
+		Node slice(AtomicReference<Thread> edit, int from, int to){
+			int cap = capacity(edit, to - from);
+			Object[] newKeys = new Object[cap];
+			Node[] newChildren = new Node[cap];
+			System.arraycopy(keys, from, newKeys, 0, to - from);
+			System.arraycopy(children, from, newChildren, 0, to - from);
+			return new Branch(edit, to - from, newKeys, newChildren);
+		}
+
+		Node concat(AtomicReference<Thread> edit, Node right, Object separator){
+			Branch r = (Branch) right;
+			int cap = capacity(edit, len + r.len);
+			Object[] newKeys = new Object[cap];
+			Node[] newChildren = new Node[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(children, 0, newChildren, 0, len);
+			System.arraycopy(r.keys, 0, newKeys, len, r.len);
+			System.arraycopy(r.children, 0, newChildren, len, r.len);
+			// right's first child is bounded by the parent's separator
+			newKeys[len] = separator;
+			return new Branch(edit, len + r.len, newKeys, newChildren);
+		}
+	}
+
+	/*
+	 * Walks the leaves in either direction, keeping the path of branches and
+	 * child positions in arrays.
+	 */
+	static final class NodeIterator implements Iterator {
+		final Branch[] stack;
+		final int[] pos;
+		final int step;
+		Leaf leaf;
+		int i;
+
+		NodeIterator(Node root, boolean ascending){
+			this.step = ascending ? 1 : -1;
+			int height = height(root);
+			this.stack = new Branch[height];
+			this.pos = new int[height];
+			if(root != null)
+				descend(0, root);
+		}
+
+		NodeIterator(Node root, Object key, boolean ascending, Comparator comp){
+			this.step = ascending ? 1 : -1;
+			int height = height(root);
+			this.stack = new Branch[height];
+			this.pos = new int[height];
+			if(root == null)
+				return;
+			Node n = root;
+			for(int d = 0; d < height; d++)
+				{
+				Branch b = (Branch) n;
+				stack[d] = b;
+				pos[d] = b.childIndex(key, comp);
+				n = b.children[pos[d]];
+				}
+			leaf = (Leaf) n;
+			int idx = leaf.indexOf(key, comp);
+			if(idx >= 0)
+				i = idx;
+			else
+				i = ascending ? -idx - 1 : -idx - 2;
+			if(i < 0 || i >= leaf.len)
+				{
+				i = ascending ? leaf.len - 1 : 0;
+				advance();
+				}
+		}
+
+		static int height(Node root){
+			int h = 0;
+			for(Node n = root; n instanceof Branch; n = ((Branch) n).children[0])
+				h++;
+			return h;
+		}
+
+		void descend(int d, Node n){
+			for(; d < stack.length; d++)
+				{
+				Branch b = (Branch) n;
+				stack[d] = b;
+				pos[d] = step > 0 ? 0 : b.len - 1;
+				n = b.children[pos[d]];
+				}
+			leaf = (Leaf) n;
+			i = step > 0 ? 0 : leaf.len - 1;
+		}
+
+		void advance(){
+			i += step;
+			if(i >= 0 && i < leaf.len)
+				return;
+			for(int d = stack.length - 1; d >= 0; d--)
+				{
+				int p = pos[d] + step;
+				if(p >= 0 && p < stack[d].len)
+					{
+					pos[d] = p;
+					descend(d + 1, stack[d].children[p]);
+					return;
+					}
+				}
+			leaf = null;
+		}
+
+		public boolean hasNext(){
+			return leaf != null;
+		}
+
+		public Object next(){
+			if(leaf == null)
+				throw new NoSuchElementException();
+			MapEntry e = new MapEntry(leaf.keys[i], leaf.vals[i]);
+			advance();
+			return e;
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/*
+	 * A NodeIterator's path, moved forward by seek: it climbs while the key
+	 * is past the bound of the child it is in, at most O(log d) levels for a
+	 * key d entries ahead, and descends again from there.
+	 */
+	static final class BTreeCursor<K,V> implements Cursor<K,V> {
+		final Node root;
+		final Comparator<K> comp;
+		final NodeIterator it;
+
+		BTreeCursor(Node root, Comparator<K> comp){
+			this.root = root;
+			this.comp = comp;
+			this.it = new NodeIterator(root, true);
+		}
+
+		public void reset(){
+			if(root != null)
+				it.descend(0, root);
+		}
+
+		public boolean atEnd(){
+			return it.leaf == null;
+		}
+
+		public K peekKey(){
+			if(it.leaf == null)
+				throw new NoSuchElementException();
+			return (K) it.leaf.keys[it.i];
+		}
+
+		public V peekVal(){
+			if(it.leaf == null)
+				throw new NoSuchElementException();
+			return (V) it.leaf.vals[it.i];
+		}
+
+		public boolean next(){
+			if(it.leaf == null)
+				return false;
+			it.advance();
+			return it.leaf != null;
+		}
+
+		/* whether key lies below the upper bound of the child taken at depth d */
+		boolean within(Object key, int d){
+			Branch b = it.stack[d];
+			int p = it.pos[d] + 1;
+			return p < b.len && comp.compare((K) key, (K) b.keys[p]) < 0;
+		}
+
+		public boolean seek(K key){
+			Leaf leaf = it.leaf;
+			if(leaf == null)
+				return false;
+			if(comp.compare(key, (K) leaf.keys[it.i]) <= 0)
+				return true;
+			Branch[] stack = it.stack;
+			int d = stack.length;
+			while(d > 0 && !within(key, d - 1))
+				d--;
+			if(d < stack.length)
+				{
+				Node n = stack[d];
+				for(; d < stack.length; d++)
+					{
+					Branch b = (Branch) n;
+					stack[d] = b;
+					it.pos[d] = b.childIndex(key, comp);
+					n = b.children[it.pos[d]];
+					}
+				leaf = (Leaf) n;
+				it.leaf = leaf;
+				}
+			int i = leaf.indexOf(key, comp);
+			if(i < 0)
+				i = -i - 1;
+			if(i < leaf.len)
+				it.i = i;
+			else
+				{
+				// key falls between this leaf and the next one's bound
+				it.i = leaf.len - 1;
+				it.advance();
+				}
+			return it.leaf != null;
+		}
+
+		public Comparator<? super K> comparator(){
+			return comp;
+		}
+	}
+
+	static final class TransientBTreeMap<K,V> extends ATransientMap<K,V> implements TransientMap<K, V> {
+		final AtomicReference<Thread> edit;
+		final Comparator<K> comp;
+		Node root;
+		int count;
+		final Box leafFlag = new Box(null);
+		final Box removedFlag = new Box(null);
+
+		TransientBTreeMap(PersistentBTreeMap<K,V> m){
+			this.edit = new AtomicReference<Thread>(Thread.currentThread());
+			this.comp = m.comp;
+			this.root = m.root;
+			this.count = m.count;
+		}
+
+		TransientBTreeMap<K,V> doAssoc(K key, V val){
+			leafFlag.val = null;
+			Node n = PersistentBTreeMap.assoc(edit, root == null ? EMPTY_LEAF : root, key, val, comp, leafFlag);
+			root = fixRoot(edit, n);
+			if(leafFlag.val == null)
+				count++;
+			return this;
+		}
+
+		TransientBTreeMap<K,V> doWithout(K key){
+			if(root == null)
+				return this;
+			removedFlag.val = null;
+			Node n = PersistentBTreeMap.without(edit, root, key, comp, removedFlag);
+			if(removedFlag.val != null)
+				{
+				root = fixRoot(edit, n);
+				count--;
+				}
+			return this;
+		}
+
+		TransientBTreeMap<K,V> doUpdate(K key, IFn f){
+			leafFlag.val = null;
+			removedFlag.val = null;
+			Node n = PersistentBTreeMap.update(edit, root == null ? EMPTY_LEAF : root, key, f, comp, leafFlag, removedFlag);
+			root = fixRoot(edit, n);
+			if(leafFlag.val != null)
+				count++;
+			if(removedFlag.val != null)
+				count--;
+			return this;
+		}
+
+		V doValAt(K key, V notFound){
+			if(root == null)
+				return notFound;
+			Leaf leaf = leafFor(root, key, comp);
+			int i = leaf.indexOf(key, comp);
+			return i >= 0 ? (V) leaf.vals[i] : notFound;
+		}
+
+		int doCount(){
+			return count;
+		}
+
+		PersistentBTreeMap<K,V> doPersistent(){
+			edit.set(null);
+			return new PersistentBTreeMap<K,V>(null, comp, root, count);
+		}
+
+		void ensureEditable(){
+			Thread owner = edit.get();
+			if(owner == Thread.currentThread())
+				return;
+			if(owner != null)
+				throw new IllegalAccessError("Transient used by non-owner thread");
+			throw new IllegalAccessError("Transient used after persistent! call");
+		}
+
+		public IPersistentCollection persistent(){
+			return persistentMap();
+		}
+
+		@Override
+		public PersistentBTreeMap<K, V> persist(){
+			return (PersistentBTreeMap<K, V>) persistentMap();
+		}
+
+		@Override
+		public TransientMap<K, V> plus(K key, V val){
+			return (TransientMap<K, V>) assoc(key, val);
+		}
+
+		@Override
+		public TransientMap<K, V> minus(K key){
+			return (TransientMap<K, V>) without(key);
+		}
+	}
+
+	@Override
+	public PersistentSortedMap<K, V> zero(){
+		return (PersistentSortedMap<K, V>) empty();
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> plus(K key, V val){
+		return assoc(key, val);
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> plusEx(K key, V val){
+		return assocEx(key, val);
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> minus(K key){
+		return without(key);
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> plusAll(Map<? extends K, ? extends V> entries){
+		if(entries.isEmpty())
+			return this;
+		TransientBTreeMap<K, V> ret = asTransient();
+		for(Map.Entry<? extends K, ? extends V> e : entries.entrySet())
+			ret.doAssoc(e.getKey(), e.getValue());
+		return persistent(ret);
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> minusAll(Collection<? extends K> keys){
+		if(keys.isEmpty())
+			return this;
+		TransientBTreeMap<K, V> ret = asTransient();
+		for(K key : keys)
+			ret.doWithout(key);
+		return persistent(ret);
+	}
+
+	private PersistentBTreeMap<K, V> persistent(TransientBTreeMap<K, V> t){
+		t.edit.set(null);
+		if(t.root == root)
+			return this;
+		return new PersistentBTreeMap<K, V>(_meta, comp, t.root, t.count);
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> update(K key, IFn f){
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> compute(K key, IFn f){
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> computeIfAbsent(K key, IFn f){
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentBTreeMap<K, V> merge(K key, V val, IFn f){
+		return doUpdate(key, mergeFn(val, f));
+	}
+}
@@ -10,24 +10,45 @@
 
 package com.github.krukow.clj_lang;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /*
  A persistent rendition of Nikolas Askitis' HAT Trie
  Uses path copying for persistence
  Any errors are my own
+
+ A null member stands for no member in the nodes, as getMember's null does,
+ so null values are rejected.
 */
 @SuppressWarnings({"rawtypes","unchecked"})
-public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
+public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj, IEditableCollection<Map.Entry<String, T>> {
 	private static final long serialVersionUID = -7068824281866890730L;
 	final IPersistentMap meta;
 	final HATTrieNode<T> root;
 	final int count;
 	
 	public static final PersistentHATTrie EMPTY = new PersistentHATTrie(null, null, 0);
+
+	static void checkValue(Object t) {
+		if (t == null) {
+			throw new IllegalArgumentException("Null values are not supported");
+		}
+	}
+	
+	/* the number of suffixes a container holds before it bursts into an access node */
+	static final int BURST = 64;
+	/* an access node with this few members below it collapses back into a container */
+	static final int COLLAPSE = BURST / 2;
 	
 	public PersistentHATTrie(HATTrieNode root, IPersistentMap meta, int count) {
 		this.root = root;
@@ -40,21 +61,67 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 	}
 
 	private static interface HATTrieNode<T> {
-		HATTrieNode<T> add(String s, int i, T t);
+		HATTrieNode<T> add(AtomicReference<Thread> edit, String s, int i, T t, Box addedLeaf);
+		/* null when the last member goes */
+		HATTrieNode<T> without(AtomicReference<Thread> edit, String s, int i, Box removedLeaf);
 		T get(String s, int j);
+		int count();
+		void getAll(String[] keys, Integer[] order, int from, int to, int i, Object[] vals);
 		Iterator<Map.Entry<String, T>> nodeIt(String prefix);
+		/* the members starting with the chars of s from i, keyed relative to s */
+		HATTrieNode<T> prefixNode(String s, int i);
+		/* the greatest value below this node by the given order */
+		T max(Comparator<? super T> by);
+		/* the members keyed by prefixes of the query from i on, shortest first */
+		void prefixesOf(int i, PrefixMatches<T> m);
+		/* the members within m's distance, for a path of length d down here */
+		void fuzzy(int d, FuzzyMatches<T> m);
 	}
 	private static interface ToStringWithPrefix {
 		String toStringWithPrefix(String prefix);
 	}
 
+	/*
+	 A cached subtree maximum and the order it was found by. Both go in one
+	 object so a racing reader never sees a value paired with the wrong order.
+	*/
+	private static final class Max {
+		final Comparator by;
+		final Object val;
+
+		Max(Comparator by, Object val) {
+			this.by = by;
+			this.val = val;
+		}
+	}
+
+	/*
+	 Nodes created by a transient carry its edit and are changed in place
+	 while it owns them; the persistent operations pass a null edit.
+	*/
 	private static final class AccessNode<T> implements HATTrieNode<T>,ToStringWithPrefix {
+		private final AtomicReference<Thread> edit;
 		private final HATTrieNode<T> children[];
-		private final T emptyPtr;
+		private T emptyPtr;
+		private int count;
+		private Max max;
 		
-		public AccessNode(HATTrieNode[] children, T emptyPtr) {
+		public AccessNode(AtomicReference<Thread> edit, HATTrieNode[] children, T emptyPtr, int count) {
+			this.edit = edit;
 			this.children = children;
 			this.emptyPtr = emptyPtr;
+			this.count = count;
+		}
+
+		private AccessNode<T> editable(AtomicReference<Thread> edit) {
+			if (edit != null && this.edit == edit) {
+				return this;
+			}
+			return new AccessNode<T>(edit, children.clone(), emptyPtr, count);
+		}
+
+		public int count() {
+			return count;
 		}
 		
 		public String toString() {
@@ -81,43 +148,164 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 		}
 
 		
-		public HATTrieNode<T> add(String s, int i, T t) {
+		public HATTrieNode<T> add(AtomicReference<Thread> edit, String s, int i, T t, Box addedLeaf) {
 			int length = s.length();
 			if (i < length) {
 				char ichar = s.charAt(i);
-				HATTrieNode hatTrieNode = children[ichar];
+				HATTrieNode<T> hatTrieNode = children[ichar];
+				HATTrieNode<T> newNode;
 				if (hatTrieNode != null) {
-					HATTrieNode newNode = hatTrieNode.add(s, i+1, t);
-					if (newNode == hatTrieNode) {
+					newNode = hatTrieNode.add(edit, s, i+1, t, addedLeaf);
+					// an owned child may have changed in place, but then so has
+					// everything it holds, only a new member changes the count
+					if (newNode == hatTrieNode && addedLeaf.val == null) {
 						return this;
 					}
-					HATTrieNode[] newArr = new HATTrieNode[children.length];
-					System.arraycopy(children, 0, newArr, 0, children.length);
-					newArr[ichar] = newNode;
-					return new AccessNode(newArr, emptyPtr);
+				} else {
+					newNode = ContainerNode.singleton(edit, s, i+1, t);
+					addedLeaf.val = addedLeaf;
+				}
+				AccessNode<T> node = editable(edit);
+				node.children[ichar] = newNode;
+				if (addedLeaf.val != null) {
+					node.count++;
 				}
-				ContainerNode c = new ContainerNode(PersistentTreeMap.EMPTY.assoc(s.substring(i+1), t));
-				HATTrieNode[] newArr = new HATTrieNode[children.length];
-				System.arraycopy(children, 0, newArr, 0, children.length);
-				newArr[ichar] = c;
-				return new AccessNode(newArr, emptyPtr);
+				return node;
 			}
-			if (i == length && emptyPtr == null) {
-				return new AccessNode(children, s); 
+			if (Util.equiv(emptyPtr, t)) {
+				return this;
 			}
-			return this;
+			AccessNode<T> node = editable(edit);
+			if (emptyPtr == null) {
+				addedLeaf.val = addedLeaf;
+				node.count++;
+			}
+			node.emptyPtr = t;
+			return node;
+		}
+
+		public HATTrieNode<T> without(AtomicReference<Thread> edit, String s, int i, Box removedLeaf) {
+			AccessNode<T> node;
+			if (i == s.length()) {
+				if (emptyPtr == null) {
+					return this;
+				}
+				removedLeaf.val = removedLeaf;
+				if (count == 1) {
+					return null;
+				}
+				node = editable(edit);
+				node.emptyPtr = null;
+			} else {
+				char ichar = s.charAt(i);
+				HATTrieNode<T> c = ichar < children.length ? children[ichar] : null;
+				if (c == null) {
+					return this;
+				}
+				HATTrieNode<T> newNode = c.without(edit, s, i+1, removedLeaf);
+				if (removedLeaf.val == null) {
+					return this;
+				}
+				if (count == 1) {
+					return null;
+				}
+				node = editable(edit);
+				node.children[ichar] = newNode;
+			}
+			node.count--;
+			if (node.count <= COLLAPSE) {
+				return ContainerNode.collapse(edit, node);
+			}
+			return node;
+		}
+
+		public HATTrieNode<T> prefixNode(String s, int i) {
+			if (i == s.length()) {
+				return this;
+			}
+			char ichar = s.charAt(i);
+			HATTrieNode<T> c = ichar < children.length ? children[ichar] : null;
+			return c == null ? null : c.prefixNode(s, i+1);
+		}
+
+		public T max(Comparator<? super T> by) {
+			Max m = max;
+			if (m == null || m.by != by) {
+				T best = emptyPtr;
+				for (HATTrieNode<T> c : children) {
+					if (c != null) {
+						T cmax = c.max(by);
+						if (best == null || by.compare(cmax, best) > 0) {
+							best = cmax;
+						}
+					}
+				}
+				max = m = new Max(by, best);
+			}
+			return (T) m.val;
 		}
 
 		public T get(String s, int i) {
 			if (i == s.length()) {
 				return emptyPtr;
 			}
-			HATTrieNode<T> c = children[s.charAt(i)];
+			char ichar = s.charAt(i);
+			HATTrieNode<T> c = ichar < children.length ? children[ichar] : null;
 			if (c == null) {
 				return null;
 			}
 			return c.get(s, i+1);
 		}
+
+		public void prefixesOf(int i, PrefixMatches<T> m) {
+			if (emptyPtr != null) {
+				m.found(i, emptyPtr);
+			}
+			if (i == m.length()) {
+				return;
+			}
+			char ichar = m.charAt(i);
+			HATTrieNode<T> c = ichar < children.length ? children[ichar] : null;
+			if (c != null) {
+				c.prefixesOf(i+1, m);
+			}
+		}
+
+		public void fuzzy(int d, FuzzyMatches<T> m) {
+			if (emptyPtr != null) {
+				m.member(d, emptyPtr);
+			}
+			for (int c = 0; c < children.length; c++) {
+				if (children[c] != null && m.step(d+1, (char) c) <= m.max()) {
+					children[c].fuzzy(d+1, m);
+				}
+			}
+		}
+
+		public void getAll(String[] keys, Integer[] order, int from, int to, int i, Object[] vals) {
+			int k = from;
+			// the keys share their first i chars and are sorted, so a key
+			// ending here sorts before all the longer ones
+			while (k < to && keys[order[k]].length() == i) {
+				vals[order[k++]] = emptyPtr;
+			}
+			while (k < to) {
+				char c = keys[order[k]].charAt(i);
+				int end = k + 1;
+				while (end < to && keys[order[end]].charAt(i) == c) {
+					end++;
+				}
+				HATTrieNode<T> child = c < children.length ? children[c] : null;
+				if (child == null) {
+					for (int j = k; j < end; j++) {
+						vals[order[j]] = null;
+					}
+				} else {
+					child.getAll(keys, order, k, end, i+1, vals);
+				}
+				k = end;
+			}
+		}
 		
 		private static final class AccessNodeIterator<T> implements Iterator<MapEntry<String, T>> {
 			private final HATTrieNode children[];
@@ -169,6 +357,9 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 					moveCurIfNeeded();
 					return new MapEntry<String,T>(prefix, emptyPtr);
 				}
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
 				return current.next();
 			}
 
@@ -186,80 +377,393 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 		
 	}
 
+	/*
+	 The container holds its suffixes sorted and packed back to back in one
+	 char[], suffix k ending at ends[k]. Keys are compared in place against
+	 the chars of s from position i, so lookups allocate nothing. Sorted
+	 rather than hashed buckets keep iteration in key order and let a burst
+	 hand each child a contiguous run. Containers owned by a transient get
+	 spare room in their arrays and are filled in place.
+	*/
 	private static final class ContainerNode<T> implements HATTrieNode<T>,ToStringWithPrefix {
-		private PersistentTreeMap<String, T> strings;
+		private final AtomicReference<Thread> edit;
+		private char[] chars;
+		private int[] ends;
+		private Object[] vals;
+		private int n;
+		private Max max;
 		
-		public ContainerNode(PersistentTreeMap<String, T> strings) {
-			this.strings = strings;
+		public ContainerNode(AtomicReference<Thread> edit, char[] chars, int[] ends, Object[] vals, int n) {
+			this.edit = edit;
+			this.chars = chars;
+			this.ends = ends;
+			this.vals = vals;
+			this.n = n;
+		}
+
+		static <T> ContainerNode<T> singleton(AtomicReference<Thread> edit, String s, int i, T t) {
+			char[] chars = new char[charCapacity(edit, s.length() - i)];
+			s.getChars(i, s.length(), chars, 0);
+			int[] ends = new int[capacity(edit, 1)];
+			ends[0] = s.length() - i;
+			Object[] vals = new Object[capacity(edit, 1)];
+			vals[0] = t;
+			return new ContainerNode<T>(edit, chars, ends, vals, 1);
+		}
+
+		/*
+		 * Packs the members below node back into a single container.
+		 */
+		static <T> ContainerNode<T> collapse(AtomicReference<Thread> edit, AccessNode<T> node) {
+			int n = node.count();
+			StringBuilder sb = new StringBuilder();
+			int[] ends = new int[capacity(edit, n)];
+			Object[] vals = new Object[capacity(edit, n)];
+			Iterator<Map.Entry<String, T>> it = node.nodeIt("");
+			for (int k = 0; k < n; k++) {
+				Map.Entry<String, T> e = it.next();
+				sb.append(e.getKey());
+				ends[k] = sb.length();
+				vals[k] = e.getValue();
+			}
+			char[] chars = new char[charCapacity(edit, sb.length())];
+			sb.getChars(0, sb.length(), chars, 0);
+			return new ContainerNode<T>(edit, chars, ends, vals, n);
+		}
+
+		private static int capacity(AtomicReference<Thread> edit, int n) {
+			return edit == null ? n : Math.max(n, BURST);
+		}
+
+		private static int charCapacity(AtomicReference<Thread> edit, int length) {
+			return edit == null ? length : Math.max(2 * length, 16);
+		}
+
+		private boolean owned(AtomicReference<Thread> edit) {
+			return edit != null && this.edit == edit;
+		}
+
+		public int count() {
+			return n;
+		}
+
+		public HATTrieNode<T> prefixNode(String s, int i) {
+			if (i == s.length()) {
+				return this;
+			}
+			int from = find(s, i);
+			from = from < 0 ? -from - 1 : from;
+			int to = from;
+			while (to < n && startsWith(to, s, i)) {
+				to++;
+			}
+			return from == to ? null : slice(null, from, to, s.length() - i);
+		}
+
+		public T max(Comparator<? super T> by) {
+			Max m = max;
+			if (m == null || m.by != by) {
+				T best = (T) vals[0];
+				for (int k = 1; k < n; k++) {
+					if (by.compare((T) vals[k], best) > 0) {
+						best = (T) vals[k];
+					}
+				}
+				max = m = new Max(by, best);
+			}
+			return (T) m.val;
 		}
 		
 		public String toString() {
-			return strings.toString();
+			StringBuilder sb = new StringBuilder("{");
+			for (int k = 0; k < n; k++) {
+				if (k > 0) {
+					sb.append(", ");
+				}
+				sb.append(chars, start(k), ends[k] - start(k)).append(' ').append(vals[k]);
+			}
+			return sb.append('}').toString();
+		}
+
+		String key(String prefix, int k) {
+			int from = start(k);
+			return new StringBuilder(prefix.length() + ends[k] - from)
+				.append(prefix).append(chars, from, ends[k] - from).toString();
+		}
+
+		private int start(int k) {
+			return k == 0 ? 0 : ends[k-1];
+		}
+
+		private int compare(int k, String s, int i) {
+			int from = start(k);
+			int m = ends[k] - from;
+			int len = s.length() - i;
+			int lim = Math.min(m, len);
+			for (int j = 0; j < lim; j++) {
+				char a = chars[from + j];
+				char b = s.charAt(i + j);
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return m - len;
+		}
+
+		private boolean startsWith(int k, String s, int i) {
+			int from = start(k);
+			int len = s.length() - i;
+			if (ends[k] - from < len) {
+				return false;
+			}
+			for (int j = 0; j < len; j++) {
+				if (chars[from + j] != s.charAt(i + j)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/*
+		 * @return the index of the suffix of s from i, or -(insertion point) - 1
+		 */
+		private int find(String s, int i) {
+			int lo = 0;
+			int hi = n - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = compare(mid, s, i);
+				if (c < 0) {
+					lo = mid + 1;
+				} else if (c > 0) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(lo + 1);
+		}
+
+		public HATTrieNode<T> add(AtomicReference<Thread> edit, String s, int i, T t, Box addedLeaf) {
+			int k = find(s, i);
+			if (k >= 0) {
+				if (Util.equiv(vals[k], t)) {
+					return this;
+				}
+				if (owned(edit)) {
+					vals[k] = t;
+					return this;
+				}
+				if (edit == null) {
+					Object[] newVals = vals.clone();
+					newVals[k] = t;
+					return new ContainerNode<T>(null, chars, ends, newVals, n);
+				}
+				// a transient's copy must not share the arrays it will fill
+				ContainerNode<T> node = slice(edit, 0, n, 0);
+				node.vals[k] = t;
+				return node;
+			}
+			if (shouldBurst()) {
+				return burst(edit).add(edit, s, i, t, addedLeaf);
+			}
+			addedLeaf.val = addedLeaf;
+			k = -k - 1;
+			int len = s.length() - i;
+			int at = start(k);
+			int used = start(n);
+			boolean inPlace = owned(edit);
+			char[] newChars = chars;
+			if (!inPlace || used + len > chars.length) {
+				newChars = new char[charCapacity(edit, used + len)];
+				System.arraycopy(chars, 0, newChars, 0, at);
+			}
+			System.arraycopy(chars, at, newChars, at + len, used - at);
+			s.getChars(i, s.length(), newChars, at);
+			int[] newEnds = inPlace ? ends : new int[capacity(edit, n + 1)];
+			Object[] newVals = inPlace ? vals : new Object[capacity(edit, n + 1)];
+			for (int j = n - 1; j >= k; j--) {
+				newEnds[j + 1] = ends[j] + len;
+				newVals[j + 1] = vals[j];
+			}
+			newEnds[k] = at + len;
+			newVals[k] = t;
+			if (inPlace) {
+				chars = newChars;
+				n++;
+				return this;
+			}
+			System.arraycopy(ends, 0, newEnds, 0, k);
+			System.arraycopy(vals, 0, newVals, 0, k);
+			return new ContainerNode<T>(edit, newChars, newEnds, newVals, n + 1);
 		}
 
-		public HATTrieNode<T> add(String s, int i, T t) {
-			String ss = s.substring(i);
-			T et = strings.get(ss);
-			if (Util.equiv(et, t)) {
+		public HATTrieNode<T> without(AtomicReference<Thread> edit, String s, int i, Box removedLeaf) {
+			int k = find(s, i);
+			if (k < 0) {
 				return this;
 			}
-		    if (shouldBurst()) {
-			   return burst(s,i,t);
-		    }
-			return new ContainerNode<T>(this.strings.assoc(s.substring(i),t));
+			removedLeaf.val = removedLeaf;
+			if (n == 1) {
+				return null;
+			}
+			int at = start(k);
+			int len = ends[k] - at;
+			int used = start(n);
+			boolean inPlace = owned(edit);
+			char[] newChars = inPlace ? chars : new char[charCapacity(edit, used - len)];
+			int[] newEnds = inPlace ? ends : new int[capacity(edit, n - 1)];
+			Object[] newVals = inPlace ? vals : new Object[capacity(edit, n - 1)];
+			if (!inPlace) {
+				System.arraycopy(chars, 0, newChars, 0, at);
+				System.arraycopy(ends, 0, newEnds, 0, k);
+				System.arraycopy(vals, 0, newVals, 0, k);
+			}
+			System.arraycopy(chars, ends[k], newChars, at, used - ends[k]);
+			for (int j = k + 1; j < n; j++) {
+				newEnds[j - 1] = ends[j] - len;
+				newVals[j - 1] = vals[j];
+			}
+			if (inPlace) {
+				vals[--n] = null;
+				return this;
+			}
+			return new ContainerNode<T>(edit, newChars, newEnds, newVals, n - 1);
 		}
 
 		public T get(String s, int i) {
-			return strings.get(s.substring(i));
+			int k = find(s, i);
+			return k >= 0 ? (T) vals[k] : null;
 		}
-		
-		private HATTrieNode burst(String s, int i, T t) {
-			HATTrieNode[] children = new HATTrieNode[256];
-			T empty = s.length() == i ? t : null;
-			for (Iterator<Map.Entry<String, T>> iterator = strings.iterator(); iterator.hasNext();) {
-				Entry<String, T> next = iterator.next();
-				String old = next.getKey();
-				T value = next.getValue();
-				if (empty == null && "".equals(old)) {//can only happen once
-					empty = value;
+
+		public void prefixesOf(int i, PrefixMatches<T> m) {
+			int len = m.length() - i;
+			// prefixes sort before what they prefix and shorter ones first, so
+			// the scan ends at the first suffix greater than the query's rest
+			scan: for (int k = 0; k < n; k++) {
+				int from = start(k);
+				int length = ends[k] - from;
+				int lim = Math.min(length, len);
+				for (int j = 0; j < lim; j++) {
+					char a = chars[from + j];
+					char b = m.charAt(i + j);
+					if (a != b) {
+						if (a > b) {
+							return;
+						}
+						continue scan;
+					}
+				}
+				if (length > len) {
+					return;
+				}
+				m.found(i + length, vals[k]);
+			}
+		}
+
+		public void fuzzy(int d, FuzzyMatches<T> m) {
+			// the rows for the first `valid` chars of the previous string stay
+			// good for as many chars as the next one shares with it, and no
+			// string starting with its first `dead` chars can be close enough
+			int valid = 0;
+			int dead = Integer.MAX_VALUE;
+			for (int k = 0; k < n; k++) {
+				int from = start(k);
+				int length = ends[k] - from;
+				int l = 0;
+				if (k > 0) {
+					int prev = start(k-1);
+					int lim = Math.min(length, ends[k-1] - prev);
+					while (l < lim && chars[from + l] == chars[prev + l]) {
+						l++;
+					}
+				}
+				if (l >= dead) {
+					continue;
+				}
+				dead = Integer.MAX_VALUE;
+				int e = Math.min(l, valid);
+				while (e < length && m.step(d + e + 1, chars[from + e]) <= m.max()) {
+					e++;
+				}
+				valid = e;
+				if (e == length) {
+					m.member(d + length, vals[k]);
 				} else {
-					char f = old.charAt(0);
-					children[f] = addToNode(children[f],old,value,1);
+					dead = e + 1;
 				}
 			}
-			if (empty != t) {//i < s.length()
-				char f = s.charAt(i);
-				children[f] = addToNode(children[f],s,t,i+1);
+		}
+
+		public void getAll(String[] keys, Integer[] order, int from, int to, int i, Object[] vals) {
+			for (int k = from; k < to; k++) {
+				vals[order[k]] = get(keys[order[k]], i);
 			}
-			return new AccessNode(children, empty);			
+		}
+		
+		/*
+		 * Suffixes sharing a first char are contiguous, so each child is a
+		 * slice of this container with that char dropped.
+		 */
+		private AccessNode<T> burst(AtomicReference<Thread> edit) {
+			HATTrieNode[] children = new HATTrieNode[256];
+			T empty = null;
+			int k = 0;
+			if (ends[0] == 0) {
+				empty = (T) vals[0];
+				k = 1;
+			}
+			while (k < n) {
+				char f = chars[start(k)];
+				int to = k + 1;
+				while (to < n && chars[start(to)] == f) {
+					to++;
+				}
+				children[f] = slice(edit, k, to, 1);
+				k = to;
+			}
+			return new AccessNode(edit, children, empty, n);
 		}
 
-		private static final <T> HATTrieNode addToNode(HATTrieNode hatTrieNode, String s, T v, int i) {
-			if (hatTrieNode == null) {
-				return new ContainerNode(PersistentTreeMap.EMPTY.assoc(s.substring(i),v));
-			} else {
-				return hatTrieNode.add(s, i,v);
+		/*
+		 * @return the suffixes from index from to index to, each without its
+		 *         first drop chars.
+		 */
+		private ContainerNode<T> slice(AtomicReference<Thread> edit, int from, int to, int drop) {
+			int[] newEnds = new int[capacity(edit, to - from)];
+			char[] newChars = new char[charCapacity(edit, ends[to - 1] - start(from) - drop * (to - from))];
+			int at = 0;
+			for (int k = from; k < to; k++) {
+				int len = ends[k] - start(k) - drop;
+				System.arraycopy(chars, start(k) + drop, newChars, at, len);
+				at += len;
+				newEnds[k - from] = at;
 			}
-			
+			Object[] newVals = new Object[capacity(edit, to - from)];
+			System.arraycopy(vals, from, newVals, 0, to - from);
+			return new ContainerNode<T>(edit, newChars, newEnds, newVals, to - from);
 		}
 
 		private boolean shouldBurst() {
-			return strings.count() == 4;
+			return n == BURST;
 		}
 
 		@Override
 		public Iterator<Map.Entry<String, T>> nodeIt(final String prefix) {
 			return new Iterator<Map.Entry<String, T>>() {
-				Iterator<Map.Entry<String, T>> it  = strings.iterator();
+				int k = 0;
 				@Override
 				public boolean hasNext() {
-					return it.hasNext();
+					return k < n;
 				}
 
 				@Override
 				public Map.Entry<String, T> next() {
-					Entry<String, T> next = it.next();
-					return new MapEntry(prefix+next.getKey(), next.getValue());
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					String key = key(prefix, k);
+					return new MapEntry(key, vals[k++]);
 				}
 
 				@Override
@@ -283,21 +787,179 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 		return root.get(s,0);
 	}
 
+	/**
+	 * Looks up a batch of keys in one descent of the trie. The keys are sorted
+	 * first, so each run of keys sharing a prefix walks the access nodes of that
+	 * prefix once.
+	 * 
+	 * @return vals, where vals[i] holds the member for keys[i] or null.
+	 */
+	public T[] getAll(final String[] keys, T[] vals) {
+		int n = keys.length;
+		if (vals.length < n) {
+			throw new IllegalArgumentException("Value array is shorter than key array");
+		}
+		Integer[] order = new Integer[n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			vals[i] = null;
+			if (keys[i] != null) {
+				order[m++] = i;
+			}
+		}
+		if (root == null || m == 0) {
+			return vals;
+		}
+		Arrays.sort(order, 0, m, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return keys[i].compareTo(keys[j]);
+			}
+		});
+		root.getAll(keys, order, 0, m, 0, vals);
+		return vals;
+	}
+
+	/**
+	 * @return The members whose keys start with prefix, in key order.
+	 */
+	public Iterator<Map.Entry<String, T>> prefixIterator(String prefix) {
+		HATTrieNode<T> node = root == null ? null : root.prefixNode(prefix, 0);
+		return node != null ? node.nodeIt(prefix) : new EmptyIterator();
+	}
+
+	/**
+	 * @return The number of keys starting with prefix.
+	 */
+	public int prefixCount(String prefix) {
+		HATTrieNode<T> node = root == null ? null : root.prefixNode(prefix, 0);
+		return node != null ? node.count() : 0;
+	}
+
+	/* a member, or a subtree when index is -1 and node is not null, ranked by val */
+	private static final class Candidate<T> {
+		final T val;
+		final String prefix;
+		final HATTrieNode<T> node;
+		final int index;
+
+		Candidate(T val, String prefix, HATTrieNode<T> node, int index) {
+			this.val = val;
+			this.prefix = prefix;
+			this.node = node;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Finds the k members starting with prefix that have the greatest values
+	 * by the order by. The greatest value below each node is cached in the node
+	 * the first time it is asked for, so repeated queries only visit the
+	 * subtrees that hold the answers. The cache keeps one order per node: pass
+	 * the same Comparator instance every time.
+	 * 
+	 * @return At most k members, greatest value first. Members with equal
+	 *         values come in no particular order.
+	 */
+	public List<Map.Entry<String, T>> topK(String prefix, int k, final Comparator<? super T> by) {
+		List<Map.Entry<String, T>> top = new ArrayList<Map.Entry<String, T>>(Math.min(k, count));
+		HATTrieNode<T> node = root == null || k <= 0 ? null : root.prefixNode(prefix, 0);
+		if (node == null) {
+			return top;
+		}
+		PriorityQueue<Candidate<T>> queue = new PriorityQueue<Candidate<T>>(64, new Comparator<Candidate<T>>() {
+			public int compare(Candidate<T> c1, Candidate<T> c2) {
+				return by.compare(c2.val, c1.val);
+			}
+		});
+		queue.add(new Candidate<T>(node.max(by), prefix, node, -1));
+		while (top.size() < k && !queue.isEmpty()) {
+			Candidate<T> c = queue.poll();
+			if (c.node == null) {
+				top.add(new MapEntry<String, T>(c.prefix, c.val));
+			} else if (c.index >= 0) {
+				top.add(new MapEntry<String, T>(((ContainerNode<T>) c.node).key(c.prefix, c.index), c.val));
+			} else if (c.node instanceof ContainerNode) {
+				ContainerNode<T> cn = (ContainerNode<T>) c.node;
+				for (int i = 0; i < cn.n; i++) {
+					queue.add(new Candidate<T>((T) cn.vals[i], c.prefix, cn, i));
+				}
+			} else {
+				AccessNode<T> an = (AccessNode<T>) c.node;
+				if (an.emptyPtr != null) {
+					queue.add(new Candidate<T>(an.emptyPtr, c.prefix, null, -1));
+				}
+				for (int i = 0; i < an.children.length; i++) {
+					HATTrieNode<T> child = an.children[i];
+					if (child != null) {
+						queue.add(new Candidate<T>(child.max(by), c.prefix + (char) i, child, -1));
+					}
+				}
+			}
+		}
+		return top;
+	}
+
+	public Map.Entry<String, T> longestPrefixOf(String s) {
+		return prefixesOf(s, false, false).longest();
+	}
+
+	public List<Map.Entry<String, T>> allPrefixesOf(String s) {
+		return prefixesOf(s, false, true).all();
+	}
+
+	public Map.Entry<String, T> longestSuffixOf(String s) {
+		return prefixesOf(s, true, false).longest();
+	}
+
+	public List<Map.Entry<String, T>> allSuffixesOf(String s) {
+		return prefixesOf(s, true, true).all();
+	}
+
+	public List<Map.Entry<String, T>> fuzzySearch(String s, int maxEdits) {
+		FuzzyMatches<T> m = new FuzzyMatches<T>(s, maxEdits);
+		if (root != null) {
+			root.fuzzy(0, m);
+		}
+		return m.found();
+	}
+
+	private PrefixMatches<T> prefixesOf(String s, boolean reverse, boolean all) {
+		PrefixMatches<T> m = new PrefixMatches<T>(s, reverse, all);
+		if (root != null) {
+			root.prefixesOf(0, m);
+		}
+		return m;
+	}
+
 	@Override
 	public IPersistentTrie<T> addMember(String s, T t) {
+		checkValue(t);
 		if (root == null) {
-			return new PersistentHATTrie(new ContainerNode(PersistentTreeMap.EMPTY.assoc(s, t)),null,1);
+			return new PersistentHATTrie(ContainerNode.singleton(null, s, 0, t),null,1);
+		}
+		Box addedLeaf = new Box(null);
+		HATTrieNode<T> newRoot = root.add(null, s, 0,t,addedLeaf);
+		if (root == newRoot) {
+			return this;
+		}
+		return new PersistentHATTrie(newRoot,meta,addedLeaf.val != null ? count+1 : count);
+	}
+
+	@Override
+	public IPersistentTrie<T> removeMember(String s) {
+		if (root == null || s == null) {
+			return this;
 		}
-		HATTrieNode<T> newRoot = root.add(s, 0,t);
+		HATTrieNode<T> newRoot = root.without(null, s, 0, new Box(null));
 		if (root == newRoot) {
 			return this;
 		}
-		return new PersistentHATTrie(newRoot,meta,count+1);
+		return new PersistentHATTrie(newRoot,meta,count-1);
 	}
 
 	@Override
 	public IPersistentSet disjoin(Object key) {
-		throw new UnsupportedOperationException();
+		return (key instanceof String) ? (IPersistentSet) removeMember((String) key) : this;
 	}
 
 	@Override
@@ -372,6 +1034,10 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 		throw new UnsupportedOperationException();
 	}
 
+	public TransientHATTrie<T> asTransient() {
+		return new TransientHATTrie<T>(this);
+	}
+
 	@Override
 	public IObj withMeta(IPersistentMap meta) {
 		return new PersistentHATTrie(root,meta,count);
@@ -394,4 +1060,80 @@ public class PersistentHATTrie<T> extends APersistentTrie<T> implements IObj {
 		throw new UnsupportedOperationException();
 	}
 
-}
\ No newline at end of file
+	/**
+	 * A trie for loading many members at once. It changes the access nodes
+	 * and containers it has created in place, rather than copying the path to
+	 * every member, and {@link #persistent()} hands them over without copying.
+	 */
+	public static final class TransientHATTrie<T> implements ITransientCollection<Map.Entry<String, T>> {
+		final AtomicReference<Thread> edit;
+		HATTrieNode<T> root;
+		int count;
+		final Box leafFlag = new Box(null);
+
+		TransientHATTrie(PersistentHATTrie<T> trie) {
+			this.edit = new AtomicReference<Thread>(Thread.currentThread());
+			this.root = trie.root;
+			this.count = trie.count;
+		}
+
+		public TransientHATTrie<T> addMember(String s, T t) {
+			ensureEditable();
+			checkValue(t);
+			if (root == null) {
+				root = ContainerNode.singleton(edit, s, 0, t);
+				count = 1;
+				return this;
+			}
+			leafFlag.val = null;
+			root = root.add(edit, s, 0, t, leafFlag);
+			if (leafFlag.val != null) {
+				count++;
+			}
+			return this;
+		}
+
+		public TransientHATTrie<T> removeMember(String s) {
+			ensureEditable();
+			if (root == null || s == null) {
+				return this;
+			}
+			leafFlag.val = null;
+			root = root.without(edit, s, 0, leafFlag);
+			if (leafFlag.val != null) {
+				count--;
+			}
+			return this;
+		}
+
+		public T getMember(String s) {
+			ensureEditable();
+			if (root == null || s == null) return null;
+			return root.get(s, 0);
+		}
+
+		public int count() {
+			ensureEditable();
+			return count;
+		}
+
+		public TransientHATTrie<T> conj(Map.Entry<String, T> e) {
+			return addMember(e.getKey(), e.getValue());
+		}
+
+		public PersistentHATTrie<T> persistent() {
+			ensureEditable();
+			edit.set(null);
+			return new PersistentHATTrie<T>(root, null, count);
+		}
+
+		void ensureEditable() {
+			Thread owner = edit.get();
+			if (owner == Thread.currentThread())
+				return;
+			if (owner != null)
+				throw new IllegalAccessError("Transient used by non-owner thread");
+			throw new IllegalAccessError("Transient used after persistent! call");
+		}
+	}
+}
@@ -12,6 +12,8 @@ package com.github.krukow.clj_lang;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -138,7 +140,7 @@ static int hash(Object k){
 public boolean containsKey(Object key){
 	if(key == null)
 		return hasNull;
-	return (root != null) ? root.find(0, hash(key), key, NOT_FOUND) != NOT_FOUND : false;
+	return (root != null) ? find(root, hash(key), key, NOT_FOUND) != NOT_FOUND : false;
 }
 
 public IMapEntry<K,V> entryAt(K key){
@@ -164,7 +166,7 @@ public IPersistentMap<K,V> assoc(K key, V val){
 public V valAt(K key, V notFound){
 	if(key == null)
 		return hasNull ? nullValue : notFound;
-	return (V) (root != null ? root.find(0, hash(key), key, notFound) : notFound);
+	return (V) (root != null ? find(root, hash(key), key, notFound) : notFound);
 }
 
 public V valAt(K key){
@@ -188,6 +190,30 @@ public IPersistentMap<K,V> without(K key){
 	return new PersistentHashMap<K,V>(meta(), count - 1, newroot, hasNull, nullValue); 
 }
 
+/*
+ * Read-modify-write of a single key in one descent of the trie. f maps the
+ * current value (ABSENT if missing) to the new one, see APersistentMap.
+ * Nodes are copied under an edit token private to this call.
+ */
+PersistentHashMap<K,V> doUpdate(K key, IFn f){
+	if(key == null) {
+		Object val = f.invoke(hasNull ? nullValue : ABSENT);
+		if(val == ABSENT)
+			return hasNull ? new PersistentHashMap<K,V>(meta(), count - 1, root, false, null) : this;
+		if(hasNull && val == nullValue)
+			return this;
+		return new PersistentHashMap<K,V>(meta(), hasNull ? count : count + 1, root, true, (V) val);
+	}
+	INode node = root == null ? BitmapIndexedNode.EMPTY : root;
+	Box addedLeaf = new Box(null);
+	Box removedLeaf = new Box(null);
+	INode newroot = node.update(new AtomicReference<Thread>(), 0, hash(key), key, f, addedLeaf, removedLeaf);
+	if(newroot == node)
+		return this;
+	int newcount = addedLeaf.val != null ? count + 1 : removedLeaf.val != null ? count - 1 : count;
+	return new PersistentHashMap<K,V>(meta(), newcount, newroot, hasNull, nullValue);
+}
+
 public Iterator<Map.Entry<K, V>> iterator2(){
 	return new Iterator<Map.Entry<K, V>>() {
 		ISeq<IMapEntry<K, V>> seq = seq();
@@ -300,6 +326,121 @@ public ISeq<IMapEntry<K, V>> seq(){
 	return hasNull ? new Cons<IMapEntry<K, V>>(new MapEntry<K,V>(null, nullValue), s) : s;
 }
 
+/**
+ * Looks up a batch of keys in one descent of the trie. The keys are ordered by
+ * their hash digits (the trie's path order), so keys sharing a path prefix are
+ * looked up together and every node on a shared path is visited once.
+ * 
+ * @return vals, where vals[i] holds the value of keys[i] or notFound.
+ */
+public V[] getAll(K[] keys, V[] vals, V notFound){
+	int n = keys.length;
+	if(vals.length < n)
+		throw new IllegalArgumentException("Value array is shorter than key array");
+	int[] hashes = new int[n];
+	long[] order = new long[n];
+	int m = 0;
+	for(int i = 0; i < n; i++)
+		{
+		K key = keys[i];
+		if(key == null)
+			vals[i] = hasNull ? nullValue : notFound;
+		else if(root == null)
+			vals[i] = notFound;
+		else
+			{
+			int h = hash(key);
+			hashes[i] = h;
+			order[m++] = ((long) pathOrder(h) << 32) | i;
+			}
+		}
+	if(m > 0)
+		{
+		Arrays.sort(order, 0, m);
+		getAll(root, 0, order, 0, m, hashes, keys, vals, notFound);
+		}
+	return vals;
+}
+
+/*
+ * Rearranges the 5-bit hash digits so that the digit used at the root ends up
+ * most significant: sorting on this groups keys by shared trie path.
+ */
+static int pathOrder(int hash){
+	int r = 0;
+	for(int shift = 0; shift < 30; shift += 5)
+		r = (r << 5) | mask(hash, shift);
+	return (r << 2) | (hash >>> 30);
+}
+
+/*
+ * order[from..to) all lead to node; walks each run of keys sharing the next
+ * digit down the corresponding child once.
+ */
+static void getAll(INode node, int shift, long[] order, int from, int to,
+                   int[] hashes, Object[] keys, Object[] vals, Object notFound){
+	if(to - from == 1)
+		{
+		int i = (int) order[from];
+		vals[i] = find(node, shift, hashes[i], keys[i], notFound);
+		return;
+		}
+	if(node instanceof HashCollisionNode)
+		{
+		HashCollisionNode hn = (HashCollisionNode) node;
+		for(int k = from; k < to; k++)
+			{
+			int i = (int) order[k];
+			int idx = hn.findIndex(keys[i]);
+			vals[i] = idx < 0 ? notFound : hn.array[idx+1];
+			}
+		return;
+		}
+	int k = from;
+	while(k < to)
+		{
+		int digit = mask(hashes[(int) order[k]], shift);
+		int end = k + 1;
+		while(end < to && mask(hashes[(int) order[end]], shift) == digit)
+			end++;
+		if(node instanceof ArrayNode)
+			{
+			INode child = ((ArrayNode) node).array[digit];
+			if(child == null)
+				fill(order, k, end, vals, notFound);
+			else
+				getAll(child, shift + 5, order, k, end, hashes, keys, vals, notFound);
+			}
+		else
+			{
+			BitmapIndexedNode bn = (BitmapIndexedNode) node;
+			int bit = 1 << digit;
+			if((bn.bitmap & bit) == 0)
+				fill(order, k, end, vals, notFound);
+			else
+				{
+				int idx = 2*bn.index(bit);
+				Object keyOrNull = bn.array[idx];
+				Object valOrNode = bn.array[idx+1];
+				if(keyOrNull == null)
+					getAll((INode) valOrNode, shift + 5, order, k, end, hashes, keys, vals, notFound);
+				else
+					for(int j = k; j < end; j++)
+						{
+						int i = (int) order[j];
+						vals[i] = Util.equiv(keys[i], keyOrNull) ? valOrNode : notFound;
+						}
+				}
+			}
+		k = end;
+		}
+}
+
+private static void fill(long[] order, int from, int to, Object[] vals, Object notFound){
+	for(int k = from; k < to; k++)
+		vals[(int) order[k]] = notFound;
+}
+
 public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
 	if (hasNull) {throw new UnsupportedOperationException("not supported for maps with null entries yet");}
 	Iterator<Map.Entry<K, V>> s = root != null ? root.nodeItFrom(0, hash(key), key) : new EmptyIterator(); 
@@ -310,6 +451,48 @@ public IPersistentCollection empty(){
 	return EMPTY.withMeta(meta());	
 }
 
+/*
+ * Loop-based lookup. Recursing through INode.find makes the call site
+ * megamorphic as soon as all three node kinds are live, so the JIT stops
+ * inlining it; dispatching on the (final) node classes inside one loop keeps
+ * the whole descent in a single method.
+ */
+static Object find(INode node, int hash, Object key, Object notFound){
+	return find(node, 0, hash, key, notFound);
+}
+
+static Object find(INode node, int shift, int hash, Object key, Object notFound){
+	for(;;)
+		{
+		if(node instanceof BitmapIndexedNode)
+			{
+			BitmapIndexedNode bn = (BitmapIndexedNode) node;
+			int bit = bitpos(hash, shift);
+			if((bn.bitmap & bit) == 0)
+				return notFound;
+			int idx = 2*bn.index(bit);
+			Object keyOrNull = bn.array[idx];
+			Object valOrNode = bn.array[idx+1];
+			if(keyOrNull != null)
+				return Util.equiv(key, keyOrNull) ? valOrNode : notFound;
+			node = (INode) valOrNode;
+			}
+		else if(node instanceof ArrayNode)
+			{
+			node = ((ArrayNode) node).array[mask(hash, shift)];
+			if(node == null)
+				return notFound;
+			}
+		else
+			{
+			HashCollisionNode hn = (HashCollisionNode) node;
+			int idx = hn.findIndex(key);
+			return idx < 0 ? notFound : hn.array[idx+1];
+			}
+		shift += 5;
+		}
+}
+
 static int mask(int hash, int shift){
 	//return ((hash << shift) >>> 27);// & 0x01f;
 	return (hash >>> shift) & 0x01f;
@@ -334,6 +517,7 @@ static final class TransientHashMap<K,V> extends ATransientMap<K,V> implements T
 	boolean hasNull;
 	V nullValue;
 	final Box leafFlag = new Box(null);
+	final Box removedFlag = new Box(null);
 
 
 	TransientHashMap(PersistentHashMap<K,V> m) {
@@ -386,6 +570,24 @@ static final class TransientHashMap<K,V> extends ATransientMap<K,V> implements T
 		return this;
 	}
 
+	TransientHashMap<K,V> doUpdate(K key, IFn f) {
+		if (key == null) {
+			Object val = f.invoke(hasNull ? nullValue : ABSENT);
+			if (val == ABSENT)
+				return doWithout(key);
+			return doAssoc(key, (V) val);
+		}
+		leafFlag.val = null;
+		removedFlag.val = null;
+		INode n = (root == null ? BitmapIndexedNode.EMPTY : root)
+			.update(edit, 0, hash(key), key, f, leafFlag, removedFlag);
+		if (n != this.root && (root != null || n != BitmapIndexedNode.EMPTY))
+			this.root = n;
+		if(leafFlag.val != null) this.count++;
+		if(removedFlag.val != null) this.count--;
+		return this;
+	}
+
 	PersistentHashMap<K,V> doPersistent() {
 		edit.set(null);
 		return new PersistentHashMap<K,V>(count, root, hasNull, nullValue);
@@ -398,8 +600,8 @@ static final class TransientHashMap<K,V> extends ATransientMap<K,V> implements T
 			else
 				return notFound;
 		if (root == null)
-			return null;
-		return (V) root.find(0, hash(key), key, notFound);
+			return notFound;
+		return (V) find(root, hash(key), key, notFound);
 	}
 
 	int doCount() {
@@ -455,6 +657,8 @@ static interface INode extends Serializable {
 	INode assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object val, Box addedLeaf);
 
 	INode without(AtomicReference<Thread> edit, int shift, int hash, Object key, Box removedLeaf);
+
+	INode update(AtomicReference<Thread> edit, int shift, int hash, Object key, IFn f, Box addedLeaf, Box removedLeaf);
 	
     public Object kvreduce(IFn f, Object init);
 
@@ -734,6 +938,28 @@ final static class ArrayNode implements INode{
 		}
 		return editAndSet(edit, idx, n);
 	}
+
+	public INode update(AtomicReference<Thread> edit, int shift, int hash, Object key, IFn f, Box addedLeaf, Box removedLeaf){
+		int idx = mask(hash, shift);
+		INode node = array[idx];
+		if(node == null) {
+			Object val = f.invoke(ABSENT);
+			if(val == ABSENT)
+				return this;
+			return assoc(edit, shift, hash, key, val, addedLeaf);
+		}
+		INode n = node.update(edit, shift + 5, hash, key, f, addedLeaf, removedLeaf);
+		if(n == node)
+			return this;
+		if(n == null) {
+			if (count <= 8) // shrink
+				return pack(edit, idx);
+			ArrayNode editable = editAndSet(edit, idx, n);
+			editable.count--;
+			return editable;
+		}
+		return editAndSet(edit, idx, n);
+	}
 	
 	static class Seq extends ASeq {
 		final INode[] nodes;
@@ -1187,6 +1413,42 @@ final static class BitmapIndexedNode implements INode{
 		}
 		return this;
 	}
+
+	public INode update(AtomicReference<Thread> edit, int shift, int hash, Object key, IFn f, Box addedLeaf, Box removedLeaf){
+		int bit = bitpos(hash, shift);
+		if((bitmap & bit) == 0) {
+			Object val = f.invoke(ABSENT);
+			if(val == ABSENT)
+				return this;
+			return assoc(edit, shift, hash, key, val, addedLeaf);
+		}
+		int idx = index(bit);
+		Object keyOrNull = array[2*idx];
+		Object valOrNode = array[2*idx+1];
+		if(keyOrNull == null) {
+			INode n = ((INode) valOrNode).update(edit, shift + 5, hash, key, f, addedLeaf, removedLeaf);
+			if(n == valOrNode)
+				return this;
+			if(n != null)
+				return editAndSet(edit, 2*idx+1, n);
+			return editAndRemovePair(edit, bit, idx);
+		}
+		if(Util.equiv(key, keyOrNull)) {
+			Object val = f.invoke(valOrNode);
+			if(val == valOrNode)
+				return this;
+			if(val != ABSENT)
+				return editAndSet(edit, 2*idx+1, val);
+			removedLeaf.val = removedLeaf;
+			return editAndRemovePair(edit, bit, idx);
+		}
+		Object val = f.invoke(ABSENT);
+		if(val == ABSENT)
+			return this;
+		addedLeaf.val = addedLeaf;
+		return editAndSet(edit, 2*idx, null, 2*idx+1,
+				createNode(edit, shift + 5, keyOrNull, valOrNode, hash, key, val));
+	}
 }
 
 final static class HashCollisionNode implements INode{
@@ -1409,6 +1671,22 @@ final static class HashCollisionNode implements INode{
 		editable.count--;
 		return editable;
 	}
+
+	public INode update(AtomicReference<Thread> edit, int shift, int hash, Object key, IFn f, Box addedLeaf, Box removedLeaf){
+		int idx = hash == this.hash ? findIndex(key) : -1;
+		if(idx != -1) {
+			Object val = f.invoke(array[idx + 1]);
+			if(val == array[idx + 1])
+				return this;
+			if(val != ABSENT)
+				return editAndSet(edit, idx+1, val);
+			return without(edit, shift, hash, key, removedLeaf);
+		}
+		Object val = f.invoke(ABSENT);
+		if(val == ABSENT)
+			return this;
+		return assoc(edit, shift, hash, key, val, addedLeaf);
+	}
 }
 
 /*
@@ -1639,4 +1917,125 @@ static final class NodeSeq extends ASeq {
 		return (PersistentMap<K, V>) without(key);
 	}
 
+	@Override
+	public PersistentHashMap<K, V> update(K key, IFn f) {
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentHashMap<K, V> compute(K key, IFn f) {
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentHashMap<K, V> computeIfAbsent(K key, IFn f) {
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentHashMap<K, V> merge(K key, V val, IFn f) {
+		return doUpdate(key, mergeFn(val, f));
+	}
+
+
+	/*
+	 * The batch is sorted in trie path order and applied with an edit token
+	 * private to this call: the first change to a node copies it, later
+	 * changes in the same subtree update that copy in place.
+	 */
+	@Override
+	public PersistentHashMap<K, V> plusAll(Map<? extends K, ? extends V> entries) {
+		int n = entries.size();
+		if(n == 0)
+			return this;
+		Object[] keys = new Object[n];
+		Object[] vals = new Object[n];
+		int i = 0;
+		for(Map.Entry<? extends K, ? extends V> e : entries.entrySet())
+			{
+			keys[i] = e.getKey();
+			vals[i++] = e.getValue();
+			}
+		int[] hashes = new int[n];
+		long[] order = pathOrder(keys, hashes);
+		AtomicReference<Thread> edit = new AtomicReference<Thread>();
+		Box addedLeaf = new Box(null);
+		INode newroot = root;
+		int newcount = count;
+		boolean newHasNull = hasNull;
+		V newNullValue = nullValue;
+		for(i = 0; i < n; i++)
+			{
+			int k = (int) order[i];
+			if(keys[k] == null)
+				{
+				if(!newHasNull)
+					newcount++;
+				newHasNull = true;
+				newNullValue = (V) vals[k];
+				continue;
+				}
+			addedLeaf.val = null;
+			newroot = (newroot == null ? BitmapIndexedNode.EMPTY : newroot)
+					.assoc(edit, 0, hashes[k], keys[k], vals[k], addedLeaf);
+			if(addedLeaf.val != null)
+				newcount++;
+			}
+		if(newroot == root && newHasNull == hasNull && newNullValue == nullValue)
+			return this;
+		return new PersistentHashMap<K, V>(meta(), newcount, newroot, newHasNull, newNullValue);
+	}
+
+	@Override
+	public PersistentHashMap<K, V> minusAll(Collection<? extends K> keys) {
+		if(keys.isEmpty() || count == 0)
+			return this;
+		Object[] ks = keys.toArray();
+		int[] hashes = new int[ks.length];
+		long[] order = pathOrder(ks, hashes);
+		AtomicReference<Thread> edit = new AtomicReference<Thread>();
+		Box removedLeaf = new Box(null);
+		INode newroot = root;
+		int newcount = count;
+		boolean newHasNull = hasNull;
+		V newNullValue = nullValue;
+		for(int i = 0; i < ks.length; i++)
+			{
+			int k = (int) order[i];
+			if(ks[k] == null)
+				{
+				if(newHasNull)
+					newcount--;
+				newHasNull = false;
+				newNullValue = null;
+				continue;
+				}
+			if(newroot == null)
+				continue;
+			removedLeaf.val = null;
+			newroot = newroot.without(edit, 0, hashes[k], ks[k], removedLeaf);
+			if(removedLeaf.val != null)
+				newcount--;
+			}
+		if(newcount == count)
+			return this;
+		return new PersistentHashMap<K, V>(meta(), newcount, newroot, newHasNull, newNullValue);
+	}
+
+	/*
+	 * Hashes keys into hashes and returns their indices sorted in trie path
+	 * order (index in the low 32 bits of each element).
+	 */
+	private static long[] pathOrder(Object[] keys, int[] hashes) {
+		long[] order = new long[keys.length];
+		for(int i = 0; i < keys.length; i++)
+			{
+			int h = keys[i] == null ? 0 : hash(keys[i]);
+			hashes[i] = h;
+			order[i] = ((long) pathOrder(h) << 32) | i;
+			}
+		Arrays.sort(order);
+		return order;
+	}
+
 }
@@ -0,0 +1,1082 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.krukow.clj_ds.PersistentSortedMap;
+import com.github.krukow.clj_ds.TransientMap;
+
+/*
+ A persistent B+-tree specialized for long keys, laid out like
+ PersistentBTreeMap but with keys held in long[] and compared with the
+ primitive operators: lookups and floor/ceiling/range queries through the
+ long overloads neither box nor call a Comparator. Where an overload would
+ clash with the boxed one over a boxed value, as assoc(long, V) would, the
+ primitive method is named apart: assocLong, valAtLong, plusLong.
+ The boxed Map/PersistentSortedMap API is kept for interop, its keys are
+ unboxed on the way in.
+*/
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PersistentLongBTreeMap<V> extends APersistentMap<Long,V> implements IObj, IEditableCollection<MapEntry<Long, V>>, Reversible<Map.Entry<Long, V>>, Sorted<Long>, PersistentSortedMap<Long, V> {
+	private static final long serialVersionUID = -4630871528384101935L;
+
+	static final int MAX = 64;
+	static final int MIN = MAX / 2;
+
+	final Node root;
+	final int count;
+	final IPersistentMap _meta;
+
+	final private static Object NOT_FOUND = new Object();
+
+	final static public PersistentLongBTreeMap EMPTY = new PersistentLongBTreeMap(null, null, 0);
+
+	static final Leaf EMPTY_LEAF = new Leaf(null, 0, new long[0], new Object[0]);
+
+	static final Comparator<Long> COMPARATOR = new Comparator<Long>(){
+		public int compare(Long x, Long y){
+			long a = x.longValue();
+			long b = y.longValue();
+			return a < b ? -1 : a == b ? 0 : 1;
+		}
+	};
+
+	static public <V> PersistentLongBTreeMap<V> create(Map<? extends Number,? extends V> other){
+		TransientLongBTreeMap<V> ret = EMPTY.asTransient();
+		for(Map.Entry<? extends Number,? extends V> e : other.entrySet())
+			ret.doAssoc(e.getKey().longValue(), e.getValue());
+		return ret.doPersistent();
+	}
+
+	PersistentLongBTreeMap(IPersistentMap meta, Node root, int count){
+		this._meta = meta;
+		this.root = root;
+		this.count = count;
+	}
+
+	public PersistentLongBTreeMap<V> withMeta(IPersistentMap meta){
+		return new PersistentLongBTreeMap<V>(meta, root, count);
+	}
+
+	public IPersistentMap meta(){
+		return _meta;
+	}
+
+	public int count(){
+		return count;
+	}
+
+	public IPersistentCollection empty(){
+		return new PersistentLongBTreeMap(_meta, null, 0);
+	}
+
+	public boolean containsKey(Object key){
+		return key instanceof Long && containsKey(((Long) key).longValue());
+	}
+
+	public boolean containsKey(long key){
+		return valAtLong(key, (V) NOT_FOUND) != NOT_FOUND;
+	}
+
+	public IMapEntry<Long,V> entryAt(Long key){
+		if(root == null)
+			return null;
+		long k = key.longValue();
+		Leaf leaf = leafFor(root, k);
+		int i = leaf.indexOf(k);
+		return i >= 0 ? new MapEntry<Long,V>(key, (V) leaf.vals[i]) : null;
+	}
+
+	public V valAt(Long key, V notFound){
+		return valAtLong(key.longValue(), notFound);
+	}
+
+	public V valAt(Long key){
+		return valAtLong(key.longValue(), null);
+	}
+
+	/**
+	 * The primitive counterpart of {@link #valAt(Long, Object)}, named apart
+	 * so that calls with a boxed notFound are not ambiguous.
+	 */
+	public V valAtLong(long key, V notFound){
+		if(root == null)
+			return notFound;
+		Leaf leaf = leafFor(root, key);
+		int i = leaf.indexOf(key);
+		return i >= 0 ? (V) leaf.vals[i] : notFound;
+	}
+
+	public V valAt(long key){
+		return valAtLong(key, null);
+	}
+
+	public PersistentLongBTreeMap<V> assoc(Long key, V val){
+		return assocLong(key.longValue(), val);
+	}
+
+	/**
+	 * The primitive counterpart of {@link #assoc(Long, Object)}, named apart
+	 * so that calls with a boxed value are not ambiguous.
+	 */
+	public PersistentLongBTreeMap<V> assocLong(long key, V val){
+		Box found = new Box(null);
+		Node n = assoc(null, root == null ? EMPTY_LEAF : root, key, val, found);
+		if(n == root)
+			return this;
+		return new PersistentLongBTreeMap<V>(_meta, fixRoot(null, n), found.val == null ? count + 1 : count);
+	}
+
+	public PersistentLongBTreeMap<V> assocEx(Long key, V val){
+		if(containsKey(key.longValue()))
+			throw Util.runtimeException("Key already present");
+		return assocLong(key.longValue(), val);
+	}
+
+	public PersistentLongBTreeMap<V> without(Long key){
+		return without(key.longValue());
+	}
+
+	public PersistentLongBTreeMap<V> without(long key){
+		if(root == null)
+			return this;
+		Box removed = new Box(null);
+		Node n = without(null, root, key, removed);
+		if(removed.val == null)
+			return this;
+		return new PersistentLongBTreeMap<V>(_meta, fixRoot(null, n), count - 1);
+	}
+
+	PersistentLongBTreeMap<V> doUpdate(long key, IFn f){
+		Box added = new Box(null);
+		Box removed = new Box(null);
+		Node n = update(null, root == null ? EMPTY_LEAF : root, key, f, added, removed);
+		if(n == root || (root == null && n == EMPTY_LEAF))
+			return this;
+		int newcount = added.val != null ? count + 1 : removed.val != null ? count - 1 : count;
+		return new PersistentLongBTreeMap<V>(_meta, fixRoot(null, n), newcount);
+	}
+
+	public TransientLongBTreeMap asTransient(){
+		return new TransientLongBTreeMap<V>(this);
+	}
+
+	/**
+	 * @return The smallest key of the map.
+	 * @throws NoSuchElementException if the map is empty.
+	 */
+	public long firstKey(){
+		if(root == null)
+			throw new NoSuchElementException();
+		return leftmost(root).keys[0];
+	}
+
+	/**
+	 * @return The largest key of the map.
+	 * @throws NoSuchElementException if the map is empty.
+	 */
+	public long lastKey(){
+		if(root == null)
+			throw new NoSuchElementException();
+		Leaf leaf = rightmost(root);
+		return leaf.keys[leaf.len - 1];
+	}
+
+	/**
+	 * @return The greatest key less than or equal to key, or notFound if
+	 *         there is none.
+	 */
+	public long floorKey(long key, long notFound){
+		return navigateKey(key, true, true, notFound);
+	}
+
+	/**
+	 * @return The greatest key strictly less than key, or notFound if there
+	 *         is none.
+	 */
+	public long lowerKey(long key, long notFound){
+		return navigateKey(key, true, false, notFound);
+	}
+
+	/**
+	 * @return The least key greater than or equal to key, or notFound if
+	 *         there is none.
+	 */
+	public long ceilingKey(long key, long notFound){
+		return navigateKey(key, false, true, notFound);
+	}
+
+	/**
+	 * @return The least key strictly greater than key, or notFound if there
+	 *         is none.
+	 */
+	public long higherKey(long key, long notFound){
+		return navigateKey(key, false, false, notFound);
+	}
+
+	public IMapEntry<Long,V> floorEntry(long key){
+		return navigateEntry(key, true, true);
+	}
+
+	public IMapEntry<Long,V> lowerEntry(long key){
+		return navigateEntry(key, true, false);
+	}
+
+	public IMapEntry<Long,V> ceilingEntry(long key){
+		return navigateEntry(key, false, true);
+	}
+
+	public IMapEntry<Long,V> higherEntry(long key){
+		return navigateEntry(key, false, false);
+	}
+
+	private long navigateKey(long key, boolean below, boolean inclusive, long notFound){
+		if(root == null)
+			return notFound;
+		Leaf leaf = below ? below(root, key, inclusive) : above(root, key, inclusive);
+		if(leaf == null)
+			return notFound;
+		return leaf.keys[below ? leaf.below(key, inclusive) : leaf.above(key, inclusive)];
+	}
+
+	private IMapEntry<Long,V> navigateEntry(long key, boolean below, boolean inclusive){
+		if(root == null)
+			return null;
+		Leaf leaf = below ? below(root, key, inclusive) : above(root, key, inclusive);
+		if(leaf == null)
+			return null;
+		int i = below ? leaf.below(key, inclusive) : leaf.above(key, inclusive);
+		return new MapEntry<Long,V>(leaf.keys[i], (V) leaf.vals[i]);
+	}
+
+	/**
+	 * @return An iterator over the entries with from <= key < to in
+	 *         ascending order, see {@link RangeIterator#nextKey()} for
+	 *         walking it without boxing the keys.
+	 */
+	public RangeIterator<V> range(long from, long to){
+		return new RangeIterator<V>(root, from, true, to);
+	}
+
+	/**
+	 * @return The number of keys with from <= key < to, found by walking
+	 *         them.
+	 */
+	public int countRange(long from, long to){
+		int n = 0;
+		for(RangeIterator<V> it = range(from, to); it.hasNext(); it.skip())
+			n++;
+		return n;
+	}
+
+	public ISeq seq(){
+		return seq(true);
+	}
+
+	public ISeq rseq(){
+		return seq(false);
+	}
+
+	public Comparator<Long> comparator(){
+		return COMPARATOR;
+	}
+
+	public Object entryKey(Object entry){
+		return ((IMapEntry) entry).key();
+	}
+
+	public ISeq seq(boolean ascending){
+		return IteratorSeq.create(new RangeIterator<V>(root, ascending));
+	}
+
+	public ISeq seqFrom(Long key, boolean ascending){
+		return IteratorSeq.create(new RangeIterator<V>(root, key.longValue(), ascending));
+	}
+
+	public RangeIterator<V> iterator(){
+		return new RangeIterator<V>(root, true);
+	}
+
+	public RangeIterator<V> reverseIterator(){
+		return new RangeIterator<V>(root, false);
+	}
+
+	public RangeIterator<V> iteratorFrom(Long key){
+		return iteratorFrom(key.longValue());
+	}
+
+	public RangeIterator<V> iteratorFrom(long key){
+		return new RangeIterator<V>(root, key, true);
+	}
+
+	public int depth(){
+		int d = 0;
+		for(Node n = root; n != null; n = n instanceof Branch ? ((Branch) n).children[0] : null)
+			d++;
+		return d;
+	}
+
+	static Leaf leafFor(Node node, long key){
+		while(node instanceof Branch)
+			{
+			Branch b = (Branch) node;
+			node = b.children[b.childIndex(key)];
+			}
+		return (Leaf) node;
+	}
+
+	static Leaf leftmost(Node node){
+		while(node instanceof Branch)
+			node = ((Branch) node).children[0];
+		return (Leaf) node;
+	}
+
+	static Leaf rightmost(Node node){
+		while(node instanceof Branch)
+			{
+			Branch b = (Branch) node;
+			node = b.children[b.len - 1];
+			}
+		return (Leaf) node;
+	}
+
+	/*
+	 * The leaf holding the greatest key below (or at) key. A separator only
+	 * bounds its child from below, so when key falls under the first entry
+	 * of its leaf the answer is the last entry of the nearest subtree to the
+	 * left of the search path.
+	 */
+	static Leaf below(Node node, long key, boolean inclusive){
+		Node left = null;
+		while(node instanceof Branch)
+			{
+			Branch b = (Branch) node;
+			int i = b.childIndex(key);
+			if(i > 0)
+				left = b.children[i - 1];
+			node = b.children[i];
+			}
+		Leaf leaf = (Leaf) node;
+		if(leaf.below(key, inclusive) >= 0)
+			return leaf;
+		return left == null ? null : rightmost(left);
+	}
+
+	/* the leaf holding the least key above (or at) key, see below */
+	static Leaf above(Node node, long key, boolean inclusive){
+		Node right = null;
+		while(node instanceof Branch)
+			{
+			Branch b = (Branch) node;
+			int i = b.childIndex(key);
+			if(i < b.len - 1)
+				right = b.children[i + 1];
+			node = b.children[i];
+			}
+		Leaf leaf = (Leaf) node;
+		if(leaf.above(key, inclusive) < leaf.len)
+			return leaf;
+		return right == null ? null : leftmost(right);
+	}
+
+	static Node assoc(AtomicReference<Thread> edit, Node node, long key, Object val, Box found){
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			int i = leaf.indexOf(key);
+			if(i >= 0)
+				{
+				found.val = found;
+				if(leaf.vals[i] == val)
+					return leaf;
+				return leaf.set(edit, i, val);
+				}
+			return leaf.insert(edit, -i - 1, key, val);
+			}
+		Branch b = (Branch) node;
+		int i = b.childIndex(key);
+		Node child = b.children[i];
+		return b.fixChild(edit, i, child, assoc(edit, child, key, val, found));
+	}
+
+	static Node without(AtomicReference<Thread> edit, Node node, long key, Box removed){
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			int i = leaf.indexOf(key);
+			if(i < 0)
+				return leaf;
+			removed.val = removed;
+			return leaf.remove(edit, i);
+			}
+		Branch b = (Branch) node;
+		int i = b.childIndex(key);
+		Node child = b.children[i];
+		Node n = without(edit, child, key, removed);
+		if(removed.val == null)
+			return b;
+		return b.fixChild(edit, i, child, n);
+	}
+
+	/*
+	 * Single-pass read-modify-write, f maps the current value (ABSENT if
+	 * missing) to the new one, see APersistentMap.
+	 */
+	static Node update(AtomicReference<Thread> edit, Node node, long key, IFn f, Box added, Box removed){
+		if(node instanceof Leaf)
+			{
+			Leaf leaf = (Leaf) node;
+			int i = leaf.indexOf(key);
+			if(i >= 0)
+				{
+				Object old = leaf.vals[i];
+				Object val = f.invoke(old);
+				if(val == old)
+					return leaf;
+				if(val != ABSENT)
+					return leaf.set(edit, i, val);
+				removed.val = removed;
+				return leaf.remove(edit, i);
+				}
+			Object val = f.invoke(ABSENT);
+			if(val == ABSENT)
+				return leaf;
+			added.val = added;
+			return leaf.insert(edit, -i - 1, key, val);
+			}
+		Branch b = (Branch) node;
+		int i = b.childIndex(key);
+		Node child = b.children[i];
+		return b.fixChild(edit, i, child, update(edit, child, key, f, added, removed));
+	}
+
+	/* see PersistentBTreeMap.fixRoot */
+	static Node fixRoot(AtomicReference<Thread> edit, Node root){
+		if(root.len > MAX)
+			{
+			int mid = root.len / 2;
+			Node left = root.slice(edit, 0, mid);
+			Node right = root.slice(edit, mid, root.len);
+			long[] keys = new long[capacity(edit, 2)];
+			Node[] children = new Node[keys.length];
+			keys[0] = left.keys[0];
+			keys[1] = root.keys[mid];
+			children[0] = left;
+			children[1] = right;
+			return new Branch(edit, 2, keys, children);
+			}
+		if(root.len == 0)
+			return null;
+		if(root instanceof Branch && root.len == 1)
+			return ((Branch) root).children[0];
+		return root;
+	}
+
+	static int capacity(AtomicReference<Thread> edit, int len){
+		// nodes owned by a transient get room to overflow in place
+		return edit == null ? len : Math.max(len, MAX + 1);
+	}
+
+	static abstract class Node implements Serializable {
+		final AtomicReference<Thread> edit;
+		int len;
+		long[] keys;
+
+		Node(AtomicReference<Thread> edit, int len, long[] keys){
+			this.edit = edit;
+			this.len = len;
+			this.keys = keys;
+		}
+
+		boolean owned(AtomicReference<Thread> edit){
+			return edit != null && this.edit == edit;
+		}
+
+		/* a new node holding the entries from..to */
+		abstract Node slice(AtomicReference<Thread> edit, int from, int to);
+
+		/* a new node holding the entries of this node followed by right's */
+		abstract Node concat(AtomicReference<Thread> edit, Node right, long separator);
+	}
+
+	final static class Leaf extends Node {
+		Object[] vals;
+
+		Leaf(AtomicReference<Thread> edit, int len, long[] keys, Object[] vals){
+			super(edit, len, keys);
+			this.vals = vals;
+		}
+
+		int indexOf(long key){
+			int lo = 0;
+			int hi = len - 1;
+			while(lo <= hi)
+				{
+				int mid = (lo + hi) >>> 1;
+				long k = keys[mid];
+				if(key < k)
+					hi = mid - 1;
+				else if(key > k)
+					lo = mid + 1;
+				else
+					return mid;
+				}
+			return -(lo + 1);
+		}
+
+		/* index of the greatest key below (or at) key, -1 if none */
+		int below(long key, boolean inclusive){
+			int i = indexOf(key);
+			if(i >= 0)
+				return inclusive ? i : i - 1;
+			return -i - 2;
+		}
+
+		/* index of the least key above (or at) key, len if none */
+		int above(long key, boolean inclusive){
+			int i = indexOf(key);
+			if(i >= 0)
+				return inclusive ? i : i + 1;
+			return -i - 1;
+		}
+
+		Leaf set(AtomicReference<Thread> edit, int i, Object val){
+			if(owned(edit))
+				{
+				vals[i] = val;
+				return this;
+				}
+			int cap = capacity(edit, len);
+			long[] newKeys = new long[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(vals, 0, newVals, 0, len);
+			newVals[i] = val;
+			return new Leaf(edit, len, newKeys, newVals);
+		}
+
+		Leaf insert(AtomicReference<Thread> edit, int i, long key, Object val){
+			if(owned(edit) && len < keys.length)
+				{
+				System.arraycopy(keys, i, keys, i + 1, len - i);
+				System.arraycopy(vals, i, vals, i + 1, len - i);
+				keys[i] = key;
+				vals[i] = val;
+				len++;
+				return this;
+				}
+			int cap = capacity(edit, len + 1);
+			long[] newKeys = new long[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(vals, 0, newVals, 0, i);
+			newKeys[i] = key;
+			newVals[i] = val;
+			System.arraycopy(keys, i, newKeys, i + 1, len - i);
+			System.arraycopy(vals, i, newVals, i + 1, len - i);
+			return new Leaf(edit, len + 1, newKeys, newVals);
+		}
+
+		Leaf remove(AtomicReference<Thread> edit, int i){
+			if(owned(edit))
+				{
+				System.arraycopy(keys, i + 1, keys, i, len - i - 1);
+				System.arraycopy(vals, i + 1, vals, i, len - i - 1);
+				len--;
+				vals[len] = null;
+				return this;
+				}
+			int cap = capacity(edit, len - 1);
+			long[] newKeys = new long[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(vals, 0, newVals, 0, i);
+			System.arraycopy(keys, i + 1, newKeys, i, len - i - 1);
+			System.arraycopy(vals, i + 1, newVals, i, len - i - 1);
+			return new Leaf(edit, len - 1, newKeys, newVals);
+		}
+
+		Node slice(AtomicReference<Thread> edit, int from, int to){
+			int cap = capacity(edit, to - from);
+			long[] newKeys = new long[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, from, newKeys, 0, to - from);
+			System.arraycopy(vals, from, newVals, 0, to - from);
+			return new Leaf(edit, to - from, newKeys, newVals);
+		}
+
+		Node concat(AtomicReference<Thread> edit, Node right, long separator){
+			Leaf r = (Leaf) right;
+			int cap = capacity(edit, len + r.len);
+			long[] newKeys = new long[cap];
+			Object[] newVals = new Object[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(vals, 0, newVals, 0, len);
+			System.arraycopy(r.keys, 0, newKeys, len, r.len);
+			System.arraycopy(r.vals, 0, newVals, len, r.len);
+			return new Leaf(edit, len + r.len, newKeys, newVals);
+		}
+	}
+
+	final static class Branch extends Node {
+		Node[] children;
+
+		Branch(AtomicReference<Thread> edit, int len, long[] keys, Node[] children){
+			super(edit, len, keys);
+			this.children = children;
+		}
+
+		/* the last child whose lower bound is <= key */
+		int childIndex(long key){
+			int lo = 1;
+			int hi = len - 1;
+			while(lo <= hi)
+				{
+				int mid = (lo + hi) >>> 1;
+				if(key < keys[mid])
+					hi = mid - 1;
+				else
+					lo = mid + 1;
+				}
+			return lo - 1;
+		}
+
+		Branch editable(AtomicReference<Thread> edit, int newLen){
+			if(owned(edit) && newLen <= keys.length)
+				return this;
+			int cap = capacity(edit, Math.max(len, newLen));
+			long[] newKeys = new long[cap];
+			Node[] newChildren = new Node[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(children, 0, newChildren, 0, len);
+			return new Branch(edit, len, newKeys, newChildren);
+		}
+
+		/* see PersistentBTreeMap.Branch.fixChild */
+		Branch fixChild(AtomicReference<Thread> edit, int i, Node child, Node n){
+			if(n.len > MAX)
+				{
+				int mid = n.len / 2;
+				Branch b = editable(edit, len + 1);
+				System.arraycopy(b.keys, i + 1, b.keys, i + 2, len - i - 1);
+				System.arraycopy(b.children, i + 1, b.children, i + 2, len - i - 1);
+				b.children[i] = n.slice(edit, 0, mid);
+				b.children[i + 1] = n.slice(edit, mid, n.len);
+				b.keys[i + 1] = n.keys[mid];
+				b.len = len + 1;
+				return b;
+				}
+			if(n.len < MIN)
+				{
+				int j = i > 0 ? i - 1 : i;
+				Node left = j == i ? n : children[j];
+				Node right = j == i ? children[i + 1] : n;
+				Node merged = left.concat(edit, right, keys[j + 1]);
+				if(merged.len <= MAX)
+					{
+					Branch b = owned(edit) ? this : (Branch) slice(edit, 0, len - 1);
+					System.arraycopy(keys, j + 2, b.keys, j + 1, len - j - 2);
+					System.arraycopy(children, j + 2, b.children, j + 1, len - j - 2);
+					b.children[j] = merged;
+					if(b == this)
+						children[len - 1] = null;
+					b.len = len - 1;
+					return b;
+					}
+				int mid = merged.len / 2;
+				Branch b = editable(edit, len);
+				b.children[j] = merged.slice(edit, 0, mid);
+				b.children[j + 1] = merged.slice(edit, mid, merged.len);
+				b.keys[j + 1] = merged.keys[mid];
+				return b;
+				}
+			if(n == child)
+				return this;
+			Branch b = editable(edit, len);
+			b.children[i] = n;
+			return b;
+			}
+
+		Node slice(AtomicReference<Thread> edit, int from, int to){
+			int cap = capacity(edit, to - from);
+			long[] newKeys = new long[cap];
+			Node[] newChildren = new Node[cap];
+			System.arraycopy(keys, from, newKeys, 0, to - from);
+			System.arraycopy(children, from, newChildren, 0, to - from);
+			return new Branch(edit, to - from, newKeys, newChildren);
+		}
+
+		Node concat(AtomicReference<Thread> edit, Node right, long separator){
+			Branch r = (Branch) right;
+			int cap = capacity(edit, len + r.len);
+			long[] newKeys = new long[cap];
+			Node[] newChildren = new Node[cap];
+			System.arraycopy(keys, 0, newKeys, 0, len);
+			System.arraycopy(children, 0, newChildren, 0, len);
+			System.arraycopy(r.keys, 0, newKeys, len, r.len);
+			System.arraycopy(r.children, 0, newChildren, len, r.len);
+			// right's first child is bounded by the parent's separator
+			newKeys[len] = separator;
+			return new Branch(edit, len + r.len, newKeys, newChildren);
+		}
+	}
+
+	/**
+	 * Walks the leaves in either direction, keeping the path of branches and
+	 * child positions in arrays. Besides the boxing {@link #next()} it can be
+	 * driven with {@link #nextKey()} and {@link #val()}:
+	 *
+	 * <pre>
+	 * for(RangeIterator&lt;V&gt; it = m.range(from, to); it.hasNext();)
+	 * 	{
+	 * 	long k = it.nextKey();
+	 * 	V v = it.val();
+	 * 	}
+	 * </pre>
+	 */
+	public static final class RangeIterator<V> implements Iterator<Map.Entry<Long, V>> {
+		final Branch[] stack;
+		final int[] pos;
+		final int step;
+		final boolean bounded;
+		final long limit;
+		Leaf leaf;
+		int i;
+		Object val;
+
+		RangeIterator(Node root, boolean ascending){
+			this.step = ascending ? 1 : -1;
+			this.bounded = false;
+			this.limit = 0;
+			int height = height(root);
+			this.stack = new Branch[height];
+			this.pos = new int[height];
+			if(root != null)
+				descend(0, root);
+		}
+
+		RangeIterator(Node root, long key, boolean ascending){
+			this(root, key, ascending, false, 0);
+		}
+
+		RangeIterator(Node root, long from, boolean ascending, long to){
+			this(root, from, ascending, true, to);
+		}
+
+		private RangeIterator(Node root, long key, boolean ascending, boolean bounded, long limit){
+			this.step = ascending ? 1 : -1;
+			this.bounded = bounded;
+			this.limit = limit;
+			int height = height(root);
+			this.stack = new Branch[height];
+			this.pos = new int[height];
+			if(root == null)
+				return;
+			Node n = root;
+			for(int d = 0; d < height; d++)
+				{
+				Branch b = (Branch) n;
+				stack[d] = b;
+				pos[d] = b.childIndex(key);
+				n = b.children[pos[d]];
+				}
+			leaf = (Leaf) n;
+			i = ascending ? leaf.above(key, true) : leaf.below(key, true);
+			if(i < 0 || i >= leaf.len)
+				{
+				i = ascending ? leaf.len - 1 : 0;
+				advance();
+				}
+			else
+				checkLimit();
+		}
+
+		static int height(Node root){
+			int h = 0;
+			for(Node n = root; n instanceof Branch; n = ((Branch) n).children[0])
+				h++;
+			return h;
+		}
+
+		void descend(int d, Node n){
+			for(; d < stack.length; d++)
+				{
+				Branch b = (Branch) n;
+				stack[d] = b;
+				pos[d] = step > 0 ? 0 : b.len - 1;
+				n = b.children[pos[d]];
+				}
+			leaf = (Leaf) n;
+			i = step > 0 ? 0 : leaf.len - 1;
+		}
+
+		void advance(){
+			i += step;
+			if(i >= 0 && i < leaf.len)
+				{
+				checkLimit();
+				return;
+				}
+			for(int d = stack.length - 1; d >= 0; d--)
+				{
+				int p = pos[d] + step;
+				if(p >= 0 && p < stack[d].len)
+					{
+					pos[d] = p;
+					descend(d + 1, stack[d].children[p]);
+					checkLimit();
+					return;
+					}
+				}
+			leaf = null;
+		}
+
+		void checkLimit(){
+			if(bounded && (step > 0 ? leaf.keys[i] >= limit : leaf.keys[i] <= limit))
+				leaf = null;
+		}
+
+		public boolean hasNext(){
+			return leaf != null;
+		}
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return The key of the entry, its value is then available from
+		 *         {@link #val()}.
+		 */
+		public long nextKey(){
+			if(leaf == null)
+				throw new NoSuchElementException();
+			long k = leaf.keys[i];
+			val = leaf.vals[i];
+			advance();
+			return k;
+		}
+
+		/**
+		 * @return The value of the entry last returned by {@link #nextKey()}
+		 *         or {@link #next()}.
+		 */
+		public V val(){
+			return (V) val;
+		}
+
+		void skip(){
+			if(leaf == null)
+				throw new NoSuchElementException();
+			advance();
+		}
+
+		public Map.Entry<Long, V> next(){
+			long k = nextKey();
+			return new MapEntry<Long, V>(k, (V) val);
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public static final class TransientLongBTreeMap<V> extends ATransientMap<Long,V> implements TransientMap<Long, V> {
+		final AtomicReference<Thread> edit;
+		Node root;
+		int count;
+		final Box leafFlag = new Box(null);
+		final Box removedFlag = new Box(null);
+
+		TransientLongBTreeMap(PersistentLongBTreeMap<V> m){
+			this.edit = new AtomicReference<Thread>(Thread.currentThread());
+			this.root = m.root;
+			this.count = m.count;
+		}
+
+		/**
+		 * The primitive counterpart of {@link #plus(Long, Object)}, named
+		 * apart so that calls with a boxed value are not ambiguous.
+		 */
+		public TransientLongBTreeMap<V> plusLong(long key, V val){
+			ensureEditable();
+			return doAssoc(key, val);
+		}
+
+		/**
+		 * The primitive counterpart of {@link #minus(Long)}.
+		 */
+		public TransientLongBTreeMap<V> minus(long key){
+			ensureEditable();
+			return doWithout(key);
+		}
+
+		TransientLongBTreeMap<V> doAssoc(Long key, V val){
+			return doAssoc(key.longValue(), val);
+		}
+
+		TransientLongBTreeMap<V> doAssoc(long key, V val){
+			leafFlag.val = null;
+			Node n = PersistentLongBTreeMap.assoc(edit, root == null ? EMPTY_LEAF : root, key, val, leafFlag);
+			root = fixRoot(edit, n);
+			if(leafFlag.val == null)
+				count++;
+			return this;
+		}
+
+		TransientLongBTreeMap<V> doWithout(Long key){
+			return doWithout(key.longValue());
+		}
+
+		TransientLongBTreeMap<V> doWithout(long key){
+			if(root == null)
+				return this;
+			removedFlag.val = null;
+			Node n = PersistentLongBTreeMap.without(edit, root, key, removedFlag);
+			if(removedFlag.val != null)
+				{
+				root = fixRoot(edit, n);
+				count--;
+				}
+			return this;
+		}
+
+		TransientLongBTreeMap<V> doUpdate(Long key, IFn f){
+			leafFlag.val = null;
+			removedFlag.val = null;
+			Node n = PersistentLongBTreeMap.update(edit, root == null ? EMPTY_LEAF : root, key.longValue(), f, leafFlag, removedFlag);
+			root = fixRoot(edit, n);
+			if(leafFlag.val != null)
+				count++;
+			if(removedFlag.val != null)
+				count--;
+			return this;
+		}
+
+		V doValAt(Long key, V notFound){
+			if(root == null)
+				return notFound;
+			long k = key.longValue();
+			Leaf leaf = leafFor(root, k);
+			int i = leaf.indexOf(k);
+			return i >= 0 ? (V) leaf.vals[i] : notFound;
+		}
+
+		int doCount(){
+			return count;
+		}
+
+		PersistentLongBTreeMap<V> doPersistent(){
+			edit.set(null);
+			return new PersistentLongBTreeMap<V>(null, root, count);
+		}
+
+		void ensureEditable(){
+			Thread owner = edit.get();
+			if(owner == Thread.currentThread())
+				return;
+			if(owner != null)
+				throw new IllegalAccessError("Transient used by non-owner thread");
+			throw new IllegalAccessError("Transient used after persistent! call");
+		}
+
+		public IPersistentCollection persistent(){
+			return persistentMap();
+		}
+
+		@Override
+		public PersistentLongBTreeMap<V> persist(){
+			return (PersistentLongBTreeMap<V>) persistentMap();
+		}
+
+		@Override
+		public TransientMap<Long, V> plus(Long key, V val){
+			return (TransientMap<Long, V>) assoc(key, val);
+		}
+
+		@Override
+		public TransientMap<Long, V> minus(Long key){
+			return (TransientMap<Long, V>) without(key);
+		}
+	}
+
+	@Override
+	public PersistentSortedMap<Long, V> zero(){
+		return (PersistentSortedMap<Long, V>) empty();
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> plus(Long key, V val){
+		return assocLong(key.longValue(), val);
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> plusEx(Long key, V val){
+		return assocEx(key, val);
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> minus(Long key){
+		return without(key.longValue());
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> plusAll(Map<? extends Long, ? extends V> entries){
+		if(entries.isEmpty())
+			return this;
+		TransientLongBTreeMap<V> ret = asTransient();
+		for(Map.Entry<? extends Long, ? extends V> e : entries.entrySet())
+			ret.doAssoc(e.getKey().longValue(), e.getValue());
+		return persistent(ret);
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> minusAll(Collection<? extends Long> keys){
+		if(keys.isEmpty())
+			return this;
+		TransientLongBTreeMap<V> ret = asTransient();
+		for(Long key : keys)
+			ret.doWithout(key.longValue());
+		return persistent(ret);
+	}
+
+	private PersistentLongBTreeMap<V> persistent(TransientLongBTreeMap<V> t){
+		t.edit.set(null);
+		if(t.root == root)
+			return this;
+		return new PersistentLongBTreeMap<V>(_meta, t.root, t.count);
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> update(Long key, IFn f){
+		return doUpdate(key.longValue(), updateFn(f));
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> compute(Long key, IFn f){
+		return doUpdate(key.longValue(), computeFn(key, f));
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> computeIfAbsent(Long key, IFn f){
+		return doUpdate(key.longValue(), computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentLongBTreeMap<V> merge(Long key, V val, IFn f){
+		return doUpdate(key.longValue(), mergeFn(val, f));
+	}
+}
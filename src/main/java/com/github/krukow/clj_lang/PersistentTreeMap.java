@@ -12,12 +12,24 @@ a *   Copyright (c) Rich Hickey. All rights reserved.
 
 package com.github.krukow.clj_lang;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.krukow.clj_ds.PersistentSortedMap;
+import com.github.krukow.clj_ds.TransientMap;
 
 /**
  * Persistent Red Black Tree
@@ -27,7 +39,7 @@ import com.github.krukow.clj_ds.PersistentSortedMap;
  * See Okasaki, Kahrs, Larsen et al
  */
 
-public class PersistentTreeMap<K,V> extends APersistentMap<K,V> implements IObj, Reversible<Map.Entry<K, V>>, Sorted<K>, PersistentSortedMap<K, V>{
+public class PersistentTreeMap<K,V> extends APersistentMap<K,V> implements IObj, Reversible<Map.Entry<K, V>>, Sorted<K>, PersistentSortedMap<K, V>, NavigableMap<K, V>, IEditableCollection<MapEntry<K, V>>{
 
 public final Comparator<K> comp;
 public final Node tree;
@@ -37,12 +49,61 @@ final IPersistentMap _meta;
 final static public PersistentTreeMap EMPTY = new PersistentTreeMap();
 
 static public <K,V> PersistentTreeMap<K,V> create(Map<? extends K,? extends V> other){
-	PersistentTreeMap<K,V> ret = EMPTY;
-	for(Map.Entry<? extends K,? extends V> o : other.entrySet())
+	return create((Comparator<K>) RT.DEFAULT_COMPARATOR, other);
+}
+
+/**
+ * Builds a map of the entries of other, ordered by comp. The entries are
+ * sorted first (on a fork/join pool, for large inputs) and the tree is then
+ * built bottom-up in O(n), rather than by one assoc per entry.
+ */
+static public <K,V> PersistentTreeMap<K,V> create(Comparator<K> comp, Map<? extends K,? extends V> other){
+	int n = other.size();
+	Object[] keys = new Object[n];
+	Object[] vals = new Object[n];
+	int i = 0;
+	for(Map.Entry<? extends K,? extends V> e : other.entrySet())
 		{
-		ret = ret.assoc(o.getKey(), o.getValue());
+		keys[i] = e.getKey();
+		vals[i++] = e.getValue();
 		}
-	return ret;
+	return fromSorted(comp, keys, vals, sortDistinct(comp, keys, vals, n));
+}
+
+/**
+ * Builds a map from entries that are already in strictly ascending key
+ * order under comp, for instance read from a sorted cursor, in O(n) without
+ * sorting.
+ * 
+ * @throws IllegalArgumentException if a key is not greater than the one before it
+ */
+static public <K,V> PersistentTreeMap<K,V> createSorted(Comparator<K> comp, Iterator<? extends Map.Entry<? extends K,? extends V>> entries){
+	ArrayList<Object> keys = new ArrayList<Object>();
+	ArrayList<Object> vals = new ArrayList<Object>();
+	while(entries.hasNext())
+		{
+		Map.Entry<? extends K,? extends V> e = entries.next();
+		checkAscending(comp, keys, e.getKey());
+		keys.add(e.getKey());
+		vals.add(e.getValue());
+		}
+	return fromSorted(comp, keys.toArray(), vals.toArray(), keys.size());
+}
+
+static void checkAscending(Comparator comp, ArrayList<Object> keys, Object key){
+	int n = keys.size();
+	if(n > 0 && comp.compare(keys.get(n - 1), key) >= 0)
+		throw new IllegalArgumentException(String.format("Keys are not in ascending order: %s, %s", keys.get(n - 1), key));
+}
+
+/*
+ * The map of keys[0..n) and vals[0..n), which must be sorted and free of
+ * duplicates.
+ */
+static <K,V> PersistentTreeMap<K,V> fromSorted(Comparator<K> comp, Object[] keys, Object[] vals, int n){
+	if(n == 0)
+		return new PersistentTreeMap<K,V>(null, comp);
+	return new PersistentTreeMap<K,V>(comp, build(keys, vals, 0, n).blacken(), n, null);
 }
 
 public PersistentTreeMap(){
@@ -73,25 +134,22 @@ PersistentTreeMap(IPersistentMap meta, Comparator<K> comp, Node tree, int _count
 }
 
 static public <K,V> PersistentTreeMap<K,V> create(ISeq items){
-	IPersistentMap<K,V> ret = EMPTY;
-	for(; items != null; items = items.next().next())
-		{
-		if(items.next() == null)
-			throw new IllegalArgumentException(String.format("No value supplied for key: %s", items.first()));
-		ret = ret.assoc((K) items.first(), (V) RT.second(items));
-		}
-	return (PersistentTreeMap<K,V>) ret;
+	return create((Comparator<K>) RT.DEFAULT_COMPARATOR, items);
 }
 
 static public <K,V> PersistentTreeMap<K,V> create(Comparator<K> comp, ISeq items){
-	IPersistentMap<K,V> ret = new PersistentTreeMap(comp);
+	ArrayList<Object> keys = new ArrayList<Object>();
+	ArrayList<Object> vals = new ArrayList<Object>();
 	for(; items != null; items = items.next().next())
 		{
 		if(items.next() == null)
 			throw new IllegalArgumentException(String.format("No value supplied for key: %s", items.first()));
-		ret = ret.assoc((K) items.first(), (V) RT.second(items));
+		keys.add(items.first());
+		vals.add(RT.second(items));
 		}
-	return (PersistentTreeMap<K,V>) ret;
+	Object[] ks = keys.toArray();
+	Object[] vs = vals.toArray();
+	return fromSorted(comp, ks, vs, sortDistinct(comp, ks, vs, ks.length));
 }
 
 public boolean containsKey(Object key){
@@ -213,6 +271,15 @@ public Iterator<Map.Entry<K, V>> iteratorFrom(K key) {
 	return new SeqIterator<Map.Entry<K, V>>(seqFrom(key, true));
 }
 
+/**
+ * Returns a cursor on the first entry, see {@link Cursor}. Unlike seqFrom it
+ * keeps its path in one array, allocated up front, and seeks ahead from its
+ * current position.
+ */
+public Cursor<K,V> cursor(){
+	return new TreeCursor<K,V>(this);
+}
+
 public Object kvreduce(IFn f, Object init){
     if(tree != null)
         init = tree.kvreduce(f,init);
@@ -313,6 +380,306 @@ public Node entryAt(K key){
 	return t;
 }
 
+/**
+ * Returns the number of keys in this map that are less than key, i.e. the
+ * index key has, or would have, in the map's ordering. Every branch node
+ * records the size of its subtree, so this is a single O(log n) descent.
+ */
+public int rank(K key){
+	int r = 0;
+	Node t = tree;
+	while(t != null)
+		{
+		int c = doCompare(key, (K) t.key);
+		if(c == 0)
+			return r + treeSize(t.left());
+		else if(c < 0)
+			t = t.left();
+		else
+			{
+			r += treeSize(t.left()) + 1;
+			t = t.right();
+			}
+		}
+	return r;
+}
+
+/**
+ * Returns the entry at index i of the map's ordering, in O(log n).
+ * 
+ * @throws IndexOutOfBoundsException unless 0 <= i < count()
+ */
+public Map.Entry<K,V> nth(int i){
+	if(i < 0 || i >= _count)
+		throw new IndexOutOfBoundsException();
+	Node t = tree;
+	for(;;)
+		{
+		int l = treeSize(t.left());
+		if(i == l)
+			return t;
+		else if(i < l)
+			t = t.left();
+		else
+			{
+			i -= l + 1;
+			t = t.right();
+			}
+		}
+}
+
+/**
+ * Returns the number of keys k with from <= k < to, in O(log n).
+ */
+public int countRange(K from, K to){
+	return Math.max(0, rank(to) - rank(from));
+}
+
+/**
+ * Returns the submap of the entries at indices from (inclusive) to to
+ * (exclusive) of the map's ordering. The result shares all but O(log n)
+ * nodes with this map.
+ * 
+ * @throws IndexOutOfBoundsException unless 0 <= from <= to <= count()
+ */
+public PersistentTreeMap<K,V> slice(int from, int to){
+	if(from < 0 || to > _count || from > to)
+		throw new IndexOutOfBoundsException();
+	if(from == 0 && to == _count)
+		return this;
+	if(from == to)
+		return new PersistentTreeMap<K,V>(meta(), comp);
+	int[] h = new int[1];
+	Node t = take(tree, blackHeight(tree), to, h);
+	t = drop(t, h[0], from, h);
+	return new PersistentTreeMap<K,V>(comp, t.blacken(), to - from, meta());
+}
+
+/*
+ * The entry with the greatest key below key (or the least key above it, if
+ * !below), including key itself if inclusive.
+ */
+private Node nearest(K key, boolean below, boolean inclusive){
+	Node best = null;
+	Node t = tree;
+	while(t != null)
+		{
+		int c = doCompare(key, (K) t.key);
+		if(c == 0 && inclusive)
+			return t;
+		if(below ? c > 0 : c < 0)
+			{
+			best = t;
+			t = below ? t.right() : t.left();
+			}
+		else
+			t = below ? t.left() : t.right();
+		}
+	return best;
+}
+
+private static <K> K keyOrNull(Node t){
+	return t == null ? null : (K) t.key;
+}
+
+public Map.Entry<K,V> lowerEntry(K key){
+	return nearest(key, true, false);
+}
+
+public K lowerKey(K key){
+	return keyOrNull(nearest(key, true, false));
+}
+
+public Map.Entry<K,V> floorEntry(K key){
+	return nearest(key, true, true);
+}
+
+public K floorKey(K key){
+	return keyOrNull(nearest(key, true, true));
+}
+
+public Map.Entry<K,V> ceilingEntry(K key){
+	return nearest(key, false, true);
+}
+
+public K ceilingKey(K key){
+	return keyOrNull(nearest(key, false, true));
+}
+
+public Map.Entry<K,V> higherEntry(K key){
+	return nearest(key, false, false);
+}
+
+public K higherKey(K key){
+	return keyOrNull(nearest(key, false, false));
+}
+
+public Map.Entry<K,V> firstEntry(){
+	return min();
+}
+
+public Map.Entry<K,V> lastEntry(){
+	return max();
+}
+
+public K firstKey(){
+	if(tree == null)
+		throw new NoSuchElementException();
+	return (K) minKey();
+}
+
+public K lastKey(){
+	if(tree == null)
+		throw new NoSuchElementException();
+	return (K) maxKey();
+}
+
+public Map.Entry<K,V> pollFirstEntry(){
+	throw new UnsupportedOperationException();
+}
+
+public Map.Entry<K,V> pollLastEntry(){
+	throw new UnsupportedOperationException();
+}
+
+private PersistentTreeMap<K,V> withTree(Node t){
+	if(t == tree)
+		return this;
+	if(t == null)
+		return new PersistentTreeMap<K,V>(meta(), comp);
+	return new PersistentTreeMap<K,V>(comp, t.blacken(), treeSize(t), meta());
+}
+
+/**
+ * Returns the entries with keys between fromKey and toKey as a new map, in
+ * O(log n): the tree is split at both bounds and the pieces joined, so the
+ * result shares all but O(log n) nodes with this map.
+ */
+public PersistentTreeMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+	if(doCompare(fromKey, toKey) > 0)
+		throw new IllegalArgumentException("fromKey > toKey");
+	int[] h = new int[1];
+	Node t = headTree(tree, blackHeight(tree), toKey, toInclusive, h);
+	return withTree(tailTree(t, h[0], fromKey, fromInclusive, h));
+}
+
+public PersistentTreeMap<K,V> subMap(K fromKey, K toKey){
+	return subMap(fromKey, true, toKey, false);
+}
+
+public PersistentTreeMap<K,V> headMap(K toKey, boolean inclusive){
+	return withTree(headTree(tree, blackHeight(tree), toKey, inclusive, new int[1]));
+}
+
+public PersistentTreeMap<K,V> headMap(K toKey){
+	return headMap(toKey, false);
+}
+
+public PersistentTreeMap<K,V> tailMap(K fromKey, boolean inclusive){
+	return withTree(tailTree(tree, blackHeight(tree), fromKey, inclusive, new int[1]));
+}
+
+public PersistentTreeMap<K,V> tailMap(K fromKey){
+	return tailMap(fromKey, true);
+}
+
+/**
+ * Removes all entries with keys between fromKey and toKey, in O(log n): the
+ * parts of the tree below and above the range are split off and joined.
+ */
+public PersistentTreeMap<K,V> minusRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+	int c = doCompare(fromKey, toKey);
+	if(c > 0)
+		throw new IllegalArgumentException("fromKey > toKey");
+	// an empty range, split at the same key both sides would keep it
+	if(c == 0 && !(fromInclusive && toInclusive))
+		return this;
+	int ht = blackHeight(tree);
+	int[] h = new int[1];
+	Node l = headTree(tree, ht, fromKey, !fromInclusive, h);
+	int hl = h[0];
+	Node r = tailTree(tree, ht, toKey, !toInclusive, h);
+	if(treeSize(l) + treeSize(r) == _count)
+		return this;
+	return withTree(join(l, hl, r, h[0], h));
+}
+
+public PersistentTreeMap<K,V> minusRange(K fromKey, K toKey){
+	return minusRange(fromKey, true, toKey, false);
+}
+
+/**
+ * Returns the same entries ordered by the reverse of this map's comparator.
+ * Unlike the range views this is not a split: the tree is mirrored, which
+ * costs O(n) time and space.
+ */
+public PersistentTreeMap<K,V> descendingMap(){
+	return new PersistentTreeMap<K,V>(Collections.reverseOrder(comp), mirror(tree), _count, meta());
+}
+
+/**
+ * The keys of this map as a persistent sorted set. A set maps each key to
+ * itself, so the tree is copied with its shape and colours kept, in O(n).
+ */
+public PersistentTreeSet<K> navigableKeySet(){
+	return new PersistentTreeSet<K>(null, new PersistentTreeMap<K,K>(comp, keyTree(tree), _count, null));
+}
+
+public PersistentTreeSet<K> descendingKeySet(){
+	return descendingMap().navigableKeySet();
+}
+
+/**
+ * Looks up a batch of keys in one descent of the tree. The keys are sorted
+ * first; each node is then visited at most once, with the sorted batch split
+ * around its key on the way down.
+ * 
+ * @return vals, where vals[i] holds the value of keys[i] or notFound.
+ */
+public V[] getAll(final K[] keys, V[] vals, V notFound){
+	int n = keys.length;
+	if(vals.length < n)
+		throw new IllegalArgumentException("Value array is shorter than key array");
+	Integer[] order = new Integer[n];
+	for(int i = 0; i < n; i++)
+		order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>(){
+		public int compare(Integer i, Integer j){
+			return doCompare(keys[i], keys[j]);
+		}
+	});
+	getAll(tree, order, 0, n, keys, vals, notFound);
+	return vals;
+}
+
+private void getAll(Node t, Integer[] order, int from, int to, K[] keys, Object[] vals, Object notFound){
+	while(from < to)
+		{
+		if(t == null)
+			{
+			for(int k = from; k < to; k++)
+				vals[order[k]] = notFound;
+			return;
+			}
+		K key = (K) t.key;
+		int lo = from, hi = to;
+		while(lo < hi) // first index with keys[order[lo]] >= key
+			{
+			int mid = (lo + hi) >>> 1;
+			if(doCompare(keys[order[mid]], key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+			}
+		int eq = lo;
+		while(eq < to && doCompare(keys[order[eq]], key) == 0)
+			vals[order[eq++]] = t.val();
+		getAll(t.left(), order, from, lo, keys, vals, notFound);
+		from = eq;
+		t = t.right();
+		}
+}
+
 public int doCompare(K k1, K k2){
 //	if(comp != null)
 		return comp.compare(k1, k2);
@@ -340,6 +707,59 @@ Node add(Node t, Object key, Object val, Box found){
 	return t.addRight(ins);
 }
 
+/*
+ * Read-modify-write of a single key: f maps the current value (ABSENT if
+ * missing) to the new one, see APersistentMap. Insertions and replacements
+ * are rebuilt on the way back up; found receives the node holding the key.
+ * Returns t itself when nothing changed and null when the key is to be
+ * removed, which is left to remove().
+ */
+Node update(Node t, Object key, IFn f, Box found){
+	if(t == null)
+		{
+		Object val = f.invoke(ABSENT);
+		if(val == ABSENT)
+			return null;
+		if(val == null)
+			return new Red(key);
+		return new RedVal(key, val);
+		}
+	int c = doCompare((K) key, (K) t.key);
+	if(c == 0)
+		{
+		found.val = t;
+		Object val = f.invoke(t.val());
+		if(val == t.val())
+			return t;
+		if(val == ABSENT)
+			return null;
+		return t.replace(t.key, val, t.left(), t.right());
+		}
+	Node child = c < 0 ? t.left() : t.right();
+	Node upd = update(child, key, f, found);
+	if(upd == child)
+		return t;
+	if(upd == null) //removal below
+		return null;
+	if(found.val == null) //inserted below
+		return c < 0 ? t.addLeft(upd) : t.addRight(upd);
+	if(c < 0)
+		return t.replace(t.key, t.val(), upd, t.right());
+	return t.replace(t.key, t.val(), t.left(), upd);
+}
+
+PersistentTreeMap<K,V> doUpdate(K key, IFn f){
+	Box found = new Box(null);
+	Node t = update(tree, key, f, found);
+	if(t == tree)
+		return this;
+	if(t == null)
+		return without(key);
+	if(found.val == null)
+		return new PersistentTreeMap<K,V>(comp, t.blacken(), _count + 1, meta());
+	return new PersistentTreeMap<K,V>(comp, t, _count, meta());
+}
+
 Node remove(Node t, K key, Box found){
 	if(t == null)
 		return null; //not found indicator
@@ -354,12 +774,12 @@ Node remove(Node t, K key, Box found){
 		return null;
 	if(c < 0)
 		{
-		if(t.left() instanceof Black)
+		if(isBlack(t.left()))
 			return balanceLeftDel(t.key, t.val(), del, t.right());
 		else
 			return red(t.key, t.val(), del, t.right());
 		}
-	if(t.right() instanceof Black)
+	if(isBlack(t.right()))
 		return balanceRightDel(t.key, t.val(), t.left(), del);
 	return red(t.key, t.val(), t.left(), del);
 //		return t.removeLeft(del);
@@ -371,12 +791,12 @@ static Node append(Node left, Node right){
 		return right;
 	else if(right == null)
 		return left;
-	else if(left instanceof Red)
+	else if(isRed(left))
 		{
-		if(right instanceof Red)
+		if(isRed(right))
 			{
 			Node app = append(left.right(), right.left());
-			if(app instanceof Red)
+			if(isRed(app))
 				return red(app.key, app.val(),
 				           red(left.key, left.val(), left.left(), app.left()),
 				           red(right.key, right.val(), app.right(), right.right()));
@@ -386,12 +806,12 @@ static Node append(Node left, Node right){
 		else
 			return red(left.key, left.val(), left.left(), append(left.right(), right));
 		}
-	else if(right instanceof Red)
+	else if(isRed(right))
 		return red(right.key, right.val(), append(left, right.left()), right.right());
 	else //black/black
 		{
 		Node app = append(left.right(), right.left());
-		if(app instanceof Red)
+		if(isRed(app))
 			return red(app.key, app.val(),
 			           black(left.key, left.val(), left.left(), app.left()),
 			           black(right.key, right.val(), app.right(), right.right()));
@@ -401,11 +821,11 @@ static Node append(Node left, Node right){
 }
 
 static Node balanceLeftDel(Object key, Object val, Node del, Node right){
-	if(del instanceof Red)
+	if(isRed(del))
 		return red(key, val, del.blacken(), right);
-	else if(right instanceof Black)
+	else if(isBlack(right))
 		return rightBalance(key, val, del, right.redden());
-	else if(right instanceof Red && right.left() instanceof Black)
+	else if(isRed(right) && isBlack(right.left()))
 		return red(right.left().key, right.left().val(),
 		           black(key, val, del, right.left().left()),
 		           rightBalance(right.key, right.val(), right.left().right(), right.right().redden()));
@@ -414,11 +834,11 @@ static Node balanceLeftDel(Object key, Object val, Node del, Node right){
 }
 
 static Node balanceRightDel(Object key, Object val, Node left, Node del){
-	if(del instanceof Red)
+	if(isRed(del))
 		return red(key, val, left, del.blacken());
-	else if(left instanceof Black)
+	else if(isBlack(left))
 		return leftBalance(key, val, left.redden(), del);
-	else if(left instanceof Red && left.right() instanceof Black)
+	else if(isRed(left) && isBlack(left.right()))
 		return red(left.right().key, left.right().val(),
 		           leftBalance(left.key, left.val(), left.left().redden(), left.right().left()),
 		           black(key, val, left.right().right(), del));
@@ -427,9 +847,9 @@ static Node balanceRightDel(Object key, Object val, Node left, Node del){
 }
 
 static Node leftBalance(Object key, Object val, Node ins, Node right){
-	if(ins instanceof Red && ins.left() instanceof Red)
+	if(isRed(ins) && isRed(ins.left()))
 		return red(ins.key, ins.val(), ins.left().blacken(), black(key, val, ins.right(), right));
-	else if(ins instanceof Red && ins.right() instanceof Red)
+	else if(isRed(ins) && isRed(ins.right()))
 		return red(ins.right().key, ins.right().val(),
 		           black(ins.key, ins.val(), ins.left(), ins.right().left()),
 		           black(key, val, ins.right().right(), right));
@@ -439,9 +859,9 @@ static Node leftBalance(Object key, Object val, Node ins, Node right){
 
 
 static Node rightBalance(Object key, Object val, Node left, Node ins){
-	if(ins instanceof Red && ins.right() instanceof Red)
+	if(isRed(ins) && isRed(ins.right()))
 		return red(ins.key, ins.val(), black(key, val, left, ins.left()), ins.right().blacken());
-	else if(ins instanceof Red && ins.left() instanceof Red)
+	else if(isRed(ins) && isRed(ins.left()))
 		return red(ins.left().key, ins.left().val(),
 		           black(key, val, left, ins.left().left()),
 		           black(ins.key, ins.val(), ins.left().right(), ins.right()));
@@ -457,11 +877,714 @@ Node replace(Node t, K key, Object val){
 	                 c > 0 ? replace(t.right(), key, val) : t.right());
 }
 
-PersistentTreeMap(Comparator comp, Node tree, int count, IPersistentMap meta){
-	this._meta = meta;
-	this.comp = comp;
-	this.tree = tree;
-	this._count = count;
+PersistentTreeMap(Comparator comp, Node tree, int count, IPersistentMap meta){
+	this._meta = meta;
+	this.comp = comp;
+	this.tree = tree;
+	this._count = count;
+}
+
+/*
+ * Join-based building blocks (Blelloch, Ferizovic & Sun, "Just Join for
+ * Parallel Ordered Sets"). join(l, key, val, r) requires every key of l to be
+ * less than key and every key of r to be greater; it walks down the spine of
+ * the taller tree only, so it costs O(|hl - hr|) given the black heights hl
+ * and hr of l and r. Measuring a height walks a spine itself, so the
+ * recursions below measure the root once, pass each subtree's height down
+ * and get the height of every tree they build back in h[0]; that keeps each
+ * join at its O(|hl - hr|). Results may have a red root; callers blacken
+ * before publishing a tree.
+ */
+static int blackHeight(Node t){
+	int h = 0;
+	for(; t != null; t = t.left())
+		if(isBlack(t))
+			h++;
+	return h;
+}
+
+/*
+ * The black height of the children of t, given that of t.
+ */
+static int childHeight(Node t, int ht){
+	return isBlack(t) ? ht - 1 : ht;
+}
+
+static Node join(Node l, int hl, Object key, Object val, Node r, int hr, int[] h){
+	if(hl > hr)
+		{
+		Node t = joinRight(l, hl, key, val, r, hr);
+		h[0] = hl;
+		if(isRed(t) && isRed(t.right()))
+			{
+			h[0]++;
+			return t.blacken();
+			}
+		return t;
+		}
+	if(hr > hl)
+		{
+		Node t = joinLeft(l, hl, key, val, r, hr);
+		h[0] = hr;
+		if(isRed(t) && isRed(t.left()))
+			{
+			h[0]++;
+			return t.blacken();
+			}
+		return t;
+		}
+	if(isRed(l) || isRed(r))
+		{
+		h[0] = hl + 1;
+		return black(key, val, l, r);
+		}
+	h[0] = hl;
+	return red(key, val, l, r);
+}
+
+private static Node joinRight(Node l, int hl, Object key, Object val, Node r, int hr){
+	if(hl == hr && !isRed(l))
+		return red(key, val, l, r);
+	Node nr = joinRight(l.right(), isBlack(l) ? hl - 1 : hl, key, val, r, hr);
+	if(isBlack(l) && isRed(nr) && isRed(nr.right()))
+		return red(nr.key, nr.val(), black(l.key, l.val(), l.left(), nr.left()), nr.right().blacken());
+	return l.replace(l.key, l.val(), l.left(), nr);
+}
+
+private static Node joinLeft(Node l, int hl, Object key, Object val, Node r, int hr){
+	if(hl == hr && !isRed(r))
+		return red(key, val, l, r);
+	Node nl = joinLeft(l, hl, key, val, r.left(), isBlack(r) ? hr - 1 : hr);
+	if(isBlack(r) && isRed(nl) && isRed(nl.left()))
+		return red(nl.key, nl.val(), nl.left().blacken(), black(r.key, r.val(), nl.right(), r.right()));
+	return r.replace(r.key, r.val(), nl, r.right());
+}
+
+/*
+ * Joins two trees where every key of l is less than every key of r.
+ */
+static Node join(Node l, int hl, Node r, int hr, int[] h){
+	if(l == null)
+		{
+		h[0] = hr;
+		return r;
+		}
+	if(r == null)
+		{
+		h[0] = hl;
+		return l;
+		}
+	Box max = new Box(null);
+	Node rest = removeMax(l, hl, max, h);
+	Node m = (Node) max.val;
+	return join(rest, h[0], m.key, m.val(), r, hr, h);
+}
+
+/*
+ * Each level joins trees whose heights differ by at most one, so this is
+ * O(log n) in all.
+ */
+private static Node removeMax(Node t, int ht, Box max, int[] h){
+	int hc = childHeight(t, ht);
+	if(t.right() == null)
+		{
+		max.val = t;
+		h[0] = hc;
+		return t.left();
+		}
+	Node r = removeMax(t.right(), hc, max, h);
+	return join(t.left(), hc, t.key, t.val(), r, h[0], h);
+}
+
+static int treeSize(Node t){
+	return t == null ? 0 : t.treeSize();
+}
+
+/*
+ * The first n entries of t. Splitting by index joins one node per level on
+ * the way back up; the join costs telescope to O(log n) in total.
+ */
+private static Node take(Node t, int ht, int n, int[] h){
+	if(t == null || n <= 0)
+		{
+		h[0] = 0;
+		return null;
+		}
+	if(n >= t.treeSize())
+		{
+		h[0] = ht;
+		return t;
+		}
+	int hc = childHeight(t, ht);
+	int l = treeSize(t.left());
+	if(n <= l)
+		return take(t.left(), hc, n, h);
+	Node r = take(t.right(), hc, n - l - 1, h);
+	return join(t.left(), hc, t.key, t.val(), r, h[0], h);
+}
+
+/*
+ * All but the first n entries of t.
+ */
+private static Node drop(Node t, int ht, int n, int[] h){
+	if(t == null || n <= 0)
+		{
+		h[0] = ht;
+		return t;
+		}
+	if(n >= t.treeSize())
+		{
+		h[0] = 0;
+		return null;
+		}
+	int hc = childHeight(t, ht);
+	int l = treeSize(t.left());
+	if(n > l)
+		return drop(t.right(), hc, n - l - 1, h);
+	Node nl = drop(t.left(), hc, n, h);
+	return join(nl, h[0], t.key, t.val(), t.right(), hc, h);
+}
+
+/*
+ * The entries of t with keys below key (up to and including key, if
+ * inclusive). Like take, this joins one node per level on the way back up.
+ */
+private Node headTree(Node t, int ht, K key, boolean inclusive, int[] h){
+	if(t == null)
+		{
+		h[0] = 0;
+		return null;
+		}
+	int hc = childHeight(t, ht);
+	int c = doCompare(key, (K) t.key);
+	if(c < 0)
+		return headTree(t.left(), hc, key, inclusive, h);
+	if(c == 0 && !inclusive)
+		{
+		h[0] = hc;
+		return t.left();
+		}
+	Node r = c == 0 ? null : headTree(t.right(), hc, key, inclusive, h);
+	if(r == t.right())
+		{
+		h[0] = ht;
+		return t;
+		}
+	return join(t.left(), hc, t.key, t.val(), r, r == null ? 0 : h[0], h);
+}
+
+/*
+ * The entries of t with keys above key (from and including key, if
+ * inclusive).
+ */
+private Node tailTree(Node t, int ht, K key, boolean inclusive, int[] h){
+	if(t == null)
+		{
+		h[0] = 0;
+		return null;
+		}
+	int hc = childHeight(t, ht);
+	int c = doCompare(key, (K) t.key);
+	if(c > 0)
+		return tailTree(t.right(), hc, key, inclusive, h);
+	if(c == 0 && !inclusive)
+		{
+		h[0] = hc;
+		return t.right();
+		}
+	Node l = c == 0 ? null : tailTree(t.left(), hc, key, inclusive, h);
+	if(l == t.left())
+		{
+		h[0] = ht;
+		return t;
+		}
+	return join(l, l == null ? 0 : h[0], t.key, t.val(), t.right(), hc, h);
+}
+
+static Node mirror(Node t){
+	if(t == null)
+		return null;
+	return t.replace(t.key, t.val(), mirror(t.right()), mirror(t.left()));
+}
+
+static Node keyTree(Node t){
+	if(t == null)
+		return null;
+	return t.replace(t.key, t.key, keyTree(t.left()), keyTree(t.right()));
+}
+
+/*
+ * Builds a balanced tree from keys[from..to) (and vals, if not null), which
+ * must be sorted and free of duplicates, in O(to - from). Nodes on the
+ * deepest, incomplete level are red, all others black.
+ */
+static Node build(Object[] keys, Object[] vals, int from, int to){
+	int level = 0;
+	for(int m = to - from - 1; m >= 0; m = m / 2 - 1)
+		level++;
+	return build(keys, vals, 0, from, to - 1, level);
+}
+
+private static Node build(Object[] keys, Object[] vals, int level, int lo, int hi, int redLevel){
+	if(hi < lo)
+		return null;
+	int mid = (lo + hi) >>> 1;
+	Node left = build(keys, vals, level + 1, lo, mid - 1, redLevel);
+	Node right = build(keys, vals, level + 1, mid + 1, hi, redLevel);
+	Object val = vals == null ? null : vals[mid];
+	if(level == redLevel)
+		return red(keys[mid], val, left, right);
+	return black(keys[mid], val, left, right);
+}
+
+/*
+ * Index of the first of keys[from..to) (sorted) that is not less than key.
+ */
+private int lowerBound(Object[] keys, int from, int to, Object key){
+	while(from < to)
+		{
+		int mid = (from + to) >>> 1;
+		if(doCompare((K) keys[mid], (K) key) < 0)
+			from = mid + 1;
+		else
+			to = mid;
+		}
+	return from;
+}
+
+/*
+ * Inserts the sorted, duplicate-free batch keys[from..to) into t, splitting
+ * the batch around each node key; untouched subtrees are shared and every
+ * touched node is rebuilt once, by a join.
+ */
+private Node insertAll(Node t, int ht, Object[] keys, Object[] vals, int from, int to, int[] added, int[] h){
+	if(from == to)
+		{
+		h[0] = ht;
+		return t;
+		}
+	if(t == null)
+		{
+		added[0] += to - from;
+		Node b = build(keys, vals, from, to);
+		h[0] = blackHeight(b);
+		return b;
+		}
+	int hc = childHeight(t, ht);
+	int lo = lowerBound(keys, from, to, t.key);
+	int hi = (lo < to && doCompare((K) keys[lo], (K) t.key) == 0) ? lo + 1 : lo;
+	Node l = insertAll(t.left(), hc, keys, vals, from, lo, added, h);
+	int hl = h[0];
+	Node r = insertAll(t.right(), hc, keys, vals, hi, to, added, h);
+	Object val = hi > lo ? vals[lo] : t.val();
+	if(l == t.left() && r == t.right() && val == t.val())
+		{
+		h[0] = ht;
+		return t;
+		}
+	return join(l, hl, t.key, val, r, h[0], h);
+}
+
+private Node removeAll(Node t, int ht, Object[] keys, int from, int to, int[] removed, int[] h){
+	if(from == to || t == null)
+		{
+		h[0] = ht;
+		return t;
+		}
+	int hc = childHeight(t, ht);
+	int lo = lowerBound(keys, from, to, t.key);
+	int hi = lo;
+	while(hi < to && doCompare((K) keys[hi], (K) t.key) == 0)
+		hi++;
+	Node l = removeAll(t.left(), hc, keys, from, lo, removed, h);
+	int hl = h[0];
+	Node r = removeAll(t.right(), hc, keys, hi, to, removed, h);
+	if(hi > lo)
+		{
+		removed[0]++;
+		return join(l, hl, r, h[0], h);
+		}
+	if(l == t.left() && r == t.right())
+		{
+		h[0] = ht;
+		return t;
+		}
+	return join(l, hl, t.key, t.val(), r, h[0], h);
+}
+
+/*
+ * Sorts the batch (stable, so of two keys comparing equal the later wins,
+ * or the earlier if there are no vals, as when adding to a set) and drops
+ * duplicates in place; returns the number of distinct keys left.
+ */
+private int sortBatch(Object[] keys, Object[] vals){
+	return sortDistinct(comp, keys, vals, keys.length);
+}
+
+static int sortDistinct(Comparator comp, Object[] keys, Object[] vals, int n){
+	if(n == 0)
+		return 0;
+	Object[] tk = new Object[n];
+	Object[] tv = vals == null ? null : new Object[n];
+	MergeSort sort = new MergeSort(comp, keys, vals, tk, tv, 0, n);
+	if(n < MergeSort.PARALLEL)
+		MergeSort.sort(comp, keys, vals, tk, tv, 0, n);
+	else if(ForkJoinTask.inForkJoinPool())
+		sort.invoke();
+	else
+		pool().invoke(sort);
+	int m = 1;
+	for(int i = 1; i < n; i++)
+		{
+		if(comp.compare(keys[m - 1], keys[i]) == 0)
+			{
+			if(vals == null)
+				continue;
+			m--;
+			}
+		keys[m] = keys[i];
+		if(vals != null)
+			vals[m] = vals[i];
+		m++;
+		}
+	return m;
+}
+
+/*
+ * Stable merge sort of keys[lo..hi), moving vals (if not null) along. Two
+ * adjacent runs that are already in order are recognised with a single
+ * comparison, so sorted input costs O(n). Ranges of PARALLEL or more
+ * entries sort their halves as separate fork/join tasks.
+ */
+static final class MergeSort extends RecursiveAction{
+	static final int PARALLEL = 1 << 13;
+
+	final Comparator comp;
+	final Object[] keys;
+	final Object[] vals;
+	final Object[] tk;
+	final Object[] tv;
+	final int lo;
+	final int hi;
+
+	MergeSort(Comparator comp, Object[] keys, Object[] vals, Object[] tk, Object[] tv, int lo, int hi){
+		this.comp = comp;
+		this.keys = keys;
+		this.vals = vals;
+		this.tk = tk;
+		this.tv = tv;
+		this.lo = lo;
+		this.hi = hi;
+	}
+
+	protected void compute(){
+		if(hi - lo < PARALLEL)
+			{
+			sort(comp, keys, vals, tk, tv, lo, hi);
+			return;
+			}
+		int mid = (lo + hi) >>> 1;
+		invokeAll(new MergeSort(comp, keys, vals, tk, tv, lo, mid),
+		          new MergeSort(comp, keys, vals, tk, tv, mid, hi));
+		merge(comp, keys, vals, tk, tv, lo, mid, hi);
+	}
+
+	static void sort(Comparator comp, Object[] keys, Object[] vals, Object[] tk, Object[] tv, int lo, int hi){
+		if(hi - lo <= 16)
+			{
+			for(int i = lo + 1; i < hi; i++)
+				{
+				Object k = keys[i];
+				Object v = vals == null ? null : vals[i];
+				int j = i;
+				for(; j > lo && comp.compare(keys[j - 1], k) > 0; j--)
+					{
+					keys[j] = keys[j - 1];
+					if(vals != null)
+						vals[j] = vals[j - 1];
+					}
+				keys[j] = k;
+				if(vals != null)
+					vals[j] = v;
+				}
+			return;
+			}
+		int mid = (lo + hi) >>> 1;
+		sort(comp, keys, vals, tk, tv, lo, mid);
+		sort(comp, keys, vals, tk, tv, mid, hi);
+		merge(comp, keys, vals, tk, tv, lo, mid, hi);
+	}
+
+	static void merge(Comparator comp, Object[] keys, Object[] vals, Object[] tk, Object[] tv, int lo, int mid, int hi){
+		if(comp.compare(keys[mid - 1], keys[mid]) <= 0)
+			return;
+		System.arraycopy(keys, lo, tk, lo, mid - lo);
+		if(vals != null)
+			System.arraycopy(vals, lo, tv, lo, mid - lo);
+		int i = lo, j = mid, k = lo;
+		while(i < mid && j < hi)
+			{
+			if(comp.compare(keys[j], tk[i]) < 0)
+				{
+				keys[k] = keys[j];
+				if(vals != null)
+					vals[k] = vals[j];
+				j++;
+				}
+			else
+				{
+				keys[k] = tk[i];
+				if(vals != null)
+					vals[k] = tv[i];
+				i++;
+				}
+			k++;
+			}
+		System.arraycopy(tk, i, keys, k, mid - i);
+		if(vals != null)
+			System.arraycopy(tv, i, vals, k, mid - i);
+	}
+}
+
+private static class PoolHolder{
+	static final ForkJoinPool POOL = new ForkJoinPool();
+}
+
+/*
+ * The pool bulk operations fork onto; created on first use.
+ */
+static ForkJoinPool pool(){
+	return PoolHolder.POOL;
+}
+
+public PersistentTreeMap<K,V> plusAll(Map<? extends K, ? extends V> entries){
+	int n = entries.size();
+	if(n == 0)
+		return this;
+	Object[] keys = new Object[n];
+	Object[] vals = new Object[n];
+	int i = 0;
+	for(Map.Entry<? extends K, ? extends V> e : entries.entrySet())
+		{
+		keys[i] = e.getKey();
+		vals[i++] = e.getValue();
+		}
+	int m = sortBatch(keys, vals);
+	int[] added = new int[1];
+	Node t = insertAll(tree, blackHeight(tree), keys, vals, 0, m, added, new int[1]);
+	if(t == tree)
+		return this;
+	return new PersistentTreeMap<K,V>(comp, t.blacken(), _count + added[0], meta());
+}
+
+public PersistentTreeMap<K,V> minusAll(Collection<? extends K> keys){
+	if(keys.isEmpty() || _count == 0)
+		return this;
+	Object[] ks = keys.toArray();
+	int m = sortBatch(ks, null);
+	int[] removed = new int[1];
+	Node t = removeAll(tree, blackHeight(tree), ks, 0, m, removed, new int[1]);
+	if(removed[0] == 0)
+		return this;
+	if(t == null)
+		return new PersistentTreeMap<K,V>(meta(), comp);
+	return new PersistentTreeMap<K,V>(comp, t.blacken(), _count - removed[0], meta());
+}
+
+/**
+ * Returns the entries of both maps; where a key is in both, the value from
+ * other wins. Like the other set operations this splits other around the
+ * root of this map and recurses on both halves, in O(m log(n/m + 1)) for
+ * maps of sizes m <= n, and forks the halves onto a fork/join pool when
+ * the maps are large. If other is ordered by a different comparator it is
+ * rebuilt under this map's first.
+ */
+public PersistentTreeMap<K,V> union(PersistentTreeMap<K,? extends V> other){
+	return setOp(SetOp.UNION, null, other);
+}
+
+/**
+ * Returns the entries of both maps; where a key is in both, its value is
+ * f.invoke(thisVal, otherVal).
+ */
+public PersistentTreeMap<K,V> mergeWith(PersistentTreeMap<K,? extends V> other, IFn f){
+	return setOp(SetOp.UNION, f, other);
+}
+
+/**
+ * Returns the entries of this map whose keys are also in other.
+ */
+public PersistentTreeMap<K,V> intersection(PersistentTreeMap<K,?> other){
+	return setOp(SetOp.INTERSECTION, null, other);
+}
+
+/**
+ * Returns the entries of this map whose keys are not in other.
+ */
+public PersistentTreeMap<K,V> difference(PersistentTreeMap<K,?> other){
+	return setOp(SetOp.DIFFERENCE, null, other);
+}
+
+private PersistentTreeMap<K,V> setOp(int op, IFn f, PersistentTreeMap<K,?> other){
+	Node t2 = comp.equals(other.comp) ? other.tree : create(comp, other).tree;
+	SetOp task = new SetOp(comp, op, f, tree, blackHeight(tree), t2, blackHeight(t2));
+	Node t;
+	if(treeSize(tree) + treeSize(t2) < SetOp.PARALLEL)
+		t = task.compute();
+	else if(ForkJoinTask.inForkJoinPool())
+		t = task.invoke();
+	else
+		t = pool().invoke(task);
+	return withTree(t);
+}
+
+/*
+ * Splits t, of black height ht, around key: lr[0] and lr[1] receive the
+ * entries below and above key and hs[0] and hs[1] their black heights, and
+ * the node holding key itself, if any, is returned. h is scratch for join.
+ */
+static Node split(Comparator comp, Node t, int ht, Object key, Node[] lr, int[] hs, int[] h){
+	if(t == null)
+		{
+		lr[0] = lr[1] = null;
+		hs[0] = hs[1] = 0;
+		return null;
+		}
+	int hc = childHeight(t, ht);
+	int c = comp.compare(key, t.key);
+	if(c == 0)
+		{
+		lr[0] = t.left();
+		lr[1] = t.right();
+		hs[0] = hs[1] = hc;
+		return t;
+		}
+	if(c < 0)
+		{
+		Node found = split(comp, t.left(), hc, key, lr, hs, h);
+		lr[1] = join(lr[1], hs[1], t.key, t.val(), t.right(), hc, h);
+		hs[1] = h[0];
+		return found;
+		}
+	Node found = split(comp, t.right(), hc, key, lr, hs, h);
+	lr[0] = join(t.left(), hc, t.key, t.val(), lr[0], hs[0], h);
+	hs[0] = h[0];
+	return found;
+}
+
+/*
+ * Union, intersection and difference of two trees (Blelloch, Ferizovic &
+ * Sun). The left halves are forked as a separate task while the combined
+ * size stays at or above PARALLEL and the caller runs in a fork/join pool.
+ */
+static final class SetOp extends RecursiveTask<Node>{
+	static final int UNION = 0;
+	static final int INTERSECTION = 1;
+	static final int DIFFERENCE = 2;
+	static final int PARALLEL = 1 << 12;
+
+	final Comparator comp;
+	final int op;
+	final IFn f;
+	final Node t1;
+	final int h1;
+	final Node t2;
+	final int h2;
+	/* the black height of the result, read after join() */
+	int height;
+
+	SetOp(Comparator comp, int op, IFn f, Node t1, int h1, Node t2, int h2){
+		this.comp = comp;
+		this.op = op;
+		this.f = f;
+		this.t1 = t1;
+		this.h1 = h1;
+		this.t2 = t2;
+		this.h2 = h2;
+	}
+
+	protected Node compute(){
+		int[] h = new int[1];
+		Node t = run(t1, h1, t2, h2, h);
+		height = h[0];
+		return t;
+	}
+
+	/*
+	 * a and b have black heights ha and hb, the result's goes in h[0].
+	 */
+	Node run(Node a, int ha, Node b, int hb, int[] h){
+		if(a == null)
+			{
+			h[0] = op == UNION ? hb : 0;
+			return op == UNION ? b : null;
+			}
+		if(b == null)
+			{
+			h[0] = op == INTERSECTION ? 0 : ha;
+			return op == INTERSECTION ? null : a;
+			}
+		if(a == b && f == null)
+			{
+			// trees sharing structure, as versions of one map do
+			h[0] = op == DIFFERENCE ? 0 : ha;
+			return op == DIFFERENCE ? null : a;
+			}
+		Node[] lr = new Node[2];
+		int[] hs = new int[2];
+		Node found, l1, r1, l2, r2;
+		int hl1, hr1, hl2, hr2;
+		if(op == DIFFERENCE)
+			{
+			found = split(comp, a, ha, b.key, lr, hs, h);
+			l1 = lr[0];
+			r1 = lr[1];
+			hl1 = hs[0];
+			hr1 = hs[1];
+			l2 = b.left();
+			r2 = b.right();
+			hl2 = hr2 = childHeight(b, hb);
+			}
+		else
+			{
+			found = split(comp, b, hb, a.key, lr, hs, h);
+			l1 = a.left();
+			r1 = a.right();
+			hl1 = hr1 = childHeight(a, ha);
+			l2 = lr[0];
+			r2 = lr[1];
+			hl2 = hs[0];
+			hr2 = hs[1];
+			}
+		Node l, r;
+		int hl;
+		if(treeSize(a) + treeSize(b) >= PARALLEL && inForkJoinPool())
+			{
+			SetOp left = new SetOp(comp, op, f, l1, hl1, l2, hl2);
+			left.fork();
+			r = run(r1, hr1, r2, hr2, h);
+			l = left.join();
+			hl = left.height;
+			}
+		else
+			{
+			l = run(l1, hl1, l2, hl2, h);
+			hl = h[0];
+			r = run(r1, hr1, r2, hr2, h);
+			}
+		int hr = h[0];
+		if(op == DIFFERENCE || (op == INTERSECTION && found == null))
+			return PersistentTreeMap.join(l, hl, r, hr, h);
+		Object val = a.val();
+		if(found != null && op == UNION)
+			val = f == null ? found.val() : f.invoke(val, found.val());
+		if(l == a.left() && r == a.right() && val == a.val())
+			{
+			h[0] = ha;
+			return a;
+			}
+		return PersistentTreeMap.join(l, hl, a.key, val, r, hr, h);
+	}
 }
 
 static Red red(Object key, Object val, Node left, Node right){
@@ -488,10 +1611,22 @@ static Black black(Object key, Object val, Node left, Node right){
 	return new BlackBranchVal(key, val, left, right);
 }
 
+static boolean isRed(Node t){
+	return t != null && t.isRed();
+}
+
+static boolean isBlack(Node t){
+	return t != null && !t.isRed();
+}
+
 public IPersistentMap meta(){
 	return _meta;
 }
 
+public TransientTreeMap asTransient(){
+	return new TransientTreeMap<K,V>(this);
+}
+
 static abstract class Node extends AMapEntry{
 	final Object key;
 
@@ -523,6 +1658,10 @@ static abstract class Node extends AMapEntry{
 		return null;
 	}
 
+	int treeSize(){
+		return 1;
+	}
+
 	abstract Node addLeft(Node ins);
 
 	abstract Node addRight(Node ins);
@@ -531,6 +1670,8 @@ static abstract class Node extends AMapEntry{
 
 	abstract Node removeRight(Node del);
 
+	abstract boolean isRed();
+
 	abstract Node blacken();
 
 	abstract Node redden();
@@ -568,6 +1709,10 @@ static class Black extends Node{
 		super(key);
 	}
 
+	boolean isRed(){
+		return false;
+	}
+
 	Node addLeft(Node ins){
 		return ins.balanceLeft(this);
 	}
@@ -621,10 +1766,17 @@ static class BlackBranch extends Black{
 
 	final Node right;
 
+	final int size;
+
 	public BlackBranch(Object key, Node left, Node right){
 		super(key);
 		this.left = left;
 		this.right = right;
+		this.size = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+	}
+
+	int treeSize(){
+		return size;
 	}
 
 	public Node left(){
@@ -664,6 +1816,10 @@ static class Red extends Node{
 		super(key);
 	}
 
+	boolean isRed(){
+		return true;
+	}
+
 	Node addLeft(Node ins){
 		return red(key, val(), ins, right());
 	}
@@ -717,10 +1873,17 @@ static class RedBranch extends Red{
 
 	final Node right;
 
+	final int size;
+
 	public RedBranch(Object key, Node left, Node right){
 		super(key);
 		this.left = left;
 		this.right = right;
+		this.size = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+	}
+
+	int treeSize(){
+		return size;
 	}
 
 	public Node left(){
@@ -732,9 +1895,9 @@ static class RedBranch extends Red{
 	}
 
 	Node balanceLeft(Node parent){
-		if(left instanceof Red)
+		if(PersistentTreeMap.isRed(left))
 			return red(key, val(), left.blacken(), black(parent.key, parent.val(), right, parent.right()));
-		else if(right instanceof Red)
+		else if(PersistentTreeMap.isRed(right))
 			return red(right.key, right.val(), black(key, val(), left, right.left()),
 			           black(parent.key, parent.val(), right.right(), parent.right()));
 		else
@@ -743,9 +1906,9 @@ static class RedBranch extends Red{
 	}
 
 	Node balanceRight(Node parent){
-		if(right instanceof Red)
+		if(PersistentTreeMap.isRed(right))
 			return red(key, val(), black(parent.key, parent.val(), parent.left(), left), right.blacken());
-		else if(left instanceof Red)
+		else if(PersistentTreeMap.isRed(left))
 			return red(left.key, left.val(), black(parent.key, parent.val(), parent.left(), left.left()),
 			           black(key, val(), left.right(), right));
 		else
@@ -777,6 +1940,419 @@ static class RedBranchVal extends RedBranch{
 }
 
 
+/*
+ * A node of a TransientTreeMap. Its colour is a flag rather than its class,
+ * so that the transient can recolour and relink the nodes it owns (those
+ * with its edit) in place; all others are copied first. Once the transient
+ * is made persistent its nodes behave like the immutable ones.
+ */
+static final class EditNode extends Node{
+	final AtomicReference<Thread> edit;
+	Object val;
+	Node left;
+	Node right;
+	boolean red;
+	int size;
+
+	EditNode(AtomicReference<Thread> edit, Object key, Object val, Node left, Node right, boolean red){
+		super(key);
+		this.edit = edit;
+		this.val = val;
+		this.red = red;
+		set(left, right);
+	}
+
+	void set(Node left, Node right){
+		this.left = left;
+		this.right = right;
+		this.size = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+	}
+
+	public Object val(){
+		return val;
+	}
+
+	Node left(){
+		return left;
+	}
+
+	Node right(){
+		return right;
+	}
+
+	int treeSize(){
+		return size;
+	}
+
+	boolean isRed(){
+		return red;
+	}
+
+	Node addLeft(Node ins){
+		return red ? red(key, val, ins, right) : ins.balanceLeft(this);
+	}
+
+	Node addRight(Node ins){
+		return red ? red(key, val, left, ins) : ins.balanceRight(this);
+	}
+
+	Node removeLeft(Node del){
+		return red ? red(key, val, del, right) : balanceLeftDel(key, val, del, right);
+	}
+
+	Node removeRight(Node del){
+		return red ? red(key, val, left, del) : balanceRightDel(key, val, left, del);
+	}
+
+	Node blacken(){
+		return red ? black(key, val, left, right) : this;
+	}
+
+	Node redden(){
+		if(red)
+			throw new UnsupportedOperationException("Invariant violation");
+		return red(key, val, left, right);
+	}
+
+	Node balanceLeft(Node parent){
+		if(red && PersistentTreeMap.isRed(left))
+			return red(key, val, left.blacken(), black(parent.key, parent.val(), right, parent.right()));
+		if(red && PersistentTreeMap.isRed(right))
+			return red(right.key, right.val(), black(key, val, left, right.left()),
+			           black(parent.key, parent.val(), right.right(), parent.right()));
+		return super.balanceLeft(parent);
+	}
+
+	Node balanceRight(Node parent){
+		if(red && PersistentTreeMap.isRed(right))
+			return red(key, val, black(parent.key, parent.val(), parent.left(), left), right.blacken());
+		if(red && PersistentTreeMap.isRed(left))
+			return red(left.key, left.val(), black(parent.key, parent.val(), parent.left(), left.left()),
+			           black(key, val, left.right(), right));
+		return super.balanceRight(parent);
+	}
+
+	Node replace(Object key, Object val, Node left, Node right){
+		return red ? red(key, val, left, right) : black(key, val, left, right);
+	}
+}
+
+/*
+ * Transient counterpart of PersistentTreeMap. add and remove follow the
+ * persistent algorithms above step by step, but every node they would
+ * construct is instead an owned node relinked in place: node(t, ...) reuses
+ * t if this transient owns it and copies it otherwise, so repeated updates
+ * along the same paths stop allocating.
+ */
+static final class TransientTreeMap<K,V> extends ATransientMap<K,V> implements TransientMap<K, V> {
+	final AtomicReference<Thread> edit;
+	final Comparator<K> comp;
+	Node tree;
+	int count;
+	final Box found = new Box(null);
+	final PersistentTreeMap<K,V> source;
+
+	TransientTreeMap(PersistentTreeMap<K,V> m){
+		this.edit = new AtomicReference<Thread>(Thread.currentThread());
+		this.source = m;
+		this.comp = m.comp;
+		this.tree = m.tree;
+		this.count = m._count;
+	}
+
+	EditNode editable(Node t){
+		if(t instanceof EditNode && ((EditNode) t).edit == edit)
+			return (EditNode) t;
+		return new EditNode(edit, t.key, t.val(), t.left(), t.right(), t.isRed());
+	}
+
+	Node node(Node t, boolean red, Node left, Node right){
+		EditNode e = editable(t);
+		e.red = red;
+		e.set(left, right);
+		return e;
+	}
+
+	Node recolor(Node t, boolean red){
+		return node(t, red, t.left(), t.right());
+	}
+
+	Node add(Node t, Object key, Object val){
+		if(t == null)
+			return new EditNode(edit, key, val, null, null, true);
+		int c = comp.compare((K) key, (K) t.key);
+		if(c == 0)
+			{
+			found.val = t;
+			if(t.val() == val)
+				return t;
+			EditNode e = editable(t);
+			e.val = val;
+			return e;
+			}
+		Node child = c < 0 ? t.left() : t.right();
+		Node ins = add(child, key, val);
+		if(found.val != null)
+			{
+			if(ins == child)
+				return t;
+			return c < 0 ? node(t, t.isRed(), ins, t.right()) : node(t, t.isRed(), t.left(), ins);
+			}
+		return c < 0 ? addLeft(t, ins) : addRight(t, ins);
+	}
+
+	// Node.addLeft/balanceLeft
+	Node addLeft(Node t, Node ins){
+		if(!t.isRed() && ins.isRed())
+			{
+			Node il = ins.left(), ir = ins.right();
+			if(isRed(il))
+				{
+				Node a = recolor(il, false);
+				Node b = node(t, false, ir, t.right());
+				return node(ins, true, a, b);
+				}
+			if(isRed(ir))
+				{
+				Node a = node(ins, false, il, ir.left());
+				Node b = node(t, false, ir.right(), t.right());
+				return node(ir, true, a, b);
+				}
+			}
+		return node(t, t.isRed(), ins, t.right());
+	}
+
+	Node addRight(Node t, Node ins){
+		if(!t.isRed() && ins.isRed())
+			{
+			Node il = ins.left(), ir = ins.right();
+			if(isRed(ir))
+				{
+				Node a = node(t, false, t.left(), il);
+				Node b = recolor(ir, false);
+				return node(ins, true, a, b);
+				}
+			if(isRed(il))
+				{
+				Node a = node(t, false, t.left(), il.left());
+				Node b = node(ins, false, il.right(), ir);
+				return node(il, true, a, b);
+				}
+			}
+		return node(t, t.isRed(), t.left(), ins);
+	}
+
+	Node remove(Node t, K key){
+		if(t == null)
+			return null;
+		int c = comp.compare(key, (K) t.key);
+		if(c == 0)
+			{
+			found.val = t;
+			return append(t.left(), t.right());
+			}
+		Node child = c < 0 ? t.left() : t.right();
+		boolean black = isBlack(child);
+		Node del = remove(child, key);
+		if(found.val == null)
+			return null;
+		if(c < 0)
+			return black ? balanceLeftDel(t, del, t.right()) : node(t, true, del, t.right());
+		return black ? balanceRightDel(t, t.left(), del) : node(t, true, t.left(), del);
+	}
+
+	Node append(Node left, Node right){
+		if(left == null)
+			return right;
+		if(right == null)
+			return left;
+		if(left.isRed() && right.isRed())
+			{
+			Node ll = left.left(), rr = right.right();
+			Node app = append(left.right(), right.left());
+			if(isRed(app))
+				{
+				Node al = app.left(), ar = app.right();
+				Node a = node(left, true, ll, al);
+				Node b = node(right, true, ar, rr);
+				return node(app, true, a, b);
+				}
+			return node(left, true, ll, node(right, true, app, rr));
+			}
+		if(left.isRed())
+			return node(left, true, left.left(), append(left.right(), right));
+		if(right.isRed())
+			return node(right, true, append(left, right.left()), right.right());
+		Node ll = left.left(), rr = right.right();
+		Node app = append(left.right(), right.left());
+		if(isRed(app))
+			{
+			Node al = app.left(), ar = app.right();
+			Node a = node(left, false, ll, al);
+			Node b = node(right, false, ar, rr);
+			return node(app, true, a, b);
+			}
+		return balanceLeftDel(left, ll, node(right, false, app, rr));
+	}
+
+	Node balanceLeftDel(Node t, Node del, Node right){
+		if(isRed(del))
+			return node(t, true, recolor(del, false), right);
+		if(isBlack(right))
+			return rightBalance(t, del, recolor(right, true));
+		if(isRed(right) && isBlack(right.left()))
+			{
+			Node rl = right.left(), rll = rl.left(), rlr = rl.right(), rr = right.right();
+			Node a = node(t, false, del, rll);
+			Node b = rightBalance(right, rlr, recolor(rr, true));
+			return node(rl, true, a, b);
+			}
+		throw new UnsupportedOperationException("Invariant violation");
+	}
+
+	Node balanceRightDel(Node t, Node left, Node del){
+		if(isRed(del))
+			return node(t, true, left, recolor(del, false));
+		if(isBlack(left))
+			return leftBalance(t, recolor(left, true), del);
+		if(isRed(left) && isBlack(left.right()))
+			{
+			Node lr = left.right(), lrl = lr.left(), lrr = lr.right(), ll = left.left();
+			Node a = leftBalance(left, recolor(ll, true), lrl);
+			Node b = node(t, false, lrr, del);
+			return node(lr, true, a, b);
+			}
+		throw new UnsupportedOperationException("Invariant violation");
+	}
+
+	Node leftBalance(Node t, Node ins, Node right){
+		if(isRed(ins) && isRed(ins.left()))
+			{
+			Node il = ins.left(), ir = ins.right();
+			Node a = recolor(il, false);
+			Node b = node(t, false, ir, right);
+			return node(ins, true, a, b);
+			}
+		if(isRed(ins) && isRed(ins.right()))
+			{
+			Node il = ins.left(), ir = ins.right(), irl = ir.left(), irr = ir.right();
+			Node a = node(ins, false, il, irl);
+			Node b = node(t, false, irr, right);
+			return node(ir, true, a, b);
+			}
+		return node(t, false, ins, right);
+	}
+
+	Node rightBalance(Node t, Node left, Node ins){
+		if(isRed(ins) && isRed(ins.right()))
+			{
+			Node il = ins.left(), ir = ins.right();
+			Node a = node(t, false, left, il);
+			Node b = recolor(ir, false);
+			return node(ins, true, a, b);
+			}
+		if(isRed(ins) && isRed(ins.left()))
+			{
+			Node il = ins.left(), ill = il.left(), ilr = il.right(), ir = ins.right();
+			Node a = node(t, false, left, ill);
+			Node b = node(ins, false, ilr, ir);
+			return node(il, true, a, b);
+			}
+		return node(t, false, left, ins);
+	}
+
+	void setRoot(Node t){
+		tree = isRed(t) ? recolor(t, false) : t;
+	}
+
+	TransientTreeMap<K,V> doAssoc(K key, V val){
+		found.val = null;
+		Node t = add(tree, key, val);
+		if(found.val == null)
+			count++;
+		setRoot(t);
+		return this;
+	}
+
+	TransientTreeMap<K,V> doWithout(K key){
+		found.val = null;
+		Node t = remove(tree, key);
+		if(found.val == null)
+			return this;
+		count--;
+		setRoot(t);
+		return this;
+	}
+
+	/*
+	 * Unlike the persistent update this looks the key up first and then
+	 * assocs or removes it, as an owned path costs nothing to walk twice.
+	 */
+	TransientTreeMap<K,V> doUpdate(K key, IFn f){
+		V old = doValAt(key, (V) ABSENT);
+		Object val = f.invoke(old);
+		if(val == old)
+			return this;
+		if(val == ABSENT)
+			return doWithout(key);
+		return doAssoc(key, (V) val);
+	}
+
+	V doValAt(K key, V notFound){
+		Node t = tree;
+		while(t != null)
+			{
+			int c = comp.compare(key, (K) t.key);
+			if(c == 0)
+				return (V) t.val();
+			t = c < 0 ? t.left() : t.right();
+			}
+		return notFound;
+	}
+
+	int doCount(){
+		return count;
+	}
+
+	PersistentTreeMap<K,V> doPersistent(){
+		edit.set(null);
+		// nodes of the source are never edited in place, so an unchanged root means no edits
+		if(tree == source.tree && count == source._count)
+			return source;
+		if(tree == null)
+			return new PersistentTreeMap<K,V>(source.meta(), comp);
+		return new PersistentTreeMap<K,V>(comp, tree, count, source.meta());
+	}
+
+	void ensureEditable(){
+		Thread owner = edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	public IPersistentCollection persistent(){
+		return persistentMap();
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> persist(){
+		return (PersistentTreeMap<K, V>) persistentMap();
+	}
+
+	@Override
+	public TransientMap<K, V> plus(K key, V val){
+		return (TransientMap<K, V>) assoc(key, val);
+	}
+
+	@Override
+	public TransientMap<K, V> minus(K key){
+		return (TransientMap<K, V>) without(key);
+	}
+}
+
 static public class Seq extends ASeq{
 	final ISeq stack;
 	final boolean asc;
@@ -871,6 +2447,97 @@ static public class NodeIterator implements Iterator{
 	}
 }
 
+/*
+ * The stack holds the current node on top of the ancestors it lies left
+ * of, so keys decrease towards the top. A seek pops ancestors while they are
+ * still <= the target, which climbs O(log d) levels for a target d entries
+ * ahead, then descends into the right subtree of the last one popped.
+ */
+static final class TreeCursor<K,V> implements Cursor<K,V>{
+	final PersistentTreeMap<K,V> map;
+	final Node[] stack;
+	int top;
+
+	TreeCursor(PersistentTreeMap<K,V> map){
+		this.map = map;
+		// a red-black tree is at most 2 log2(n + 1) high
+		this.stack = new Node[2 * (32 - Integer.numberOfLeadingZeros(map._count + 1))];
+		reset();
+	}
+
+	void push(Node t){
+		while(t != null)
+			{
+			stack[++top] = t;
+			t = t.left();
+			}
+	}
+
+	public void reset(){
+		top = -1;
+		push(map.tree);
+	}
+
+	public boolean atEnd(){
+		return top < 0;
+	}
+
+	public K peekKey(){
+		if(top < 0)
+			throw new NoSuchElementException();
+		return (K) stack[top].key;
+	}
+
+	public V peekVal(){
+		if(top < 0)
+			throw new NoSuchElementException();
+		return (V) stack[top].val();
+	}
+
+	public boolean next(){
+		if(top < 0)
+			return false;
+		Node t = stack[top--];
+		push(t.right());
+		return top >= 0;
+	}
+
+	public boolean seek(K key){
+		if(top < 0)
+			return false;
+		if(map.doCompare(key, (K) stack[top].key) <= 0)
+			return true;
+		while(top > 0)
+			{
+			int c = map.doCompare(key, (K) stack[top - 1].key);
+			if(c < 0)
+				break;
+			top--;
+			if(c == 0)
+				return true;
+			}
+		Node t = stack[top--].right();
+		while(t != null)
+			{
+			int c = map.doCompare(key, (K) t.key);
+			if(c > 0)
+				t = t.right();
+			else
+				{
+				stack[++top] = t;
+				if(c == 0)
+					break;
+				t = t.left();
+				}
+			}
+		return top >= 0;
+	}
+
+	public Comparator<? super K> comparator(){
+		return map.comp;
+	}
+}
+
 static class KeyIterator<K> implements Iterator<K>{
 	NodeIterator it;
 
@@ -931,6 +2598,26 @@ static class ValIterator<T> implements Iterator<T>{
 		return without(key);
 	}
 
+	@Override
+	public PersistentTreeMap<K, V> update(K key, IFn f) {
+		return doUpdate(key, updateFn(f));
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> compute(K key, IFn f) {
+		return doUpdate(key, computeFn(key, f));
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> computeIfAbsent(K key, IFn f) {
+		return doUpdate(key, computeIfAbsentFn(key, f));
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> merge(K key, V val, IFn f) {
+		return doUpdate(key, mergeFn(val, f));
+	}
+
 /*
 static public void main(String args[]){
 	if(args.length != 1)
@@ -12,32 +12,69 @@
 
 package com.github.krukow.clj_lang;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
 
 import com.github.krukow.clj_ds.PersistentSortedSet;
-import com.github.krukow.clj_ds.TransientCollection;
+import com.github.krukow.clj_ds.TransientSet;
 
-public class PersistentTreeSet<T> extends APersistentSet<T> implements IObj, Reversible<T>, Sorted<T>, PersistentSortedSet<T>{
+public class PersistentTreeSet<T> extends APersistentSet<T> implements IObj, Reversible<T>, Sorted<T>, PersistentSortedSet<T>, NavigableSet<T>, IEditableCollection<T>{
 static public final PersistentTreeSet EMPTY = new PersistentTreeSet(null, PersistentTreeMap.EMPTY);
 final IPersistentMap _meta;
 
 
 static public <T> PersistentTreeSet<T> create(ISeq<? extends T> items){
-	PersistentTreeSet<T> ret = EMPTY;
+	return create((Comparator<T>) RT.DEFAULT_COMPARATOR, items);
+}
+
+static public <T> PersistentTreeSet<T> create(Comparator<T> comp, ISeq<? extends T> items){
+	ArrayList<Object> keys = new ArrayList<Object>();
 	for(; items != null; items = items.next())
 		{
-		ret = (PersistentTreeSet<T>) ret.cons(items.first());
+		keys.add(items.first());
 		}
-	return ret;
+	return create(comp, keys.toArray());
 }
 
-static public <T> PersistentTreeSet<T> create(Comparator<T> comp, ISeq<? extends T> items){
-	PersistentTreeSet<T> ret = new PersistentTreeSet<T>(null, new PersistentTreeMap(null, comp));
-	for(; items != null; items = items.next())
+static public <T> PersistentTreeSet<T> create(Iterable<? extends T> init){
+	return create((Comparator<T>) RT.DEFAULT_COMPARATOR, init);
+}
+
+/**
+ * Builds a set of the elements of init, ordered by comp. The elements are
+ * sorted first (on a fork/join pool, for large inputs) and the tree is then
+ * built bottom-up in O(n), rather than by one cons per element.
+ */
+static public <T> PersistentTreeSet<T> create(Comparator<T> comp, Iterable<? extends T> init){
+	ArrayList<Object> keys = new ArrayList<Object>();
+	for(T o : init)
+		keys.add(o);
+	return create(comp, keys.toArray());
+}
+
+private static <T> PersistentTreeSet<T> create(Comparator<T> comp, Object[] keys){
+	int n = PersistentTreeMap.sortDistinct(comp, keys, null, keys.length);
+	return new PersistentTreeSet<T>(null, PersistentTreeMap.fromSorted(comp, keys, keys, n));
+}
+
+/**
+ * Builds a set from elements that are already in strictly ascending order
+ * under comp, in O(n) without sorting.
+ * 
+ * @throws IllegalArgumentException if an element is not greater than the one before it
+ */
+static public <T> PersistentTreeSet<T> createSorted(Comparator<T> comp, Iterator<? extends T> items){
+	ArrayList<Object> keys = new ArrayList<Object>();
+	while(items.hasNext())
 		{
-		ret = (PersistentTreeSet<T>) ret.cons(items.first());
+		T o = items.next();
+		PersistentTreeMap.checkAscending(comp, keys, o);
+		keys.add(o);
 		}
-	return ret;
+	Object[] ks = keys.toArray();
+	return new PersistentTreeSet<T>(null, PersistentTreeMap.fromSorted(comp, ks, ks, ks.length));
 }
 
 PersistentTreeSet(IPersistentMap meta, IPersistentMap impl){
@@ -90,6 +127,152 @@ public ISeq<T> seqFrom(T key, boolean ascending){
 public IPersistentMap meta(){
 	return _meta;
 }
+
+private PersistentTreeMap<T,Object> map(){
+	return (PersistentTreeMap<T,Object>) impl;
+}
+
+/**
+ * Returns a cursor on the first element, see {@link PersistentTreeMap#cursor()}.
+ */
+public Cursor<T,T> cursor(){
+	return ((PersistentTreeMap<T,T>) impl).cursor();
+}
+
+public T lower(T e){
+	return map().lowerKey(e);
+}
+
+public T floor(T e){
+	return map().floorKey(e);
+}
+
+public T ceiling(T e){
+	return map().ceilingKey(e);
+}
+
+public T higher(T e){
+	return map().higherKey(e);
+}
+
+public T first(){
+	return map().firstKey();
+}
+
+public T last(){
+	return map().lastKey();
+}
+
+public T pollFirst(){
+	throw new UnsupportedOperationException();
+}
+
+public T pollLast(){
+	throw new UnsupportedOperationException();
+}
+
+/**
+ * Returns the elements between fromElement and toElement as a new set, in
+ * O(log n); see {@link PersistentTreeMap#subMap(Object, boolean, Object, boolean)}.
+ */
+public PersistentTreeSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive){
+	return new PersistentTreeSet<T>(meta(), map().subMap(fromElement, fromInclusive, toElement, toInclusive));
+}
+
+public PersistentTreeSet<T> subSet(T fromElement, T toElement){
+	return subSet(fromElement, true, toElement, false);
+}
+
+public PersistentTreeSet<T> headSet(T toElement, boolean inclusive){
+	return new PersistentTreeSet<T>(meta(), map().headMap(toElement, inclusive));
+}
+
+public PersistentTreeSet<T> headSet(T toElement){
+	return headSet(toElement, false);
+}
+
+public PersistentTreeSet<T> tailSet(T fromElement, boolean inclusive){
+	return new PersistentTreeSet<T>(meta(), map().tailMap(fromElement, inclusive));
+}
+
+public PersistentTreeSet<T> tailSet(T fromElement){
+	return tailSet(fromElement, true);
+}
+
+/**
+ * Removes all elements between fromElement and toElement, in O(log n).
+ */
+public PersistentTreeSet<T> minusRange(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive){
+	PersistentTreeMap<T,Object> m = map().minusRange(fromElement, fromInclusive, toElement, toInclusive);
+	if(m == impl)
+		return this;
+	return new PersistentTreeSet<T>(meta(), m);
+}
+
+public PersistentTreeSet<T> minusRange(T fromElement, T toElement){
+	return minusRange(fromElement, true, toElement, false);
+}
+
+/**
+ * Returns the elements of either set, in O(m log(n/m + 1)) for sets of
+ * sizes m <= n; see {@link PersistentTreeMap#union(PersistentTreeMap)}.
+ */
+public PersistentTreeSet<T> union(PersistentTreeSet<T> other){
+	return new PersistentTreeSet<T>(meta(), map().union(other.map()));
+}
+
+public PersistentTreeSet<T> intersection(PersistentTreeSet<T> other){
+	return new PersistentTreeSet<T>(meta(), map().intersection(other.map()));
+}
+
+public PersistentTreeSet<T> difference(PersistentTreeSet<T> other){
+	return new PersistentTreeSet<T>(meta(), map().difference(other.map()));
+}
+
+/**
+ * Returns the same elements ordered by the reverse of this set's
+ * comparator, in O(n).
+ */
+public PersistentTreeSet<T> descendingSet(){
+	return new PersistentTreeSet<T>(meta(), map().descendingMap());
+}
+
+public Iterator<T> descendingIterator(){
+	return new SeqIterator<T>(rseq());
+}
+
+/**
+ * Returns the number of elements less than key, in O(log n).
+ */
+public int rank(T key){
+	return map().rank(key);
+}
+
+/**
+ * Returns the element at index i of the set's ordering, in O(log n).
+ * 
+ * @throws IndexOutOfBoundsException unless 0 <= i < count()
+ */
+public T nth(int i){
+	return map().nth(i).getKey();
+}
+
+/**
+ * Returns the number of elements e with from <= e < to, in O(log n).
+ */
+public int countRange(T from, T to){
+	return map().countRange(from, to);
+}
+
+/**
+ * Returns the subset of the elements at indices from (inclusive) to to
+ * (exclusive) of the set's ordering.
+ * 
+ * @throws IndexOutOfBoundsException unless 0 <= from <= to <= count()
+ */
+public PersistentTreeSet<T> slice(int from, int to){
+	return new PersistentTreeSet<T>(meta(), map().slice(from, to));
+}
 	
 	@Override
 	public PersistentSortedSet<T> zero() {
@@ -107,8 +290,42 @@ public IPersistentMap meta(){
 	}
 	
 	@Override
-	public TransientCollection<T> asTransient() {
-		throw new UnsupportedOperationException();
+	public TransientTreeSet<T> asTransient() {
+		return new TransientTreeSet<T>(this);
+	}
+
+static final class TransientTreeSet<T> extends ATransientSet<T> implements TransientSet<T> {
+	final PersistentTreeSet<T> source;
+
+	TransientTreeSet(PersistentTreeSet<T> source) {
+		super(((PersistentTreeMap) source.impl).asTransient());
+		this.source = source;
 	}
 
+	public PersistentTreeSet<T> persistent() {
+		IPersistentMap m = impl.persistentMap();
+		if(m == source.impl)
+			return source;
+		return new PersistentTreeSet<T>(source.meta(), m);
+	}
+
+	@Override
+	public PersistentTreeSet<T> persist() {
+		return persistent();
+	}
+
+	@Override
+	public TransientSet<T> plus(T val) {
+		// like cons, keep the element already there
+		if(contains(val))
+			return this;
+		return (TransientSet<T>) conj(val);
+	}
+
+	@Override
+	public TransientSet<T> minus(T val) {
+		return (TransientSet<T>) disjoin(val);
+	}
+}
+
 }
@@ -0,0 +1,518 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ A HAT trie keyed by bytes. CharSequence keys are encoded as UTF-8, byte[]
+ and ByteBuffer keys are used as they are, the buffer's bytes from position
+ to limit, read in place. Access nodes branch on a byte, so every key fits
+ their 256 children whatever chars it holds, and members iterate in
+ unsigned byte order, which for UTF-8 keys is code point order. As in
+ PersistentHATTrie null stands for no member, so null values are rejected.
+*/
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PersistentUTF8HATTrie<T> implements IObj, Counted, Iterable<Map.Entry<byte[], T>> {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final IPersistentMap meta;
+	final Node<T> root;
+	final int count;
+
+	public static final PersistentUTF8HATTrie EMPTY = new PersistentUTF8HATTrie(null, null, 0);
+
+	/* the number of suffixes a container holds before it bursts into an access node */
+	static final int BURST = 64;
+	/* an access node with this few members below it collapses back into a container */
+	static final int COLLAPSE = BURST / 2;
+
+	PersistentUTF8HATTrie(Node<T> root, IPersistentMap meta, int count) {
+		this.root = root;
+		this.meta = meta;
+		this.count = count;
+	}
+
+	public IPersistentMap meta() {
+		return meta;
+	}
+
+	public PersistentUTF8HATTrie<T> withMeta(IPersistentMap meta) {
+		return new PersistentUTF8HATTrie<T>(root, meta, count);
+	}
+
+	public int count() {
+		return count;
+	}
+
+	private static ByteBuffer utf8(CharSequence s) {
+		return UTF8.encode(CharBuffer.wrap(s));
+	}
+
+	private static interface Node<T> {
+		/* key's bytes from i to end are the ones still to match */
+		Node<T> add(ByteBuffer key, int i, int end, T t, Box addedLeaf);
+		/* null when the last member goes */
+		Node<T> without(ByteBuffer key, int i, int end);
+		T get(ByteBuffer key, int i, int end);
+		int count();
+		Iterator<Map.Entry<byte[], T>> nodeIt(byte[] prefix);
+	}
+
+	private static final class AccessNode<T> implements Node<T> {
+		private final Node<T>[] children;
+		private final T emptyPtr;
+		private final int count;
+
+		AccessNode(Node[] children, T emptyPtr, int count) {
+			this.children = children;
+			this.emptyPtr = emptyPtr;
+			this.count = count;
+		}
+
+		public int count() {
+			return count;
+		}
+
+		public Node<T> add(ByteBuffer key, int i, int end, T t, Box addedLeaf) {
+			if (i == end) {
+				if (Util.equiv(emptyPtr, t)) {
+					return this;
+				}
+				if (emptyPtr == null) {
+					addedLeaf.val = addedLeaf;
+					return new AccessNode<T>(children, t, count + 1);
+				}
+				return new AccessNode<T>(children, t, count);
+			}
+			int b = key.get(i) & 0xff;
+			Node<T> child = children[b];
+			Node<T> newChild;
+			if (child == null) {
+				newChild = ContainerNode.singleton(key, i + 1, end, t);
+				addedLeaf.val = addedLeaf;
+			} else {
+				newChild = child.add(key, i + 1, end, t, addedLeaf);
+				if (newChild == child) {
+					return this;
+				}
+			}
+			Node[] newChildren = children.clone();
+			newChildren[b] = newChild;
+			return new AccessNode<T>(newChildren, emptyPtr, addedLeaf.val != null ? count + 1 : count);
+		}
+
+		public Node<T> without(ByteBuffer key, int i, int end) {
+			Node[] newChildren = children;
+			T empty = emptyPtr;
+			if (i == end) {
+				if (emptyPtr == null) {
+					return this;
+				}
+				empty = null;
+			} else {
+				int b = key.get(i) & 0xff;
+				Node<T> child = children[b];
+				if (child == null) {
+					return this;
+				}
+				Node<T> newChild = child.without(key, i + 1, end);
+				if (newChild == child) {
+					return this;
+				}
+				newChildren = children.clone();
+				newChildren[b] = newChild;
+			}
+			if (count == 1) {
+				return null;
+			}
+			AccessNode<T> node = new AccessNode<T>(newChildren, empty, count - 1);
+			return count - 1 <= COLLAPSE ? ContainerNode.collapse(node) : node;
+		}
+
+		public T get(ByteBuffer key, int i, int end) {
+			if (i == end) {
+				return emptyPtr;
+			}
+			Node<T> child = children[key.get(i) & 0xff];
+			return child == null ? null : child.get(key, i + 1, end);
+		}
+
+		public Iterator<Map.Entry<byte[], T>> nodeIt(final byte[] prefix) {
+			return new Iterator<Map.Entry<byte[], T>>() {
+				int index = emptyPtr != null ? -1 : 0;
+				Iterator<Map.Entry<byte[], T>> current = new EmptyIterator();
+
+				public boolean hasNext() {
+					if (index == -1) {
+						return true;
+					}
+					while (!current.hasNext()) {
+						while (index < children.length && children[index] == null) {
+							index++;
+						}
+						if (index == children.length) {
+							return false;
+						}
+						byte[] childPrefix = Arrays.copyOf(prefix, prefix.length + 1);
+						childPrefix[prefix.length] = (byte) index;
+						current = children[index++].nodeIt(childPrefix);
+					}
+					return true;
+				}
+
+				public Map.Entry<byte[], T> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					if (index == -1) {
+						index = 0;
+						return new MapEntry<byte[], T>(prefix, emptyPtr);
+					}
+					return current.next();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder("(access-node");
+			if (emptyPtr != null) {
+				sb.append(" ** ").append(emptyPtr);
+			}
+			for (int b = 0; b < children.length; b++) {
+				if (children[b] != null) {
+					sb.append(' ').append(b).append(" -> ").append(children[b]);
+				}
+			}
+			return sb.append(')').toString();
+		}
+	}
+
+	/*
+	 The container holds its suffixes sorted by unsigned bytes and packed back
+	 to back in one byte[], suffix k ending at ends[k]. Keys are compared in
+	 place, so lookups allocate nothing.
+	*/
+	private static final class ContainerNode<T> implements Node<T> {
+		private final byte[] bytes;
+		private final int[] ends;
+		private final Object[] vals;
+
+		ContainerNode(byte[] bytes, int[] ends, Object[] vals) {
+			this.bytes = bytes;
+			this.ends = ends;
+			this.vals = vals;
+		}
+
+		static <T> ContainerNode<T> singleton(ByteBuffer key, int i, int end, T t) {
+			byte[] bytes = new byte[end - i];
+			for (int j = 0; j < bytes.length; j++) {
+				bytes[j] = key.get(i + j);
+			}
+			return new ContainerNode<T>(bytes, new int[]{bytes.length}, new Object[]{t});
+		}
+
+		/*
+		 * Packs the members below node back into a single container.
+		 */
+		static <T> ContainerNode<T> collapse(AccessNode<T> node) {
+			int n = node.count();
+			byte[][] keys = new byte[n][];
+			int[] ends = new int[n];
+			Object[] vals = new Object[n];
+			Iterator<Map.Entry<byte[], T>> it = node.nodeIt(new byte[0]);
+			int length = 0;
+			for (int k = 0; k < n; k++) {
+				Map.Entry<byte[], T> e = it.next();
+				keys[k] = e.getKey();
+				length += keys[k].length;
+				ends[k] = length;
+				vals[k] = e.getValue();
+			}
+			byte[] bytes = new byte[length];
+			for (int k = 0; k < n; k++) {
+				System.arraycopy(keys[k], 0, bytes, ends[k] - keys[k].length, keys[k].length);
+			}
+			return new ContainerNode<T>(bytes, ends, vals);
+		}
+
+		public int count() {
+			return vals.length;
+		}
+
+		private int start(int k) {
+			return k == 0 ? 0 : ends[k - 1];
+		}
+
+		private int compare(int k, ByteBuffer key, int i, int end) {
+			int from = start(k);
+			int m = ends[k] - from;
+			int n = end - i;
+			int lim = Math.min(m, n);
+			for (int j = 0; j < lim; j++) {
+				int a = bytes[from + j] & 0xff;
+				int b = key.get(i + j) & 0xff;
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return m - n;
+		}
+
+		/*
+		 * @return the index of key's bytes from i to end, or -(insertion point) - 1
+		 */
+		private int find(ByteBuffer key, int i, int end) {
+			int lo = 0;
+			int hi = vals.length - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = compare(mid, key, i, end);
+				if (c < 0) {
+					lo = mid + 1;
+				} else if (c > 0) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(lo + 1);
+		}
+
+		public Node<T> add(ByteBuffer key, int i, int end, T t, Box addedLeaf) {
+			int k = find(key, i, end);
+			if (k >= 0) {
+				if (Util.equiv(vals[k], t)) {
+					return this;
+				}
+				Object[] newVals = vals.clone();
+				newVals[k] = t;
+				return new ContainerNode<T>(bytes, ends, newVals);
+			}
+			if (vals.length == BURST) {
+				return burst().add(key, i, end, t, addedLeaf);
+			}
+			addedLeaf.val = addedLeaf;
+			k = -k - 1;
+			int n = vals.length;
+			int len = end - i;
+			int at = start(k);
+			byte[] newBytes = new byte[bytes.length + len];
+			System.arraycopy(bytes, 0, newBytes, 0, at);
+			for (int j = 0; j < len; j++) {
+				newBytes[at + j] = key.get(i + j);
+			}
+			System.arraycopy(bytes, at, newBytes, at + len, bytes.length - at);
+			int[] newEnds = new int[n + 1];
+			System.arraycopy(ends, 0, newEnds, 0, k);
+			newEnds[k] = at + len;
+			for (int j = k; j < n; j++) {
+				newEnds[j + 1] = ends[j] + len;
+			}
+			Object[] newVals = new Object[n + 1];
+			System.arraycopy(vals, 0, newVals, 0, k);
+			newVals[k] = t;
+			System.arraycopy(vals, k, newVals, k + 1, n - k);
+			return new ContainerNode<T>(newBytes, newEnds, newVals);
+		}
+
+		public Node<T> without(ByteBuffer key, int i, int end) {
+			int k = find(key, i, end);
+			if (k < 0) {
+				return this;
+			}
+			int n = vals.length;
+			if (n == 1) {
+				return null;
+			}
+			int at = start(k);
+			int len = ends[k] - at;
+			byte[] newBytes = new byte[bytes.length - len];
+			System.arraycopy(bytes, 0, newBytes, 0, at);
+			System.arraycopy(bytes, ends[k], newBytes, at, bytes.length - ends[k]);
+			int[] newEnds = new int[n - 1];
+			System.arraycopy(ends, 0, newEnds, 0, k);
+			for (int j = k + 1; j < n; j++) {
+				newEnds[j - 1] = ends[j] - len;
+			}
+			Object[] newVals = new Object[n - 1];
+			System.arraycopy(vals, 0, newVals, 0, k);
+			System.arraycopy(vals, k + 1, newVals, k, n - k - 1);
+			return new ContainerNode<T>(newBytes, newEnds, newVals);
+		}
+
+		public T get(ByteBuffer key, int i, int end) {
+			int k = find(key, i, end);
+			return k >= 0 ? (T) vals[k] : null;
+		}
+
+		/*
+		 * Suffixes sharing a first byte are contiguous, so each child is a
+		 * slice of this container with that byte dropped.
+		 */
+		private AccessNode<T> burst() {
+			Node[] children = new Node[256];
+			T empty = null;
+			int n = vals.length;
+			int k = 0;
+			if (ends[0] == 0) {
+				empty = (T) vals[0];
+				k = 1;
+			}
+			while (k < n) {
+				byte f = bytes[start(k)];
+				int to = k + 1;
+				while (to < n && bytes[start(to)] == f) {
+					to++;
+				}
+				int[] newEnds = new int[to - k];
+				byte[] newBytes = new byte[ends[to - 1] - start(k) - (to - k)];
+				int at = 0;
+				for (int j = k; j < to; j++) {
+					int len = ends[j] - start(j) - 1;
+					System.arraycopy(bytes, start(j) + 1, newBytes, at, len);
+					at += len;
+					newEnds[j - k] = at;
+				}
+				Object[] newVals = new Object[to - k];
+				System.arraycopy(vals, k, newVals, 0, to - k);
+				children[f & 0xff] = new ContainerNode<T>(newBytes, newEnds, newVals);
+				k = to;
+			}
+			return new AccessNode<T>(children, empty, n);
+		}
+
+		public Iterator<Map.Entry<byte[], T>> nodeIt(final byte[] prefix) {
+			return new Iterator<Map.Entry<byte[], T>>() {
+				int k = 0;
+
+				public boolean hasNext() {
+					return k < vals.length;
+				}
+
+				public Map.Entry<byte[], T> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					int from = start(k);
+					byte[] key = Arrays.copyOf(prefix, prefix.length + ends[k] - from);
+					System.arraycopy(bytes, from, key, prefix.length, ends[k] - from);
+					return new MapEntry<byte[], T>(key, (T) vals[k++]);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder("{");
+			for (int k = 0; k < vals.length; k++) {
+				if (k > 0) {
+					sb.append(", ");
+				}
+				sb.append(new String(bytes, start(k), ends[k] - start(k), UTF8)).append(' ').append(vals[k]);
+			}
+			return sb.append('}').toString();
+		}
+	}
+
+	/**
+	 * @return The member for the bytes of key from its position to its
+	 *         limit, or null. The bytes are read in place and the buffer's
+	 *         position is left alone.
+	 */
+	public T getMember(ByteBuffer key) {
+		if (root == null || key == null) return null;
+		return root.get(key, key.position(), key.limit());
+	}
+
+	public T getMember(byte[] key) {
+		return key == null ? null : getMember(ByteBuffer.wrap(key));
+	}
+
+	/**
+	 * @return The member for the UTF-8 encoding of key, or null.
+	 */
+	public T getMember(CharSequence key) {
+		return key == null ? null : getMember(utf8(key));
+	}
+
+	/**
+	 * Adds the bytes of key from its position to its limit. The trie keeps a
+	 * copy of them, so the buffer may be reused.
+	 */
+	public PersistentUTF8HATTrie<T> addMember(ByteBuffer key, T t) {
+		PersistentHATTrie.checkValue(t);
+		if (root == null) {
+			return new PersistentUTF8HATTrie<T>(ContainerNode.singleton(key, key.position(), key.limit(), t), meta, 1);
+		}
+		Box addedLeaf = new Box(null);
+		Node<T> newRoot = root.add(key, key.position(), key.limit(), t, addedLeaf);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentUTF8HATTrie<T>(newRoot, meta, addedLeaf.val != null ? count + 1 : count);
+	}
+
+	public PersistentUTF8HATTrie<T> addMember(byte[] key, T t) {
+		return addMember(ByteBuffer.wrap(key), t);
+	}
+
+	/**
+	 * Adds the UTF-8 encoding of key.
+	 */
+	public PersistentUTF8HATTrie<T> addMember(CharSequence key, T t) {
+		return addMember(utf8(key), t);
+	}
+
+	public PersistentUTF8HATTrie<T> removeMember(ByteBuffer key) {
+		if (root == null || key == null) {
+			return this;
+		}
+		Node<T> newRoot = root.without(key, key.position(), key.limit());
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentUTF8HATTrie<T>(newRoot, meta, count - 1);
+	}
+
+	public PersistentUTF8HATTrie<T> removeMember(byte[] key) {
+		return key == null ? this : removeMember(ByteBuffer.wrap(key));
+	}
+
+	public PersistentUTF8HATTrie<T> removeMember(CharSequence key) {
+		return key == null ? this : removeMember(utf8(key));
+	}
+
+	/**
+	 * @return The members in unsigned byte order of their keys; decode a key
+	 *         added as a CharSequence with new String(key, "UTF-8").
+	 */
+	public Iterator<Map.Entry<byte[], T>> iterator() {
+		return root != null ? root.nodeIt(new byte[0]) : new EmptyIterator();
+	}
+
+	public String toString() {
+		return root == null ? "{}" : root.toString();
+	}
+}
@@ -170,6 +170,52 @@ private static Node doAssoc(int level, Node node, int i, Object val){
 	return ret;
 }
 
+public PersistentVector<T> update(int i, IFn f){
+	if(i >= 0 && i < cnt)
+		{
+		if(i >= tailoff())
+			{
+			Object old = tail[i & 0x01f];
+			Object val = f.invoke(old);
+			if(val == old)
+				return this;
+			Object[] newTail = new Object[tail.length];
+			System.arraycopy(tail, 0, newTail, 0, tail.length);
+			newTail[i & 0x01f] = val;
+
+			return new PersistentVector<T>(meta(), cnt, shift, root, newTail);
+			}
+
+		Node newroot = doUpdate(shift, root, i, f);
+		if(newroot == root)
+			return this;
+		return new PersistentVector<T>(meta(), cnt, shift, newroot, tail);
+		}
+	if(i == cnt)
+		return cons((T) f.invoke(null));
+	throw new IndexOutOfBoundsException();
+}
+
+private static Node doUpdate(int level, Node node, int i, IFn f){
+	Object val;
+	int subidx;
+	if(level == 0)
+		{
+		subidx = i & 0x01f;
+		val = f.invoke(node.array[subidx]);
+		}
+	else
+		{
+		subidx = (i >>> level) & 0x01f;
+		val = doUpdate(level - 5, (Node) node.array[subidx], i, f);
+		}
+	if(val == node.array[subidx])
+		return node;
+	Node ret = new Node(node.edit,node.array.clone());
+	ret.array[subidx] = val;
+	return ret;
+}
+
 public int count(){
 	return cnt;
 }
@@ -765,6 +811,44 @@ static final class TransientVector<T> extends AFn implements ITransientVector<T>
 		return ret;
 	}
 
+	public TransientVector<T> update(int i, IFn f){
+		ensureEditable();
+		if(i >= 0 && i < cnt)
+			{
+			if(i >= tailoff())
+				{
+				tail[i & 0x01f] = f.invoke(tail[i & 0x01f]);
+				return this;
+				}
+
+			root = doUpdate(shift, root, i, f);
+			return this;
+			}
+		if(i == cnt)
+			return conj(f.invoke(null));
+		throw new IndexOutOfBoundsException();
+	}
+
+	private Node doUpdate(int level, Node node, int i, IFn f){
+		Object val;
+		int subidx;
+		if(level == 0)
+			{
+			subidx = i & 0x01f;
+			val = f.invoke(node.array[subidx]);
+			}
+		else
+			{
+			subidx = (i >>> level) & 0x01f;
+			val = doUpdate(level - 5, (Node) node.array[subidx], i, f);
+			}
+		if(val == node.array[subidx])
+			return node;
+		node = ensureEditable(node);
+		node.array[subidx] = val;
+		return node;
+	}
+
 	public TransientVector<T> pop(){
 		ensureEditable();
 		if(cnt == 0)
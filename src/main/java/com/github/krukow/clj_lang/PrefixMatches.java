@@ -0,0 +1,69 @@
+/**
+ *   Copyright (c) Karl Krukow. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.github.krukow.clj_lang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ The members a trie finds along the path of a query key: every access node
+ passed may hold the key ending there, and the container at the end holds the
+ rest. In reverse the key is read from its last char, for tries holding
+ reversed keys, and the matches are its suffixes. Matches are keyed by the
+ part of the query they cover, so nothing is built for the ones skipped.
+*/
+@SuppressWarnings("unchecked")
+final class PrefixMatches<T> {
+	private final String s;
+	private final boolean reverse;
+	/* null when only the longest match is wanted */
+	private final List<Map.Entry<String, T>> all;
+	private int longest = -1;
+	private Object val;
+
+	PrefixMatches(String s, boolean reverse, boolean all) {
+		this.s = s;
+		this.reverse = reverse;
+		this.all = all ? new ArrayList<Map.Entry<String, T>>() : null;
+	}
+
+	int length() {
+		return s.length();
+	}
+
+	char charAt(int i) {
+		return reverse ? s.charAt(s.length() - 1 - i) : s.charAt(i);
+	}
+
+	/*
+	 * Matches must be found shortest first.
+	 */
+	void found(int length, Object v) {
+		if (all != null) {
+			all.add(new MapEntry<String, T>(key(length), (T) v));
+		}
+		longest = length;
+		val = v;
+	}
+
+	private String key(int length) {
+		return reverse ? s.substring(s.length() - length) : s.substring(0, length);
+	}
+
+	Map.Entry<String, T> longest() {
+		return longest < 0 ? null : new MapEntry<String, T>(key(longest), (T) val);
+	}
+
+	List<Map.Entry<String, T>> all() {
+		return all;
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_lang.FrozenDAWG;
+import com.github.krukow.clj_lang.InlineArrayPersistentHATTrie;
+import com.github.krukow.clj_lang.PersistentHATTrie;
+
+/**
+ * @author krukow
+ *
+ */
+public class FrozenDAWGTest {
+
+	/* words over a few letters with common endings, so suffixes are shared */
+	static String randomWord(Random r) {
+		StringBuilder sb = new StringBuilder();
+		int n = r.nextInt(6);
+		for (int i = 0; i < n; i++) {
+			sb.append((char) ('a' + r.nextInt(5)));
+		}
+		String[] endings = {"", "s", "ing", "ed", "é"};
+		return sb.append(endings[r.nextInt(endings.length)]).toString();
+	}
+
+	static TreeMap<String, Long> randomWords(Random r, int n) {
+		TreeMap<String, Long> words = new TreeMap<String, Long>();
+		for (int i = 0; i < n; i++) {
+			words.put(randomWord(r), r.nextLong());
+		}
+		return words;
+	}
+
+	static void assertSameKeys(Iterator<String> expected, Iterator<String> actual) {
+		while (expected.hasNext()) {
+			assertTrue(actual.hasNext());
+			assertEquals(expected.next(), actual.next());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	static void assertSameDAWG(TreeMap<String, Long> expected, FrozenDAWG dawg, Random r) {
+		assertEquals(expected.size(), dawg.count());
+		assertSameKeys(expected.keySet().iterator(), dawg.iterator());
+		List<String> keys = new ArrayList<String>(expected.keySet());
+		for (int i = 0; i < keys.size(); i++) {
+			assertEquals(i, dawg.rank(keys.get(i)));
+			assertEquals((long) expected.get(keys.get(i)), dawg.output(keys.get(i), -1));
+		}
+		for (int i = 0; i < 2000; i++) {
+			String s = randomWord(r);
+			assertEquals(expected.containsKey(s), dawg.contains(s));
+			String prefix = s.substring(0, r.nextInt(s.length() + 1));
+			List<String> starting = new ArrayList<String>();
+			for (String k : expected.tailMap(prefix).keySet()) {
+				if (!k.startsWith(prefix)) {
+					break;
+				}
+				starting.add(k);
+			}
+			assertEquals(starting.size(), dawg.prefixCount(prefix));
+			assertSameKeys(starting.iterator(), dawg.prefixIterator(prefix));
+		}
+	}
+
+	@Test
+	public final void testLookups() {
+		Random r = new Random(4);
+		TreeMap<String, Long> expected = randomWords(r, 20000);
+		FrozenDAWG dawg = FrozenDAWG.fromEntries(expected.entrySet());
+		assertSameDAWG(expected, dawg, r);
+		assertFalse(dawg.contains("zzz"));
+		assertEquals(42, dawg.output("zzz", 42));
+		assertFalse(dawg.prefixIterator("zz").hasNext());
+
+		FrozenDAWG keys = FrozenDAWG.create(expected.keySet());
+		assertFalse(keys.hasOutputs());
+		assertEquals(dawg.nodeCount(), keys.nodeCount());
+		assertSameKeys(expected.keySet().iterator(), keys.iterator());
+
+		FrozenDAWG empty = FrozenDAWG.create(new ArrayList<String>());
+		assertEquals(0, empty.count());
+		assertFalse(empty.contains(""));
+		assertFalse(empty.iterator().hasNext());
+	}
+
+	@Test
+	public final void testMinimal() {
+		// root -t-> . -a,o-> . -p-> final -s-> final
+		FrozenDAWG dawg = FrozenDAWG.create(Arrays.asList("tap", "taps", "top", "tops"));
+		assertEquals(5, dawg.nodeCount());
+		assertEquals(Arrays.asList(0, 1, 2, 3), Arrays.asList(dawg.rank("tap"), dawg.rank("taps"), dawg.rank("top"), dawg.rank("tops")));
+		assertEquals(-1, dawg.rank("to"));
+		try {
+			new FrozenDAWG.Builder().add("b").add("a");
+			fail("Out of order keys");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new FrozenDAWG.Builder().add("a").add("a");
+			fail("Duplicate keys");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new FrozenDAWG.Builder().add("a").add("b", 1);
+			fail("Mixed outputs");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public final void testBytes() {
+		Random r = new Random(8);
+		TreeMap<String, Long> expected = randomWords(r, 10000);
+		FrozenDAWG dawg = FrozenDAWG.fromEntries(expected.entrySet());
+		byte[] bytes = dawg.toBytes();
+		assertSameDAWG(expected, FrozenDAWG.fromBytes(bytes), r);
+		// read from the middle of a buffer, leaving the position after it
+		ByteBuffer buf = ByteBuffer.allocate(bytes.length + 10);
+		buf.putInt(7).put(bytes).putInt(9);
+		buf.flip();
+		buf.getInt();
+		FrozenDAWG read = FrozenDAWG.read(buf);
+		assertEquals(9, buf.getInt());
+		assertEquals(dawg.nodeCount(), read.nodeCount());
+		FrozenDAWG keys = FrozenDAWG.fromBytes(FrozenDAWG.create(expected.keySet()).toBytes());
+		assertFalse(keys.hasOutputs());
+		assertSameKeys(expected.keySet().iterator(), keys.iterator());
+		try {
+			FrozenDAWG.fromBytes(Arrays.copyOf(bytes, bytes.length / 2));
+			fail("Truncated");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public final void testTries() {
+		Random r = new Random(2);
+		TreeMap<String, Long> expected = randomWords(r, 10000);
+		InlineArrayPersistentHATTrie<Long> map = InlineArrayPersistentHATTrie.create(expected);
+		FrozenDAWG dawg = FrozenDAWG.fromEntries(map);
+		assertSameDAWG(expected, dawg, r);
+		assertEquals(map, dawg.toTrieMap());
+		PersistentHATTrie<Long> trie = dawg.toHATTrie();
+		assertSameDAWG(expected, FrozenDAWG.fromEntries(trie), r);
+		for (Map.Entry<String, Long> e : expected.entrySet()) {
+			assertEquals(e.getValue(), trie.getMember(e.getKey()));
+		}
+		// without outputs keys go to their ranks
+		PersistentHATTrie<Long> ranks = FrozenDAWG.create(expected.keySet()).toHATTrie();
+		long rank = 0;
+		for (String s : expected.keySet()) {
+			assertEquals(Long.valueOf(rank++), ranks.getMember(s));
+		}
+		// the tries hold chars below 256 only, the DAWG any
+		FrozenDAWG wide = FrozenDAWG.create(Arrays.asList("a", "\u4e2d"));
+		assertTrue(wide.contains("\u4e2d"));
+		try {
+			wide.toHATTrie();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			wide.toTrieMap();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+}
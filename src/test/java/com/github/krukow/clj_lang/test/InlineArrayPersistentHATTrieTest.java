@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_ds.PersistentMap;
+import com.github.krukow.clj_ds.Persistents;
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_ds.Transients;
+import com.github.krukow.clj_lang.InlineArrayPersistentHATTrie;
+
+/**
+ * @author krukow
+ *
+ */
+public class InlineArrayPersistentHATTrieTest {
+
+	@Test
+	public final void testSortedMap() {
+		Random r = new Random(21);
+		InlineArrayPersistentHATTrie<Integer> m = Persistents.trieMap();
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		List<InlineArrayPersistentHATTrie<Integer>> versions = new ArrayList<InlineArrayPersistentHATTrie<Integer>>();
+		List<TreeMap<String, Integer>> snapshots = new ArrayList<TreeMap<String, Integer>>();
+		for (int i = 0; i < 40000; i++) {
+			String s = PersistentHATTrieTest.randomKey(r, 7);
+			if (r.nextInt(4) == 0) {
+				m = m.without(s);
+				expected.remove(s);
+			} else {
+				m = m.assoc(s, i);
+				expected.put(s, i);
+			}
+			assertEquals(expected.size(), m.count());
+			if (i % 8000 == 0) {
+				versions.add(m);
+				snapshots.add(new TreeMap<String, Integer>(expected));
+			}
+		}
+		assertEquals(expected, m);
+		assertEquals(m, expected);
+		assertEquals(expected.hashCode(), m.hashCode());
+		PersistentBTreeMapTest.assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		PersistentBTreeMapTest.assertSameEntries(expected.descendingMap().entrySet().iterator(), m.reverseIterator());
+		for (int i = 0; i < 500; i++) {
+			String from = PersistentHATTrieTest.randomKey(r, 7);
+			PersistentBTreeMapTest.assertSameEntries(expected.tailMap(from, true).entrySet().iterator(), m.iteratorFrom(from));
+		}
+		for (int i = 0; i < versions.size(); i++) {
+			assertEquals(snapshots.get(i), versions.get(i));
+		}
+		assertSame(m, m.without("absent"));
+		assertSame(m, m.assoc(expected.firstKey(), expected.firstEntry().getValue()));
+		for (String s : new ArrayList<String>(expected.keySet())) {
+			m = m.without(s);
+		}
+		assertEquals(0, m.count());
+		assertNull(m.seq());
+		assertFalse(m.iterator().hasNext());
+	}
+
+	@Test
+	public final void testTransient() {
+		Random r = new Random(8);
+		TransientMap<String, Integer> t = Transients.transientTrieMap();
+		HashMap<String, Integer> expected = new HashMap<String, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			String s = PersistentHATTrieTest.randomKey(r, 7);
+			if (r.nextInt(4) == 0) {
+				t = t.minus(s);
+				expected.remove(s);
+			} else {
+				t = t.plus(s, i);
+				expected.put(s, i);
+			}
+		}
+		PersistentMap<String, Integer> m = t.persist();
+		assertEquals(expected, m);
+		assertEquals(expected, Persistents.trieMap(expected));
+		// transients built from it leave it alone
+		PersistentMap<String, Integer> m2 = m.plusAll(expected).minusAll(new ArrayList<String>(expected.keySet()).subList(0, 100));
+		assertEquals(expected, m);
+		assertEquals(expected.size() - 100, m2.size());
+		// equal to the other maps, whatever their order
+		assertEquals(Persistents.hashMap(expected), m);
+		assertEquals(m, Persistents.hashMap(expected));
+	}
+
+	@Test
+	public final void testNullValues() {
+		InlineArrayPersistentHATTrie<String> m = Persistents.trieMap();
+		m = m.assoc("", null).assoc("a", null).assoc("ab", "x");
+		assertEquals(3, m.count());
+		assertTrue(m.containsKey(""));
+		assertTrue(m.containsKey("a"));
+		assertFalse(m.containsKey("b"));
+		assertNull(m.valAt("a", "none"));
+		assertEquals("none", m.valAt("b", "none"));
+		assertEquals("([\"\" null] [\"a\" null] [\"ab\" \"x\"])", m.seq().toString());
+		m = m.without("");
+		assertFalse(m.containsKey(""));
+		assertEquals(2, m.count());
+	}
+
+	@Test
+	public final void testKeyChars() {
+		InlineArrayPersistentHATTrie<Integer> m = Persistents.trieMap();
+		m = m.assoc("caf\u00e9", 1).assoc("\u00ff", 2);
+		assertEquals(Integer.valueOf(1), m.valAt("caf\u00e9"));
+		// rejected up front, not only once a container bursts
+		try {
+			m.assoc("\u4e2d", 3);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		TransientMap<String, Integer> t = Transients.transientTrieMap();
+		try {
+			t.plus("a\u0100", 3);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(2, m.size());
+		assertNull(m.valAt("\u4e2d"));
+	}
+
+}
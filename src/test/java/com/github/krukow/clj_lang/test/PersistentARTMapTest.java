@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_ds.Persistents;
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_ds.Transients;
+import com.github.krukow.clj_lang.ISeq;
+import com.github.krukow.clj_lang.PersistentARTMap;
+
+/**
+ * @author krukow
+ *
+ */
+public class PersistentARTMapTest {
+
+	/* mostly a few small bytes, so keys share prefixes, now and then any byte, so nodes fill up */
+	static byte[] randomKey(Random r, int maxLength) {
+		byte[] key = new byte[r.nextInt(maxLength + 1)];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (r.nextInt(3) == 0 ? r.nextInt(256) : r.nextInt(4));
+		}
+		return key;
+	}
+
+	static boolean startsWith(byte[] key, byte[] prefix) {
+		if (key.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (key[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void assertSameEntries(Iterator<Map.Entry<byte[], Integer>> expected, Iterator<Map.Entry<byte[], Integer>> actual) {
+		while (expected.hasNext()) {
+			assertTrue(actual.hasNext());
+			Map.Entry<byte[], Integer> e = expected.next();
+			Map.Entry<byte[], Integer> a = actual.next();
+			assertArrayEquals(e.getKey(), a.getKey());
+			assertEquals(e.getValue(), a.getValue());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	@Test
+	public final void testSortedMap() {
+		Random r = new Random(3);
+		PersistentARTMap<Integer> m = Persistents.artMap();
+		TreeMap<byte[], Integer> expected = new TreeMap<byte[], Integer>(PersistentARTMap.UNSIGNED);
+		List<PersistentARTMap<Integer>> versions = new ArrayList<PersistentARTMap<Integer>>();
+		List<TreeMap<byte[], Integer>> snapshots = new ArrayList<TreeMap<byte[], Integer>>();
+		for (int i = 0; i < 60000; i++) {
+			byte[] key = randomKey(r, 4);
+			if (r.nextInt(3) == 0) {
+				m = m.without(key);
+				expected.remove(key);
+			} else {
+				m = m.assoc(key, i);
+				expected.put(key, i);
+			}
+			assertEquals(expected.size(), m.count());
+			if (i % 10000 == 0) {
+				versions.add(m);
+				snapshots.add(new TreeMap<byte[], Integer>(expected));
+			}
+		}
+		assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		assertSameEntries(expected.descendingMap().entrySet().iterator(), m.reverseIterator());
+		for (int i = 0; i < 2000; i++) {
+			// fresh arrays, found by content
+			byte[] key = randomKey(r, 5);
+			assertEquals(expected.get(key), m.valAt(key));
+			assertEquals(expected.containsKey(key), m.containsKey(key));
+			assertSameEntries(expected.tailMap(key, true).entrySet().iterator(), m.iteratorFrom(key));
+			ISeq s = m.seqFrom(key, false);
+			NavigableMap<byte[], Integer> head = expected.headMap(key, true);
+			assertEquals(head.size(), s == null ? 0 : s.count());
+			if (s != null) {
+				assertArrayEquals(head.lastKey(), ((Map.Entry<byte[], Integer>) s.first()).getKey());
+			}
+			byte[] to = randomKey(r, 5);
+			if (PersistentARTMap.UNSIGNED.compare(key, to) <= 0) {
+				assertSameEntries(expected.subMap(key, true, to, false).entrySet().iterator(), m.range(key, to));
+			}
+		}
+		for (int i = 0; i < versions.size(); i++) {
+			assertSameEntries(snapshots.get(i).entrySet().iterator(), versions.get(i).iterator());
+		}
+		PersistentARTMap<Integer> copy = Persistents.artMap(expected);
+		assertEquals(m, copy);
+		assertEquals(m.hashCode(), copy.hashCode());
+		assertSame(m, m.without(new byte[]{7, 7, 7, 7, 7, 7}));
+		for (byte[] key : expected.keySet()) {
+			m = m.without(key.clone());
+		}
+		assertEquals(0, m.count());
+		assertNull(m.seq());
+		assertFalse(m.iterator().hasNext());
+	}
+
+	@Test
+	public final void testPrefixes() {
+		Random r = new Random(9);
+		PersistentARTMap<Integer> m = Persistents.artMap();
+		TreeMap<byte[], Integer> expected = new TreeMap<byte[], Integer>(PersistentARTMap.UNSIGNED);
+		for (int i = 0; i < 30000; i++) {
+			byte[] key = randomKey(r, 6);
+			m = m.assoc(key, i);
+			expected.put(key, i);
+		}
+		for (int i = 0; i < 300; i++) {
+			byte[] prefix = randomKey(r, 3);
+			TreeMap<byte[], Integer> starting = new TreeMap<byte[], Integer>(PersistentARTMap.UNSIGNED);
+			for (Map.Entry<byte[], Integer> e : expected.tailMap(prefix, true).entrySet()) {
+				if (!startsWith(e.getKey(), prefix)) {
+					break;
+				}
+				starting.put(e.getKey(), e.getValue());
+			}
+			assertEquals(starting.size(), m.prefixCount(prefix));
+			assertSameEntries(starting.entrySet().iterator(), m.prefixIterator(prefix));
+			PersistentARTMap<Integer> cut = m.withoutPrefix(prefix);
+			assertEquals(expected.size() - starting.size(), cut.count());
+			assertEquals(0, cut.prefixCount(prefix));
+			if (i % 30 == 0) {
+				TreeMap<byte[], Integer> rest = new TreeMap<byte[], Integer>(expected);
+				rest.keySet().removeAll(starting.keySet());
+				assertSameEntries(rest.entrySet().iterator(), cut.iterator());
+			}
+		}
+		assertSameEntries(expected.tailMap(new byte[]{(byte) 0xff}, true).entrySet().iterator(), m.prefixIterator(new byte[]{(byte) 0xff}));
+		assertEquals(0, m.withoutPrefix(new byte[0]).count());
+	}
+
+	@Test
+	public final void testTransient() {
+		Random r = new Random(6);
+		TransientMap<byte[], Integer> t = Transients.transientARTMap();
+		TreeMap<byte[], Integer> expected = new TreeMap<byte[], Integer>(PersistentARTMap.UNSIGNED);
+		for (int i = 0; i < 40000; i++) {
+			byte[] key = randomKey(r, 4);
+			if (r.nextInt(3) == 0) {
+				t = t.minus(key);
+				expected.remove(key);
+			} else {
+				t = t.plus(key, i);
+				expected.put(key, i);
+			}
+		}
+		PersistentARTMap<Integer> m = (PersistentARTMap<Integer>) t.persist();
+		assertEquals(expected.size(), m.count());
+		assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		// a second round of edits leaves m alone
+		List<byte[]> keys = new ArrayList<byte[]>(expected.keySet());
+		PersistentARTMap<Integer> m2 = m.plusAll(expected).minusAll(keys.subList(0, keys.size() / 2));
+		assertEquals(expected.size() - keys.size() / 2, m2.count());
+		assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		assertSameEntries(expected.tailMap(keys.get(keys.size() / 2), true).entrySet().iterator(), m2.iterator());
+		// the counts of nodes changed in place
+		assertEquals(m.count(), m.prefixCount(new byte[0]));
+		for (int i = 0; i < 300; i++) {
+			byte[] prefix = randomKey(r, 2);
+			int starting = 0;
+			for (byte[] key : expected.keySet()) {
+				if (startsWith(key, prefix)) {
+					starting++;
+				}
+			}
+			assertEquals(starting, m.prefixCount(prefix));
+			assertEquals(expected.size() - starting, m.withoutPrefix(prefix).count());
+		}
+		assertEquals(0, m.withoutPrefix(new byte[0]).count());
+
+		t = Transients.transientARTMap();
+		byte[][] small = {{1, 1}, {1, 2}, {2, 1}, {1, 3}, {1, 4}, {1, 5}};
+		for (int i = 0; i < small.length; i++) {
+			t = t.plus(small[i], i);
+		}
+		PersistentARTMap<Integer> s = (PersistentARTMap<Integer>) t.persist();
+		assertEquals(6, s.count());
+		assertEquals(6, s.prefixCount(new byte[0]));
+		assertEquals(5, s.prefixCount(new byte[]{1}));
+		assertEquals(1, s.withoutPrefix(new byte[]{1}).count());
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_lang.ISeq;
+import com.github.krukow.clj_lang.PersistentAppendBTreeMap;
+
+/**
+ * @author krukow
+ *
+ */
+public class PersistentAppendBTreeMapTest {
+
+	static void assertSameSeq(Iterable<Map.Entry<Integer, Integer>> expected, ISeq s) {
+		for (Map.Entry<Integer, Integer> e : expected) {
+			Map.Entry a = (Map.Entry) s.first();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getValue(), a.getValue());
+			s = s.next();
+		}
+		assertNull(s);
+	}
+
+	@Test
+	public final void testMostlyAppending() {
+		Random r = new Random(11);
+		PersistentAppendBTreeMap<Integer, Integer> m = PersistentAppendBTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		List<PersistentAppendBTreeMap<Integer, Integer>> versions = new ArrayList<PersistentAppendBTreeMap<Integer, Integer>>();
+		List<TreeMap<Integer, Integer>> snapshots = new ArrayList<TreeMap<Integer, Integer>>();
+		int time = 0;
+		for (int i = 0; i < 100000; i++) {
+			int op = r.nextInt(100);
+			if (op < 90) {
+				time += 1 + r.nextInt(3);
+				m = m.assoc(time, i);
+				expected.put(time, i);
+			} else if (op < 95) {
+				// late arrivals, recent ones land in the tail
+				int k = time - r.nextInt(op < 93 ? 40 : 100000);
+				m = m.assoc(k, i);
+				expected.put(k, i);
+			} else {
+				int k = time - r.nextInt(op < 98 ? 40 : 100000);
+				m = m.without(k);
+				expected.remove(k);
+			}
+			assertEquals(expected.size(), m.count());
+			if (i % 10000 == 0) {
+				versions.add(m);
+				snapshots.add(new TreeMap<Integer, Integer>(expected));
+			}
+		}
+		assertEquals(expected, m);
+		PersistentBTreeMapTest.assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		PersistentBTreeMapTest.assertSameEntries(expected.descendingMap().entrySet().iterator(), m.reverseIterator());
+		assertTrue(m.depth() <= 4);
+		for (int i = 0; i < versions.size(); i++) {
+			assertEquals(snapshots.get(i), versions.get(i));
+		}
+		for (int from = -5; from < time + 5; from += 1 + r.nextInt(2000)) {
+			assertSameSeq(expected.tailMap(from, true).entrySet(), m.seqFrom(from, true));
+			assertSameSeq(expected.headMap(from, true).descendingMap().entrySet(), m.seqFrom(from, false));
+		}
+		for (int k = time; k > time - 100; k--) {
+			assertSameSeq(expected.tailMap(k, true).entrySet(), m.seqFrom(k, true));
+			assertSameSeq(expected.headMap(k, true).descendingMap().entrySet(), m.seqFrom(k, false));
+		}
+		for (Integer k : new ArrayList<Integer>(expected.descendingKeySet())) {
+			m = m.without(k);
+		}
+		assertEquals(0, m.count());
+		assertNull(m.seq());
+		assertNull(m.rseq());
+	}
+
+	@Test
+	public final void testDescendingAndUpdate() {
+		Random r = new Random(2);
+		PersistentAppendBTreeMap<Object, Integer> m = PersistentAppendBTreeMap.EMPTY;
+		TreeMap<Object, Integer> expected = new TreeMap<Object, Integer>();
+		for (int i = 0; i < 5000; i++) {
+			m = m.assoc(-i, i);
+			expected.put(-i, i);
+		}
+		assertEquals(expected, m);
+		for (int i = 0; i < 50000; i++) {
+			Integer key = r.nextInt(100) < 80 ? 5000 + i / 4 : r.nextInt(5000 + i / 4);
+			int op = r.nextInt(4);
+			PersistentHashMapTest.update(expected, op, key);
+			switch (op) {
+			case 0:
+				m = m.update(key, PersistentHashMapTest.BUMP);
+				break;
+			case 1:
+				m = m.compute(key, PersistentHashMapTest.COUNT);
+				break;
+			case 2:
+				m = m.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				break;
+			default:
+				m = m.merge(key, 5, PersistentHashMapTest.PLUS);
+			}
+			assertEquals(expected.size(), m.count());
+		}
+		assertEquals(expected, m);
+		assertEquals(m, PersistentAppendBTreeMap.create(expected));
+	}
+
+	@Test
+	public final void testBatches() {
+		Random r = new Random(5);
+		PersistentAppendBTreeMap<Integer, Integer> m = PersistentAppendBTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		int time = 0;
+		for (int round = 0; round < 300; round++) {
+			PersistentAppendBTreeMap<Integer, Integer> before = m;
+			TreeMap<Integer, Integer> snapshot = new TreeMap<Integer, Integer>(expected);
+			// an ascending run past the last key, now and then with late arrivals
+			Map<Integer, Integer> batch = new HashMap<Integer, Integer>();
+			int n = r.nextInt(round % 10 == 0 ? 3000 : 100);
+			for (int i = 0; i < n; i++) {
+				time += 1 + r.nextInt(3);
+				batch.put(time, round);
+			}
+			for (int i = r.nextInt(3) == 0 ? r.nextInt(20) : 0; i > 0; i--) {
+				batch.put(time - r.nextInt(i % 2 == 0 ? 40 : time + 1), -round);
+			}
+			m = m.plusAll(batch);
+			expected.putAll(batch);
+			assertEquals(expected.size(), m.count());
+			if (r.nextInt(4) == 0) {
+				List<Integer> gone = new ArrayList<Integer>();
+				for (int i = r.nextInt(30); i > 0; i--) {
+					gone.add(time - r.nextInt(i % 2 == 0 ? 40 : time + 1));
+				}
+				m = m.minusAll(gone);
+				expected.keySet().removeAll(gone);
+				assertEquals(expected.size(), m.count());
+			}
+			assertEquals(snapshot, before);
+			assertTrue(m.plusAll(new HashMap<Integer, Integer>(expected.tailMap(time - 50))) == m);
+			assertTrue(m.minusAll(Arrays.asList(-1, time + 1)) == m);
+		}
+		assertEquals(expected, m);
+		PersistentBTreeMapTest.assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		PersistentBTreeMapTest.assertSameEntries(expected.descendingMap().entrySet().iterator(), m.reverseIterator());
+		assertTrue(m.depth() <= 4);
+		for (int from = -5; from < time + 5; from += 1 + r.nextInt(2000)) {
+			assertSameSeq(expected.tailMap(from, true).entrySet(), m.seqFrom(from, true));
+		}
+		// single updates on a map built from batches
+		for (int i = 0; i < 2000; i++) {
+			int k = r.nextInt(time + 10);
+			m = m.assoc(k, i);
+			expected.put(k, i);
+			k = r.nextInt(time + 10);
+			m = m.without(k);
+			expected.remove(k);
+		}
+		assertEquals(expected, m);
+		assertEquals(m, PersistentAppendBTreeMap.create(expected));
+		assertEquals(0, m.minusAll(new ArrayList<Integer>(expected.keySet())).count());
+	}
+
+}
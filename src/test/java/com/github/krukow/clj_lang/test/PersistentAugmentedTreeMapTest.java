@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_ds.Persistents;
+import com.github.krukow.clj_lang.Monoid;
+import com.github.krukow.clj_lang.Monoids;
+import com.github.krukow.clj_lang.Monoids.Stats;
+import com.github.krukow.clj_lang.PersistentAugmentedTreeMap;
+
+/**
+ * @author krukow
+ *
+ */
+public class PersistentAugmentedTreeMapTest {
+
+	/* not commutative, so it checks that entries are combined in key order */
+	static final Monoid<Long, Double, String> KEYS = new Monoid<Long, Double, String>() {
+		public String zero() {
+			return "";
+		}
+
+		public String measure(Long key, Double val) {
+			return key + ",";
+		}
+
+		public String combine(String left, String right) {
+			return left + right;
+		}
+	};
+
+	static void assertStats(NavigableMap<Long, Double> entries, Stats s) {
+		assertEquals(entries.size(), s.count);
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (Double d : entries.values()) {
+			sum += d;
+			min = Math.min(min, d);
+			max = Math.max(max, d);
+		}
+		assertEquals(sum, s.sum, 1e-6);
+		assertEquals(min, s.min, 0);
+		assertEquals(max, s.max, 0);
+	}
+
+	static String keys(NavigableMap<Long, Double> entries) {
+		StringBuilder sb = new StringBuilder();
+		for (Long k : entries.keySet()) {
+			sb.append(k).append(',');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public final void testRangeAggregates() {
+		Random r = new Random(13);
+		PersistentAugmentedTreeMap<Long, Double, Stats> m = Persistents.augmentedTreeMap(Monoids.<Long, Double> stats());
+		TreeMap<Long, Double> expected = new TreeMap<Long, Double>();
+		List<PersistentAugmentedTreeMap<Long, Double, Stats>> versions = new ArrayList<PersistentAugmentedTreeMap<Long, Double, Stats>>();
+		List<TreeMap<Long, Double>> snapshots = new ArrayList<TreeMap<Long, Double>>();
+		for (int i = 0; i < 30000; i++) {
+			long k = r.nextInt(5000);
+			if (r.nextInt(10) < 7) {
+				double v = Math.round(r.nextGaussian() * 1000) / 8.0;
+				m = m.assoc(k, v);
+				expected.put(k, v);
+			} else {
+				m = m.without(k);
+				expected.remove(k);
+			}
+			assertEquals(expected.size(), m.count());
+			if (i % 3000 == 0) {
+				versions.add(m);
+				snapshots.add(new TreeMap<Long, Double>(expected));
+			}
+		}
+		assertEquals(expected, m);
+		PersistentBTreeMapTest.assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		PersistentBTreeMapTest.assertSameEntries(expected.descendingMap().entrySet().iterator(), m.reverseIterator());
+		assertTrue(m.depth() <= 1.45 * (32 - Integer.numberOfLeadingZeros(m.count() + 1)));
+		assertStats(expected, m.summary());
+		for (int i = 0; i < 2000; i++) {
+			long from = r.nextInt(5100) - 50;
+			long to = from + r.nextInt(i % 2 == 0 ? 50 : 3000);
+			boolean fromInclusive = r.nextBoolean();
+			boolean toInclusive = r.nextBoolean();
+			if (from == to && !(fromInclusive && toInclusive)) {
+				continue;
+			}
+			assertStats(expected.subMap(from, fromInclusive, to, toInclusive), m.aggregate(from, fromInclusive, to, toInclusive));
+		}
+		// old versions keep their own summaries
+		for (int i = 0; i < versions.size(); i++) {
+			assertEquals(snapshots.get(i), versions.get(i));
+			assertStats(snapshots.get(i), versions.get(i).summary());
+			assertStats(snapshots.get(i).subMap(1000L, true, 2000L, false), versions.get(i).aggregate(1000L, 2000L));
+		}
+		for (Long k : new ArrayList<Long>(expected.keySet())) {
+			m = m.without(k);
+		}
+		assertEquals(0, m.count());
+		assertEquals(0, m.summary().count);
+		assertNull(m.seq());
+	}
+
+	@Test
+	public final void testOrderedMonoid() {
+		Random r = new Random(4);
+		PersistentAugmentedTreeMap<Long, Double, String> m = Persistents.augmentedTreeMap(KEYS);
+		PersistentAugmentedTreeMap<Long, Double, Double> sums = PersistentAugmentedTreeMap.create(Monoids.<Long, Double> sum());
+		PersistentAugmentedTreeMap<Long, Double, Double> maxs = PersistentAugmentedTreeMap.create(Monoids.<Long, Double> max());
+		TreeMap<Long, Double> expected = new TreeMap<Long, Double>();
+		for (int i = 0; i < 3000; i++) {
+			long k = r.nextInt(1000);
+			double v = r.nextInt(100);
+			m = m.assoc(k, v);
+			sums = sums.assoc(k, v);
+			maxs = maxs.assoc(k, v);
+			expected.put(k, v);
+			if (r.nextInt(4) == 0) {
+				k = r.nextInt(1000);
+				m = m.without(k);
+				sums = sums.without(k);
+				maxs = maxs.without(k);
+				expected.remove(k);
+			}
+		}
+		assertEquals(keys(expected), m.summary());
+		for (int i = 0; i < 500; i++) {
+			long from = r.nextInt(1000);
+			long to = from + r.nextInt(200);
+			NavigableMap<Long, Double> sub = expected.subMap(from, true, to, false);
+			assertEquals(keys(sub), m.aggregate(from, to));
+			double sum = 0;
+			Double max = null;
+			for (Map.Entry<Long, Double> e : sub.entrySet()) {
+				sum += e.getValue();
+				max = max == null || e.getValue() > max ? e.getValue() : max;
+			}
+			assertEquals(sum, sums.aggregate(from, to), 1e-9);
+			assertEquals(max, maxs.aggregate(from, to));
+		}
+		assertEquals("-1," + keys(expected), m.assoc(-1L, 0.0).summary());
+		assertEquals(keys(expected.tailMap(500L, false)), m.aggregate(500L, false, 2000L, true));
+	}
+
+	@Test
+	public final void testBatches() {
+		Random r = new Random(6);
+		PersistentAugmentedTreeMap<Long, Double, String> m = Persistents.augmentedTreeMap(KEYS);
+		TreeMap<Long, Double> expected = new TreeMap<Long, Double>();
+		for (int round = 0; round < 200; round++) {
+			// batches from a few entries to more than the map holds
+			int n = 1 + r.nextInt(round % 20 == 0 ? 5000 : 50);
+			Map<Long, Double> batch = new HashMap<Long, Double>();
+			List<Long> gone = new ArrayList<Long>();
+			for (int i = 0; i < n; i++) {
+				batch.put((long) r.nextInt(20000), (double) round);
+				gone.add((long) r.nextInt(20000));
+			}
+			PersistentAugmentedTreeMap<Long, Double, String> before = m;
+			m = m.plusAll(batch);
+			expected.putAll(batch);
+			assertEquals(expected.size(), m.count());
+			if (r.nextBoolean()) {
+				m = m.minusAll(gone);
+				expected.keySet().removeAll(gone);
+			}
+			assertEquals(expected, m);
+			assertEquals(expected.size(), m.count());
+			assertEquals(keys(expected), m.summary());
+			assertTrue(m.depth() <= 1.45 * (32 - Integer.numberOfLeadingZeros(m.count() + 2)));
+			long from = r.nextInt(20000);
+			assertEquals(keys(expected.subMap(from, true, from + 500, false)), m.aggregate(from, from + 500));
+			assertTrue(before.plusAll(new HashMap<Long, Double>()) == before);
+			assertTrue(m.minusAll(Arrays.asList(-1L, -2L)) == m);
+		}
+		assertEquals(0, m.minusAll(new ArrayList<Long>(expected.keySet())).count());
+	}
+
+}
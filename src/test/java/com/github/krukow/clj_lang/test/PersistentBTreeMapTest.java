@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_lang.Cursor;
+import com.github.krukow.clj_lang.ISeq;
+import com.github.krukow.clj_lang.PersistentBTreeMap;
+
+/**
+ * @author krukow
+ *
+ */
+public class PersistentBTreeMapTest {
+
+	static <K, V> void assertSameEntries(Iterator<Map.Entry<K, V>> expected, Iterator<Map.Entry<K, V>> actual) {
+		while (expected.hasNext()) {
+			assertTrue(actual.hasNext());
+			Map.Entry<K, V> e = expected.next();
+			Map.Entry<K, V> a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getValue(), a.getValue());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	@Test
+	public final void testAssocWithout() {
+		Random r = new Random(17);
+		PersistentBTreeMap<Integer, Integer> bm = PersistentBTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		List<PersistentBTreeMap<Integer, Integer>> versions = new ArrayList<PersistentBTreeMap<Integer, Integer>>();
+		List<TreeMap<Integer, Integer>> snapshots = new ArrayList<TreeMap<Integer, Integer>>();
+		for (int i = 0; i < 100000; i++) {
+			// grow for a while, then shrink back
+			int k = r.nextInt(30000);
+			if (r.nextInt(100) < (i < 60000 ? 70 : 25)) {
+				bm = bm.assoc(k, i);
+				expected.put(k, i);
+			} else {
+				bm = bm.without(k);
+				expected.remove(k);
+			}
+			assertEquals(expected.size(), bm.count());
+			if (i % 10000 == 0) {
+				versions.add(bm);
+				snapshots.add(new TreeMap<Integer, Integer>(expected));
+			}
+		}
+		assertEquals(expected, bm);
+		assertSameEntries(expected.entrySet().iterator(), bm.iterator());
+		assertSameEntries(expected.descendingMap().entrySet().iterator(), bm.reverseIterator());
+		assertTrue(bm.depth() <= 4);
+		for (int i = 0; i < versions.size(); i++) {
+			assertEquals(snapshots.get(i), versions.get(i));
+		}
+		for (Integer k : new ArrayList<Integer>(expected.keySet())) {
+			bm = bm.without(k);
+		}
+		assertEquals(0, bm.count());
+		assertNull(bm.seq());
+	}
+
+	@Test
+	public final void testTransient() {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 50000; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(3));
+		PersistentBTreeMap<Integer, Integer> start = PersistentBTreeMap.EMPTY.assoc(-1, -1);
+		TransientMap<Integer, Integer> t = start.asTransient();
+		for (Integer k : keys) {
+			t = t.plus(k, k);
+		}
+		for (int i = 0; i < 50000; i += 2) {
+			t = t.minus(keys.get(i));
+		}
+		PersistentBTreeMap<Integer, Integer> bm = (PersistentBTreeMap<Integer, Integer>) t.persist();
+		assertEquals(1, start.count());
+		assertEquals(25001, bm.count());
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		expected.put(-1, -1);
+		for (int i = 1; i < 50000; i += 2) {
+			expected.put(keys.get(i), keys.get(i));
+		}
+		assertEquals(expected, bm);
+		assertSameEntries(expected.entrySet().iterator(), bm.iterator());
+		try {
+			t.plus(1, 1);
+			assertTrue(false);
+		} catch (IllegalAccessError e) {
+		}
+	}
+
+	@Test
+	public final void testUpdate() {
+		Random r = new Random(9);
+		PersistentBTreeMap<Object, Integer> bm = PersistentBTreeMap.EMPTY;
+		TransientMap<Object, Integer> t = PersistentBTreeMap.EMPTY.asTransient();
+		TreeMap<Object, Integer> expected = new TreeMap<Object, Integer>();
+		for (int i = 0; i < 50000; i++) {
+			Integer key = r.nextInt(3000);
+			int op = r.nextInt(4);
+			PersistentHashMapTest.update(expected, op, key);
+			switch (op) {
+			case 0:
+				bm = bm.update(key, PersistentHashMapTest.BUMP);
+				t = t.update(key, PersistentHashMapTest.BUMP);
+				break;
+			case 1:
+				bm = bm.compute(key, PersistentHashMapTest.COUNT);
+				t = t.compute(key, PersistentHashMapTest.COUNT);
+				break;
+			case 2:
+				bm = bm.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				t = t.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				break;
+			default:
+				bm = bm.merge(key, 5, PersistentHashMapTest.PLUS);
+				t = t.merge(key, 5, PersistentHashMapTest.PLUS);
+			}
+			assertEquals(expected.size(), bm.count());
+		}
+		assertEquals(expected, bm);
+		assertEquals(expected, t.persist());
+		assertTrue(bm.computeIfAbsent(expected.firstKey(), PersistentHashMapTest.INIT) == bm);
+	}
+
+	@Test
+	public final void testSeqFrom() {
+		PersistentBTreeMap<Integer, String> bm = PersistentBTreeMap.EMPTY;
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		for (int i = 0; i < 10000; i += 3) {
+			bm = bm.assoc(i, "v" + i);
+			expected.put(i, "v" + i);
+		}
+		for (int from = -2; from < 10003; from += 7) {
+			ISeq s = bm.seqFrom(from, true);
+			for (Map.Entry<Integer, String> e : expected.tailMap(from, true).entrySet()) {
+				assertEquals(e.getKey(), ((Map.Entry) s.first()).getKey());
+				s = s.next();
+			}
+			assertNull(s);
+			s = bm.seqFrom(from, false);
+			for (Map.Entry<Integer, String> e : expected.headMap(from, true).descendingMap().entrySet()) {
+				assertEquals(e.getKey(), ((Map.Entry) s.first()).getKey());
+				s = s.next();
+			}
+			assertNull(s);
+		}
+		assertEquals(expected.size(), bm.seq().count());
+		assertEquals(expected.lastKey(), ((Map.Entry) bm.rseq().first()).getKey());
+	}
+
+	@Test
+	public final void testCursor() {
+		Random r = new Random(41);
+		PersistentBTreeMap<Integer, Integer> bm = PersistentBTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		for (int i = 0; i < 60000; i++) {
+			int k = r.nextInt(100000);
+			bm = bm.assoc(k, -k);
+			expected.put(k, -k);
+		}
+		// thin out leaves so separators no longer match their first keys
+		for (int i = 0; i < 40000; i++) {
+			int k = r.nextInt(100000);
+			bm = bm.without(k);
+			expected.remove(k);
+		}
+		Cursor<Integer, Integer> c = bm.cursor();
+		for (Integer k : expected.keySet()) {
+			assertEquals(k, c.peekKey());
+			assertEquals(Integer.valueOf(-k), c.peekVal());
+			c.next();
+		}
+		assertTrue(c.atEnd());
+		for (int round = 0; round < 40; round++) {
+			c.reset();
+			int target = -5;
+			while (true) {
+				target += r.nextInt(round < 20 ? 50 : 5000);
+				Integer ceiling = expected.ceilingKey(target);
+				assertEquals(ceiling != null, c.seek(target));
+				if (ceiling == null) {
+					break;
+				}
+				assertEquals(ceiling, c.peekKey());
+				assertTrue(c.seek(target - 1000));
+				assertEquals(ceiling, c.peekKey());
+			}
+			assertTrue(c.atEnd());
+		}
+		assertTrue(PersistentBTreeMap.EMPTY.cursor().atEnd());
+	}
+
+}
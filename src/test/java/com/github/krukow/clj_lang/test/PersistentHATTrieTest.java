@@ -4,12 +4,29 @@
 package com.github.krukow.clj_lang.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.junit.Test;
 
+import com.github.krukow.clj_ds.Transients;
+import com.github.krukow.clj_lang.APersistentTrie;
+import com.github.krukow.clj_lang.IPersistentTrie;
+import com.github.krukow.clj_lang.InlineArrayPersistentHATTrie;
+import com.github.krukow.clj_lang.MapEntry;
 import com.github.krukow.clj_lang.PersistentHATTrie;
 
 /**
@@ -62,6 +79,28 @@ public class PersistentHATTrieTest {
 		assertNull(trie.getMember("forksa"));		
 	}
 	
+	@Test
+	public final void testGetAll() {
+		PersistentHATTrie<Integer> trie = createTrie();
+		String[] keys = {"west", "we", "wes", "fork", null, "trifork", "western", "w", "forks", "tri", "westee", "we"};
+		Integer[] vals = trie.getAll(keys, new Integer[keys.length]);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(keys[i] == null ? null : trie.getMember(keys[i]), vals[i]);
+		}
+		// chars past the access nodes' range are simply absent
+		Random r = new Random(2);
+		for (int i = 0; i < 20000; i++) {
+			trie = (PersistentHATTrie<Integer>) trie.addMember(randomKey(r, 5), i);
+		}
+		keys = new String[]{"\u0101x", "w\u0101", "west", "\uffff", "fork"};
+		vals = trie.getAll(keys, new Integer[keys.length]);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(trie.getMember(keys[i]), vals[i]);
+		}
+		assertNull(vals[0]);
+		assertNull(vals[1]);
+	}
+	
 	@Test
 	public final void testIterator() {
 		PersistentHATTrie<Integer> trie = createTrie();
@@ -73,4 +112,339 @@ public class PersistentHATTrieTest {
 		}
 		assertEquals(10,count);
 	}
+
+	static String randomKey(Random r, int maxLength) {
+		char[] cs = new char[r.nextInt(maxLength + 1)];
+		for (int i = 0; i < cs.length; i++) {
+			cs[i] = (char) ('a' + r.nextInt(6));
+		}
+		return new String(cs);
+	}
+
+	@Test
+	public final void testBurstingContainers() {
+		Random r = new Random(17);
+		PersistentHATTrie<Integer> trie = PersistentHATTrie.EMPTY;
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			String s = randomKey(r, 9);
+			if (!expected.containsKey(s)) {
+				trie = (PersistentHATTrie<Integer>) trie.addMember(s, i);
+				expected.put(s, i);
+			}
+		}
+		assertEquals(expected.size(), trie.count());
+		for (Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals(e.getValue(), trie.getMember(e.getKey()));
+		}
+		for (int i = 0; i < 20000; i++) {
+			String s = randomKey(r, 10);
+			assertEquals(expected.get(s), trie.getMember(s));
+		}
+		Iterator<Map.Entry<String, Integer>> it = trie.iterator();
+		for (Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals(e, it.next());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	static void checkRemoval(APersistentTrie<Integer> trie) {
+		Random r = new Random(23);
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		APersistentTrie<Integer> v1 = null;
+		TreeMap<String, Integer> expected1 = null;
+		for (int i = 0; i < 40000; i++) {
+			String s = randomKey(r, 7);
+			if (r.nextInt(3) == 0) {
+				trie = (APersistentTrie<Integer>) trie.removeMember(s);
+				expected.remove(s);
+			} else {
+				Integer v = r.nextInt(5);
+				trie = (APersistentTrie<Integer>) trie.addMember(s, v);
+				expected.put(s, v);
+			}
+			assertEquals(expected.size(), trie.count());
+			if (i == 20000) {
+				v1 = trie;
+				expected1 = new TreeMap<String, Integer>(expected);
+			}
+		}
+		for (int i = 0; i < 5000; i++) {
+			String s = randomKey(r, 8);
+			assertEquals(expected.get(s), trie.getMember(s));
+			assertEquals(expected1.get(s), v1.getMember(s));
+		}
+		Map<String, Integer> actual = new TreeMap<String, Integer>();
+		for (Map.Entry<String, Integer> e : trie) {
+			actual.put(e.getKey(), e.getValue());
+		}
+		assertEquals(expected, actual);
+		assertTrue(trie.contains(expected.firstKey()));
+		assertFalse(((APersistentTrie<Integer>) trie.disjoin(expected.firstKey())).contains(expected.firstKey()));
+		assertSame(trie, trie.removeMember("absent"));
+		for (String s : expected.keySet()) {
+			trie = (APersistentTrie<Integer>) trie.removeMember(s);
+		}
+		assertEquals(0, trie.count());
+		assertFalse(trie.iterator().hasNext());
+		assertNull(trie.getMember(""));
+	}
+
+	@Test
+	public final void testRemoveMember() {
+		checkRemoval(PersistentHATTrie.EMPTY);
+	}
+
+	@Test
+	public final void testNullValues() {
+		// null stands for no member, it would be counted but never found
+		try {
+			PersistentHATTrie.EMPTY.addMember("", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			Transients.<Integer> transientHATTrie().addMember("a", 1).addMember("", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		// the empty key bursts into an access node's own member and collapses back
+		PersistentHATTrie<Integer> trie = (PersistentHATTrie<Integer>) PersistentHATTrie.EMPTY.addMember("", -1);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 70; i++) {
+			keys.add(Integer.toString(i, 6).replace('0', 'a'));
+			trie = (PersistentHATTrie<Integer>) trie.addMember(keys.get(i), i);
+		}
+		assertEquals(71, trie.count());
+		for (int i = 0; i < 60; i++) {
+			trie = (PersistentHATTrie<Integer>) trie.removeMember(keys.get(i));
+		}
+		assertEquals(11, trie.count());
+		assertEquals(Integer.valueOf(-1), trie.getMember(""));
+		int n = 0;
+		for (Map.Entry<String, Integer> e : trie) {
+			n++;
+		}
+		assertEquals(11, n);
+	}
+
+	static final Comparator<Integer> BY_VALUE = new Comparator<Integer>() {
+		public int compare(Integer i, Integer j) {
+			return i.compareTo(j);
+		}
+	};
+
+	@Test
+	public final void testPrefixQueries() {
+		Random r = new Random(29);
+		PersistentHATTrie<Integer> trie = PersistentHATTrie.EMPTY;
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (int i = 0; i < 30000; i++) {
+			String s = randomKey(r, 8);
+			Integer v = r.nextInt(100000);
+			trie = (PersistentHATTrie<Integer>) trie.addMember(s, v);
+			expected.put(s, v);
+		}
+		for (int i = 0; i < 1000; i++) {
+			String prefix = randomKey(r, 5);
+			SortedMap<String, Integer> matches = expected.subMap(prefix, prefix + 'g');
+			assertEquals(matches.size(), trie.prefixCount(prefix));
+			Iterator<Map.Entry<String, Integer>> it = trie.prefixIterator(prefix);
+			for (Map.Entry<String, Integer> e : matches.entrySet()) {
+				assertEquals(e, it.next());
+			}
+			assertFalse(it.hasNext());
+
+			int k = r.nextInt(20);
+			List<Integer> values = new ArrayList<Integer>(matches.values());
+			Collections.sort(values, Collections.reverseOrder());
+			List<Map.Entry<String, Integer>> top = trie.topK(prefix, k, BY_VALUE);
+			assertEquals(values.subList(0, Math.min(k, values.size())), valuesOf(top));
+			for (Map.Entry<String, Integer> e : top) {
+				assertTrue(e.getKey().startsWith(prefix));
+				assertEquals(expected.get(e.getKey()), e.getValue());
+			}
+			if (i % 10 == 0) {
+				// updates leave the cached maxima of untouched subtrees in place
+				String s = prefix + randomKey(r, 2);
+				Integer v = r.nextInt(200000);
+				trie = (PersistentHATTrie<Integer>) trie.addMember(s, v);
+				expected.put(s, v);
+				assertEquals(Collections.max(expected.values()), trie.topK("", 1, BY_VALUE).get(0).getValue());
+			}
+		}
+		assertEquals(0, trie.prefixCount("g"));
+		assertFalse(trie.prefixIterator("abcdefabc").hasNext());
+		assertTrue(trie.topK("g", 3, BY_VALUE).isEmpty());
+	}
+
+	static List<Integer> valuesOf(List<Map.Entry<String, Integer>> entries) {
+		List<Integer> values = new ArrayList<Integer>();
+		for (Map.Entry<String, Integer> e : entries) {
+			values.add(e.getValue());
+		}
+		return values;
+	}
+
+	@Test
+	public final void testTransient() {
+		Random r = new Random(31);
+		PersistentHATTrie<Integer> base = createTrie();
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (Map.Entry<String, Integer> e : base) {
+			expected.put(e.getKey(), e.getValue());
+		}
+		PersistentHATTrie.TransientHATTrie<Integer> t = base.asTransient();
+		for (int i = 0; i < 60000; i++) {
+			String s = randomKey(r, 7);
+			if (r.nextInt(4) == 0) {
+				t.removeMember(s);
+				expected.remove(s);
+			} else {
+				t.addMember(s, i);
+				expected.put(s, i);
+			}
+			assertEquals(expected.size(), t.count());
+		}
+		PersistentHATTrie<Integer> trie = t.persistent();
+		assertEquals(expected.size(), trie.count());
+		Iterator<Map.Entry<String, Integer>> it = trie.iterator();
+		for (Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals(e, it.next());
+		}
+		assertFalse(it.hasNext());
+		// containers handed over by the transient have spare room
+		for (String prefix : new String[]{"", "a", "bc", "fed"}) {
+			List<Integer> values = new ArrayList<Integer>(expected.subMap(prefix, prefix + 'g').values());
+			Collections.sort(values, Collections.reverseOrder());
+			List<Map.Entry<String, Integer>> top = trie.topK(prefix, 10, BY_VALUE);
+			assertEquals(values.subList(0, Math.min(10, values.size())), valuesOf(top));
+			for (Map.Entry<String, Integer> e : top) {
+				assertEquals(expected.get(e.getKey()), e.getValue());
+			}
+		}
+		// the trie the transient started from is untouched
+		assertEquals(10, base.count());
+		assertEquals(Integer.valueOf(9), base.getMember("forks"));
+		assertNull(base.getMember("abc"));
+		try {
+			t.addMember("a", 1);
+			fail();
+		} catch (IllegalAccessError e) {
+		}
+		// a second transient must copy the nodes the first one filled in place
+		PersistentHATTrie.TransientHATTrie<Integer> t2 = Transients.<Integer> transientHATTrie();
+		for (String s : expected.keySet()) {
+			t2.addMember(s, 0);
+		}
+		PersistentHATTrie<Integer> zeros = t2.persistent();
+		PersistentHATTrie.TransientHATTrie<Integer> t3 = trie.asTransient();
+		for (String s : expected.keySet()) {
+			t3.addMember(s + "x", 1).removeMember(s);
+		}
+		assertEquals(expected.size(), t3.persistent().count());
+		for (Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals(e.getValue(), trie.getMember(e.getKey()));
+			assertEquals(Integer.valueOf(0), zeros.getMember(e.getKey()));
+		}
+	}
+
+	static void checkPrefixesOf(IPersistentTrie<Integer> trie) {
+		Random r = new Random(5);
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		IPersistentTrie<Integer> reversed = trie;
+		for (int i = 0; i < 5000; i++) {
+			String s = randomKey(r, 6);
+			trie = trie.addMember(s, i);
+			reversed = reversed.addMember(new StringBuilder(s).reverse().toString(), i);
+			expected.put(s, i);
+		}
+		for (int i = 0; i < 2000; i++) {
+			String s = randomKey(r, 10);
+			List<Map.Entry<String, Integer>> prefixes = new ArrayList<Map.Entry<String, Integer>>();
+			List<Map.Entry<String, Integer>> suffixes = new ArrayList<Map.Entry<String, Integer>>();
+			for (int j = 0; j <= s.length(); j++) {
+				String prefix = s.substring(0, j);
+				if (expected.containsKey(prefix)) {
+					prefixes.add(new MapEntry<String, Integer>(prefix, expected.get(prefix)));
+				}
+				String suffix = s.substring(s.length() - j);
+				if (expected.containsKey(suffix)) {
+					suffixes.add(new MapEntry<String, Integer>(suffix, expected.get(suffix)));
+				}
+			}
+			assertEquals(prefixes, trie.allPrefixesOf(s));
+			assertEquals(prefixes.isEmpty() ? null : prefixes.get(prefixes.size() - 1), trie.longestPrefixOf(s));
+			assertEquals(suffixes, reversed.allSuffixesOf(s));
+			assertEquals(suffixes.isEmpty() ? null : suffixes.get(suffixes.size() - 1), reversed.longestSuffixOf(s));
+		}
+	}
+
+	@Test
+	public final void testPrefixesOf() {
+		checkPrefixesOf(PersistentHATTrie.EMPTY);
+		checkPrefixesOf(InlineArrayPersistentHATTrie.EMPTY);
+		PersistentHATTrie<String> routes = (PersistentHATTrie<String>) PersistentHATTrie.EMPTY
+			.addMember("moc.elpmaxe.", "example").addMember("moc.elpmaxe.ipa.", "api");
+		assertEquals("api", routes.longestSuffixOf("v2.api.example.com").getValue());
+		assertEquals(".example.com", routes.longestSuffixOf("www.example.com").getKey());
+		assertNull(routes.longestSuffixOf("example.com"));
+		assertNull(routes.longestPrefixOf("example.com"));
+	}
+
+	static int distance(String a, String b) {
+		int[] row = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			row[j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			int diag = row[0];
+			row[0] = i;
+			for (int j = 1; j <= b.length(); j++) {
+				int v = Math.min(diag + (a.charAt(i-1) == b.charAt(j-1) ? 0 : 1), Math.min(row[j], row[j-1]) + 1);
+				diag = row[j];
+				row[j] = v;
+			}
+		}
+		return row[b.length()];
+	}
+
+	static void checkFuzzySearch(IPersistentTrie<Integer> trie) {
+		Random r = new Random(11);
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			String s = randomKey(r, 9);
+			trie = trie.addMember(s, i);
+			expected.put(s, i);
+		}
+		for (int i = 0; i < 300; i++) {
+			String s = randomKey(r, 10);
+			int max = i % 3;
+			List<Map.Entry<String, Integer>> close = new ArrayList<Map.Entry<String, Integer>>();
+			for (Map.Entry<String, Integer> e : expected.entrySet()) {
+				if (distance(e.getKey(), s) <= max) {
+					close.add(e);
+				}
+			}
+			assertEquals(close, trie.fuzzySearch(s, max));
+		}
+		for (String s : new String[] {"", "abc"}) {
+			try {
+				trie.fuzzySearch(s, -1);
+				fail("Negative maxEdits");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public final void testFuzzySearch() {
+		assertEquals(3, distance("kitten", "sitting"));
+		checkFuzzySearch(PersistentHATTrie.EMPTY);
+		checkFuzzySearch(InlineArrayPersistentHATTrie.EMPTY);
+		List<Map.Entry<String, Integer>> close = createTrie().fuzzySearch("wen", 1);
+		assertEquals(2, close.size());
+		assertEquals("we", close.get(0).getKey());
+		assertEquals("went", close.get(1).getKey());
+	}
 }
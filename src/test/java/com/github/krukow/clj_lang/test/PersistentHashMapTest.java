@@ -7,17 +7,26 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.junit.Test;
 
+import com.github.krukow.clj_ds.PersistentMap;
+import com.github.krukow.clj_ds.Persistents;
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_lang.AFn;
+import com.github.krukow.clj_lang.IFn;
 import com.github.krukow.clj_lang.IPersistentMap;
+import com.github.krukow.clj_lang.ITransientMap;
 import com.github.krukow.clj_lang.PersistentHashMap;
 
 /**
@@ -99,6 +108,206 @@ public class PersistentHashMapTest {
 		
 	}
 
+	static final class Colliding {
+		final int id;
+		Colliding(int id) {
+			this.id = id;
+		}
+		public int hashCode() {
+			return id % 7;
+		}
+		public boolean equals(Object o) {
+			return o instanceof Colliding && ((Colliding) o).id == id;
+		}
+	}
+
+	@Test
+	public final void testLookupMixedNodes() {
+		IPersistentMap<Object, Integer> genMap = PersistentHashMap.emptyMap();
+		for (int i = 0; i < 2000; i++) {
+			genMap = genMap.assoc(i, i);
+		}
+		for (int i = 0; i < 50; i++) {
+			genMap = genMap.assoc(new Colliding(i), -i);
+		}
+		genMap = genMap.assoc(null, 42);
+		PersistentHashMap<Object, Integer> m = (PersistentHashMap<Object, Integer>) genMap;
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(i, (int) m.valAt(i));
+			assertTrue(m.containsKey(i));
+		}
+		for (int i = 0; i < 50; i++) {
+			assertEquals(-i, (int) m.valAt(new Colliding(i)));
+		}
+		assertEquals(42, (int) m.valAt(null));
+		assertEquals(null, m.valAt(new Colliding(50)));
+		assertEquals(-1, (int) m.valAt(2001, -1));
+		assertTrue(!m.containsKey(new Colliding(51)));
+		
+		ITransientMap<Object, Integer> t = PersistentHashMap.<Object, Integer>emptyMap().asTransient();
+		assertEquals(7, (int) t.valAt("missing", 7));
+	}
+
+	static final AFn PLUS = new AFn() {
+		public Object invoke(Object a, Object b) {
+			return (Integer) a + (Integer) b;
+		}
+	};
+
+	/* counts up to 3, then drops the key */
+	static final AFn COUNT = new AFn() {
+		public Object invoke(Object k, Object v) {
+			if (v == null)
+				return 1;
+			return (Integer) v >= 3 ? null : (Integer) v + 1;
+		}
+	};
+
+	static final AFn BUMP = new AFn() {
+		public Object invoke(Object v) {
+			return v == null ? 0 : (Integer) v + 10;
+		}
+	};
+
+	static final AFn INIT = new AFn() {
+		public Object invoke(Object k) {
+			return 100;
+		}
+	};
+
+	static void update(Map<Object, Integer> m, int op, Object key) {
+		Integer v = m.get(key);
+		boolean present = m.containsKey(key);
+		switch (op) {
+		case 0:
+			m.put(key, v == null ? 0 : v + 10);
+			break;
+		case 1:
+			if (v != null && v >= 3)
+				m.remove(key);
+			else
+				m.put(key, v == null ? 1 : v + 1);
+			break;
+		case 2:
+			if (!present)
+				m.put(key, 100);
+			break;
+		default:
+			m.put(key, present ? v + 5 : 5);
+		}
+	}
+
+	@Test
+	public final void testUpdate() {
+		Random r = new Random(11);
+		PersistentHashMap<Object, Integer> m = PersistentHashMap.emptyMap();
+		TransientMap<Object, Integer> t = PersistentHashMap.<Object, Integer>emptyMap().asTransient();
+		HashMap<Object, Integer> expected = new HashMap<Object, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int n = r.nextInt(600);
+			Object key = n < 20 ? new Colliding(n) : n == 20 ? null : n;
+			int op = r.nextInt(4);
+			update(expected, op, key);
+			switch (op) {
+			case 0:
+				m = m.update(key, BUMP);
+				t = t.update(key, BUMP);
+				break;
+			case 1:
+				m = m.compute(key, COUNT);
+				t = t.compute(key, COUNT);
+				break;
+			case 2:
+				m = m.computeIfAbsent(key, INIT);
+				t = t.computeIfAbsent(key, INIT);
+				break;
+			default:
+				m = m.merge(key, 5, PLUS);
+				t = t.merge(key, 5, PLUS);
+			}
+			assertEquals(expected.size(), m.count());
+		}
+		assertEquals(expected, m);
+		assertEquals(expected, t.persist());
+		for (Object key : expected.keySet()) {
+			assertTrue(m.computeIfAbsent(key, INIT) == m);
+			assertTrue(m.update(key, new AFn() {
+				public Object invoke(Object v) {
+					return v;
+				}
+			}) == m);
+		}
+		assertTrue(m.compute(-1, new AFn() {
+			public Object invoke(Object k, Object v) {
+				return null;
+			}
+		}) == m);
+	}
+
+	@Test
+	public final void testUpdateIn() {
+		PersistentMap<String, Object> doc = Persistents.hashMap(
+				"name", "doc",
+				"tags", Persistents.vector("a", "b"),
+				"stats", Persistents.treeMap("views", 1));
+		Map<List<?>, IFn> updates = new HashMap<List<?>, IFn>();
+		updates.put(Arrays.asList("stats", "views"), BUMP);
+		updates.put(Arrays.asList("stats", "likes"), BUMP);
+		updates.put(Arrays.asList("tags", 1), new AFn() {
+			public Object invoke(Object v) {
+				return v + "!";
+			}
+		});
+		updates.put(Arrays.asList("tags", 2), new AFn() {
+			public Object invoke(Object v) {
+				return "c";
+			}
+		});
+		updates.put(Arrays.asList("meta", "owner", "id"), BUMP);
+		updates.put(Arrays.asList("stats"), new AFn() {
+			public Object invoke(Object v) {
+				return ((PersistentMap<String, Integer>) v).plus("size", ((Map) v).size());
+			}
+		});
+		PersistentMap<String, Object> res = Persistents.updateIn(doc, updates);
+		assertEquals("doc", res.get("name"));
+		assertEquals(Persistents.vector("a", "b!", "c"), res.get("tags"));
+		assertEquals(Persistents.treeMap(Persistents.hashMap("views", 11, "likes", 0, "size", 2)), res.get("stats"));
+		assertEquals(Persistents.hashMap("owner", Persistents.hashMap("id", 0)), res.get("meta"));
+		assertEquals(Persistents.vector("a", "b"), doc.get("tags"));
+
+		Map<List<?>, Object> values = new HashMap<List<?>, Object>();
+		values.put(Arrays.asList("tags", 0), "z");
+		values.put(Arrays.asList("name"), "other");
+		res = Persistents.assocIn(res, values);
+		assertEquals("other", res.get("name"));
+		assertEquals(Persistents.vector("z", "b!", "c"), res.get("tags"));
+	}
+
+	@Test
+	public final void testGetAll() {
+		IPersistentMap<Object, Integer> genMap = PersistentHashMap.emptyMap();
+		for (int i = 0; i < 5000; i += 2) {
+			genMap = genMap.assoc(i, i);
+		}
+		for (int i = 0; i < 20; i++) {
+			genMap = genMap.assoc(new Colliding(i), -i);
+		}
+		PersistentHashMap<Object, Integer> m = (PersistentHashMap<Object, Integer>) genMap;
+		Object[] keys = new Object[3000];
+		for (int i = 0; i < 2970; i++) {
+			keys[i] = (i * 7919) % 5000;
+		}
+		for (int i = 0; i < 29; i++) {
+			keys[2970 + i] = new Colliding(i);
+		}
+		keys[2999] = null;
+		Integer[] vals = m.getAll(keys, new Integer[keys.length], -1);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(m.valAt(keys[i], -1), vals[i]);
+		}
+	}
+
 	/**
 	 * Test method for {@link com.github.krukow.clj_lang.PersistentHashMap#create(java.util.Map)}.
 	 */
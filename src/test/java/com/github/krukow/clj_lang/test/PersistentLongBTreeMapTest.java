@@ -0,0 +1,239 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_ds.Persistents;
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_ds.Transients;
+import com.github.krukow.clj_lang.IMapEntry;
+import com.github.krukow.clj_lang.ISeq;
+import com.github.krukow.clj_lang.PersistentLongBTreeMap;
+import com.github.krukow.clj_lang.PersistentLongBTreeMap.RangeIterator;
+import com.github.krukow.clj_lang.PersistentLongBTreeMap.TransientLongBTreeMap;
+
+/**
+ * @author krukow
+ *
+ */
+public class PersistentLongBTreeMapTest {
+
+	static final long NONE = Long.MIN_VALUE;
+
+	static long orNone(Long k) {
+		return k == null ? NONE : k;
+	}
+
+	static void assertSameEntry(Map.Entry<Long, String> expected, IMapEntry<Long, String> actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected.getKey(), actual.getKey());
+		assertEquals(expected.getValue(), actual.getValue());
+	}
+
+	@Test
+	public final void testAssocWithout() {
+		Random r = new Random(17);
+		PersistentLongBTreeMap<Integer> m = Persistents.longBTreeMap();
+		TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+		List<PersistentLongBTreeMap<Integer>> versions = new ArrayList<PersistentLongBTreeMap<Integer>>();
+		List<TreeMap<Long, Integer>> snapshots = new ArrayList<TreeMap<Long, Integer>>();
+		for (int i = 0; i < 100000; i++) {
+			// grow for a while, then shrink back; keys span the whole long range
+			long k = (r.nextInt(30000) - 15000) * 0x0010000000000001L;
+			if (r.nextInt(100) < (i < 60000 ? 70 : 25)) {
+				m = m.assocLong(k, i);
+				expected.put(k, i);
+			} else {
+				m = m.without(k);
+				expected.remove(k);
+			}
+			assertEquals(expected.size(), m.count());
+			if (i % 10000 == 0) {
+				versions.add(m);
+				snapshots.add(new TreeMap<Long, Integer>(expected));
+			}
+		}
+		assertEquals(expected, m);
+		PersistentBTreeMapTest.assertSameEntries(expected.entrySet().iterator(), m.iterator());
+		PersistentBTreeMapTest.assertSameEntries(expected.descendingMap().entrySet().iterator(), m.reverseIterator());
+		for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+			assertTrue(m.containsKey(e.getKey().longValue()));
+			assertEquals(e.getValue(), m.valAt(e.getKey().longValue()));
+		}
+		assertFalse(m.containsKey("x"));
+		assertEquals(expected.firstKey().longValue(), m.firstKey());
+		assertEquals(expected.lastKey().longValue(), m.lastKey());
+		for (int i = 0; i < versions.size(); i++) {
+			assertEquals(snapshots.get(i), versions.get(i));
+		}
+		for (Long k : new ArrayList<Long>(expected.keySet())) {
+			m = m.without(k.longValue());
+		}
+		assertEquals(0, m.count());
+		assertNull(m.seq());
+	}
+
+	@Test
+	public final void testNavigation() {
+		Random r = new Random(5);
+		PersistentLongBTreeMap<String> m = Persistents.longBTreeMap();
+		TreeMap<Long, String> expected = new TreeMap<Long, String>();
+		for (int i = 0; i < 20000; i++) {
+			long k = r.nextInt(100000);
+			m = m.assocLong(k, "v" + k);
+			expected.put(k, "v" + k);
+		}
+		// thin out some leaves so separators no longer match their first keys
+		for (int i = 0; i < 20000; i++) {
+			long k = r.nextInt(100000);
+			m = m.without(k);
+			expected.remove(k);
+		}
+		for (long k = -3; k < 100003; k += 1 + r.nextInt(20)) {
+			assertEquals(orNone(expected.floorKey(k)), m.floorKey(k, NONE));
+			assertEquals(orNone(expected.lowerKey(k)), m.lowerKey(k, NONE));
+			assertEquals(orNone(expected.ceilingKey(k)), m.ceilingKey(k, NONE));
+			assertEquals(orNone(expected.higherKey(k)), m.higherKey(k, NONE));
+			assertSameEntry(expected.floorEntry(k), m.floorEntry(k));
+			assertSameEntry(expected.lowerEntry(k), m.lowerEntry(k));
+			assertSameEntry(expected.ceilingEntry(k), m.ceilingEntry(k));
+			assertSameEntry(expected.higherEntry(k), m.higherEntry(k));
+		}
+		for (int i = 0; i < 500; i++) {
+			long from = r.nextInt(100010) - 5;
+			long to = from + r.nextInt(3000);
+			Map<Long, String> sub = expected.subMap(from, true, to, false);
+			RangeIterator<String> it = m.range(from, to);
+			for (Map.Entry<Long, String> e : sub.entrySet()) {
+				assertTrue(it.hasNext());
+				assertEquals(e.getKey().longValue(), it.nextKey());
+				assertEquals(e.getValue(), it.val());
+			}
+			assertFalse(it.hasNext());
+			assertEquals(sub.size(), m.countRange(from, to));
+		}
+		assertEquals(0, m.countRange(10, 10));
+		for (long from = -2; from < 100003; from += 701) {
+			ISeq s = m.seqFrom(from, true);
+			for (Long k : expected.tailMap(from, true).keySet()) {
+				assertEquals(k, ((Map.Entry) s.first()).getKey());
+				s = s.next();
+			}
+			assertNull(s);
+			s = m.seqFrom(from, false);
+			for (Long k : expected.headMap(from, true).descendingMap().keySet()) {
+				assertEquals(k, ((Map.Entry) s.first()).getKey());
+				s = s.next();
+			}
+			assertNull(s);
+		}
+		PersistentLongBTreeMap<String> empty = Persistents.longBTreeMap();
+		assertEquals(NONE, empty.floorKey(0, NONE));
+		assertNull(empty.ceilingEntry(0));
+		assertFalse(empty.range(Long.MIN_VALUE, Long.MAX_VALUE).hasNext());
+	}
+
+	@Test
+	public final void testTransient() {
+		List<Long> keys = new ArrayList<Long>();
+		for (long i = 0; i < 50000; i++) {
+			keys.add(i * 1000000007L);
+		}
+		Collections.shuffle(keys, new Random(3));
+		PersistentLongBTreeMap<Long> start = Persistents.<Long> longBTreeMap().assocLong(-1, -1L);
+		TransientLongBTreeMap<Long> t = start.asTransient();
+		for (Long k : keys) {
+			t = t.plusLong(k.longValue(), k);
+		}
+		for (int i = 0; i < 50000; i += 2) {
+			t = t.minus(keys.get(i).longValue());
+		}
+		PersistentLongBTreeMap<Long> m = t.persist();
+		assertEquals(1, start.count());
+		assertEquals(25001, m.count());
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		expected.put(-1L, -1L);
+		for (int i = 1; i < 50000; i += 2) {
+			expected.put(keys.get(i), keys.get(i));
+		}
+		assertEquals(expected, m);
+		assertEquals(expected, Persistents.longBTreeMap(expected));
+		try {
+			t.plusLong(1, 1L);
+			assertTrue(false);
+		} catch (IllegalAccessError e) {
+		}
+		TransientLongBTreeMap<String> u = Transients.transientLongBTreeMap();
+		assertEquals("a", u.plusLong(3, "a").persist().valAt(3));
+	}
+
+	@Test
+	public final void testBoxedValues() {
+		// long keys with double values, both overloads resolve
+		PersistentLongBTreeMap<Double> m = Persistents.longBTreeMap();
+		long t = 1700000000000L;
+		m = m.assocLong(t, 1.5).assoc(t + 1, 2.5).assoc(Long.valueOf(t + 2), 3.5);
+		assertEquals(Double.valueOf(1.5), m.valAtLong(t, 0.0));
+		assertEquals(Double.valueOf(0.0), m.valAtLong(t + 3, 0.0));
+		assertEquals(Double.valueOf(2.5), m.valAt(t + 1, 0.0));
+		assertEquals(Double.valueOf(3.5), m.valAt(t + 2));
+		TransientLongBTreeMap<Integer> u = Transients.transientLongBTreeMap();
+		u.plusLong(t, 1).plus(t + 1, 2);
+		PersistentLongBTreeMap<Integer> n = u.persist();
+		assertEquals(2, n.count());
+		assertEquals(Integer.valueOf(1), n.valAt(t));
+		assertEquals(Integer.valueOf(2), n.valAtLong(t + 1, 0));
+	}
+
+	@Test
+	public final void testUpdate() {
+		Random r = new Random(9);
+		PersistentLongBTreeMap<Integer> m = Persistents.longBTreeMap();
+		TransientMap<Long, Integer> t = Transients.transientLongBTreeMap();
+		TreeMap<Object, Integer> expected = new TreeMap<Object, Integer>();
+		for (int i = 0; i < 50000; i++) {
+			Long key = (long) r.nextInt(3000);
+			int op = r.nextInt(4);
+			PersistentHashMapTest.update(expected, op, key);
+			switch (op) {
+			case 0:
+				m = m.update(key, PersistentHashMapTest.BUMP);
+				t = t.update(key, PersistentHashMapTest.BUMP);
+				break;
+			case 1:
+				m = m.compute(key, PersistentHashMapTest.COUNT);
+				t = t.compute(key, PersistentHashMapTest.COUNT);
+				break;
+			case 2:
+				m = m.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				t = t.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				break;
+			default:
+				m = m.merge(key, 5, PersistentHashMapTest.PLUS);
+				t = t.merge(key, 5, PersistentHashMapTest.PLUS);
+			}
+			assertEquals(expected.size(), m.count());
+		}
+		assertEquals(expected, m);
+		assertEquals(expected, t.persist());
+		assertTrue(m.computeIfAbsent((Long) expected.firstKey(), PersistentHashMapTest.INIT) == m);
+	}
+
+}
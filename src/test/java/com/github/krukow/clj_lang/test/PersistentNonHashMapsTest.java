@@ -1,19 +1,40 @@
 package com.github.krukow.clj_lang.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.junit.Test;
 
+import com.github.krukow.clj_ds.PersistentMap;
+import com.github.krukow.clj_ds.PersistentSortedSet;
+import com.github.krukow.clj_ds.Persistents;
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_ds.TransientSet;
+import com.github.krukow.clj_lang.ATransientSet;
+import com.github.krukow.clj_lang.ArraySeq;
 import com.github.krukow.clj_lang.Cons;
+import com.github.krukow.clj_lang.Cursor;
+import com.github.krukow.clj_lang.Cursors;
+import com.github.krukow.clj_lang.IPersistentMap;
 import com.github.krukow.clj_lang.MapEntry;
 import com.github.krukow.clj_lang.PersistentArrayMap;
+import com.github.krukow.clj_lang.PersistentBTreeMap;
+import com.github.krukow.clj_lang.PersistentHashMap;
 import com.github.krukow.clj_lang.PersistentStructMap;
+import com.github.krukow.clj_lang.PersistentTreeMap;
+import com.github.krukow.clj_lang.PersistentTreeSet;
 import com.github.krukow.clj_lang.PersistentStructMap.Def;
 
 public class PersistentNonHashMapsTest {
@@ -52,6 +73,547 @@ PersistentTreeMap.java
 		
 	}
 	
+	@Test
+	public final void testTreeMapGetAll() {
+		PersistentTreeMap<Integer, String> tm = PersistentTreeMap.EMPTY;
+		for (int i = 0; i < 1000; i += 3) {
+			tm = tm.assoc(i, "v" + i);
+		}
+		Integer[] keys = new Integer[500];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = (i * 613) % 1000;
+		}
+		String[] vals = tm.getAll(keys, new String[keys.length], "none");
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(keys[i] % 3 == 0 ? "v" + keys[i] : "none", vals[i]);
+		}
+	}
+	
+	@Test
+	public final void testTreeMapBatchUpdates() {
+		Random r = new Random(42);
+		PersistentTreeMap<Integer, Integer> tm = PersistentTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		for (int round = 0; round < 200; round++) {
+			Map<Integer, Integer> batch = new HashMap<Integer, Integer>();
+			int size = r.nextInt(round < 100 ? 50 : 2000);
+			for (int i = 0; i < size; i++) {
+				batch.put(r.nextInt(20000), round);
+			}
+			tm = tm.plusAll(batch);
+			expected.putAll(batch);
+			List<Integer> gone = new ArrayList<Integer>();
+			for (int i = r.nextInt(size + 1); i > 0; i--) {
+				gone.add(r.nextInt(20000));
+			}
+			tm = tm.minusAll(gone);
+			expected.keySet().removeAll(gone);
+			assertEquals(expected.size(), tm.count());
+			assertTrue(tm.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(tm.count() + 1)));
+			// single-key operations rely on the red-black invariants
+			tm = tm.assoc(-1, -1).without(-1);
+		}
+		assertEquals(expected, tm);
+		List<Integer> keys = new ArrayList<Integer>(expected.keySet());
+		int i = 0;
+		for (Map.Entry<Integer, Integer> e : tm) {
+			assertEquals(keys.get(i++), e.getKey());
+		}
+		assertTrue(tm.minusAll(keys).isEmpty());
+	}
+
+	@Test
+	public final void testHashMapBatchUpdates() {
+		Random r = new Random(7);
+		PersistentHashMap<Integer, Integer> hm = PersistentHashMap.emptyMap();
+		HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int round = 0; round < 100; round++) {
+			Map<Integer, Integer> batch = new HashMap<Integer, Integer>();
+			for (int i = r.nextInt(500); i > 0; i--) {
+				batch.put(r.nextInt(5000), round);
+			}
+			if (round % 10 == 0) {
+				batch.put(null, round);
+			}
+			PersistentHashMap<Integer, Integer> before = hm;
+			hm = hm.plusAll(batch);
+			expected.putAll(batch);
+			List<Integer> gone = new ArrayList<Integer>();
+			for (int i = r.nextInt(300); i > 0; i--) {
+				gone.add(r.nextInt(5000));
+			}
+			if (round % 10 == 5) {
+				gone.add(null);
+			}
+			hm = hm.minusAll(gone);
+			expected.keySet().removeAll(gone);
+			assertEquals(expected.size(), hm.count());
+			assertEquals(expected, hm);
+			assertTrue(before.plusAll(new HashMap<Integer, Integer>()) == before);
+		}
+	}
+	
+	@Test
+	public final void testTreeMapUpdate() {
+		Random r = new Random(3);
+		PersistentTreeMap<Object, Integer> tm = PersistentTreeMap.EMPTY;
+		TreeMap<Object, Integer> expected = new TreeMap<Object, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			Integer key = r.nextInt(1000);
+			int op = r.nextInt(4);
+			PersistentHashMapTest.update(expected, op, key);
+			switch (op) {
+			case 0:
+				tm = tm.update(key, PersistentHashMapTest.BUMP);
+				break;
+			case 1:
+				tm = tm.compute(key, PersistentHashMapTest.COUNT);
+				break;
+			case 2:
+				tm = tm.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				break;
+			default:
+				tm = tm.merge(key, 5, PersistentHashMapTest.PLUS);
+			}
+			assertEquals(expected.size(), tm.count());
+			assertTrue(tm.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(tm.count() + 1)));
+		}
+		assertEquals(expected, tm);
+		assertTrue(tm.computeIfAbsent(expected.firstKey(), PersistentHashMapTest.INIT) == tm);
+	}
+
+	@Test
+	public final void testTreeMapOrderStatistics() {
+		Random r = new Random(11);
+		PersistentTreeMap<Integer, Integer> tm = PersistentTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int k = 2 * r.nextInt(3000);
+			if (r.nextInt(3) > 0) {
+				tm = tm.assoc(k, i);
+				expected.put(k, i);
+			} else {
+				tm = tm.without(k);
+				expected.remove(k);
+			}
+		}
+		List<Integer> keys = new ArrayList<Integer>(expected.keySet());
+		for (int i = 0; i < keys.size(); i++) {
+			assertEquals(keys.get(i), tm.nth(i).getKey());
+			assertEquals(i, tm.rank(keys.get(i)));
+			assertEquals(i + 1, tm.rank(keys.get(i) + 1));
+		}
+		assertEquals(0, tm.rank(-1));
+		for (int i = 0; i < 200; i++) {
+			int from = r.nextInt(6002) - 1;
+			int to = r.nextInt(6002) - 1;
+			assertEquals(from <= to ? expected.subMap(from, to).size() : 0, tm.countRange(from, to));
+		}
+		for (int i = 0; i < 200; i++) {
+			int from = r.nextInt(keys.size() + 1);
+			int to = from + r.nextInt(keys.size() + 1 - from);
+			PersistentTreeMap<Integer, Integer> s = tm.slice(from, to);
+			assertEquals(to - from, s.count());
+			assertEquals(to == from ? new TreeMap<Integer, Integer>()
+					: expected.subMap(keys.get(from), true, keys.get(to - 1), true), s);
+			if (s.count() > 0) {
+				assertEquals(keys.get(from), s.nth(0).getKey());
+				assertEquals(to - from - 1, s.rank(keys.get(to - 1)));
+			}
+			assertTrue(s.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(s.count() + 1)));
+		}
+		try {
+			tm.nth(keys.size());
+			assertTrue(false);
+		} catch (IndexOutOfBoundsException e) {
+		}
+
+		PersistentTreeSet<Integer> ts = PersistentTreeSet.EMPTY;
+		for (int i = 0; i < 1000; i++) {
+			ts = ts.cons(3 * i);
+		}
+		assertEquals(Integer.valueOf(300), ts.nth(100));
+		assertEquals(100, ts.rank(299));
+		assertEquals(34, ts.countRange(0, 100));
+		assertEquals(10, ts.slice(100, 110).count());
+		assertEquals(Integer.valueOf(327), ts.slice(100, 110).nth(9));
+	}
+
+	@Test
+	public final void testTreeMapNavigable() {
+		Random r = new Random(13);
+		PersistentTreeMap<Integer, Integer> tm = PersistentTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		for (int i = 0; i < 5000; i++) {
+			int k = 2 * r.nextInt(5000);
+			tm = tm.assoc(k, i);
+			expected.put(k, i);
+		}
+		for (int k = -1; k < 10002; k += 3) {
+			assertEquals(expected.lowerKey(k), tm.lowerKey(k));
+			assertEquals(expected.floorKey(k), tm.floorKey(k));
+			assertEquals(expected.ceilingKey(k), tm.ceilingKey(k));
+			assertEquals(expected.higherKey(k), tm.higherKey(k));
+			assertEquals(expected.floorEntry(k), tm.floorEntry(k));
+		}
+		assertEquals(expected.firstKey(), tm.firstKey());
+		assertEquals(expected.lastEntry(), tm.lastEntry());
+		for (int i = 0; i < 300; i++) {
+			int from = r.nextInt(10002) - 1;
+			int to = from + r.nextInt(10002 - from);
+			boolean fi = r.nextBoolean();
+			boolean ti = r.nextBoolean();
+			PersistentTreeMap<Integer, Integer> sub = tm.subMap(from, fi, to, ti);
+			assertEquals(expected.subMap(from, fi, to, ti), sub);
+			assertEquals(expected.subMap(from, fi, to, ti).size(), sub.count());
+			assertEquals(expected.headMap(to, ti), tm.headMap(to, ti));
+			assertEquals(expected.tailMap(from, fi), tm.tailMap(from, fi));
+			TreeMap<Integer, Integer> rest = new TreeMap<Integer, Integer>(expected);
+			rest.subMap(from, fi, to, ti).clear();
+			PersistentTreeMap<Integer, Integer> minus = tm.minusRange(from, fi, to, ti);
+			assertEquals(rest, minus);
+			assertEquals(rest.size(), minus.count());
+			assertTrue(minus.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(minus.count() + 1)));
+		}
+		assertEquals(expected.size(), tm.count());
+		assertTrue(tm.minusRange(-10, -5) == tm);
+		for (int k = 0; k < 10; k++) {
+			assertTrue(tm.minusRange(k, false, k, false) == tm);
+			assertTrue(tm.minusRange(k, true, k, false) == tm);
+			TreeMap<Integer, Integer> rest = new TreeMap<Integer, Integer>(expected);
+			rest.remove(k);
+			assertEquals(rest, tm.minusRange(k, true, k, true));
+		}
+
+		PersistentTreeMap<Integer, Integer> desc = tm.descendingMap();
+		assertEquals(expected, desc);
+		assertEquals(expected.lastKey(), desc.firstKey());
+		assertEquals(expected.lowerKey(5000), desc.higherKey(5000));
+		assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), new ArrayList<Integer>(desc.navigableKeySet()));
+
+		PersistentTreeSet<Integer> ts = tm.navigableKeySet();
+		assertEquals(expected.keySet(), ts);
+		assertEquals(expected.navigableKeySet().subSet(100, true, 200, true), ts.subSet(100, true, 200, true));
+		assertEquals(expected.ceilingKey(101), ts.ceiling(101));
+		assertEquals(expected.lastKey(), ts.descendingIterator().next());
+		assertEquals(expected.size() - expected.subMap(100, 200).size(), ts.minusRange(100, 200).count());
+		assertEquals(expected.size(), ts.minusRange(100, false, 100, false).count());
+		// the key set maps keys to themselves, not to the values of the map
+		int k = expected.firstKey();
+		assertTrue(ts.cons(k) == ts);
+		assertEquals(k, ((ATransientSet) ts.asTransient()).invoke(k));
+		PersistentTreeSet<Integer> odd = (PersistentTreeSet<Integer>) Persistents.plusAll(PersistentTreeSet.EMPTY, Arrays.asList(1, 3, k));
+		PersistentTreeSet<Integer> union = ts.union(odd);
+		assertEquals(expected.size() + 2, union.count());
+		for (int x : new int[] {1, 3, k, expected.lastKey()}) {
+			assertEquals(x, ((ATransientSet) union.asTransient()).invoke(x));
+		}
+		TransientSet<Integer> t = ts.asTransient();
+		assertEquals(expected.size() + 1, t.plus(5).persist().size());
+	}
+
+	@Test
+	public final void testTreeMapBulkCreate() {
+		Random r = new Random(17);
+		for (int n : new int[] { 0, 1, 2, 17, 1000, 50000 }) {
+			Map<Integer, Integer> input = new HashMap<Integer, Integer>();
+			for (int i = 0; i < n; i++) {
+				input.put(r.nextInt(2 * n), i);
+			}
+			PersistentTreeMap<Integer, Integer> tm = PersistentTreeMap.create(input);
+			TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>(input);
+			assertEquals(expected, tm);
+			assertEquals(expected.size(), tm.count());
+			assertTrue(tm.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(tm.count() + 1)));
+			PersistentTreeMap<Integer, Integer> sorted = PersistentTreeMap.createSorted(tm.comparator(),
+					expected.entrySet().iterator());
+			assertEquals(expected, sorted);
+			assertEquals(expected.size(), sorted.count());
+
+			List<Integer> elements = new ArrayList<Integer>(input.values());
+			elements.addAll(input.values());
+			PersistentTreeSet<Integer> ts = PersistentTreeSet.create(elements);
+			assertEquals(new TreeSet<Integer>(elements), ts);
+			assertEquals(input.size(), ts.count());
+		}
+
+		Object[] pairs = new Object[60000];
+		for (int i = 0; i < pairs.length; i += 2) {
+			pairs[i] = r.nextInt(1000);
+			pairs[i + 1] = i;
+		}
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			expected.put((Integer) pairs[i], (Integer) pairs[i + 1]);
+		}
+		assertEquals(expected, PersistentTreeMap.create(ArraySeq.create(pairs)));
+
+		TreeMap<Integer, Integer> descending = new TreeMap<Integer, Integer>(Collections.reverseOrder());
+		descending.putAll(expected);
+		try {
+			PersistentTreeMap.createSorted(PersistentTreeMap.EMPTY.comparator(), descending.entrySet().iterator());
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public final void testTreeMapSetOperations() {
+		Random r = new Random(19);
+		for (int[] sizes : new int[][] { { 0, 10 }, { 10, 0 }, { 50, 3000 }, { 3000, 50 }, { 20000, 30000 } }) {
+			TreeMap<Integer, Integer> a = new TreeMap<Integer, Integer>();
+			TreeMap<Integer, Integer> b = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < sizes[0]; i++) {
+				a.put(r.nextInt(4 * sizes[0] + 4 * sizes[1]), i);
+			}
+			for (int i = 0; i < sizes[1]; i++) {
+				b.put(r.nextInt(4 * sizes[0] + 4 * sizes[1]), -i);
+			}
+			PersistentTreeMap<Integer, Integer> pa = PersistentTreeMap.create(a);
+			PersistentTreeMap<Integer, Integer> pb = PersistentTreeMap.create(b);
+
+			TreeMap<Integer, Integer> union = new TreeMap<Integer, Integer>(a);
+			union.putAll(b);
+			PersistentTreeMap<Integer, Integer> u = pa.union(pb);
+			assertEquals(union, u);
+			assertEquals(union.size(), u.count());
+
+			TreeMap<Integer, Integer> merged = new TreeMap<Integer, Integer>(a);
+			TreeMap<Integer, Integer> inter = new TreeMap<Integer, Integer>();
+			TreeMap<Integer, Integer> diff = new TreeMap<Integer, Integer>(a);
+			for (Map.Entry<Integer, Integer> e : b.entrySet()) {
+				Integer v = a.get(e.getKey());
+				merged.put(e.getKey(), v == null ? e.getValue() : v + e.getValue());
+				if (v != null) {
+					inter.put(e.getKey(), v);
+				}
+				diff.remove(e.getKey());
+			}
+			assertEquals(merged, pa.mergeWith(pb, PersistentHashMapTest.PLUS));
+			PersistentTreeMap<Integer, Integer> i = pa.intersection(pb);
+			assertEquals(inter, i);
+			assertEquals(inter.size(), i.count());
+			PersistentTreeMap<Integer, Integer> d = pa.difference(pb);
+			assertEquals(diff, d);
+			assertEquals(diff.size(), d.count());
+			assertTrue(u.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(u.count() + 1)));
+		}
+
+		PersistentTreeMap<Integer, Integer> v1 = PersistentTreeMap.EMPTY;
+		for (int i = 0; i < 10000; i++) {
+			v1 = v1.assoc(i, i);
+		}
+		PersistentTreeMap<Integer, Integer> v2 = v1.assoc(-1, -1).without(5000);
+		assertEquals(9999, v1.intersection(v2).count());
+		assertEquals(10001, v1.union(v2).count());
+		assertEquals(1, v1.difference(v2).count());
+
+		PersistentTreeSet<Integer> s1 = PersistentTreeSet.create(v1.keySet());
+		PersistentTreeSet<Integer> s2 = PersistentTreeSet.create(
+				Collections.<Integer> reverseOrder(), Arrays.asList(9998, 9999, 10000, 10001));
+		assertEquals(10002, s1.union(s2).count());
+		assertEquals(new TreeSet<Integer>(Arrays.asList(9998, 9999)), s1.intersection(s2));
+		assertEquals(9998, s1.difference(s2).count());
+		assertEquals(Integer.valueOf(9997), s1.difference(s2).last());
+	}
+
+	@Test
+	public final void testTreeMapTransient() {
+		Random r = new Random(23);
+		PersistentTreeMap<Integer, Integer> start = PersistentTreeMap.EMPTY;
+		for (int i = 0; i < 1000; i++) {
+			start = start.assoc(r.nextInt(4000), i);
+		}
+		TreeMap<Integer, Integer> startExpected = new TreeMap<Integer, Integer>(start);
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>(start);
+		PersistentTreeMap<Integer, Integer> pm = start;
+		for (int round = 0; round < 5; round++) {
+			TransientMap<Integer, Integer> t = pm.asTransient();
+			for (int i = 0; i < 20000; i++) {
+				int k = r.nextInt(4000);
+				if (r.nextInt(5) < (round % 2 == 0 ? 3 : 2)) {
+					t = t.plus(k, i);
+					expected.put(k, i);
+				} else {
+					t = t.minus(k);
+					expected.remove(k);
+				}
+			}
+			t = t.update(-1, PersistentHashMapTest.BUMP);
+			expected.put(-1, expected.containsKey(-1) ? expected.get(-1) + 10 : 0);
+			pm = (PersistentTreeMap<Integer, Integer>) t.persist();
+			assertEquals(expected, pm);
+			assertEquals(expected.size(), pm.count());
+			assertTrue(pm.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(pm.count() + 1)));
+			// persistent operations on a tree built by a transient
+			for (int i = 0; i < 2000; i++) {
+				int k = r.nextInt(4000);
+				if (r.nextBoolean()) {
+					pm = pm.assoc(k, -i);
+					expected.put(k, -i);
+				} else {
+					pm = pm.without(k);
+					expected.remove(k);
+				}
+			}
+			assertEquals(expected, pm);
+			assertEquals(expected.size(), pm.count());
+			assertEquals(expected.size() > 0 ? expected.firstKey() : null, pm.minKey());
+			assertEquals(new ArrayList<Integer>(expected.keySet()).get(expected.size() / 2), pm.nth(expected.size() / 2).getKey());
+			try {
+				t.plus(1, 1);
+				assertTrue(false);
+			} catch (IllegalAccessError e) {
+			}
+		}
+		assertEquals(startExpected, start);
+
+		TransientSet<Integer> ts = PersistentTreeSet.EMPTY.asTransient();
+		for (int i = 0; i < 1000; i++) {
+			ts = ts.plus(i % 300);
+		}
+		ts = ts.minus(7);
+		PersistentSortedSet<Integer> set = (PersistentSortedSet<Integer>) ts.persist();
+		assertEquals(299, set.size());
+		assertTrue(!set.contains(7));
+		set = Persistents.plusAll(set, Arrays.asList(7, 300, 301));
+		assertEquals(302, set.size());
+		assertEquals(Integer.valueOf(301), ((PersistentTreeSet<Integer>) set).last());
+		// batches keep the meta, and a batch that changes nothing returns the set
+		IPersistentMap meta = PersistentArrayMap.EMPTY.assoc("tag", 1);
+		PersistentTreeSet<Integer> tagged = ((PersistentTreeSet<Integer>) set).withMeta(meta);
+		assertTrue(Persistents.plusAll(tagged, Arrays.asList(1, 2, 301)) == tagged);
+		assertTrue(Persistents.minusAll(tagged, Arrays.asList(-1, 1000)) == tagged);
+		PersistentTreeSet<Integer> changed = (PersistentTreeSet<Integer>) Persistents.minusAll(Persistents.plusAll(tagged, 400), 0);
+		assertEquals(302, changed.size());
+		assertTrue(changed.meta() == meta);
+		assertTrue(((PersistentTreeSet<Integer>) Persistents.minusAll(tagged, tagged)).meta() == meta);
+	}
+
+	@Test
+	public final void testTreeMapCursor() {
+		Random r = new Random(31);
+		PersistentTreeMap<Integer, Integer> pm = PersistentTreeMap.EMPTY;
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		for (int i = 0; i < 5000; i++) {
+			int k = r.nextInt(20000);
+			pm = pm.assoc(k, -k);
+			expected.put(k, -k);
+		}
+		Cursor<Integer, Integer> c = pm.cursor();
+		for (Integer k : expected.keySet()) {
+			assertEquals(k, c.peekKey());
+			assertEquals(Integer.valueOf(-k), c.peekVal());
+			c.next();
+		}
+		assertTrue(c.atEnd());
+		for (int round = 0; round < 50; round++) {
+			c.reset();
+			int target = -5;
+			while (true) {
+				target += r.nextInt(round < 25 ? 30 : 3000);
+				Integer ceiling = expected.ceilingKey(target);
+				assertEquals(ceiling != null, c.seek(target));
+				if (ceiling == null) {
+					break;
+				}
+				assertEquals(ceiling, c.peekKey());
+				// seeking backwards stays put
+				assertTrue(c.seek(target - 100));
+				assertEquals(ceiling, c.peekKey());
+			}
+			assertTrue(c.atEnd());
+		}
+		assertTrue(PersistentTreeMap.EMPTY.cursor().atEnd());
+
+		// merge joins over maps, sets and B+-trees sharing the default ordering
+		List<TreeSet<Integer>> sets = new ArrayList<TreeSet<Integer>>();
+		Cursor[] cursors = new Cursor[4];
+		for (int j = 0; j < cursors.length; j++) {
+			TreeSet<Integer> keys = new TreeSet<Integer>();
+			for (int i = 0; i < 3000; i++) {
+				keys.add(r.nextInt(j == 0 ? 6000 : 10000));
+			}
+			sets.add(keys);
+			if (j % 2 == 0) {
+				cursors[j] = PersistentTreeSet.create(keys).cursor();
+			} else {
+				cursors[j] = PersistentBTreeMap.create(toMap(keys)).cursor();
+			}
+		}
+		TreeSet<Integer> and = new TreeSet<Integer>(sets.get(0));
+		TreeSet<Integer> or = new TreeSet<Integer>();
+		for (TreeSet<Integer> keys : sets) {
+			and.retainAll(keys);
+			or.addAll(keys);
+		}
+		Iterator<Integer> it = Cursors.intersection(cursors);
+		for (Integer k : and) {
+			assertEquals(k, it.next());
+			for (Cursor cur : cursors) {
+				assertEquals(k, cur.peekVal());
+			}
+		}
+		assertTrue(!it.hasNext());
+		for (Cursor cur : cursors) {
+			cur.reset();
+		}
+		it = Cursors.union(cursors);
+		for (Integer k : or) {
+			assertEquals(k, it.next());
+			int holding = 0;
+			for (int j = 0; j < cursors.length; j++) {
+				if (!cursors[j].atEnd() && k.equals(cursors[j].peekKey())) {
+					holding++;
+					assertTrue(sets.get(j).contains(k));
+				}
+			}
+			assertTrue(holding > 0);
+		}
+		assertTrue(!it.hasNext());
+		assertTrue(!Cursors.intersection(PersistentTreeMap.EMPTY.cursor(), pm.cursor()).hasNext());
+	}
+
+	static Map<Integer, Integer> toMap(Iterable<Integer> keys) {
+		Map<Integer, Integer> m = new HashMap<Integer, Integer>();
+		for (Integer k : keys) {
+			m.put(k, k);
+		}
+		return m;
+	}
+
+	@Test
+	public final void testArrayMapUpdate() {
+		Map<Object, Integer> expected = new HashMap<Object, Integer>();
+		PersistentMap<Object, Integer> am = PersistentArrayMap.EMPTY;
+		TransientMap<Object, Integer> t = PersistentArrayMap.EMPTY.asTransient();
+		Random r = new Random(5);
+		for (int i = 0; i < 2000; i++) {
+			Integer key = r.nextInt(i < 1000 ? 8 : 24);
+			int op = r.nextInt(4);
+			PersistentHashMapTest.update(expected, op, key);
+			switch (op) {
+			case 0:
+				am = am.update(key, PersistentHashMapTest.BUMP);
+				t = t.update(key, PersistentHashMapTest.BUMP);
+				break;
+			case 1:
+				am = am.compute(key, PersistentHashMapTest.COUNT);
+				t = t.compute(key, PersistentHashMapTest.COUNT);
+				break;
+			case 2:
+				am = am.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				t = t.computeIfAbsent(key, PersistentHashMapTest.INIT);
+				break;
+			default:
+				am = am.merge(key, 5, PersistentHashMapTest.PLUS);
+				t = t.merge(key, 5, PersistentHashMapTest.PLUS);
+			}
+			assertEquals(expected, am);
+		}
+		assertEquals(expected, t.persist());
+	}
+
 	@Test
 	public final void testStructMap() {
 		 Def def = PersistentStructMap.createSlotMap(
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package com.github.krukow.clj_lang.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.krukow.clj_lang.PersistentUTF8HATTrie;
+
+/**
+ * @author krukow
+ *
+ */
+public class PersistentUTF8HATTrieTest {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			for (int i = 0; i < Math.min(a.length, b.length); i++) {
+				int c = (a[i] & 0xff) - (b[i] & 0xff);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+
+	/* chars from a small alphabet, so keys share prefixes, including some beyond Latin-1 */
+	static final String ALPHABET = "ab\u0000\u00e6\u00f8\u4e2d\u6587\ud83d\ude00";
+
+	static String randomKey(Random r, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		int n = r.nextInt(maxLength + 1);
+		for (int i = 0; i < n; i++) {
+			int c = r.nextInt(ALPHABET.length() - 1);
+			sb.append(ALPHABET.charAt(c));
+			if (Character.isHighSurrogate(ALPHABET.charAt(c))) {
+				sb.append(ALPHABET.charAt(c + 1));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public final void testUnicodeKeys() {
+		Random r = new Random(37);
+		PersistentUTF8HATTrie<Integer> trie = PersistentUTF8HATTrie.EMPTY;
+		TreeMap<byte[], Integer> expected = new TreeMap<byte[], Integer>(UNSIGNED);
+		List<String> added = new ArrayList<String>();
+		for (int i = 0; i < 30000; i++) {
+			String s = randomKey(r, 6);
+			if (r.nextInt(4) == 0) {
+				trie = trie.removeMember(s);
+				expected.remove(s.getBytes(UTF8));
+			} else {
+				trie = trie.addMember(s, i);
+				expected.put(s.getBytes(UTF8), i);
+				added.add(s);
+			}
+			assertEquals(expected.size(), trie.count());
+		}
+		// a direct buffer holding every key, looked up as slices of it
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * added.size());
+		for (String s : added) {
+			byte[] bytes = s.getBytes(UTF8);
+			int from = buffer.position();
+			buffer.put(bytes);
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(from);
+			slice.limit(from + bytes.length);
+			Integer v = expected.get(bytes);
+			assertEquals(v, trie.getMember(s));
+			assertEquals(v, trie.getMember(bytes));
+			assertEquals(v, trie.getMember(slice));
+			assertEquals(from, slice.position());
+		}
+		Iterator<Map.Entry<byte[], Integer>> it = trie.iterator();
+		for (Map.Entry<byte[], Integer> e : expected.entrySet()) {
+			Map.Entry<byte[], Integer> actual = it.next();
+			assertArrayEquals(e.getKey(), actual.getKey());
+			assertEquals(e.getValue(), actual.getValue());
+		}
+		assertFalse(it.hasNext());
+		assertSame(trie, trie.removeMember("\u6587\u6587\u6587\u6587\u6587\u6587\u6587"));
+		for (byte[] key : expected.keySet()) {
+			trie = trie.removeMember(key);
+		}
+		assertEquals(0, trie.count());
+		assertNull(trie.getMember(""));
+		assertFalse(trie.iterator().hasNext());
+	}
+
+	@Test
+	public final void testRawBytes() {
+		// keys need not be valid UTF-8
+		PersistentUTF8HATTrie<String> trie = PersistentUTF8HATTrie.EMPTY;
+		for (int b = 255; b >= 0; b--) {
+			trie = trie.addMember(new byte[]{(byte) b, (byte) 0xff}, "x" + b);
+			trie = trie.addMember(new byte[]{(byte) b}, "" + b);
+		}
+		assertEquals(512, trie.count());
+		assertEquals("200", trie.getMember(new byte[]{(byte) 200}));
+		assertEquals("x128", trie.getMember(new byte[]{(byte) 128, (byte) 0xff}));
+		int i = 0;
+		for (Map.Entry<byte[], String> e : trie) {
+			assertEquals(i / 2, e.getKey()[0] & 0xff);
+			assertEquals(i % 2 + 1, e.getKey().length);
+			i++;
+		}
+	}
+	@Test
+	public final void testNullValues() {
+		PersistentUTF8HATTrie<Integer> trie = PersistentUTF8HATTrie.EMPTY;
+		try {
+			trie.addMember("", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		// the empty key bursts into an access node's own member and collapses back
+		trie = trie.addMember("", -1);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 70; i++) {
+			keys.add(Integer.toString(i, 6));
+			trie = trie.addMember(keys.get(i), i);
+		}
+		assertEquals(71, trie.count());
+		for (int i = 0; i < 60; i++) {
+			trie = trie.removeMember(keys.get(i));
+		}
+		assertEquals(11, trie.count());
+		assertEquals(Integer.valueOf(-1), trie.getMember(""));
+		int n = 0;
+		for (Iterator<Map.Entry<byte[], Integer>> it = trie.iterator(); it.hasNext(); it.next()) {
+			n++;
+		}
+		assertEquals(11, n);
+	}
+
+}
@@ -4,11 +4,13 @@
 package com.github.krukow.clj_lang.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.HashSet;
 
 import org.junit.Test;
 
+import com.github.krukow.clj_ds.TransientVector;
 import com.github.krukow.clj_lang.AFn;
 import com.github.krukow.clj_lang.IFn;
 import com.github.krukow.clj_lang.IPersistentVector;
@@ -55,6 +57,39 @@ public class PersistentVectorTest {
 	}
 	
 
+	@Test
+	public final void testUpdate() {
+		IFn inc = new AFn() {
+			@Override
+			public Object invoke(Object arg1) {
+				return arg1 == null ? 0 : (Integer) arg1 + 1;
+			}
+		};
+		IFn same = new AFn() {
+			@Override
+			public Object invoke(Object arg1) {
+				return arg1;
+			}
+		};
+		PersistentVector<Integer> vec = PersistentVector.emptyVector();
+		int N = 32*32*32+33;
+		for (int i = 0; i < N; i++) {
+			vec = vec.update(i, inc);
+		}
+		TransientVector<Integer> tvec = vec.asTransient();
+		for (int i = 0; i < N; i += 3) {
+			vec = vec.update(i, inc);
+			tvec = tvec.update(i, inc);
+		}
+		com.github.krukow.clj_ds.PersistentVector<Integer> tres = tvec.persist();
+		for (int i = 0; i < N; i++) {
+			assertEquals(i % 3 == 0 ? 1 : 0, (int) vec.nth(i));
+			assertEquals(vec.nth(i), tres.nth(i));
+		}
+		assertTrue(vec.update(17, same) == vec);
+		assertTrue(vec.update(N - 1, same) == vec);
+	}
+
 	/**
 	 *  * NB: this methods takes a long time to run. Be patient.
 	 */